@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full backups of a synthetic world, for each archive format, compression level and thread count
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    @Param({"zip", "tar.gz", "tar"})
+    public String format;
+
+    @Param({"1", "6"})
+    public int level;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean storeRegions;
+
+    @Param({"16"})
+    public int regions;
+
+    @Param({"64"})
+    public int memoryMB;
+
+    private File directory;
+    private File world;
+    private File archive;
+    private BufferPool buffers;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+
+        directory = Files.createTempDirectory("backup-bench").toFile();
+        world = new File(directory, "world");
+        new SyntheticWorld().regions(regions).generate(world);
+        archive = new File(directory, "backup" + ArchiveFormat.fromName(format).getExtension());
+        buffers = new BufferPool(memoryMB * 1024L * 1024, ParallelArchiver.BUFFER_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+
+        WorldSnapshot.deleteRecursively(directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteArchive() {
+
+        archive.delete();
+    }
+
+    @Benchmark
+    public long archive() throws IOException {
+
+        Set<String> stored = storeRegions ? Collections.singleton("mca") : Collections.<String>emptySet();
+        new ParallelArchiver(threads, PathFilter.ACCEPT_ALL, stored,
+                ArchiveFormat.fromName(format), level, BackupThrottle.UNLIMITED, buffers).archive(world, archive);
+
+        return archive.length();
+    }
+}
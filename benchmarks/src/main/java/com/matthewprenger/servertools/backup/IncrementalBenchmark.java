@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental backups of a synthetic world: the first backup into an empty store, a backup
+ * of a world that hasn't changed since the last one, which only walks the directory, and the
+ * same backup with the changed regions tracked, which doesn't list the region directories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IncrementalBenchmark {
+
+    @Param({"true", "false"})
+    public boolean regionChunks;
+
+    @Param({"4"})
+    public int threads;
+
+    @Param({"16"})
+    public int regions;
+
+    @Param({"500"})
+    public int smallFiles;
+
+    private File directory;
+    private File world;
+    private File storeDir;
+    private BackupManifest previous;
+    private DirtyRegions.Changes noChanges;
+    private final BufferPool buffers = new BufferPool(64 * 1024 * 1024, ParallelArchiver.BUFFER_SIZE);
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+
+        directory = Files.createTempDirectory("backup-bench").toFile();
+        world = new File(directory, "world");
+        storeDir = new File(directory, "store");
+        new SyntheticWorld().regions(regions).smallFiles(smallFiles).generate(world);
+
+        previous = newArchiver(new ContentStore(new File(directory, "previous"))).archive(world, null);
+        previous.setCreated(System.currentTimeMillis());
+
+        File previousFile = new File(directory, "previous" + BackupManifest.FILE_EXTENSION);
+        Set<String> regionDirectories = new HashSet<>(Arrays.asList("region", "DIM-1/region"));
+        DirtyRegions dirtyRegions = new DirtyRegions(new File(directory, DirtyRegions.FILE_NAME));
+        dirtyRegions.take(previousFile.getName(), regionDirectories);
+        noChanges = dirtyRegions.take("next", regionDirectories).since(previousFile, previous);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+
+        WorldSnapshot.deleteRecursively(directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() throws IOException {
+
+        WorldSnapshot.deleteRecursively(storeDir);
+    }
+
+    @Benchmark
+    public BackupManifest firstBackup() throws IOException {
+
+        return newArchiver(new ContentStore(storeDir)).archive(world, null);
+    }
+
+    @Benchmark
+    public BackupManifest unchangedWorld() throws IOException {
+
+        return newArchiver(new ContentStore(new File(directory, "previous"))).archive(world, previous);
+    }
+
+    @Benchmark
+    public BackupManifest unchangedWorldTracked() throws IOException {
+
+        return newArchiver(new ContentStore(new File(directory, "previous"))).archive(world, previous, noChanges);
+    }
+
+    private IncrementalArchiver newArchiver(ContentStore store) {
+
+        return new IncrementalArchiver(store, threads, PathFilter.ACCEPT_ALL,
+                regionChunks, Collections.singleton("mca"), BackupThrottle.UNLIMITED, buffers);
+    }
+}
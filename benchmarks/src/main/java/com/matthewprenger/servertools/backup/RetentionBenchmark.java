@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A retention pass over a catalog of thousands of backups, and loading such a catalog from disk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RetentionBenchmark {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long BACKUP_SIZE = 100 * 1024 * 1024L;
+
+    @Param({"1000", "10000"})
+    public int backups;
+
+    private final long now = System.currentTimeMillis();
+    private List<BackupCatalog.Entry> entries;
+    private RetentionRules rules;
+    private File directory;
+    private BackupCatalog catalog;
+
+    @Setup(Level.Trial)
+    public void createBackups() throws IOException {
+
+        // One backup an hour, newest now
+        entries = new ArrayList<>(backups);
+        for (int i = backups - 1; i >= 0; i--)
+            entries.add(new BackupCatalog.Entry(new File("backup-" + i + ".zip"), now - i * HOUR, BACKUP_SIZE));
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"6h=all", "2d=1h", "30d=1d", "forever=1w"});
+        rules = new RetentionRules(365, backups / 2, backups / 3 * BACKUP_SIZE, policy);
+
+        // Named from the default template, so the catalog reads their times from their names
+        BackupName backupName = new BackupName("%MONTH-%DAY-%YEAR_%HOUR-%MINUTE-%SECOND", TimeZone.getDefault());
+        directory = Files.createTempDirectory("backup-bench").toFile();
+        for (int i = 0; i < backups; i++)
+            new File(directory, backupName.format(now - i * HOUR, ".zip")).createNewFile();
+
+        catalog = new BackupCatalog(directory, new File(directory, "store"), new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".zip");
+            }
+        }, backupName);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBackups() throws IOException {
+
+        WorldSnapshot.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int retentionPass() {
+
+        return rules.apply(entries, backups * BACKUP_SIZE, now, new RetentionRules.Deleter() {
+            @Override
+            public boolean delete(BackupCatalog.Entry backup, String reason) {
+                return true;
+            }
+        });
+    }
+
+    @Benchmark
+    public int loadCatalog() throws IOException {
+
+        catalog.load();
+        return catalog.size();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a synthetic world into a snapshot, which is how long saving stays paused for
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"16", "64"})
+    public int regions;
+
+    private File directory;
+    private File world;
+    private WorldSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+
+        directory = Files.createTempDirectory("backup-bench").toFile();
+        world = new File(directory, "world");
+        new SyntheticWorld().regions(regions).generate(world);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+
+        WorldSnapshot.deleteRecursively(directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteSnapshot() throws IOException {
+
+        if (snapshot != null)
+            snapshot.delete();
+    }
+
+    @Benchmark
+    public long snapshot() throws IOException {
+
+        snapshot = WorldSnapshot.create(world, new File(directory, "snapshot"), PathFilter.ACCEPT_ALL);
+        return snapshot.getBytesCopied();
+    }
+}
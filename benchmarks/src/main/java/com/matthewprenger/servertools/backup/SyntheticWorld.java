@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a world directory that looks like a Minecraft save to the backup pipeline:
+ * Anvil region files holding zlib compressed chunks, a gzipped level.dat, player data
+ * and statistics for each player, and lots of small map files.
+ *
+ * The chunk payloads are not real NBT, but are built like it to compress about as well:
+ * long runs of the same block layered with noise. Everything is seeded, so a world can be
+ * generated again byte for byte.
+ */
+class SyntheticWorld {
+
+    private int regions = 16;
+    private int chunksPerRegion = 512;
+    private int chunkSize = 24 * 1024;
+    private double noise = 0.2;
+    private int players = 50;
+    private int smallFiles = 500;
+    private long seed = 1;
+
+    /**
+     * @param regions the number of region files, split between the overworld and the nether
+     */
+    SyntheticWorld regions(int regions) {
+
+        this.regions = regions;
+        return this;
+    }
+
+    /**
+     * @param chunksPerRegion how many of the 1024 chunks of each region are generated
+     */
+    SyntheticWorld chunksPerRegion(int chunksPerRegion) {
+
+        this.chunksPerRegion = Math.min(chunksPerRegion, AnvilRegion.CHUNKS);
+        return this;
+    }
+
+    /**
+     * @param chunkSize the uncompressed size of each chunk in bytes
+     */
+    SyntheticWorld chunkSize(int chunkSize) {
+
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @param noise the fraction of each chunk that is random, from 0 to 1. More noise compresses worse.
+     */
+    SyntheticWorld noise(double noise) {
+
+        this.noise = noise;
+        return this;
+    }
+
+    SyntheticWorld players(int players) {
+
+        this.players = players;
+        return this;
+    }
+
+    /**
+     * @param smallFiles the number of small map files in the data directory
+     */
+    SyntheticWorld smallFiles(int smallFiles) {
+
+        this.smallFiles = smallFiles;
+        return this;
+    }
+
+    SyntheticWorld seed(long seed) {
+
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Write the world into a directory, which is created if needed
+     */
+    void generate(File directory) throws IOException {
+
+        Random random = new Random(seed);
+
+        writeGzip(new File(directory, "level.dat"), nbtLike(random, 2048));
+
+        int netherRegions = regions / 4;
+        for (int i = 0; i < regions; i++) {
+            File regionDir = i < netherRegions ? new File(directory, "DIM-1/region") : new File(directory, "region");
+            int index = i < netherRegions ? i : i - netherRegions;
+            int side = (int) Math.ceil(Math.sqrt(regions));
+            writeRegion(new File(regionDir, String.format("r.%d.%d.mca", index % side - side / 2, index / side - side / 2)), random);
+        }
+
+        for (int i = 0; i < players; i++) {
+            String uuid = new UUID(random.nextLong(), random.nextLong()).toString();
+            writeGzip(new File(directory, "playerdata/" + uuid + ".dat"), nbtLike(random, 4096 + random.nextInt(8192)));
+            writeFile(new File(directory, "stats/" + uuid + ".json"), statsJson(random).getBytes(Charsets.UTF_8));
+        }
+
+        for (int i = 0; i < smallFiles; i++)
+            writeGzip(new File(directory, "data/map_" + i + ".dat"), nbtLike(random, 16384));
+
+        writeFile(new File(directory, "session.lock"), new byte[8]);
+    }
+
+    private void writeRegion(File file, Random random) throws IOException {
+
+        file.getParentFile().mkdirs();
+
+        ByteBuffer header = ByteBuffer.allocate(AnvilRegion.HEADER_SIZE);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int sector = 2;
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+
+        int stride = AnvilRegion.CHUNKS / Math.max(chunksPerRegion, 1);
+        for (int n = 0; n < chunksPerRegion; n++) {
+            int index = n * stride;
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+                out.write(chunkData(random));
+            }
+
+            byte[] data = compressed.toByteArray();
+            DataOutputStream record = new DataOutputStream(body);
+            record.writeInt(data.length + 1);
+            record.writeByte(2); // zlib
+            record.write(data);
+
+            int sectors = (data.length + 5 + AnvilRegion.SECTOR_SIZE - 1) / AnvilRegion.SECTOR_SIZE;
+            record.write(new byte[sectors * AnvilRegion.SECTOR_SIZE - data.length - 5]);
+
+            header.putInt(index * 4, sector << 8 | sectors);
+            header.putInt(AnvilRegion.SECTOR_SIZE + index * 4, timestamp - random.nextInt(86400));
+            sector += sectors;
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            out.write(header.array());
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * Sixteen sections of layered blocks with noise scattered through them, like the block arrays of a chunk
+     */
+    private byte[] chunkData(Random random) {
+
+        byte[] data = new byte[chunkSize];
+        int layer = Math.max(chunkSize / 64, 1);
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (1 + i / layer % 7);
+
+        int noisy = (int) (data.length * noise);
+        for (int i = 0; i < noisy; i++)
+            data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+
+        return data;
+    }
+
+    private static byte[] nbtLike(Random random, int size) {
+
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = i % 8 < 6 ? (byte) (i % 5) : (byte) random.nextInt(256);
+        return data;
+    }
+
+    private static String statsJson(Random random) {
+
+        StringBuilder json = new StringBuilder("{");
+        String[] stats = {"stat.playOneMinute", "stat.walkOneCm", "stat.jump", "stat.deaths", "stat.mobKills", "stat.damageTaken"};
+        for (int i = 0; i < stats.length; i++)
+            json.append(i == 0 ? "" : ",").append('"').append(stats[i]).append("\":").append(random.nextInt(1000000));
+        return json.append('}').toString();
+    }
+
+    private static void writeGzip(File file, byte[] data) throws IOException {
+
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(data);
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Generate the default world into the directory given as the first argument
+     */
+    public static void main(String[] args) throws IOException {
+
+        File directory = new File(args.length > 0 ? args[0] : "world");
+        new SyntheticWorld().generate(directory);
+        System.out.println("Generated a synthetic world in " + directory.getAbsolutePath());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking a world with many small files, with and without exclude patterns
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WalkBenchmark {
+
+    @Param({"1000", "20000"})
+    public int players;
+
+    @Param({"false", "true"})
+    public boolean patterns;
+
+    private File directory;
+    private File world;
+    private PathFilter filter;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+
+        directory = Files.createTempDirectory("backup-bench").toFile();
+        world = new File(directory, "world");
+        new SyntheticWorld().regions(4).players(players).generate(world);
+
+        filter = patterns
+                ? new PathFilter(Collections.singleton("level.dat_new"), Collections.<String>emptySet(), new String[]{"*.tmp", "DIM7/data/", "regex:stats/[0-9a-f]{8}-.*\\.bak"})
+                : PathFilter.ACCEPT_ALL;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+
+        WorldSnapshot.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public long walk() throws IOException {
+
+        long size = 0;
+        try (WorldWalker walker = new WorldWalker(world, filter)) {
+            WorldWalker.Entry entry;
+            while ((entry = walker.next()) != null)
+                size += entry.size;
+        }
+        return size;
+    }
+}
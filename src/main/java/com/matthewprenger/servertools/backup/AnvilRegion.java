@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reads and writes the layout of Anvil (.mca) and McRegion (.mcr) region files.
+ *
+ * A region file starts with two 4 KB tables of 1024 entries each: the location of every chunk
+ * (a 3 byte sector offset and a 1 byte sector count) followed by the time each chunk was last
+ * saved. A chunk record is a 4 byte length, a compression type byte, and the compressed data.
+ * Only the layout is interpreted here, the chunk data is passed around as opaque records
+ * (compression type followed by the data).
+ */
+class AnvilRegion {
+
+    static final int SECTOR_SIZE = 4096;
+    static final int CHUNKS = 1024;
+    static final int HEADER_SIZE = SECTOR_SIZE * 2;
+
+    private static final int MAX_SECTORS_PER_CHUNK = 255;
+
+    private final int[] sectorOffsets = new int[CHUNKS];
+    private final int[] sectorCounts = new int[CHUNKS];
+    private final int[] timestamps = new int[CHUNKS];
+    private final long length;
+
+    private AnvilRegion(long length) {
+
+        this.length = length;
+    }
+
+    /**
+     * @return true if the file name is that of a region file
+     */
+    static boolean isRegionFile(String name) {
+
+        return name.endsWith(".mca") || name.endsWith(".mcr");
+    }
+
+    /**
+     * Read and validate the header of a region file
+     *
+     * @param file the whole region file, such as a mapping of it. Only absolute reads are used,
+     *             so the position and limit of the buffer are left alone.
+     * @throws IOException if the header is truncated or points outside the file
+     */
+    static AnvilRegion readHeader(ByteBuffer file) throws IOException {
+
+        return readHeader(file, file.limit());
+    }
+
+    /**
+     * Read and validate the header of a region file without needing the rest of it
+     *
+     * @param header a buffer starting with the region file, holding at least the header. Only absolute reads are used.
+     * @param length the length of the whole region file
+     * @throws IOException if the header is truncated or points outside the file
+     */
+    static AnvilRegion readHeader(ByteBuffer header, long length) throws IOException {
+
+        AnvilRegion region = new AnvilRegion(length);
+
+        if (length == 0)
+            return region;
+
+        if (length < HEADER_SIZE || header.limit() < HEADER_SIZE)
+            throw new IOException(String.format("Region file is truncated: %s bytes", length));
+
+        for (int i = 0; i < CHUNKS; i++) {
+            int location = header.getInt(i * 4);
+            region.sectorOffsets[i] = location >>> 8;
+            region.sectorCounts[i] = location & 0xFF;
+            region.timestamps[i] = header.getInt(SECTOR_SIZE + i * 4);
+
+            if (region.hasChunk(i)) {
+                long end = ((long) region.sectorOffsets[i] + region.sectorCounts[i]) * SECTOR_SIZE;
+                if (region.sectorOffsets[i] < 2 || end > length)
+                    throw new IOException(String.format("Chunk %s points outside the region file", i));
+            }
+        }
+
+        return region;
+    }
+
+    boolean hasChunk(int index) {
+
+        return sectorOffsets[index] != 0 && sectorCounts[index] != 0;
+    }
+
+    int getTimestamp(int index) {
+
+        return timestamps[index];
+    }
+
+    long getLength() {
+
+        return length;
+    }
+
+    /**
+     * Get the record of a chunk: the compression type byte followed by the compressed data
+     *
+     * @param file  the region file this header was read from
+     * @param index the chunk index (x + z * 32)
+     * @return a view of the record within file, nothing is copied
+     * @throws IOException if the chunk length doesn't fit in its sectors
+     */
+    ByteBuffer readChunk(ByteBuffer file, int index) throws IOException {
+
+        int start = sectorOffsets[index] * SECTOR_SIZE;
+        int recordLength = file.getInt(start);
+
+        if (recordLength <= 0 || recordLength > sectorCounts[index] * SECTOR_SIZE - 4)
+            throw new IOException(String.format("Chunk %s has an invalid length %s", index, recordLength));
+
+        ByteBuffer record = file.duplicate();
+        record.limit(start + 4 + recordLength).position(start + 4);
+        return record.slice();
+    }
+
+    /**
+     * Get the record of a chunk from a stream of the region file, reading no further than the chunk
+     *
+     * @param in    the region file, positioned just after the header
+     * @param index the chunk index (x + z * 32)
+     * @return the record, or null if the chunk isn't present
+     * @throws IOException if the chunk length doesn't fit in its sectors
+     */
+    byte[] readChunk(InputStream in, int index) throws IOException {
+
+        if (!hasChunk(index))
+            return null;
+
+        DataInputStream dataIn = new DataInputStream(in);
+        ByteStreams.skipFully(dataIn, (long) sectorOffsets[index] * SECTOR_SIZE - HEADER_SIZE);
+        int recordLength = dataIn.readInt();
+
+        if (recordLength <= 0 || recordLength > sectorCounts[index] * SECTOR_SIZE - 4)
+            throw new IOException(String.format("Chunk %s has an invalid length %s", index, recordLength));
+
+        byte[] record = new byte[recordLength];
+        dataIn.readFully(record);
+        return record;
+    }
+
+    /**
+     * Write a region file from chunk records. Chunks are packed one after another
+     * straight after the header, so the layout may differ from the file they came from.
+     *
+     * @param out    the stream to write the region file to
+     * @param chunks the chunks to write, each with its index, timestamp and record length
+     * @param source supplies the record of each chunk, in the order of the list
+     */
+    static void write(OutputStream out, List<BackupManifest.ChunkEntry> chunks, RecordSource source) throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int sector = 2;
+
+        for (BackupManifest.ChunkEntry chunk : chunks) {
+            int sectors = getSectorCount(chunk.length);
+            if (sectors > MAX_SECTORS_PER_CHUNK)
+                throw new IOException(String.format("Chunk %s is too large for a region file", chunk.index));
+
+            headerBuffer.putInt(chunk.index * 4, sector << 8 | sectors);
+            headerBuffer.putInt(SECTOR_SIZE + chunk.index * 4, chunk.timestamp);
+            sector += sectors;
+        }
+
+        out.write(header);
+
+        DataOutputStream dataOut = new DataOutputStream(out);
+        byte[] padding = new byte[SECTOR_SIZE];
+
+        for (BackupManifest.ChunkEntry chunk : chunks) {
+            dataOut.writeInt(chunk.length);
+            try (InputStream in = source.open(chunk)) {
+                byte[] buffer = new byte[SECTOR_SIZE];
+                long remaining = chunk.length;
+                while (remaining > 0) {
+                    int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count < 0)
+                        throw new EOFException(String.format("Chunk %s record is shorter than expected", chunk.index));
+                    dataOut.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+
+            int used = (4 + chunk.length) % SECTOR_SIZE;
+            if (used != 0)
+                dataOut.write(padding, 0, SECTOR_SIZE - used);
+        }
+
+        dataOut.flush();
+    }
+
+    private static int getSectorCount(int recordLength) {
+
+        return (4 + recordLength + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    /**
+     * Supplies the stored record of a chunk when rebuilding a region file
+     */
+    interface RecordSource {
+
+        InputStream open(BackupManifest.ChunkEntry chunk) throws IOException;
+    }
+}
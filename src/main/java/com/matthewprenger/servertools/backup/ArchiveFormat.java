@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * The archive formats a full backup can be written in
+ */
+enum ArchiveFormat {
+
+    /**
+     * A zip file, each file deflated on its own
+     */
+    ZIP("zip", ".zip", true, true) {
+        @Override
+        ArchiveWriter newWriter(WritableByteChannel channel) {
+
+            return new ZipArchiveWriter(channel);
+        }
+    },
+
+    /**
+     * An uncompressed tar file, the fastest to write
+     */
+    TAR("tar", ".tar", false, false) {
+        @Override
+        ArchiveWriter newWriter(WritableByteChannel channel) {
+
+            return new TarArchiveWriter(channel, false);
+        }
+    },
+
+    /**
+     * A gzipped tar file. The whole archive is one deflate stream, which compresses
+     * many small files better than zip does.
+     */
+    TAR_GZ("tar.gz", ".tar.gz", true, false) {
+        @Override
+        ArchiveWriter newWriter(WritableByteChannel channel) {
+
+            return new TarArchiveWriter(channel, true);
+        }
+    };
+
+    private final String name;
+    private final String extension;
+    private final boolean compressed;
+    private final boolean finishEntries;
+
+    ArchiveFormat(String name, String extension, boolean compressed, boolean finishEntries) {
+
+        this.name = name;
+        this.extension = extension;
+        this.compressed = compressed;
+        this.finishEntries = finishEntries;
+    }
+
+    /**
+     * Create a writer for this format
+     *
+     * @param channel the channel to write the archive to, closed along with the writer
+     */
+    abstract ArchiveWriter newWriter(WritableByteChannel channel);
+
+    /**
+     * @return the name used for this format in the config
+     */
+    String getName() {
+
+        return name;
+    }
+
+    String getExtension() {
+
+        return extension;
+    }
+
+    /**
+     * @return true if file data is deflated, false if every file goes in as it is
+     */
+    boolean isCompressed() {
+
+        return compressed;
+    }
+
+    /**
+     * @return true if the last block of each file should finish its deflate stream,
+     * false if all blocks only end with a sync flush
+     */
+    boolean finishesEntries() {
+
+        return finishEntries;
+    }
+
+    /**
+     * @param name a format name from the config, such as "tar.gz"
+     * @return the format, or null if there is no format with that name
+     */
+    static ArchiveFormat fromName(String name) {
+
+        name = name.trim().toLowerCase(Locale.ENGLISH);
+        if (name.equals("tgz"))
+            return TAR_GZ;
+
+        for (ArchiveFormat format : values()) {
+            if (format.name.equals(name))
+                return format;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param fileName the name of a backup file
+     * @return the format of the file, judged by its extension, or null if it isn't an archive
+     */
+    static ArchiveFormat forFile(String fileName) {
+
+        for (ArchiveFormat format : values()) {
+            if (fileName.endsWith(format.extension))
+                return format;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An index of the files in an archive, kept in a sidecar file next to the archive. For each file it
+ * records where its data starts in the archive and how it's stored, so a single file can be read
+ * back without going through the rest of the archive, and its CRC-32 and size so it can be checked.
+ *
+ * The CRCs are the ones the archiver works out anyway as the data streams through it, so keeping
+ * them costs nothing extra. The sidecar is plain text, one file per line:
+ * <pre>
+ * &lt;crc32 in hex&gt; &lt;size&gt; &lt;method&gt; &lt;offset&gt; &lt;length&gt; &lt;name&gt;
+ * </pre>
+ * The method is {@link ContentStore#METHOD_STORED} or {@link ContentStore#METHOD_DEFLATED}, for raw
+ * deflate data. The offset and length are of the data as it lies in the archive, and are -1 if unknown.
+ * The name is last so that it may contain spaces.
+ */
+class ArchiveIndex {
+
+    public static final String FILE_EXTENSION = ".index";
+
+    private static final String HEADER = "ServerTools-Backup-Index 1";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @return the sidecar file of an archive
+     */
+    static File sidecarFor(File archive) {
+
+        return new File(archive.getParentFile(), archive.getName() + FILE_EXTENSION);
+    }
+
+    public void add(Entry entry) {
+
+        entries.put(entry.name, entry);
+    }
+
+    public Entry get(String name) {
+
+        return entries.get(name);
+    }
+
+    public Map<String, Entry> getEntries() {
+
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Write the index to a file, through a temporary file so it's never left half written
+     */
+    public void write(File file) throws IOException {
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8))) {
+            writer.write(HEADER);
+            writer.write('\n');
+
+            for (Entry entry : entries.values())
+                writer.write(String.format("%08x %d %d %d %d %s%n", entry.crc, entry.size, entry.method, entry.offset, entry.length, entry.name));
+        }
+
+        FileIO.moveIntoPlace(temp, file);
+    }
+
+    public static ArchiveIndex read(File file) throws IOException {
+
+        ArchiveIndex index = new ArchiveIndex();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))) {
+
+            if (!HEADER.equals(reader.readLine()))
+                throw new IOException("Not a backup index: " + file);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+
+                try {
+                    String[] parts = line.split(" ", 6);
+                    index.add(new Entry(parts[5], Long.parseLong(parts[0], 16), Long.parseLong(parts[1]),
+                            Integer.parseInt(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+                } catch (RuntimeException e) {
+                    throw new IOException(String.format("Malformed index line in %s: %s", file.getName(), line), e);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    static class Entry {
+
+        final String name;
+        final long crc;
+        final long size;
+        final int method;
+        final long offset;
+        final long length;
+
+        /**
+         * @param name   the name of the file in the archive
+         * @param crc    the CRC-32 of the file, or -1 if unknown
+         * @param size   the size of the file, or -1 if unknown
+         * @param method how the data is stored in the archive
+         * @param offset where the data starts in the archive, or -1 if unknown
+         * @param length the number of bytes the data takes up in the archive, or -1 if unknown
+         */
+        Entry(String name, long crc, long size, int method, long offset, long length) {
+
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+            this.method = method;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
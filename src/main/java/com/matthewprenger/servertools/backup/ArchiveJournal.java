@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.CountingInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Records how far an archive has been written, so that an archive cut off by a crash or a restart can be
+ * written on from where it got to instead of starting over.
+ *
+ * Every so often the archiver syncs the archive to the disk and appends a checkpoint: the length of the
+ * archive at the end of the last completed file, the files completed since the previous checkpoint with
+ * their {@link ArchiveIndex} entries, and the state the {@link ArchiveWriter} needs to carry on. A checkpoint
+ * is only written once the data it covers is on the disk, and carries a CRC of itself, so a checkpoint torn
+ * by a crash is ignored along with anything after it.
+ *
+ * The journal starts with the archive format and the directory being archived, and is only used to resume
+ * an archive of the same directory in the same format.
+ */
+class ArchiveJournal implements Closeable {
+
+    public static final String FILE_EXTENSION = ".journal";
+
+    private static final String HEADER = "ServerTools-Backup-Journal 2";
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    private ArchiveJournal(FileChannel channel) {
+
+        this.channel = channel;
+    }
+
+    /**
+     * @return the journal file of an archive
+     */
+    static File journalFor(File archive) {
+
+        return new File(archive.getParentFile(), archive.getName() + FILE_EXTENSION);
+    }
+
+    /**
+     * Start a new journal, replacing any that exists
+     *
+     * @param format the format of the archive, which must match to resume it
+     * @param source the directory being archived, which must match to resume it
+     */
+    static ArchiveJournal create(File file, ArchiveFormat format, File source) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(HEADER);
+        out.writeUTF(format.getName());
+        out.writeUTF(source.getAbsolutePath());
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(channel, ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        FileIO.syncDirectory(file.getAbsoluteFile().getParentFile());
+        return new ArchiveJournal(channel);
+    }
+
+    /**
+     * Read the journal of an archive that was cut off, and cut the archive back to the last checkpoint
+     *
+     * @param source the directory the archive is to be resumed from
+     * @return what was recorded up to the last checkpoint, or null if the archive can't be resumed
+     */
+    static Recovery recover(File journalFile, File archiveFile, ArchiveFormat format, File source) throws IOException {
+
+        Recovery recovery = new Recovery();
+        long journalLength;
+
+        long fileLength = journalFile.length();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+        try (DataInputStream in = new DataInputStream(counter)) {
+            try {
+                if (!HEADER.equals(in.readUTF()) || !format.getName().equals(in.readUTF()) || !source.getAbsolutePath().equals(in.readUTF()))
+                    return null;
+            } catch (IOException e) {
+                return null;
+            }
+
+            journalLength = counter.getCount();
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                byte[] checkpoint;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > fileLength)
+                        break;
+                    checkpoint = new byte[length];
+                    in.readFully(checkpoint);
+                    crc.reset();
+                    crc.update(checkpoint, 0, length);
+                    if (in.readLong() != crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                recovery.read(checkpoint);
+                journalLength = counter.getCount();
+            }
+        }
+
+        if (recovery.states.isEmpty() || archiveFile.length() < recovery.offset)
+            return null;
+
+        try (FileChannel archive = FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE)) {
+            archive.truncate(recovery.offset);
+            archive.force(true);
+        }
+        recovery.journalLength = journalLength;
+
+        return recovery;
+    }
+
+    /**
+     * Open the journal of an archive being resumed, to append further checkpoints to
+     *
+     * @param recovery what was read from the journal, anything after it is dropped
+     */
+    static ArchiveJournal append(File file, Recovery recovery) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(recovery.journalLength);
+            channel.position(recovery.journalLength);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new ArchiveJournal(channel);
+    }
+
+    /**
+     * Append a checkpoint. Everything it covers must already be on the disk.
+     *
+     * @param offset      the length of the archive at the end of the last completed file
+     * @param bytesRead   the number of bytes of files archived so far
+     * @param directories the directory entries completed since the last checkpoint
+     * @param files       the index entries of the files completed since the last checkpoint
+     * @param writerState the writer's state, from {@link ArchiveWriter#saveState}
+     */
+    void checkpoint(long offset, long bytesRead, List<String> directories, List<ArchiveIndex.Entry> files, byte[] writerState) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0); // Length, filled in below
+        out.writeLong(offset);
+        out.writeLong(bytesRead);
+        out.writeInt(directories.size());
+        for (String directory : directories)
+            out.writeUTF(directory);
+        out.writeInt(files.size());
+        for (ArchiveIndex.Entry file : files) {
+            out.writeUTF(file.name);
+            out.writeLong(file.crc);
+            out.writeLong(file.size);
+            out.writeInt(file.method);
+            out.writeLong(file.offset);
+            out.writeLong(file.length);
+        }
+        out.writeInt(writerState.length);
+        out.write(writerState);
+        out.writeLong(0); // CRC, filled in below
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int length = buffer.capacity() - 12;
+        crc.reset();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt(0, length);
+        buffer.putLong(4 + length, crc.getValue());
+
+        write(channel, buffer);
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * What an archive's journal recorded, up to its last checkpoint
+     */
+    static class Recovery {
+
+        /**
+         * The writer states of every checkpoint, in order
+         */
+        final List<byte[]> states = new ArrayList<>();
+
+        /**
+         * The names of the files and directories already in the archive
+         */
+        final Set<String> completed = new HashSet<>();
+
+        /**
+         * The index entries of the files already in the archive
+         */
+        final List<ArchiveIndex.Entry> files = new ArrayList<>();
+
+        long offset;
+        long bytesRead;
+        private long journalLength;
+
+        private void read(byte[] checkpoint) throws IOException {
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+
+            offset = in.readLong();
+            bytesRead = in.readLong();
+            for (int i = in.readInt(); i > 0; i--)
+                completed.add(in.readUTF());
+            for (int i = in.readInt(); i > 0; i--) {
+                ArchiveIndex.Entry file = new ArchiveIndex.Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readLong(), in.readLong());
+                completed.add(file.name);
+                files.add(file);
+            }
+            byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            states.add(state);
+        }
+    }
+}
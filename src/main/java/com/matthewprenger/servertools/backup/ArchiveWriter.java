@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lays out an archive of a directory from data prepared by the {@link ParallelArchiver}.
+ *
+ * Files either arrive whole and uncompressed through {@link #putFile}, or as a series of raw
+ * deflate blocks through {@link #beginFile} and {@link #writeBlock}. How the blocks end is up
+ * to the {@link ArchiveFormat}: formats that compress each entry separately get a finished
+ * deflate stream per file, formats that compress the whole archive only get sync flushed blocks.
+ *
+ * Once a file is complete the writer can say where its data lies in the archive, which goes into the
+ * {@link ArchiveIndex}. The data of every file has to start on a deflate block boundary with nothing
+ * referring back to earlier data, so that it can be inflated on its own.
+ *
+ * Between files the writer can save its state, so that an archive that was cut off can be written
+ * on from the end of the last file it saved the state after, see {@link ArchiveJournal}.
+ */
+interface ArchiveWriter extends Closeable {
+
+    /**
+     * Add a directory entry
+     *
+     * @param name the entry name, ending with a '/'
+     * @param time the modification time in milliseconds
+     */
+    void putDirectory(String name, long time) throws IOException;
+
+    /**
+     * Add a file, copying its data directly from the source
+     *
+     * @param name   the entry name
+     * @param time   the modification time in milliseconds
+     * @param crc    the CRC-32 of the data
+     * @param size   the number of bytes to copy
+     * @param source the file to copy from, starting at its beginning
+     */
+    void putFile(String name, long time, long crc, long size, FileChannel source) throws IOException;
+
+    /**
+     * Begin a file whose data follows as deflated blocks
+     *
+     * @param name the entry name
+     * @param time the modification time in milliseconds
+     * @param size the size of the file when it was listed
+     */
+    void beginFile(String name, long time, long size) throws IOException;
+
+    /**
+     * Add the next block of the file opened with {@link #beginFile}
+     *
+     * @param data   the deflated block
+     * @param off    the offset into data
+     * @param len    the number of bytes of data
+     * @param crc    the CRC-32 of the uncompressed block
+     * @param size   the uncompressed size of the block
+     * @param last   true if this is the file's final block
+     */
+    void writeBlock(byte[] data, int off, int len, long crc, long size, boolean last) throws IOException;
+
+    /**
+     * @return the number of bytes written to the archive so far
+     */
+    long getBytesWritten();
+
+    /**
+     * @return where the data of the most recently completed file starts in the archive
+     */
+    long getDataOffset();
+
+    /**
+     * @return the number of bytes the data of the most recently completed file takes up in the archive
+     */
+    long getDataLength();
+
+    /**
+     * @return true if the data of the most recently completed file is raw deflate data, false if it's stored as it is
+     */
+    boolean isDataDeflated();
+
+    /**
+     * Write everything buffered so far to the channel
+     */
+    void flush() throws IOException;
+
+    /**
+     * Save what has to be known to carry on writing after the last completed file, that has changed since
+     * the previous call. Only called between files, once {@link #flush} has been called.
+     */
+    void saveState(DataOutput out) throws IOException;
+
+    /**
+     * Pick up from a state saved by {@link #saveState}. Called on a new writer before anything is written,
+     * once for every state saved in the order they were saved. The channel must already be positioned at
+     * the end of the archive as it was when the last of those states was saved.
+     */
+    void restoreState(DataInput in) throws IOException;
+}
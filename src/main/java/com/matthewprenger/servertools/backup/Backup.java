@@ -21,22 +21,48 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.ChatComponentText;
 import net.minecraft.util.EnumChatFormatting;
 import net.minecraft.world.WorldServer;
+import net.minecraft.world.storage.ThreadedFileIOBase;
 
-import java.io.*;
-import java.net.URI;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
 
-class Backup extends TimerTask {
+class Backup implements BackupScheduler.BackupTask {
 
+    static final String SNAPSHOT_DIR = "snapshot";
+
+    /**
+     * Archives are written under their name with this on the end, and renamed once they're complete
+     */
+    static final String PARTIAL_EXTENSION = ".partial";
+    private static final long SERVER_THREAD_TIMEOUT = 300;
+    private static final long TICK_SAMPLE_INTERVAL = 1000;
+
+    /**
+     * The levelSaving values to put back once backups are done with their worlds, by dimension.
+     * Touched only on the server thread.
+     */
+    private static final Map<Integer, Boolean> pausedLevelSaving = new HashMap<>();
+
+    /**
+     * The buffers shared by every backup, made on first use
+     */
+    private static BufferPool bufferPool;
+
+    private final BackupSet set;
     private final File sourceDir;
     private final File backupDir;
 
-    public Backup(File sourceDir, File backupDir) throws IOException {
+    public Backup(BackupSet set) throws IOException {
 
-        this.sourceDir = sourceDir;
-        this.backupDir = backupDir;
+        this.set = set;
+        this.sourceDir = set.sourceDir;
+        this.backupDir = set.backupDir;
 
         if (!sourceDir.exists())
             throw new FileNotFoundException("The given backup source path doesn't exist");
@@ -51,97 +77,578 @@ class Backup extends TimerTask {
     }
 
     @Override
-    public void run() {
+    public void run(BackupJob job) throws Exception {
 
-        String backupFileName = BackupHandler.getBackupName();
+        long started = System.currentTimeMillis();
+        String backupFileName = BackupHandler.getBackupName(started, BackupConfig.incrementalBackups ? BackupManifest.FILE_EXTENSION : BackupConfig.archiveFormat.getExtension());
         String backupStartMsg = BackupHandler.getBackupStartMessage();
         String backupFinishMsg = BackupHandler.getBackupFinishMessage();
+        if (set.isDimension()) {
+            backupStartMsg = String.format("%s (%s)", backupStartMsg, set.name);
+            backupFinishMsg = String.format("%s (%s)", backupFinishMsg, set.name);
+        }
 
-        ServerToolsBackup.log.info(String.format("Starting backup %s", backupFileName));
+        ServerToolsBackup.log.info(String.format("Starting %s: %s", job, backupFileName));
         BackupHandler.sendBackupMessage(new ChatComponentText(String.format("%s", backupStartMsg)));
 
-        Map<Integer, Boolean> levelSavingDisabled = new HashMap<>(MinecraftServer.getServer().worldServers.length);
+        boolean paused = false;
+        long pausedAt = 0;
+        DirtyRegions.Changes changes = null;
+
+        final BackupMetrics metrics = new BackupMetrics(job.getId(), set.name, job.getTrigger().name().toLowerCase(), backupFileName,
+                BackupConfig.incrementalBackups ? "incremental" : BackupConfig.archiveFormat.getName());
+        metrics.setTickMillisBefore(SERVER_TICKS.getMeanTickMillis());
+        ScheduledFuture<?> tickSampler = set.scheduler.scheduleRepeating(new Runnable() {
+            @Override
+            public void run() {
+                metrics.sampleTick(SERVER_TICKS.getMeanTickMillis());
+            }
+        }, TICK_SAMPLE_INTERVAL);
 
         try {
 
-            for (WorldServer worldServer : MinecraftServer.getServer().worldServers) {
-                levelSavingDisabled.put(worldServer.provider.dimensionId, worldServer.levelSaving);
+            File snapshotDir = new File(backupDir, SNAPSHOT_DIR);
+            long phaseStart = System.nanoTime();
+            if (BackupConfig.snapshotWorld) {
+                // Copy most of what changed since the last backup while the server runs, leaving little for the pause
+                job.setPhase("Updating snapshot");
+                WorldSnapshot early = WorldSnapshot.create(sourceDir, snapshotDir, set.filter);
+                metrics.addPhase(BackupMetrics.SNAPSHOT, System.nanoTime() - phaseStart);
+                ServerToolsBackup.log.info(String.format("Copied %s files (%s MB) to the snapshot before pausing saving, %s were up to date",
+                        early.getFilesCopied(), early.getBytesCopied() / org.apache.commons.io.FileUtils.ONE_MB, early.getFilesReused()));
+            } else if (snapshotDir.exists()) {
+                // Left from when snapshots were turned on, it's only taking up space now
+                WorldSnapshot.deleteRecursively(snapshotDir);
+            }
+
+            job.setPhase("Saving worlds");
+            phaseStart = System.nanoTime();
+            if (BackupConfig.saveTickBudgetMs > 0)
+                saveOverTicks(set);
+            // Set first, the server may pause saving even if waiting for it fails
+            paused = true;
+            pauseSaving(set);
+            pausedAt = System.currentTimeMillis();
+            waitForChunkWrites();
+            metrics.addPhase(BackupMetrics.FLUSH, System.nanoTime() - phaseStart);
 
-                worldServer.levelSaving = false;
-                worldServer.saveAllChunks(true, null);
+            File archiveSource = sourceDir;
 
+            File previousFile = null;
+            BackupManifest previous = null;
+            DirtyRegions.Changes regionChanges = null;
+            if (BackupConfig.incrementalBackups) {
+                previousFile = set.catalog.getLatestManifest();
+                previous = readManifest(previousFile);
+                if (BackupConfig.trackDirtyRegions) {
+                    // Every chunk saved from here on is left for the next backup
+                    changes = set.dirtyRegions.take(backupFileName, BackupHandler.getRegionDirectories(set));
+                    regionChanges = changes.since(previousFile, previous);
+                    if (regionChanges != null)
+                        ServerToolsBackup.log.info(String.format("%s region files were saved to since the last backup", regionChanges.getChangedCount()));
+                }
+            }
+
+            if (BackupConfig.snapshotWorld) {
+                job.setPhase("Copying snapshot");
+                phaseStart = System.nanoTime();
+                WorldSnapshot snapshot = WorldSnapshot.create(sourceDir, snapshotDir, set.filter, regionChanges);
+                archiveSource = snapshot.getDirectory();
+                metrics.addPhase(BackupMetrics.SNAPSHOT, System.nanoTime() - phaseStart);
+                metrics.setSnapshotBytes(snapshot.getBytesCopied());
+
+                resumeSaving(set);
+                paused = false;
+                metrics.setPausedMillis(System.currentTimeMillis() - pausedAt);
+
+                ServerToolsBackup.log.info(String.format("Copied %s files (%s MB) to the snapshot, saving was paused for %s ms",
+                        snapshot.getFilesCopied(), snapshot.getBytesCopied() / org.apache.commons.io.FileUtils.ONE_MB, metrics.getPausedMillis()));
             }
 
             // Do the actual backup
-            zipDirectory(sourceDir, new File(backupDir, backupFileName));
+            job.setPhase("Archiving");
+            File backupFile = new File(backupDir, backupFileName);
+            BackupManifest manifest = null;
+            BackupShipper.Shipment shipment = null;
+            if (BackupConfig.incrementalBackups) {
+                manifest = incrementalBackup(set, archiveSource, backupFile, previousFile, previous, regionChanges, started, metrics);
+            } else {
+                File partialFile = new File(backupDir, backupFileName + PARTIAL_EXTENSION);
+                ArchiveJournal.Recovery recovery = resumePartial(backupDir, partialFile, archiveSource);
+
+                // Archives are sent off while they're written, so the copy finishes soon after the backup
+                if (set.shipper != null)
+                    shipment = set.shipper.startShipment(partialFile, backupFileName);
+                try {
+                    archiveDirectory(set, archiveSource, partialFile, backupFile, recovery, metrics);
+                } catch (Exception e) {
+                    if (shipment != null)
+                        shipment.cancel();
+                    throw e;
+                }
+            }
 
-            for (WorldServer worldServer : MinecraftServer.getServer().worldServers) {
-                worldServer.levelSaving = levelSavingDisabled.get(worldServer.provider.dimensionId);
+            set.catalog.add(backupFile, previous != null ? previousFile.getName() : null, BackupHandler.getDimensions(set),
+                    metrics.getBytesRead(), metrics.getBytesWritten(), System.currentTimeMillis() - started);
+
+            if (set.shipper != null) {
+                job.setPhase("Uploading");
+                ship(set, backupFile, shipment, manifest, metrics);
             }
 
+            metrics.finish(BackupMetrics.Outcome.SUCCEEDED);
+
+            if (BackupConfig.verifyBackups)
+                BackupHandler.instance.verifyBackup(backupFile, null);
+
             BackupHandler.sendBackupMessage(Util.getChatComponent(String.format("%s",backupFinishMsg), EnumChatFormatting.GREEN));
-            ServerToolsBackup.log.info("Backup completed successfully");
+            ServerToolsBackup.log.info(String.format("Backup of %s completed successfully", set.name));
 
         } catch (Exception e) {
-            ServerToolsBackup.log.fatal("Failed to make backup: " + backupFileName, e);
-            BackupHandler.sendBackupMessage(Util.getChatComponent("Server Backup Error - Check Server Logs", EnumChatFormatting.RED));
+            if (changes != null)
+                set.dirtyRegions.putBack(changes);
+
+            if (job.isCancelRequested()) {
+                metrics.finish(BackupMetrics.Outcome.CANCELLED);
+                ServerToolsBackup.log.info(String.format("Cancelled %s", job));
+                BackupHandler.sendBackupMessage(Util.getChatComponent("Server Backup Cancelled", EnumChatFormatting.YELLOW));
+            } else {
+                metrics.finish(BackupMetrics.Outcome.FAILED);
+                ServerToolsBackup.log.fatal(String.format("Failed to make backup of %s: %s", set.name, backupFileName), e);
+                BackupHandler.sendBackupMessage(Util.getChatComponent("Server Backup Error - Check Server Logs", EnumChatFormatting.RED));
+            }
+            throw e;
+        } finally {
+            // A cancelled job is interrupted, which would stop us waiting for the server thread
+            boolean interrupted = Thread.interrupted();
+
+            tickSampler.cancel(false);
+
+            if (paused) {
+                try {
+                    resumeSaving(set);
+                } catch (Exception e) {
+                    ServerToolsBackup.log.fatal("Failed to turn world saving back on", e);
+                }
+                if (pausedAt > 0)
+                    metrics.setPausedMillis(System.currentTimeMillis() - pausedAt);
+            }
+
+            BackupHandler.instance.stats.backupFinished(metrics);
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
+    }
 
-        BackupHandler.instance.checkBackupDirSize();
-        BackupHandler.instance.checkForOldBackups();
-        BackupHandler.instance.checkNumberBackups();
+    /**
+     * Save the chunks of a backup set's worlds on the server thread, spread over as many ticks as it takes
+     * to stay within {@link BackupConfig#saveTickBudgetMs} each tick. Saving isn't paused, {@link #pauseSaving}
+     * then only has to save the chunks that changed since.
+     */
+    private static void saveOverTicks(BackupSet set) throws Exception {
+
+        WorldFlush flush = new WorldFlush(set, BackupConfig.saveTickBudgetMs);
+        BackupHandler.instance.serverThread.run(flush, SERVER_THREAD_TIMEOUT);
+        ServerToolsBackup.log.info(String.format("Saved %s chunks over %s ticks", flush.getChunksSaved(), flush.getTicks()));
     }
 
-    static void zipDirectory(File directory, File zipfile) throws IOException {
-        URI baseDir = directory.toURI();
-        Deque<File> queue = new LinkedList<>();
-        queue.push(directory);
-        OutputStream out = new FileOutputStream(zipfile);
-        Closeable res = out;
-        try {
-            ZipOutputStream zout = new ZipOutputStream(out);
-            res = zout;
-            while (!queue.isEmpty()) {
-                directory = queue.removeFirst();
-                File[] dirFiles = directory.listFiles();
-                if (dirFiles != null && dirFiles.length != 0) {
-                    for (File child : dirFiles) {
-                        if (child != null) {
-                            String name = baseDir.relativize(child.toURI()).getPath();
-                            if (child.isDirectory() && !BackupConfig.directoryBlackList.contains(child.getName())) {
-                                queue.push(child);
-                                name = name.endsWith("/") ? name : name + "/";
-                                zout.putNextEntry(new ZipEntry(name));
-                            } else {
-                                if (!BackupConfig.fileBlacklist.contains(child.getName())) {
-                                    zout.putNextEntry(new ZipEntry(name));
-                                    copy(child, zout);
-                                    zout.closeEntry();
-                                }
-                            }
+    /**
+     * Save the worlds of a backup set on the server thread, then turn off their saving so their
+     * directories stay consistent while they're being copied. Worlds of other sets keep saving.
+     * The saved chunks are written out by the chunk IO thread afterwards, see {@link #waitForChunkWrites}.
+     *
+     * If the chunks were just saved by {@link #saveOverTicks} only the ones that changed since are saved here,
+     * along with the rest of the world's data, rather than every chunk with entities in it.
+     *
+     * Setting {@link WorldServer#levelSaving} is what /save-off does: while it's true, the world won't save.
+     * The previous values are kept in {@link #pausedLevelSaving} until {@link #resumeSaving} puts them back.
+     */
+    private static void pauseSaving(final BackupSet set) throws Exception {
+
+        BackupHandler.instance.serverThread.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+
+                Map<Integer, Boolean> levelSaving = new HashMap<>(MinecraftServer.getServer().worldServers.length);
+
+                try {
+                    for (WorldServer worldServer : MinecraftServer.getServer().worldServers) {
+                        if (!isInSet(worldServer, set))
+                            continue;
+
+                        levelSaving.put(worldServer.provider.dimensionId, worldServer.levelSaving);
+
+                        worldServer.levelSaving = false;
+                        if (BackupConfig.saveTickBudgetMs > 0) {
+                            WorldFlush.saveModified(worldServer);
+                            worldServer.saveAllChunks(false, null);
+                        } else {
+                            worldServer.saveAllChunks(true, null);
                         }
+                        worldServer.levelSaving = true;
+                    }
+                    pausedLevelSaving.putAll(levelSaving);
+                } catch (Exception e) {
+                    restoreLevelSaving(levelSaving);
+                    throw e;
+                }
+
+                return null;
+            }
+        }, SERVER_THREAD_TIMEOUT);
+    }
+
+    static boolean isInSet(WorldServer worldServer, BackupSet set) {
+
+        return isInSet(worldServer.provider.dimensionId, set);
+    }
+
+    private static boolean isInSet(int dimension, BackupSet set) {
+
+        return set.isDimension() ? set.dimension == dimension : !set.excludedDimensions.contains(dimension);
+    }
+
+    /**
+     * Wait for the chunk IO thread to write out every chunk queued for saving
+     */
+    private static void waitForChunkWrites() throws InterruptedException {
+
+        ThreadedFileIOBase.threadedIOInstance.waitForFinish();
+    }
+
+    /**
+     * Turn saving back on for the worlds of a backup set that a backup paused. Goes by what's recorded in
+     * {@link #pausedLevelSaving} rather than what the backup thread saw, since a pause can still happen after
+     * waiting for it was interrupted.
+     */
+    private static void resumeSaving(final BackupSet set) throws Exception {
+
+        BackupHandler.instance.serverThread.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+
+                Map<Integer, Boolean> levelSaving = new HashMap<>();
+                for (Map.Entry<Integer, Boolean> entry : pausedLevelSaving.entrySet()) {
+                    if (isInSet(entry.getKey(), set))
+                        levelSaving.put(entry.getKey(), entry.getValue());
+                }
+                restoreLevelSaving(levelSaving);
+                return null;
+            }
+        }, SERVER_THREAD_TIMEOUT);
+    }
+
+    /**
+     * Put back the levelSaving values of the worlds a backup paused, leaving other worlds alone
+     */
+    private static void restoreLevelSaving(Map<Integer, Boolean> levelSaving) {
+
+        for (WorldServer worldServer : MinecraftServer.getServer().worldServers) {
+            Boolean previous = levelSaving.get(worldServer.provider.dimensionId);
+            if (previous != null)
+                worldServer.levelSaving = previous;
+        }
+
+        pausedLevelSaving.keySet().removeAll(levelSaving.keySet());
+    }
+
+    /**
+     * Turn saving back on for any world a backup still has paused. Must be called on the server thread,
+     * and is meant for when the server is stopping and the backup threads can't be waited on.
+     */
+    static void resumeSavingNow() {
+
+        if (!pausedLevelSaving.isEmpty()) {
+            ServerToolsBackup.log.warn("A backup still had world saving paused, turning it back on");
+            restoreLevelSaving(new HashMap<>(pausedLevelSaving));
+        }
+    }
+
+    /**
+     * Archive a directory under a temporary name, then rename the archive into place once it's complete and
+     * on the disk, so a backup cut off part way never looks like a complete one. The archive is journaled while
+     * it's written, so one cut off by a restart can be resumed by the next backup, see {@link #resumePartial}.
+     *
+     * @param partialFile the file to write the archive to
+     * @param archiveFile the name the archive has once it's complete
+     * @param recovery    what was recovered from the partial file's journal to resume it, or null to start over
+     */
+    static void archiveDirectory(BackupSet set, File directory, File partialFile, File archiveFile, ArchiveJournal.Recovery recovery, BackupMetrics metrics) throws IOException {
+        ParallelArchiver archiver = new ParallelArchiver(BackupConfig.compressionThreads, set.filter,
+                BackupConfig.storedExtensions, BackupConfig.archiveFormat, BackupConfig.compressionLevel, newThrottle(), getBufferPool());
+
+        File journalFile = ArchiveJournal.journalFor(partialFile);
+        try {
+            archiver.archive(directory, partialFile, journalFile, recovery);
+            FileIO.moveIntoPlace(partialFile, archiveFile);
+            if (!journalFile.delete())
+                ServerToolsBackup.log.warn(String.format("Failed to delete the backup journal %s", journalFile));
+            reportRegionProblems(archiver.getRegionProblems());
+            try {
+                archiver.getIndex().write(ArchiveIndex.sidecarFor(archiveFile));
+            } catch (IOException e) {
+                ServerToolsBackup.log.warn("Failed to write the backup's index, it can only be partly verified and restored", e);
+            }
+        } finally {
+            metrics.addPhase(BackupMetrics.WALK, archiver.getWalkNanos());
+            metrics.addPhase(BackupMetrics.COMPRESS, archiver.getCompressNanos());
+            metrics.addPhase(BackupMetrics.WRITE, archiver.getWriteNanos());
+            metrics.addFiles(archiver.getFilesArchived());
+            metrics.addBytesRead(archiver.getBytesRead());
+            metrics.addBytesWritten(archiver.getBytesWritten());
+        }
+    }
+
+    /**
+     * Find an archive left unfinished by an earlier backup that was cut off by a restart or a crash, and get it
+     * ready to be written on under the new backup's name. Only one can be resumed, any others are deleted.
+     *
+     * @param partialFile the file the new backup will be written to
+     * @param source      the directory the new backup archives
+     * @return what was recovered from the unfinished archive's journal, or null if there's nothing to resume
+     */
+    private static ArchiveJournal.Recovery resumePartial(File backupDir, File partialFile, File source) {
+
+        File[] partials = backupDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+
+                return file.isFile() && file.getName().endsWith(PARTIAL_EXTENSION);
+            }
+        });
+        if (partials == null)
+            return null;
+
+        ArchiveJournal.Recovery recovery = null;
+
+        for (File partial : partials) {
+            File journal = ArchiveJournal.journalFor(partial);
+
+            if (recovery == null && journal.isFile()) {
+                try {
+                    recovery = ArchiveJournal.recover(journal, partial, BackupConfig.archiveFormat, source);
+                } catch (IOException e) {
+                    ServerToolsBackup.log.warn(String.format("Failed to read the journal of the unfinished backup %s", partial.getName()), e);
+                }
+
+                if (recovery != null) {
+                    if (!partial.equals(partialFile) && (!partial.renameTo(partialFile) || !journal.renameTo(ArchiveJournal.journalFor(partialFile)))) {
+                        ServerToolsBackup.log.warn(String.format("Failed to rename the unfinished backup %s, starting over", partial.getName()));
+                        recovery = null;
+                        partialFile.delete();
+                        ArchiveJournal.journalFor(partialFile).delete();
+                    } else {
+                        ServerToolsBackup.log.info(String.format("Resuming the unfinished backup %s from %s MB",
+                                partial.getName(), recovery.offset / org.apache.commons.io.FileUtils.ONE_MB));
+                        continue;
                     }
                 }
             }
+
+            if (!partial.delete() && partial.exists())
+                ServerToolsBackup.log.warn(String.format("Failed to delete the unfinished backup %s", partial.getName()));
+            journal.delete();
+        }
+
+        return recovery;
+    }
+
+    /**
+     * Copy a finished backup to the set's remote targets, along with its index or the store objects it refers to.
+     * Copies that fail are put off until the next backup rather than failing this one.
+     *
+     * @param shipment the copy of the archive started while it was written, or null for an incremental backup
+     * @param manifest the manifest of an incremental backup, or null for an archive
+     */
+    private static void ship(BackupSet set, File backupFile, BackupShipper.Shipment shipment, BackupManifest manifest, BackupMetrics metrics) throws InterruptedIOException {
+
+        long start = System.nanoTime();
+        boolean shipped = true;
+
+        // Keep retention from collecting objects before they're sent
+        set.storeLock.readLock().lock();
+        try {
+            if (shipment != null) {
+                shipped = shipment.finish(backupFile);
+                File index = ArchiveIndex.sidecarFor(backupFile);
+                if (index.isFile())
+                    shipped &= set.shipper.ship(index);
+            } else if (manifest != null) {
+                Set<String> hashes = new HashSet<>();
+                manifest.collectHashes(hashes);
+                shipped = set.shipper.shipManifest(backupFile, new ContentStore(set.storeDir), hashes);
+            } else {
+                shipped = set.shipper.ship(backupFile);
+            }
+
+            set.shipper.retryPending();
         } finally {
-            res.close();
+            set.storeLock.readLock().unlock();
+            metrics.addPhase(BackupMetrics.UPLOAD, System.nanoTime() - start);
+        }
+
+        int pending = set.shipper.getPendingCount();
+        if (!shipped || pending > 0) {
+            ServerToolsBackup.log.warn(String.format("%s copies of backups of %s couldn't be sent to the remote targets, they will be tried again after the next backup",
+                    pending, set.name));
+            BackupHandler.sendBackupMessage(Util.getChatComponent("Backup couldn't be copied off the server - Check Server Logs", EnumChatFormatting.YELLOW));
+        }
+    }
+
+    /**
+     * Warn about region files that were found to be damaged while they were backed up. They're still backed up as they are.
+     */
+    private static void reportRegionProblems(List<String> problems) {
+
+        if (problems.isEmpty())
+            return;
+
+        for (String problem : problems)
+            ServerToolsBackup.log.warn(String.format("Damaged region file %s", problem));
+
+        BackupHandler.sendBackupMessage(Util.getChatComponent(String.format("%s damaged region files were found while backing up - Check Server Logs",
+                problems.size()), EnumChatFormatting.YELLOW));
+    }
+
+    /**
+     * Create a throttle for verifying backups, which reads with a single worker
+     */
+    static BackupThrottle newVerifyThrottle() {
+
+        if (BackupConfig.verifyMaxMBps <= 0 && BackupConfig.minTps <= 0)
+            return BackupThrottle.UNLIMITED;
+
+        return new BackupThrottle(BackupConfig.verifyMaxMBps * org.apache.commons.io.FileUtils.ONE_MB, BackupConfig.minTps, SERVER_TICKS, 1, SLOWDOWN_LOGGER);
+    }
+
+    /**
+     * Create a throttle for one backup from the configured limits, measured against the server's tick times
+     */
+    static BackupThrottle newThrottle() {
+
+        if (BackupConfig.maxThroughputMBps <= 0 && BackupConfig.minTps <= 0)
+            return BackupThrottle.UNLIMITED;
+
+        int workers = BackupConfig.compressionThreads > 0 ? BackupConfig.compressionThreads : Runtime.getRuntime().availableProcessors();
+
+        return new BackupThrottle(BackupConfig.maxThroughputMBps * org.apache.commons.io.FileUtils.ONE_MB, BackupConfig.minTps, SERVER_TICKS, workers, SLOWDOWN_LOGGER);
+    }
+
+    /**
+     * Get the buffers backups read and compress file data in, which hold the memory of all backups
+     * running at once to the configured limit
+     */
+    static synchronized BufferPool getBufferPool() {
+
+        if (bufferPool == null)
+            bufferPool = new BufferPool(BackupConfig.maxBackupMemoryMB * org.apache.commons.io.FileUtils.ONE_MB, ParallelArchiver.BUFFER_SIZE);
+        return bufferPool;
+    }
+
+    private static final BackupThrottle.TickTimeSource SERVER_TICKS = new BackupThrottle.TickTimeSource() {
+        @Override
+        public double getMeanTickMillis() {
+
+            long[] tickTimes = MinecraftServer.getServer().tickTimeArray;
+            long sum = 0;
+            for (long tickTime : tickTimes)
+                sum += tickTime;
+
+            return sum / (double) tickTimes.length / 1000000;
+        }
+    };
+
+    private static final BackupThrottle.SlowdownListener SLOWDOWN_LOGGER = new BackupThrottle.SlowdownListener() {
+        @Override
+        public void slowedDown(double tickMillis, long bytesPerSecond, int workers) {
+
+            ServerToolsBackup.log.info(String.format("Holding the backup back, the server is running at %.1f TPS, below the minTps of %s. " +
+                    "Now reading at most %s MB/s with %s workers", Math.min(20, 1000 / tickMillis), BackupConfig.minTps,
+                    bytesPerSecond / org.apache.commons.io.FileUtils.ONE_MB, workers));
+        }
+    };
+
+    /**
+     * Read the manifest of the previous backup, to build the next one on
+     *
+     * @return the manifest, or null if there's no previous backup or it can't be read
+     */
+    private static BackupManifest readManifest(File previousFile) {
+
+        if (previousFile == null)
+            return null;
+
+        try {
+            return BackupManifest.read(previousFile);
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn("Failed to read the previous backup manifest, every file will be read", e);
+            return null;
         }
     }
 
-    private static void copy(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        while (true) {
-            int readCount = in.read(buffer);
-            if (readCount < 0) {
-                break;
+    /**
+     * @param previousFile the previous backup's manifest file, or null if there is none
+     * @param previous     the manifest of the previous backup, or null to read every file
+     * @param changes      the region files saved to since the previous backup, or null to look at every file
+     */
+    static BackupManifest incrementalBackup(BackupSet set, File directory, File manifestFile, File previousFile, BackupManifest previous,
+                                            DirtyRegions.Changes changes, long started, BackupMetrics metrics) throws IOException {
+
+        set.collectOrphanedObjects();
+
+        // Keep retention from collecting objects this backup stores before its manifest exists,
+        // or the objects of the previous manifest, which are reused without checking the store
+        set.storeLock.readLock().lock();
+        try {
+            BackupCatalog.Entry entry = previousFile != null ? set.catalog.find(previousFile.getName()) : null;
+            if (previous != null && (entry == null || !entry.file.equals(previousFile))) {
+                ServerToolsBackup.log.info(String.format("Backup %s was deleted while this backup started, every file will be read", previousFile.getName()));
+                previous = null;
+                changes = null;
             }
-            out.write(buffer, 0, readCount);
+
+            return incrementalBackupLocked(set, directory, manifestFile, previous, changes, started, metrics);
+        } catch (IOException | RuntimeException e) {
+            set.markStoreOrphaned();
+            throw e;
+        } finally {
+            set.storeLock.readLock().unlock();
         }
     }
 
-    private static void copy(File file, OutputStream out) throws IOException {
-        try (InputStream in = new FileInputStream(file)) {
-            copy(in, out);
+    private static BackupManifest incrementalBackupLocked(BackupSet set, File directory, File manifestFile, BackupManifest previous,
+                                                          DirtyRegions.Changes changes, long started, BackupMetrics metrics) throws IOException {
+
+        ContentStore store = new ContentStore(set.storeDir);
+        IncrementalArchiver archiver = new IncrementalArchiver(store,
+                BackupConfig.compressionThreads, set.filter, BackupConfig.storeRegionChunks, BackupConfig.storedExtensions, newThrottle(),
+                getBufferPool());
+
+        BackupManifest manifest;
+        try {
+            manifest = archiver.archive(directory, previous, changes);
+        } finally {
+            set.catalog.addStoreSize(store.getBytesAdded());
+            metrics.addPhase(BackupMetrics.WALK, archiver.getWalkNanos());
+            metrics.addPhase(BackupMetrics.COMPRESS, archiver.getStoreNanos());
+            metrics.addFiles(archiver.getFilesStored() + archiver.getFilesReused());
+            metrics.addBytesRead(archiver.getBytesRead());
+            metrics.addBytesWritten(store.getBytesAdded());
         }
+        manifest.setCreated(started);
+        reportRegionProblems(archiver.getRegionProblems());
+
+        long writeStart = System.nanoTime();
+        store.sync();
+        manifest.write(manifestFile);
+        metrics.addPhase(BackupMetrics.WRITE, System.nanoTime() - writeStart);
+        metrics.addBytesWritten(manifestFile.length());
+
+        ServerToolsBackup.log.info(String.format("Incremental backup read %s changed files, %s were unchanged", archiver.getFilesStored(), archiver.getFilesReused()));
+        if (BackupConfig.storeRegionChunks)
+            ServerToolsBackup.log.info(String.format("Stored %s region chunks, %s were unchanged", archiver.getChunksStored(), archiver.getChunksReused()));
+
+        return manifest;
     }
 }
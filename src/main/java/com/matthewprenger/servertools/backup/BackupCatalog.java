@@ -0,0 +1,660 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.CountingInputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The backups in the backup directory, oldest first, with what is known about each of them and their total size.
+ *
+ * The catalog is kept on the disk in the backup directory, as a compact index and a log of the changes made
+ * since the index was written, so what was recorded when a backup was made (its parent, dimensions, sizes and
+ * how long it took) and whether it passed verification outlive a restart. Loading reads those two files and the
+ * names in the backup directory, without reading any backup, so backups added or deleted by hand are still
+ * picked up or dropped. From then on the catalog is kept up to date as backups are made and deleted, so
+ * retention and commands never have to walk the backup directory again. The size of the incremental store
+ * is kept alongside, since it counts towards the size limit.
+ *
+ * Each log record is framed with its length and a CRC, and records what something is now rather than how it
+ * changed, so a record torn by a crash is ignored and a record replayed onto an index that already has it does
+ * no harm. The log isn't synced: whatever it loses the directory names put right, only the details are lost.
+ * If the catalog can't be written, the whole index is written again with the next change, and the failure is
+ * kept for {@link #takeWriteFailure} to report.
+ *
+ * The time of a backup is the time it was started, read from its name. Only backups whose names don't
+ * fit the name template, such as ones made before it was changed, fall back to their modification time.
+ */
+class BackupCatalog {
+
+    static final String INDEX_FILE = "catalog.dat";
+    static final String LOG_FILE = "catalog.log";
+
+    private static final String HEADER = "ServerTools-Backup-Catalog 1";
+
+    /**
+     * The log is folded into the index once it holds this many records, or as many as there are backups if that's more
+     */
+    private static final int COMPACT_RECORDS = 256;
+
+    private static final int RECORD_ADD = 1;
+    private static final int RECORD_DELETE = 2;
+    private static final int RECORD_STATUS = 3;
+    private static final int RECORD_STORE_SIZE = 4;
+
+    private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+
+            int result = Long.compare(o1.time, o2.time);
+            return result != 0 ? result : o1.file.getName().compareTo(o2.file.getName());
+        }
+    };
+
+    private final File backupDir;
+    private final File storeDir;
+    private final FilenameFilter filter;
+    private final BackupName backupName;
+    private final File indexFile;
+    private final File logFile;
+
+    private final List<Entry> backups = new ArrayList<>();
+    private long backupsSize;
+    private long storeSize;
+    private int logRecords;
+
+    /**
+     * True if the files on the disk may be behind, so the index is written out again with the next change
+     */
+    private boolean rewrite;
+    private IOException writeFailure;
+
+    /**
+     * @param backupDir  the directory backups are kept in, and the catalog with them
+     * @param storeDir   the incremental backup store
+     * @param filter     accepts the names of backup files
+     * @param backupName reads the times backups were started from their names
+     */
+    BackupCatalog(File backupDir, File storeDir, FilenameFilter filter, BackupName backupName) {
+
+        this.backupDir = backupDir;
+        this.storeDir = storeDir;
+        this.filter = filter;
+        this.backupName = backupName;
+        this.indexFile = new File(backupDir, INDEX_FILE);
+        this.logFile = new File(backupDir, LOG_FILE);
+    }
+
+    /**
+     * Read the catalog from the disk and match it up with the names in the backup directory, replacing
+     * anything already in it. Backups the catalog doesn't know about are read from the directory, and if
+     * the catalog was missing or damaged the incremental store is measured again.
+     *
+     * @throws IOException if the backup directory can't be listed, the catalog is left empty
+     */
+    synchronized void load() throws IOException {
+
+        backups.clear();
+        backupsSize = 0;
+        logRecords = 0;
+        rewrite = false;
+
+        // Only the names, the backups themselves are only looked at if the catalog doesn't know them
+        String[] names = backupDir.list(filter);
+        if (names == null)
+            throw new IOException(String.format("Failed to list %s", backupDir));
+
+        Map<String, Entry> entries = new HashMap<>();
+        storeSize = -1;
+        boolean complete = readIndex(entries);
+        complete &= readLog(entries);
+
+        boolean changed = entries.keySet().retainAll(new HashSet<>(Arrays.asList(names)));
+
+        for (String name : names) {
+            if (entries.containsKey(name))
+                continue;
+
+            File file = new File(backupDir, name);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue; // Deleted while listing
+            }
+
+            if (attributes.isRegularFile()) {
+                entries.put(name, new Entry(file, getTime(name, attributes.lastModifiedTime().toMillis()), attributes.size()));
+                changed = true;
+            }
+        }
+
+        if (!complete || storeSize < 0)
+            storeSize = storeDir.isDirectory() ? FileIO.sizeOf(storeDir) : 0;
+
+        backups.addAll(entries.values());
+        Collections.sort(backups, OLDEST_FIRST);
+        for (Entry entry : backups)
+            backupsSize += entry.size;
+
+        if (changed || !complete || logRecords > 0)
+            compact();
+    }
+
+    /**
+     * Read the index into a map of backups by name
+     *
+     * @return false if there is no index or it's damaged, nothing is read from a damaged index
+     */
+    private boolean readIndex(Map<String, Entry> entries) throws IOException {
+
+        if (!indexFile.isFile())
+            return false;
+
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(indexFile)), new CRC32());
+
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (!HEADER.equals(in.readUTF()))
+                return false;
+
+            long size = in.readLong();
+            List<Entry> read = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--)
+                read.add(readEntry(in));
+
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc)
+                return false;
+
+            storeSize = size;
+            for (Entry entry : read)
+                entries.put(entry.file.getName(), entry);
+            return true;
+        } catch (EOFException | UTFDataFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Apply the records in the log to a map of backups by name. Reading stops at the first damaged record.
+     *
+     * @return false if a damaged record was found
+     */
+    private boolean readLog(Map<String, Entry> entries) throws IOException {
+
+        if (!logFile.isFile())
+            return true;
+
+        long fileLength = logFile.length();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                long position = counter.getCount();
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > fileLength)
+                        return false;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if (in.readLong() != crc.getValue())
+                        return false;
+                } catch (EOFException e) {
+                    // The log ends cleanly between records, anything else is a record cut off part way
+                    return position == fileLength;
+                }
+
+                try {
+                    applyRecord(record, entries);
+                } catch (IOException e) {
+                    return false;
+                }
+                logRecords++;
+            }
+        }
+    }
+
+    private void applyRecord(byte[] record, Map<String, Entry> entries) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        switch (in.readUnsignedByte()) {
+            case RECORD_ADD:
+                Entry entry = readEntry(in);
+                entries.put(entry.file.getName(), entry);
+                break;
+            case RECORD_DELETE:
+                entries.remove(in.readUTF());
+                break;
+            case RECORD_STATUS:
+                Entry existing = entries.get(in.readUTF());
+                Status status = readStatus(in);
+                if (existing != null)
+                    existing.status = status;
+                break;
+            case RECORD_STORE_SIZE:
+                storeSize = in.readLong();
+                break;
+            default:
+                throw new IOException("Unknown catalog record");
+        }
+    }
+
+    /**
+     * Write the whole catalog out as the index and start a new log. If that fails the catalog in memory
+     * is still right, and it's tried again with the next change.
+     */
+    private void compact() {
+
+        File temp = new File(backupDir, INDEX_FILE + ".tmp");
+
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeUTF(HEADER);
+                out.writeLong(storeSize);
+                out.writeInt(backups.size());
+                for (Entry entry : backups)
+                    writeEntry(out, entry);
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+            }
+
+            FileIO.moveIntoPlace(temp, indexFile);
+
+            // Replaying the old log onto the new index changes nothing, so a crash before this is fine
+            if (!logFile.delete() && logFile.exists())
+                throw new IOException(String.format("Failed to delete %s", logFile));
+            logRecords = 0;
+            rewrite = false;
+        } catch (IOException e) {
+            temp.delete();
+            rewrite = true;
+            writeFailure = e;
+        }
+    }
+
+    /**
+     * Append a record to the log, folding the log into the index once it has grown long enough
+     */
+    private void appendRecord(ByteArrayOutputStream bytes) {
+
+        if (rewrite) {
+            compact();
+            return;
+        }
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)))) {
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            rewrite = true;
+            writeFailure = e;
+            return;
+        }
+
+        if (++logRecords >= Math.max(COMPACT_RECORDS, backups.size()))
+            compact();
+    }
+
+    private void appendRecord(int type, Entry entry) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            if (type == RECORD_ADD) {
+                writeEntry(out, entry);
+            } else {
+                out.writeUTF(entry.file.getName());
+                if (type == RECORD_STATUS)
+                    out.writeByte(entry.status.ordinal());
+            }
+            appendRecord(bytes);
+        } catch (IOException e) {
+            throw new AssertionError(e); // Written to memory
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+
+        out.writeUTF(entry.file.getName());
+        out.writeLong(entry.time);
+        out.writeLong(entry.size);
+        out.writeUTF(entry.parent != null ? entry.parent : "");
+        out.writeInt(entry.dimensions.length);
+        for (int dimension : entry.dimensions)
+            out.writeInt(dimension);
+        out.writeLong(entry.bytesRead);
+        out.writeLong(entry.bytesWritten);
+        out.writeLong(entry.durationMillis);
+        out.writeByte(entry.status.ordinal());
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+
+        File file = new File(backupDir, in.readUTF());
+        long time = in.readLong();
+        long size = in.readLong();
+        String parent = in.readUTF();
+        int[] dimensions = new int[in.readInt()];
+        for (int i = 0; i < dimensions.length; i++)
+            dimensions[i] = in.readInt();
+
+        Entry entry = new Entry(file, time, size, parent.isEmpty() ? null : parent, dimensions, in.readLong(), in.readLong(), in.readLong());
+        entry.status = readStatus(in);
+        return entry;
+    }
+
+    private static Status readStatus(DataInputStream in) throws IOException {
+
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Status.values().length)
+            throw new IOException("Unknown backup status");
+        return Status.values()[ordinal];
+    }
+
+    /**
+     * Add a backup that has just been written
+     *
+     * @param parent         the file name of the backup it was built on, or null if it stands alone
+     * @param dimensions     the dimensions in the backup
+     * @param bytesRead      the number of bytes read from the world
+     * @param bytesWritten   the number of bytes the backup added to the disk
+     * @param durationMillis how long the backup took
+     */
+    synchronized void add(File file, String parent, int[] dimensions, long bytesRead, long bytesWritten, long durationMillis) {
+
+        Entry entry = new Entry(file, getTime(file.getName(), file.lastModified()), file.length(), parent, dimensions,
+                bytesRead, bytesWritten, durationMillis);
+
+        int index = Collections.binarySearch(backups, entry, OLDEST_FIRST);
+        if (index >= 0)
+            backupsSize -= backups.remove(index).size;
+        else
+            index = -index - 1;
+        backups.add(index, entry);
+        backupsSize += entry.size;
+
+        appendRecord(RECORD_ADD, entry);
+    }
+
+    private long getTime(String name, long lastModified) {
+
+        long time = backupName.parse(name);
+        return time >= 0 ? time : lastModified;
+    }
+
+    /**
+     * Delete a backup, along with its index, and remove it from the catalog.
+     * A backup that is already gone is removed from the catalog too.
+     *
+     * @return true if the backup no longer exists
+     */
+    synchronized boolean delete(Entry entry) {
+
+        if (!entry.file.delete() && entry.file.exists())
+            return false;
+
+        ArchiveIndex.sidecarFor(entry.file).delete();
+
+        if (backups.remove(entry)) {
+            backupsSize -= entry.size;
+            appendRecord(RECORD_DELETE, entry);
+        }
+
+        return true;
+    }
+
+    /**
+     * Record the outcome of verifying a backup
+     *
+     * @param name the file name of the backup
+     */
+    synchronized void setStatus(String name, Status status) {
+
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            Entry entry = backups.get(i);
+            if (entry.file.getName().equals(name)) {
+                entry.status = status;
+                appendRecord(RECORD_STATUS, entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record a change in the size of the incremental store
+     *
+     * @param bytes the number of bytes added, or negative if bytes were freed
+     */
+    synchronized void addStoreSize(long bytes) {
+
+        if (bytes == 0)
+            return;
+
+        storeSize = Math.max(0, storeSize + bytes);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeByte(RECORD_STORE_SIZE);
+            data.writeLong(storeSize);
+            appendRecord(out);
+        } catch (IOException e) {
+            throw new AssertionError(e); // Written to memory
+        }
+    }
+
+    /**
+     * @return the last failure to write the catalog to the disk since this was last called, or null if there was none
+     */
+    synchronized IOException takeWriteFailure() {
+
+        IOException failure = writeFailure;
+        writeFailure = null;
+        return failure;
+    }
+
+    /**
+     * @return a copy of the backups, oldest first
+     */
+    synchronized List<Entry> getBackups() {
+
+        return new ArrayList<>(backups);
+    }
+
+    /**
+     * @return the newest backup, or null if there are none
+     */
+    synchronized Entry getLatest() {
+
+        return backups.isEmpty() ? null : backups.get(backups.size() - 1);
+    }
+
+    /**
+     * Find a backup by its file name, or by its name without the extension
+     *
+     * @return the newest backup with that name, or null if there is none
+     */
+    synchronized Entry find(String name) {
+
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            String fileName = backups.get(i).file.getName();
+            if (fileName.equals(name) || fileName.startsWith(name + "."))
+                return backups.get(i);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the newest incremental backup manifest, or null if there are none
+     */
+    synchronized File getLatestManifest() {
+
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            if (backups.get(i).isManifest())
+                return backups.get(i).file;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the size of all backups and the incremental store, in bytes
+     */
+    synchronized long getTotalSize() {
+
+        return backupsSize + storeSize;
+    }
+
+    synchronized int size() {
+
+        return backups.size();
+    }
+
+    /**
+     * What verifying a backup found
+     */
+    enum Status {
+
+        /**
+         * Not verified since it was made
+         */
+        UNVERIFIED,
+
+        /**
+         * Read back and matched its checksums
+         */
+        VERIFIED,
+
+        /**
+         * Read back, but had no checksums to compare it to
+         */
+        READABLE,
+
+        /**
+         * Failed verification
+         */
+        DAMAGED
+    }
+
+    static class Entry {
+
+        final File file;
+        final long time;
+        final long size;
+
+        /**
+         * The file name of the backup this one was built on, or null if it stands alone or isn't known
+         */
+        final String parent;
+
+        /**
+         * The dimensions in the backup, empty if they aren't known
+         */
+        final int[] dimensions;
+
+        /**
+         * The number of bytes read from the world, or -1 if it isn't known
+         */
+        final long bytesRead;
+
+        /**
+         * The number of bytes the backup added to the disk, including what it put in the incremental store,
+         * or -1 if it isn't known
+         */
+        final long bytesWritten;
+
+        /**
+         * How long the backup took, or -1 if it isn't known
+         */
+        final long durationMillis;
+
+        /**
+         * Guarded by the catalog
+         */
+        private Status status = Status.UNVERIFIED;
+
+        /**
+         * A backup that nothing is known about but what's on the disk
+         */
+        Entry(File file, long time, long size) {
+
+            this(file, time, size, null, new int[0], -1, -1, -1);
+        }
+
+        Entry(File file, long time, long size, String parent, int[] dimensions, long bytesRead, long bytesWritten, long durationMillis) {
+
+            this.file = file;
+            this.time = time;
+            this.size = size;
+            this.parent = parent;
+            this.dimensions = dimensions;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.durationMillis = durationMillis;
+        }
+
+        boolean isManifest() {
+
+            return file.getName().endsWith(BackupManifest.FILE_EXTENSION);
+        }
+
+        /**
+         * @return "incremental" for a manifest, "full" for an archive
+         */
+        String getType() {
+
+            return isManifest() ? "incremental" : "full";
+        }
+
+        Status getStatus() {
+
+            return status;
+        }
+
+        /**
+         * @param filter a type, a status, or part of the file name, in any case
+         * @return true if the backup has that type or status, or the name contains it
+         */
+        boolean matches(String filter) {
+
+            return getType().equalsIgnoreCase(filter) || status.name().equalsIgnoreCase(filter)
+                    || file.getName().toLowerCase(Locale.ENGLISH).contains(filter.toLowerCase(Locale.ENGLISH));
+        }
+    }
+}
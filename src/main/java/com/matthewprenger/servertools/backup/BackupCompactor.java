@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Predicates;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns old incremental backups of a set into full backups, built from the content store without touching
+ * the world. Each keeps its name and time, only the extension changes, so retention treats it as before.
+ *
+ * Once an incremental backup is a full one it no longer holds on to anything in the store, so the store is
+ * cleaned up afterwards and only keeps what recent backups use. Restoring an old backup then reads a single
+ * archive rather than gathering every file and chunk it had from the store.
+ *
+ * The manifest is rebuilt into a working directory inside the backup directory, then archived the way a
+ * backup is, with the same throttle. The newest incremental backup is never compacted, since the next
+ * backup is built on it.
+ */
+class BackupCompactor {
+
+    static final String COMPACT_DIR = "compact";
+
+    private final BackupSet set;
+    private final long maxAge;
+    private final File workDir;
+
+    /**
+     * @param set         the set to compact the backups of
+     * @param maxAgeDays  the age in days past which incremental backups are compacted
+     */
+    BackupCompactor(BackupSet set, int maxAgeDays) {
+
+        this.set = set;
+        this.maxAge = TimeUnit.DAYS.toMillis(maxAgeDays);
+        this.workDir = new File(set.backupDir, COMPACT_DIR);
+    }
+
+    /**
+     * Compact every incremental backup older than the maximum age, oldest first, then clean up the store
+     *
+     * @return the number of backups compacted
+     * @throws InterruptedIOException if the thread is interrupted, the backups compacted so far are kept
+     */
+    int compact() throws IOException {
+
+        List<BackupCatalog.Entry> backups = set.catalog.getBackups();
+        File latest = set.catalog.getLatestManifest();
+        long before = System.currentTimeMillis() - maxAge;
+        int compacted = 0;
+
+        try {
+            for (BackupCatalog.Entry backup : backups) {
+                if (!backup.isManifest() || backup.time >= before || backup.file.equals(latest))
+                    continue;
+
+                if (compact(backup))
+                    compacted++;
+            }
+        } finally {
+            if (compacted > 0) {
+                set.storeLock.writeLock().lock();
+                try {
+                    set.collectStoreGarbage();
+                } finally {
+                    set.storeLock.writeLock().unlock();
+                }
+            }
+        }
+
+        return compacted;
+    }
+
+    /**
+     * Turn one incremental backup into a full one
+     *
+     * @return false if it was left as it is
+     */
+    private boolean compact(BackupCatalog.Entry backup) throws IOException {
+
+        String manifestName = backup.file.getName();
+        String name = manifestName.substring(0, manifestName.length() - BackupManifest.FILE_EXTENSION.length())
+                + BackupConfig.archiveFormat.getExtension();
+        File archiveFile = new File(set.backupDir, name);
+        if (archiveFile.exists()) {
+            ServerToolsBackup.log.warn(String.format("Can't compact backup %s of %s, %s already exists", manifestName, set.name, name));
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        ServerToolsBackup.log.info(String.format("Compacting backup %s of %s into %s", manifestName, set.name, name));
+
+        BackupManifest manifest;
+        try {
+            manifest = BackupManifest.read(backup.file);
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn(String.format("Failed to read backup %s, it's left as it is", manifestName), e);
+            return false;
+        }
+
+        File sourceDir = new File(workDir, "world");
+        File tempFile = new File(workDir, name);
+        ParallelArchiver archiver = new ParallelArchiver(BackupConfig.compressionThreads, PathFilter.ACCEPT_ALL,
+                BackupConfig.storedExtensions, BackupConfig.archiveFormat, BackupConfig.compressionLevel, Backup.newThrottle(), Backup.getBufferPool());
+
+        try {
+            // Left over from a compaction that was cut off
+            WorldSnapshot.deleteRecursively(workDir);
+
+            // Keep retention from collecting the objects while they're read
+            set.storeLock.readLock().lock();
+            try {
+                // Retention deleted the backup, and may have collected its objects, since the manifest was read
+                if (set.catalog.find(manifestName) != backup)
+                    return false;
+
+                manifest.restore(new ContentStore(set.storeDir), sourceDir, Predicates.<String>alwaysTrue(), Backup.newThrottle());
+            } finally {
+                set.storeLock.readLock().unlock();
+            }
+
+            archiver.archive(sourceDir, tempFile);
+            FileIO.moveIntoPlace(tempFile, archiveFile);
+        } finally {
+            try {
+                WorldSnapshot.deleteRecursively(workDir);
+            } catch (IOException e) {
+                ServerToolsBackup.log.warn(String.format("Failed to delete %s", workDir), e);
+            }
+        }
+
+        File indexFile = ArchiveIndex.sidecarFor(archiveFile);
+        try {
+            archiver.getIndex().write(indexFile);
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn("Failed to write the compacted backup's index, it can only be partly verified and restored", e);
+        }
+
+        // Retention got to the backup first, it isn't wanted any more
+        if (set.catalog.find(manifestName) != backup) {
+            archiveFile.delete();
+            indexFile.delete();
+            return false;
+        }
+
+        set.catalog.add(archiveFile, null, backup.dimensions, archiver.getBytesRead(), archiver.getBytesWritten(),
+                System.currentTimeMillis() - start);
+        if (!set.catalog.delete(backup))
+            ServerToolsBackup.log.warn(String.format("Failed to delete backup %s after compacting it", manifestName));
+
+        if (set.shipper != null) {
+            boolean shipped = set.shipper.ship(archiveFile);
+            if (indexFile.isFile())
+                shipped &= set.shipper.ship(indexFile);
+            if (shipped)
+                set.shipper.delete(manifestName);
+        }
+
+        ServerToolsBackup.log.info(String.format("Compacted backup %s of %s into %s MB in %s", manifestName, set.name,
+                archiveFile.length() / org.apache.commons.io.FileUtils.ONE_MB, BackupJob.formatDuration(System.currentTimeMillis() - start)));
+
+        if (BackupConfig.verifyBackups)
+            BackupHandler.instance.verifyBackup(archiveFile, null);
+
+        return true;
+    }
+}
@@ -20,9 +20,7 @@ import net.minecraftforge.common.config.Configuration;
 import net.minecraftforge.common.config.Property;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 public class BackupConfig {
 
@@ -31,16 +29,54 @@ public class BackupConfig {
     public static int backupLifespanDays = -1;
     public static int backupDirMaxSize = -1;
     public static int backupMaxNumber = -1;
+    public static String[] retentionTiers = new String[0];
     public static final Set<String> fileBlacklist = new HashSet<>();
     public static final Set<String> directoryBlackList = new HashSet<>();
+    public static String[] excludePatterns = new String[0];
     public static boolean sendBackupMessageToOps = true;
     public static boolean sendBackupMessageToUsers = true;
     public static final Set<String> backupMessageWhitelist = new HashSet<>();
     public static boolean enableAutoBackup = false;
     public static int autoBackupInterval = 1440;
+    public static String[] autoBackupCron = new String[0];
     public static String backupWarningMessage = "Warning: Backup starting soon.";
+    public static long[] backupWarningTimes = new long[0];
     public static String backupStartMessage = "Backup starting...";
     public static String backupFinishMessage = "Backup complete.";
+    public static int compressionThreads = 0;
+    public static double minTps = 0;
+    public static int maxThroughputMBps = 0;
+    public static int maxBackupMemoryMB = 64;
+    public static int saveTickBudgetMs = 10;
+    public static final Set<String> storedExtensions = new HashSet<>();
+    public static boolean incrementalBackups = false;
+    public static boolean storeRegionChunks = true;
+    public static boolean trackDirtyRegions = true;
+    public static int compactAfterDays = 0;
+    public static boolean snapshotWorld = false;
+    public static ArchiveFormat archiveFormat = ArchiveFormat.ZIP;
+    public static int compressionLevel = 6;
+    public static String metricsFile = "metrics.jsonl";
+    public static int metricsFileMaxSizeKB = 1024;
+    public static boolean verifyBackups = false;
+    public static int verifyMaxMBps = 16;
+    public static int[] separateDimensions = new int[0];
+    public static String[] remoteTargets = new String[0];
+    public static String s3Endpoint = "";
+    public static String s3Region = "us-east-1";
+    public static String s3AccessKey = "";
+    public static String s3SecretKey = "";
+    public static boolean s3PathStyle = true;
+    public static int uploadPartSizeMB = 8;
+    public static int parallelUploads = 4;
+    public static int maxUploadMBps = 0;
+    public static int uploadRetries = 5;
+
+    /**
+     * The world's own settings, built from the general and autoBackup settings
+     */
+    public static SetConfig worldConfig;
+    public static final List<SetConfig> dimensionConfigs = new ArrayList<>();
 
     public static void init(File file) {
 
@@ -71,8 +107,9 @@ public class BackupConfig {
         backupDirPath = prop.getString();
 
         prop = config.get(category, "filename", backupFileNameTemplate);
-        prop.comment = "The template that is used for each backup file" +
-                "Valid wildcards are: MONTH %DAY %YEAR %HOUR %MINUTE %SECOND";
+        prop.comment = "The template that is used for each backup file. " +
+                "Valid wildcards are: %MONTH %DAY %YEAR %HOUR %MINUTE %SECOND. " +
+                "Keep the year, month and day with something between each wildcard, the age of a backup is read from its name";
         backupFileNameTemplate = prop.getString();
 
         prop = config.get(category, "daysToKeepBackups", backupLifespanDays);
@@ -90,6 +127,71 @@ public class BackupConfig {
                 "Set to -1 to disable";
         backupMaxNumber = prop.getInt(backupMaxNumber);
 
+        prop = config.get(category, "retentionTiers", retentionTiers);
+        prop.comment = "Tiers of backups to keep, each as age=interval: keep one backup per interval until backups reach that age. " +
+                "For example 6h=all, 2d=1h, 30d=1d, forever=1w keeps every backup for 6 hours, then hourly for 2 days, " +
+                "daily for a month and weekly after that. Units are m, h, d, w and y. Backups older than the last tier are deleted. " +
+                "Leave empty to disable";
+        retentionTiers = prop.getStringList();
+
+        prop = config.get(category, "separateDimensions", separateDimensions);
+        prop.comment = "Dimensions that are backed up on their own, such as -1 and 1 for the Nether and the End. " +
+                "Each gets a dimension_<id> section with its own schedule, retention and filters, and is left out of the world's backups";
+        separateDimensions = prop.getIntList();
+
+        prop = config.get(category, "incrementalBackups", incrementalBackups);
+        prop.comment = "Only store new and changed files for each backup, in a shared store inside the backup directory. " +
+                "Each backup is written as a manifest that lists every file, instead of an archive";
+        incrementalBackups = prop.getBoolean(incrementalBackups);
+
+        prop = config.get(category, "storeRegionChunks", storeRegionChunks);
+        prop.comment = "When making incremental backups, store region files chunk by chunk " +
+                "so only the chunks that changed are stored again";
+        storeRegionChunks = prop.getBoolean(storeRegionChunks);
+
+        prop = config.get(category, "trackDirtyRegions", trackDirtyRegions);
+        prop.comment = "When making incremental backups, keep track of the region files chunks are saved to, " +
+                "so the region files that weren't saved to since the last backup don't have to be looked at. " +
+                "Every file is looked at again after the server stops without saving the record, such as after a crash";
+        trackDirtyRegions = prop.getBoolean(trackDirtyRegions);
+
+        prop = config.get(category, "compactAfterDays", compactAfterDays);
+        prop.comment = "Turn incremental backups older than this many days into full backups in the background, " +
+                "built from the backup store without reading the world, so old backups don't depend on the store " +
+                "and it only has to keep what recent backups use. Full backups take more space. Set to 0 to disable";
+        compactAfterDays = Math.max(0, prop.getInt(compactAfterDays));
+
+        prop = config.get(category, "snapshotWorld", snapshotWorld);
+        prop.comment = "Keep a copy of the world inside the backup directory and archive that, so saving is only paused " +
+                "while the files saved since the copy was last brought up to date are copied, instead of until the archive is finished. " +
+                "Most of the copying happens before saving is paused. The copy is kept between backups, so it takes up as much space as the world";
+        snapshotWorld = prop.getBoolean(snapshotWorld);
+
+        prop = config.get(category, "archiveFormat", archiveFormat.getName());
+        prop.comment = "The format of full backups: zip, tar.gz, or tar. " +
+                "tar is the fastest but isn't compressed. Not used for incremental backups";
+        archiveFormat = ArchiveFormat.fromName(prop.getString());
+        if (archiveFormat == null) {
+            ServerToolsBackup.log.warn(String.format("Unknown archive format %s, using zip", prop.getString()));
+            archiveFormat = ArchiveFormat.ZIP;
+        }
+
+        prop = config.get(category, "verifyBackups", verifyBackups);
+        prop.comment = "Read each backup back in the background once it's written, and check it against its checksums. " +
+                "Off by default since it reads every backup and compacted backup a second time. " +
+                "Backups can always be checked by hand with /backup verify";
+        verifyBackups = prop.getBoolean(verifyBackups);
+
+        prop = config.get(category, "metricsFile", metricsFile);
+        prop.comment = "A file in the backup directory that a line of JSON with the timings and sizes of each backup is added to. " +
+                "Leave empty to disable";
+        metricsFile = prop.getString().trim();
+
+        prop = config.get(category, "metricsFileMaxSizeKB", metricsFileMaxSizeKB);
+        prop.comment = "The size in Kilobytes at which the metrics file is rolled over, the last 3 old files are kept. " +
+                "Set to 0 to never roll it over";
+        metricsFileMaxSizeKB = prop.getInt(metricsFileMaxSizeKB);
+
         prop = config.get(category, "sendBackupMessageToOps", sendBackupMessageToOps);
         prop.comment = "Send backup related messages to server operators";
         sendBackupMessageToOps = prop.getBoolean(sendBackupMessageToOps);
@@ -111,6 +213,11 @@ public class BackupConfig {
         if (array.length > 0)
             Collections.addAll(directoryBlackList, array);
 
+        prop = config.get(category, "excludePatterns", excludePatterns);
+        prop.comment = "Patterns of files and directories to not back up, in the same form as a .gitignore file. " +
+                "For example *.tmp, DIM7/data/ or !playerdata/keep.dat. Prefix a pattern with regex: to use a regular expression";
+        excludePatterns = prop.getStringList();
+
         prop = config.get(category, "backupMessageWhitelist", "");
         prop.comment = "A Comma separated list of users to always send backup related messages to";
         array = prop.getString().split(",");
@@ -127,20 +234,277 @@ public class BackupConfig {
         prop = config.get(category, "autoBackupInterval", autoBackupInterval);
         prop.comment = "The interval in minutes for the auto backup to occur";
         autoBackupInterval = prop.getInt(autoBackupInterval);
+
+        prop = config.get(category, "autoBackupCron", autoBackupCron);
+        prop.comment = "Cron style schedules (minute hour day-of-month month day-of-week) to run backups on, " +
+                "alongside the interval. For example '0 4 * * *' for 4AM every day. " +
+                "Set autoBackupInterval to 0 to only use these";
+        autoBackupCron = prop.getStringList();
         
         prop = config.get(category, "autoBackupWarningMsg", backupWarningMessage);
         prop.comment = "A warning message to be displayed to users prior to starting a backup.";
-        backupDirPath = prop.getString();
-        
+        backupWarningMessage = prop.getString();
+
+        prop = config.get(category, "autoBackupWarnings", new String[]{"5m", "1m", "10s"});
+        prop.comment = "How long before each automatic backup to show the warning message, " +
+                "as a number followed by s for seconds, m for minutes or h for hours";
+        backupWarningTimes = parseWarningTimes(prop.getStringList());
+
         prop = config.get(category, "autoBackupStartMsg", backupStartMessage);
         prop.comment = "A custom message to be displayed to users when starting a backup.";
-        backupDirPath = prop.getString();
-        
+        backupStartMessage = prop.getString();
+
         prop = config.get(category, "autoBackupFinishMsg", backupFinishMessage);
         prop.comment = "A custom message to be displayed to users when a backup completes.";
-        backupDirPath = prop.getString();
+        backupFinishMessage = prop.getString();
+
+        /* Performance Settings */
+        category = "performance";
+
+        prop = config.get(category, "compressionThreads", compressionThreads);
+        prop.comment = "The number of threads used to compress backups, " +
+                "Set to 0 to use one thread per available processor";
+        compressionThreads = prop.getInt(compressionThreads);
+
+        prop = config.get(category, "compressionLevel", compressionLevel);
+        prop.comment = "The compression level from 1 (fastest) to 9 (smallest), " +
+                "or 0 to store files without compressing them";
+        compressionLevel = Math.max(0, Math.min(9, prop.getInt(compressionLevel)));
+
+        prop = config.get(category, "minTps", minTps);
+        prop.comment = "Slow backups down whenever the server's tick rate drops below this, " +
+                "and speed back up once it recovers. Set it below the rate the server normally runs at, " +
+                "or backups will be held back most of the time. Set to 0 to disable";
+        minTps = prop.getDouble(minTps);
+
+        prop = config.get(category, "maxThroughputMBps", maxThroughputMBps);
+        prop.comment = "The most data in Megabytes per second a backup will read from the world, " +
+                "Set to 0 for no limit";
+        maxThroughputMBps = prop.getInt(maxThroughputMBps);
+
+        prop = config.get(category, "maxBackupMemoryMB", maxBackupMemoryMB);
+        prop.comment = "The most memory in Megabytes that backups running at the same time may use for file data. " +
+                "Backups slow down rather than use more, whatever the size of the world";
+        maxBackupMemoryMB = Math.max(1, prop.getInt(maxBackupMemoryMB));
+
+        prop = config.get(category, "saveTickBudgetMs", saveTickBudgetMs);
+        prop.comment = "The most time in milliseconds each server tick spends saving the world before a backup. " +
+                "The world is saved over as many ticks as it takes instead of all at once, so large worlds don't lag the server " +
+                "as a backup starts. Set to 0 to save it all in one tick";
+        saveTickBudgetMs = Math.max(0, prop.getInt(saveTickBudgetMs));
+
+        prop = config.get(category, "verifyMaxMBps", verifyMaxMBps);
+        prop.comment = "The most data in Megabytes per second verifying a backup will read, " +
+                "Set to 0 for no limit";
+        verifyMaxMBps = prop.getInt(verifyMaxMBps);
+
+        prop = config.get(category, "storedExtensions", "mca,mcr");
+        prop.comment = "A comma separated list of file extensions whose content is already compressed. " +
+                "These files are copied into backups as they are instead of being compressed again";
+        storedExtensions.clear();
+        for (String extension : prop.getString().split(",")) {
+            extension = extension.trim().toLowerCase(Locale.ENGLISH);
+            if (extension.startsWith("."))
+                extension = extension.substring(1);
+            if (!extension.isEmpty())
+                storedExtensions.add(extension);
+        }
+
+        /* Remote Settings */
+        category = "remote";
+
+        prop = config.get(category, "remoteTargets", new String[0]);
+        prop.comment = "Places backups are copied to as they are written, so they survive losing the server. " +
+                "Either s3://bucket/prefix or a directory such as a mounted network share. Leave empty to keep backups local";
+        remoteTargets = prop.getStringList();
+
+        prop = config.get(category, "s3Endpoint", s3Endpoint);
+        prop.comment = "The host of an S3 compatible service, such as a MinIO server. Leave empty to use Amazon S3";
+        s3Endpoint = prop.getString().trim();
+
+        prop = config.get(category, "s3Region", s3Region);
+        prop.comment = "The region the S3 bucket is in";
+        s3Region = prop.getString().trim();
+
+        prop = config.get(category, "s3AccessKey", s3AccessKey);
+        prop.comment = "The access key for S3. Leave empty to use the AWS_ACCESS_KEY_ID environment variable";
+        s3AccessKey = prop.getString().trim();
+
+        prop = config.get(category, "s3SecretKey", s3SecretKey);
+        prop.comment = "The secret key for S3. Leave empty to use the AWS_SECRET_ACCESS_KEY environment variable";
+        s3SecretKey = prop.getString().trim();
+
+        prop = config.get(category, "s3PathStyle", s3PathStyle);
+        prop.comment = "Put the bucket in the path rather than the host name. Most S3 compatible services need this";
+        s3PathStyle = prop.getBoolean(s3PathStyle);
+
+        prop = config.get(category, "uploadPartSizeMB", uploadPartSizeMB);
+        prop.comment = "The size in Megabytes of each part a backup is sent in. S3 needs at least 5";
+        uploadPartSizeMB = Math.max(5, prop.getInt(uploadPartSizeMB));
+
+        prop = config.get(category, "parallelUploads", parallelUploads);
+        prop.comment = "The number of parts sent at once to each target";
+        parallelUploads = Math.max(1, prop.getInt(parallelUploads));
+
+        prop = config.get(category, "maxUploadMBps", maxUploadMBps);
+        prop.comment = "The most data in Megabytes per second sent to the targets, " +
+                "Set to 0 for no limit";
+        maxUploadMBps = prop.getInt(maxUploadMBps);
+
+        prop = config.get(category, "uploadRetries", uploadRetries);
+        prop.comment = "The number of times a failed request is retried before the copy is put off until the next backup";
+        uploadRetries = Math.max(0, prop.getInt(uploadRetries));
+
+        worldConfig = new SetConfig(null);
+        worldConfig.enableAutoBackup = enableAutoBackup;
+        worldConfig.autoBackupInterval = autoBackupInterval;
+        worldConfig.autoBackupCron = autoBackupCron;
+        worldConfig.backupLifespanDays = backupLifespanDays;
+        worldConfig.backupDirMaxSize = backupDirMaxSize;
+        worldConfig.backupMaxNumber = backupMaxNumber;
+        worldConfig.retentionTiers = retentionTiers;
+        worldConfig.fileBlacklist.addAll(fileBlacklist);
+        worldConfig.directoryBlacklist.addAll(directoryBlackList);
+        worldConfig.excludePatterns = excludePatterns;
+
+        /* Dimension Settings */
+        dimensionConfigs.clear();
+
+        for (int dimension : separateDimensions) {
+            category = "dimension_" + dimension;
+            config.addCustomCategoryComment(category, String.format("Backups of dimension %s, kept apart from the world's backups", dimension));
+            SetConfig dimensionConfig = new SetConfig(dimension);
+
+            prop = config.get(category, "enableAutoBackup", enableAutoBackup);
+            prop.comment = "Back up this dimension automatically";
+            dimensionConfig.enableAutoBackup = prop.getBoolean(enableAutoBackup);
+
+            prop = config.get(category, "autoBackupInterval", autoBackupInterval);
+            prop.comment = "The interval in minutes between backups of this dimension, " +
+                    "Set to 0 to only use the cron schedules";
+            dimensionConfig.autoBackupInterval = prop.getInt(autoBackupInterval);
+
+            prop = config.get(category, "autoBackupCron", new String[0]);
+            prop.comment = "Cron style schedules to back this dimension up on, alongside the interval";
+            dimensionConfig.autoBackupCron = prop.getStringList();
+
+            prop = config.get(category, "daysToKeepBackups", backupLifespanDays);
+            prop.comment = "The number of days that backups of this dimension are kept for, " +
+                    "Set -1 to disable";
+            dimensionConfig.backupLifespanDays = prop.getInt(backupLifespanDays);
+
+            prop = config.get(category, "maxBackupDirSize", backupDirMaxSize);
+            prop.comment = "The maximum size of this dimension's backups in Megabytes, " +
+                    "Set to -1 to disable";
+            dimensionConfig.backupDirMaxSize = prop.getInt(backupDirMaxSize);
+
+            prop = config.get(category, "maxNumberBackups", backupMaxNumber);
+            prop.comment = "The maximum number of backups of this dimension that are kept, " +
+                    "Set to -1 to disable";
+            dimensionConfig.backupMaxNumber = prop.getInt(backupMaxNumber);
+
+            prop = config.get(category, "retentionTiers", retentionTiers);
+            prop.comment = "Tiers of backups of this dimension to keep, in the same form as the general retentionTiers. " +
+                    "Leave empty to disable";
+            dimensionConfig.retentionTiers = prop.getStringList();
+
+            prop = config.get(category, "fileBlackList", "");
+            prop.comment = "Comma separated list of files in this dimension to not back up";
+            addAll(dimensionConfig.fileBlacklist, prop.getString());
+            dimensionConfig.fileBlacklist.add("level.dat_new");
+
+            prop = config.get(category, "directoryBlackList", "");
+            prop.comment = "Comma separated list of directory names in this dimension to not back up";
+            addAll(dimensionConfig.directoryBlacklist, prop.getString());
+
+            prop = config.get(category, "excludePatterns", new String[0]);
+            prop.comment = "Patterns of files and directories in this dimension to not back up, in the same form as the general excludePatterns";
+            dimensionConfig.excludePatterns = prop.getStringList();
+
+            dimensionConfigs.add(dimensionConfig);
+        }
 
         if (config.hasChanged())
             config.save();
     }
+
+    private static void addAll(Set<String> set, String list) {
+
+        for (String name : list.split(",")) {
+            if (!name.trim().isEmpty())
+                set.add(name.trim());
+        }
+    }
+
+    /**
+     * @return the times in milliseconds, longest first
+     */
+    private static long[] parseWarningTimes(String[] times) {
+
+        List<Long> parsed = new ArrayList<>();
+
+        for (String time : times) {
+            time = time.trim().toLowerCase(Locale.ENGLISH);
+            if (time.isEmpty())
+                continue;
+
+            long unit;
+            switch (time.charAt(time.length() - 1)) {
+                case 's': unit = 1000; break;
+                case 'm': unit = 60 * 1000; break;
+                case 'h': unit = 60 * 60 * 1000; break;
+                default: unit = 0;
+            }
+
+            long count = -1;
+            if (unit > 0) {
+                try {
+                    count = Long.parseLong(time.substring(0, time.length() - 1));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+
+            if (count <= 0) {
+                ServerToolsBackup.log.error(String.format("Invalid backup warning time '%s', it's ignored", time));
+                continue;
+            }
+
+            if (!parsed.contains(count * unit))
+                parsed.add(count * unit);
+        }
+
+        Collections.sort(parsed, Collections.reverseOrder());
+
+        long[] result = new long[parsed.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = parsed.get(i);
+        return result;
+    }
+
+    /**
+     * The schedule, retention and filters of one set of backups:
+     * the world, or a dimension that is backed up on its own
+     */
+    public static class SetConfig {
+
+        /**
+         * The dimension, or null for the world
+         */
+        public final Integer dimension;
+        public boolean enableAutoBackup;
+        public int autoBackupInterval;
+        public String[] autoBackupCron = new String[0];
+        public int backupLifespanDays = -1;
+        public int backupDirMaxSize = -1;
+        public int backupMaxNumber = -1;
+        public String[] retentionTiers = new String[0];
+        public final Set<String> fileBlacklist = new HashSet<>();
+        public final Set<String> directoryBlacklist = new HashSet<>();
+        public String[] excludePatterns = new String[0];
+
+        SetConfig(Integer dimension) {
+
+            this.dimension = dimension;
+        }
+    }
 }
@@ -16,29 +16,82 @@
 
 package com.matthewprenger.servertools.backup;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
-import com.matthewprenger.servertools.core.util.FileUtils;
-import net.minecraft.entity.player.EntityPlayerMP;
-import net.minecraft.server.MinecraftServer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.matthewprenger.servertools.core.util.Util;
+import cpw.mods.fml.common.FMLCommonHandler;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.EnumChatFormatting;
 import net.minecraft.util.IChatComponent;
+import net.minecraft.world.WorldProvider;
+import net.minecraft.world.WorldServer;
 import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.common.MinecraftForge;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Timer;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
 
 public class BackupHandler {
 
-    private static final String FILE_EXTENSION = ".zip";
+    static final String STORE_DIR = "store";
+    static final String RESTORE_DIR = "restore";
+    private static final String RESTORE_SUFFIX = ".restore";
+    private static final long SERVER_THREAD_TIMEOUT = 300;
+    private static final Pattern OTHER_DIMENSION = Pattern.compile("DIM-?\\d+/");
     private static final BackupFileNameFilter backupFileNameFilter = new BackupFileNameFilter();
 
+    private static final Comparator<BackupCatalog.Entry> NEWEST_FIRST = new Comparator<BackupCatalog.Entry>() {
+        @Override
+        public int compare(BackupCatalog.Entry o1, BackupCatalog.Entry o2) {
+
+            int result = Long.compare(o2.time, o1.time);
+            return result != 0 ? result : o2.file.getName().compareTo(o1.file.getName());
+        }
+    };
+
+    /**
+     * The backup file name template, compiled once from the config
+     */
+    private static BackupName backupName = new BackupName(BackupConfig.backupFileNameTemplate, TimeZone.getDefault());
+
     protected File backupDir;
     protected File worldDir;
 
-    protected Timer backupTimer;
+    protected final ServerThreadExecutor serverThread = new ServerThreadExecutor();
+    protected final BackupNotifier notifier = new BackupNotifier();
+
+    /**
+     * Records the region files chunks are saved to, or null if that's turned off
+     */
+    protected final RegionTracker regionTracker;
+
+    /**
+     * The world's backup set, and the sets of the dimensions that are backed up on their own
+     */
+    protected final BackupSet world;
+    protected final Map<String, BackupSet> sets = new LinkedHashMap<>();
+    protected final BackupStats stats;
+
+    /**
+     * Verifies and restores backups one at a time on a low priority thread
+     */
+    protected final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("ServerTools-Backup-Worker")
+            .setPriority(Thread.MIN_PRIORITY)
+            .setDaemon(true)
+            .build());
 
     public static BackupHandler instance;
 
@@ -59,199 +112,708 @@ public class BackupHandler {
 
         backupDir.mkdirs();
 
-        backupTimer = new Timer(true);
+        backupName = new BackupName(BackupConfig.backupFileNameTemplate, TimeZone.getDefault());
+
+        Set<Integer> separateDimensions = new HashSet<>();
+        Set<String> separateFolders = new HashSet<>();
+        List<BackupSet> dimensionSets = new ArrayList<>();
+
+        for (BackupConfig.SetConfig config : BackupConfig.dimensionConfigs) {
+            if (config.dimension == 0) {
+                ServerToolsBackup.log.error("The overworld can't be backed up on its own, it's always backed up with the world");
+                continue;
+            }
+
+            String folder;
+            try {
+                folder = getDimensionFolder(config.dimension);
+            } catch (IllegalArgumentException e) {
+                ServerToolsBackup.log.error(String.format("Dimension %s can't be backed up on its own: %s", config.dimension, e.getMessage()));
+                continue;
+            }
+
+            String name = folder.substring(0, folder.length() - 1);
+            if (!separateDimensions.add(config.dimension))
+                continue;
+            separateFolders.add(name);
+            dimensionSets.add(new BackupSet(name, config, new File(worldDir, name), new File(backupDir, name),
+                    Collections.<Integer>emptySet(), Collections.<String>emptySet(), backupFileNameFilter, backupName));
+        }
+
+        world = new BackupSet(BackupSet.WORLD, BackupConfig.worldConfig, worldDir, backupDir, separateDimensions, separateFolders, backupFileNameFilter, backupName);
+        sets.put(world.name, world);
+        for (BackupSet set : dimensionSets)
+            sets.put(set.name, set);
+
+        startShippers();
 
-        if (BackupConfig.enableAutoBackup) {
+        List<BackupCatalog> catalogs = new ArrayList<>();
+        for (BackupSet set : sets.values())
+            catalogs.add(set.catalog);
 
-            ServerToolsBackup.log.info(String.format("Initializing ServerTools AutoBackup to run every %s minutes", BackupConfig.autoBackupInterval));
+        stats = new BackupStats(catalogs, BackupConfig.metricsFile.isEmpty() ? null : new File(backupDir, BackupConfig.metricsFile),
+                BackupConfig.metricsFileMaxSizeKB * org.apache.commons.io.FileUtils.ONE_KB);
+        stats.register();
 
-            int interval = BackupConfig.autoBackupInterval * 60 * 1000;
+        FMLCommonHandler.instance().bus().register(serverThread);
+        FMLCommonHandler.instance().bus().register(notifier);
 
-            if (interval <= 0)
-                throw new IllegalArgumentException("Autobackup interval must be greater than 0");
+        if (BackupConfig.incrementalBackups && BackupConfig.trackDirtyRegions) {
+            regionTracker = new RegionTracker(world, sets.values());
+            MinecraftForge.EVENT_BUS.register(regionTracker);
+        } else {
+            regionTracker = null;
+        }
+
+        for (BackupSet set : sets.values())
+            schedule(set);
 
+        instance = this;
+    }
+
+    /**
+     * Give every backup set a shipper to copy its backups to the configured remote targets.
+     * The sets share one upload rate limit.
+     */
+    private void startShippers() {
+
+        S3Target.Settings s3 = new S3Target.Settings(BackupConfig.s3Endpoint, BackupConfig.s3Region,
+                BackupConfig.s3AccessKey, BackupConfig.s3SecretKey, BackupConfig.s3PathStyle);
+
+        List<BackupTarget> targets = new ArrayList<>();
+        for (String uri : BackupConfig.remoteTargets) {
+            if (uri.trim().isEmpty())
+                continue;
             try {
-                backupTimer.scheduleAtFixedRate(
-                        new Backup(worldDir, backupDir), interval, interval
-                );
-            } catch (IOException e) {
-                ServerToolsBackup.log.fatal("Failed to initialize autobackup", e);
+                targets.add(BackupTarget.create(uri.trim(), s3));
+                ServerToolsBackup.log.info(String.format("Backups will be copied to %s", uri.trim()));
+            } catch (IllegalArgumentException e) {
+                ServerToolsBackup.log.error(String.format("Invalid remote backup target '%s': %s", uri, e.getMessage()));
             }
         }
 
-        instance = this;
+        if (targets.isEmpty())
+            return;
+
+        BackupThrottle throttle = BackupConfig.maxUploadMBps <= 0 ? BackupThrottle.UNLIMITED :
+                new BackupThrottle(BackupConfig.maxUploadMBps * org.apache.commons.io.FileUtils.ONE_MB, 0, null, BackupConfig.parallelUploads);
+        int partSize = (int) (BackupConfig.uploadPartSizeMB * org.apache.commons.io.FileUtils.ONE_MB);
+
+        for (BackupSet set : sets.values())
+            set.shipper = new BackupShipper(set.name, targets, partSize, BackupConfig.parallelUploads, BackupConfig.uploadRetries, throttle);
     }
 
     /**
-     * Run the server backup
-     *
-     * @throws java.io.IOException if an IOException happened
+     * Create the scheduler of a backup set, and schedule its automatic backups
      */
-    public void doBackup() throws IOException {
+    private void schedule(final BackupSet set) {
+
+        set.scheduler = new BackupScheduler(set.name, new BackupScheduler.BackupTask() {
+            @Override
+            public void run(BackupJob job) throws Exception {
+                if (set.isDimension() && !set.sourceDir.isDirectory()) {
+                    ServerToolsBackup.log.info(String.format("Dimension %s hasn't been saved yet, there's nothing to back up", set.dimension));
+                    return;
+                }
 
-        backupTimer.schedule(
-                new Backup(worldDir, backupDir), 0
-        );
+                Backup backup;
+                try {
+                    backup = new Backup(set);
+                } catch (IOException e) {
+                    ServerToolsBackup.log.fatal(String.format("Failed to start backup of %s", set.name), e);
+                    throw e;
+                }
+                backup.run(job);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    set.runRetention();
+                } finally {
+                    stats.retentionFinished(set.name, System.nanoTime() - start);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (!BackupConfig.incrementalBackups || BackupConfig.compactAfterDays <= 0)
+                    return;
+
+                try {
+                    int compacted = new BackupCompactor(set, BackupConfig.compactAfterDays).compact();
+                    if (compacted > 0)
+                        ServerToolsBackup.log.info(String.format("Compacted %d old backups of %s", compacted, set.name));
+                } catch (InterruptedIOException e) {
+                    ServerToolsBackup.log.info(String.format("Stopped compacting backups of %s", set.name));
+                } catch (IOException e) {
+                    ServerToolsBackup.log.error(String.format("Failed to compact backups of %s", set.name), e);
+                }
+            }
+        });
+
+        if (!BackupConfig.enableAutoBackup || !set.config.enableAutoBackup)
+            return;
+
+        set.scheduler.setWarnings(BackupConfig.backupWarningTimes, new BackupScheduler.WarningTask() {
+            @Override
+            public void warn(long millisLeft) {
+                String message = set.isDimension()
+                        ? String.format("%s (%s in %s)", getBackupwarningMessage(), set.name, BackupJob.formatDuration(millisLeft))
+                        : String.format("%s (in %s)", getBackupwarningMessage(), BackupJob.formatDuration(millisLeft));
+                sendBackupMessage(Util.getChatComponent(message, EnumChatFormatting.YELLOW));
+            }
+        });
+
+        int interval = set.config.autoBackupInterval * 60 * 1000;
+
+        if (interval <= 0 && set.config.autoBackupCron.length == 0)
+            throw new IllegalArgumentException(String.format("Autobackup interval of %s must be greater than 0", set.name));
+
+        if (interval > 0) {
+            ServerToolsBackup.log.info(String.format("Initializing ServerTools AutoBackup of %s to run every %s minutes", set.name, set.config.autoBackupInterval));
+            set.scheduler.scheduleInterval(interval);
+        }
+
+        for (String expression : set.config.autoBackupCron) {
+            try {
+                set.scheduler.scheduleCron(CronSchedule.parse(expression));
+                ServerToolsBackup.log.info(String.format("Initializing ServerTools AutoBackup of %s to run on schedule '%s'", set.name, expression));
+            } catch (IllegalArgumentException e) {
+                ServerToolsBackup.log.error(String.format("Invalid autobackup schedule '%s' for %s: %s", expression, set.name, e.getMessage()));
+            }
+        }
     }
 
     /**
-     * Get the backup filename with wildcards replaced for the current date and time
+     * Back up a backup set. If a backup of the set is already waiting to run, the request is merged into it.
      *
-     * @return the name of the backup
+     * @return the job that will make the backup
      */
-    public static String getBackupName() {
+    public BackupJob doBackup(BackupSet set) {
 
-        Calendar cal = Calendar.getInstance();
-
-        Integer year = cal.get(Calendar.YEAR);
-        Integer month = cal.get(Calendar.MONTH) + 1; // WHY DOES JAVA THINK JANUARY IS 0 ?!?!?
-        Integer day = cal.get(Calendar.DATE);
-        Integer hour = cal.get(Calendar.HOUR_OF_DAY);
-        Integer minute = cal.get(Calendar.MINUTE);
-        Integer second = cal.get(Calendar.SECOND);
-
-        return BackupConfig.backupFileNameTemplate.replaceAll("%YEAR", year.toString())
-                .replaceAll("%MONTH", month.toString())
-                .replaceAll("%DAY", day.toString())
-                .replaceAll("%HOUR", hour.toString())
-                .replaceAll("%MINUTE", minute.toString())
-                .replaceAll("%SECOND", second.toString()) + FILE_EXTENSION;
+        return set.scheduler.requestBackup(BackupJob.Trigger.MANUAL);
     }
 
-    
-    public static String getBackupStartMessage() {
-    	return BackupConfig.backupStartMessage;
+    /**
+     * @return every backup set, the world first
+     */
+    Collection<BackupSet> getSets() {
+
+        return sets.values();
     }
-    public static String getBackupFinishMessage() {
-    	return BackupConfig.backupFinishMessage;
+
+    /**
+     * @return the backup set with the given name, or null if there is none
+     */
+    BackupSet getSet(String name) {
+
+        return sets.get(name);
     }
-    public static String getBackupwarningMessage() {
-    	return BackupConfig.backupWarningMessage;
+
+    /**
+     * @return the backup set that holds the backups of a dimension
+     */
+    BackupSet getSetFor(int dimension) {
+
+        for (BackupSet set : sets.values()) {
+            if (set.isDimension() && set.dimension == dimension)
+                return set;
+        }
+
+        return world;
     }
+
+    /**
+     * @return the backup set a backup file belongs to, or null if it isn't in the directory of any set
+     */
+    BackupSet getSetOf(File backup) {
+
+        for (BackupSet set : sets.values()) {
+            if (set.backupDir.getAbsoluteFile().equals(backup.getAbsoluteFile().getParentFile()))
+                return set;
+        }
+
+        return null;
+    }
+
     /**
-     * Check the backup directories for files older than the maximum backup age
-     * set in the config and deletes them.
+     * Find a backup of any set by its file name, or by its name without the extension
      *
-     * Does nothing if config setting is set to -1
+     * @return the newest backup with that name, or null if there is none
      */
-    public void checkForOldBackups() {
+    BackupCatalog.Entry findBackup(String name) {
 
-        if (BackupConfig.backupLifespanDays == -1)
-            return;
+        BackupCatalog.Entry found = null;
+        for (BackupSet set : sets.values()) {
+            BackupCatalog.Entry backup = set.catalog.find(name);
+            if (backup != null && (found == null || backup.time > found.time))
+                found = backup;
+        }
 
-        ServerToolsBackup.log.info("Checking backup directory for old backups");
+        return found;
+    }
 
-        for (File file : backupDir.listFiles(backupFileNameFilter)) {
-            if (file.isFile()) {
-                int age = (int) ((new Date().getTime() - file.lastModified()) / 24 / 60 / 60 / 1000);
+    /**
+     * List the backups of every set, newest first
+     *
+     * @param filter the name of a set to list the backups of, or a type, status or part of a name
+     *               the backups must match (see {@link BackupCatalog.Entry#matches}), or null for all
+     */
+    List<BackupCatalog.Entry> listBackups(String filter) {
 
-                ServerToolsBackup.log.trace(String.format("Found backup file %s; %s days old", file.getName(), age));
+        BackupSet only = filter != null ? sets.get(filter) : null;
 
-                if (age > BackupConfig.backupLifespanDays) {
-                    ServerToolsBackup.log.info(String.format("Deleting old backup file: %s", file.getName()));
-                    if (file.delete())
-                        ServerToolsBackup.log.trace(String.format("Successfully deleted file %s", file.getName()));
-                    else
-                        ServerToolsBackup.log.warn(String.format("Failed to delete file %s", file.getName()));
-                }
+        List<BackupCatalog.Entry> backups = new ArrayList<>();
+        for (BackupSet set : sets.values()) {
+            if (only != null && set != only)
+                continue;
+            for (BackupCatalog.Entry backup : set.catalog.getBackups()) {
+                if (only != null || filter == null || backup.matches(filter))
+                    backups.add(backup);
             }
         }
+
+        Collections.sort(backups, NEWEST_FIRST);
+        return backups;
     }
 
     /**
-     * Check the size of the backup directory and delete the
-     * oldest file if the directory is larger than the config option
+     * @return the newest backup of any set, or null if there are none
      */
-    public void checkBackupDirSize() {
+    BackupCatalog.Entry getLatestBackup() {
 
-        if (BackupConfig.backupDirMaxSize == -1)
-            return;
+        BackupCatalog.Entry latest = null;
+        for (BackupSet set : sets.values()) {
+            BackupCatalog.Entry backup = set.catalog.getLatest();
+            if (backup != null && (latest == null || backup.time > latest.time))
+                latest = backup;
+        }
+
+        return latest;
+    }
 
-        ServerToolsBackup.log.trace("Checking size of the backup directory");
+    /**
+     * Stop scheduling backups and cancel the running ones. Called on the server thread when the server stops.
+     */
+    public void shutdown() {
 
-        ServerToolsBackup.log.trace(String.format("Backup directory size: %s MB", FileUtils.getFolderSize(backupDir) / org.apache.commons.io.FileUtils.ONE_MB));
+        for (BackupSet set : sets.values()) {
+            set.scheduler.shutdown();
+            if (set.shipper != null)
+                set.shipper.shutdown();
+        }
+        worker.shutdownNow();
+        Backup.resumeSavingNow();
+        FMLCommonHandler.instance().bus().unregister(serverThread);
+        FMLCommonHandler.instance().bus().unregister(notifier);
+        stats.flush();
+        stats.unregister();
+    }
 
-        while (FileUtils.getFolderSize(backupDir) / org.apache.commons.io.FileUtils.ONE_MB > BackupConfig.backupDirMaxSize) {
+    /**
+     * Stop recording saved chunks, and keep the record for the next time the server starts. Called once the server
+     * has stopped, after the worlds were saved for the last time, so the record holds every chunk saved.
+     */
+    public void stopTracking() {
 
-            File oldestFile = FileUtils.getOldestFile(backupDir);
+        if (regionTracker == null)
+            return;
 
-            if (oldestFile != null) {
-                ServerToolsBackup.log.trace(String.format("Deleting oldest file: %s", oldestFile.getName()));
-                oldestFile.delete();
+        MinecraftForge.EVENT_BUS.unregister(regionTracker);
+        for (BackupSet set : sets.values()) {
+            try {
+                set.dirtyRegions.save();
+            } catch (IOException e) {
+                ServerToolsBackup.log.warn(String.format("Failed to save the changed regions of %s, the next backup will look at every file", set.name), e);
             }
         }
     }
 
     /**
-     * Check the number of backups in the backup directory and delete old ones if necessary
+     * Verify a backup in the background. Problems are logged, and reported to the sender if there is one,
+     * otherwise to everyone that gets backup messages.
+     *
+     * @param backup the archive or manifest to verify
+     * @param sender who asked for the backup to be verified, or null if it was verified automatically
+     * @return false if the worker is shut down
      */
-    public void checkNumberBackups() {
-
-        if (BackupConfig.backupMaxNumber == -1)
-            return;
+    public boolean verifyBackup(final File backup, final ICommandSender sender) {
+
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    BackupVerifier.Result result;
+                    BackupSet set = getSetOf(backup);
+                    try {
+                        result = new BackupVerifier((set != null ? set : world).storeDir, Backup.newVerifyThrottle()).verify(backup);
+                    } catch (InterruptedIOException e) {
+                        return;
+                    }
+
+                    if (set != null)
+                        set.catalog.setStatus(backup.getName(), !result.isOk() ? BackupCatalog.Status.DAMAGED
+                                : result.isChecksummed() ? BackupCatalog.Status.VERIFIED : BackupCatalog.Status.READABLE);
+
+                    reportVerification(result, sender);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
 
-        ServerToolsBackup.log.trace("Checking number of backups in backup directory");
+    private void reportVerification(BackupVerifier.Result result, final ICommandSender sender) {
+
+        final IChatComponent message;
+
+        if (result.isOk()) {
+            ServerToolsBackup.log.info(String.format("Verified backup %s: %s files, %s MB%s", result.name, result.getEntries(),
+                    result.getBytes() / org.apache.commons.io.FileUtils.ONE_MB, result.isChecksummed() ? "" : ", it has no checksums to compare to"));
+            if (sender == null)
+                return;
+            message = Util.getChatComponent(String.format("Backup %s is intact (%s files checked)", result.name, result.getEntries()), EnumChatFormatting.GREEN);
+        } else {
+            ServerToolsBackup.log.error(String.format("Backup %s failed verification with %s problems:", result.name, result.getProblemCount()));
+            for (String problem : result.getProblems())
+                ServerToolsBackup.log.error("  " + problem);
+            message = Util.getChatComponent(String.format("Backup %s is damaged, %s problems found - Check Server Logs",
+                    result.name, result.getProblemCount()), EnumChatFormatting.RED);
+        }
 
-        ServerToolsBackup.log.trace(String.format("%s backups exist", getNumberBackups()));
+        serverThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
 
-        while (getNumberBackups() > BackupConfig.backupMaxNumber) {
-            File oldestFile = FileUtils.getOldestFile(backupDir);
-            if (oldestFile != null) {
-                ServerToolsBackup.log.info(String.format("Deleting oldest backup file: %s", oldestFile.getName()));
-                oldestFile.delete();
+                if (sender != null)
+                    sender.addChatMessage(message);
+                else
+                    sendBackupMessage(message);
+                return null;
             }
-        }
+        });
     }
 
     /**
-     * Get the number of backups in the backup directory
+     * Restore part of a backup in the background. Files are restored into a staging directory in the
+     * backup directory first. To restore into the world, the staged files are then copied next to the
+     * files they replace, and renamed over them on the server thread once it's certain the dimension
+     * is still unloaded. The world files that were replaced are kept in the staging directory.
      *
-     * @return the number of backups
+     * @param backup    the archive or manifest to restore from
+     * @param dimension the dimension to restore
+     * @param region    the name of the region file to restore, or null for the whole dimension
+     * @param chunk     the index of the chunk to restore within the region, or -1 for the whole region
+     * @param live      true to restore into the world rather than only into the staging directory
+     * @param sender    who asked for the restore
+     * @return false if the worker is shut down
+     * @throws IllegalArgumentException if the dimension isn't registered, or the backup doesn't hold it
      */
-    private int getNumberBackups() {
+    public boolean restoreBackup(final File backup, final int dimension, String region, final int chunk,
+                                 final boolean live, final ICommandSender sender) {
+
+        final BackupSet set = getSetOf(backup);
+        if (set == null)
+            throw new IllegalArgumentException(String.format("%s is not a backup", backup.getName()));
+        if (set.isDimension() && set.dimension != dimension)
+            throw new IllegalArgumentException(String.format("Backup %s only holds dimension %s", backup.getName(), set.dimension));
+
+        // The backups of a dimension set are of the dimension's own folder
+        String folder = set.isDimension() ? "" : getDimensionFolder(dimension);
+        final String regionPath = region == null ? null : folder + "region/" + region;
+        final Predicate<String> paths = regionPath != null ? Predicates.equalTo(regionPath)
+                : set.isDimension() ? Predicates.<String>alwaysTrue() : getDimensionPaths(dimension, folder);
+
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    IChatComponent message;
+                    try {
+                        message = restore(set, backup, dimension, paths, regionPath, chunk, live);
+                    } catch (InterruptedIOException e) {
+                        return;
+                    } catch (Exception e) {
+                        ServerToolsBackup.log.error(String.format("Failed to restore from backup %s", backup.getName()), e);
+                        message = Util.getChatComponent(String.format("Failed to restore from backup %s: %s",
+                                backup.getName(), e.getMessage()), EnumChatFormatting.RED);
+                    }
+
+                    final IChatComponent result = message;
+                    serverThread.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+
+                            sender.addChatMessage(result);
+                            return null;
+                        }
+                    });
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
 
-        int number = 0;
+    private IChatComponent restore(final BackupSet set, File backup, final int dimension, Predicate<String> paths, String regionPath,
+                                   int chunk, boolean live) throws Exception {
 
-        if (backupDir.exists() && backupDir.isDirectory()) {
+        long start = System.currentTimeMillis();
+        File stagingDir = new File(new File(set.backupDir, RESTORE_DIR), getStagingName(backup));
+        if (stagingDir.exists())
+            WorldSnapshot.deleteRecursively(stagingDir);
 
-            File[] files = backupDir.listFiles(backupFileNameFilter);
+        BackupRestorer restorer = new BackupRestorer(set.storeDir);
+        List<String> restored;
 
-            for (File ignored : files) {
-                number++;
+        set.storeLock.readLock().lock();
+        try {
+            if (chunk >= 0) {
+                restored = restorer.restoreChunk(backup, regionPath, chunk, new File(stagingDir, regionPath))
+                        ? Collections.singletonList(regionPath) : Collections.<String>emptyList();
+            } else {
+                restored = restorer.restore(backup, paths, stagingDir);
             }
+        } finally {
+            set.storeLock.readLock().unlock();
+        }
+
+        if (restored.isEmpty())
+            return Util.getChatComponent(String.format("Backup %s has nothing to restore for dimension %s", backup.getName(), dimension), EnumChatFormatting.RED);
+
+        ServerToolsBackup.log.info(String.format("Restored %s files from backup %s into %s in %s ms",
+                restored.size(), backup.getName(), stagingDir, System.currentTimeMillis() - start));
+
+        if (!live)
+            return Util.getChatComponent(String.format("Restored %s files from backup %s into %s",
+                    restored.size(), backup.getName(), stagingDir.getPath()), EnumChatFormatting.GREEN);
+
+        File replacedDir = new File(stagingDir.getPath() + "-replaced");
+        if (replacedDir.exists())
+            WorldSnapshot.deleteRecursively(replacedDir);
+
+        final Map<File, File> prepared = new LinkedHashMap<>();
+        try {
+            for (String path : restored) {
+                File staged = new File(stagingDir, path);
+                File worldFile = new File(set.sourceDir, path);
+                File temp = new File(worldFile.getPath() + RESTORE_SUFFIX);
+                worldFile.getParentFile().mkdirs();
+                prepared.put(temp, worldFile);
+
+                if (worldFile.isFile()) {
+                    File replaced = new File(replacedDir, path);
+                    replaced.getParentFile().mkdirs();
+                    FileIO.copy(worldFile, replaced);
+                }
+
+                if (chunk >= 0)
+                    BackupRestorer.mergeRegion(staged, worldFile, temp);
+                else
+                    FileIO.copy(staged, temp);
+            }
+
+            boolean moved = serverThread.call(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+
+                    if (DimensionManager.getWorld(dimension) != null)
+                        return false;
+
+                    // Chunk saves don't cover files put in place like this, so the next backup has to look at everything
+                    set.dirtyRegions.forget();
+                    for (Map.Entry<File, File> entry : prepared.entrySet())
+                        Files.move(entry.getKey().toPath(), entry.getValue().toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return true;
+                }
+            }, SERVER_THREAD_TIMEOUT);
+
+            if (!moved)
+                return Util.getChatComponent(String.format("Dimension %s was loaded while restoring, the restored files are in %s",
+                        dimension, stagingDir.getPath()), EnumChatFormatting.RED);
+        } finally {
+            for (File temp : prepared.keySet())
+                temp.delete();
         }
 
-        return number;
+        ServerToolsBackup.log.info(String.format("Restored %s files of dimension %s from backup %s into the world, the replaced files are in %s",
+                restored.size(), dimension, backup.getName(), replacedDir));
+        return Util.getChatComponent(String.format("Restored %s files of dimension %s from backup %s into the world",
+                restored.size(), dimension, backup.getName()), EnumChatFormatting.GREEN);
     }
 
     /**
-     * Send a backup related message to all users that should get backup messages
-     *
-     * @param component a {@link net.minecraft.util.ChatComponentText} to send
+     * @return the folder a dimension is saved in relative to the world directory, ending with a /, or an empty string for the overworld
+     * @throws IllegalArgumentException if the dimension isn't registered
      */
-    public static void sendBackupMessage(IChatComponent component) {
+    static String getDimensionFolder(int dimension) {
+
+        WorldServer world = DimensionManager.getWorld(dimension);
+        WorldProvider provider;
+        if (world != null)
+            provider = world.provider;
+        else if (DimensionManager.isDimensionRegistered(dimension))
+            provider = DimensionManager.createProviderFor(dimension);
+        else
+            throw new IllegalArgumentException(String.format("Dimension %s is not registered", dimension));
+
+        String folder = provider.getSaveFolder();
+        return Strings.isNullOrEmpty(folder) ? "" : folder + "/";
+    }
+
+    /**
+     * @return the dimensions in a backup set, in order
+     */
+    static int[] getDimensions(BackupSet set) {
+
+        if (set.isDimension())
+            return new int[]{set.dimension};
+
+        Integer[] ids = DimensionManager.getStaticDimensionIDs();
+        int[] dimensions = new int[ids.length];
+        int count = 0;
+        for (int dimension : ids) {
+            if (!set.excludedDimensions.contains(dimension))
+                dimensions[count++] = dimension;
+        }
 
-        for (Object obj : MinecraftServer.getServer().getConfigurationManager().playerEntityList) {
-            EntityPlayerMP playerMP = (EntityPlayerMP) obj;
+        dimensions = Arrays.copyOf(dimensions, count);
+        Arrays.sort(dimensions);
+        return dimensions;
+    }
+
+    /**
+     * @return the region directories of the dimensions in a backup set, from the set's source directory
+     */
+    static Set<String> getRegionDirectories(BackupSet set) {
 
-            if (playerMP != null) {
-                if (BackupConfig.sendBackupMessageToOps && MinecraftServer.getServer().getConfigurationManager().func_152596_g(playerMP.getGameProfile()))
-                    playerMP.addChatComponentMessage(component);
-                else if (BackupConfig.sendBackupMessageToUsers)
-                    playerMP.addChatComponentMessage(component);
-                else if (BackupConfig.backupMessageWhitelist.contains(playerMP.getCommandSenderName()))
-                    playerMP.addChatComponentMessage(component);
+        if (set.isDimension())
+            return Collections.singleton("region");
+
+        Set<String> directories = new HashSet<>();
+        for (int dimension : DimensionManager.getStaticDimensionIDs()) {
+            if (set.excludedDimensions.contains(dimension))
+                continue;
+            try {
+                directories.add(getDimensionFolder(dimension) + "region");
+            } catch (IllegalArgumentException ignored) {
+                // Not registered any more, its files are looked at as usual
             }
         }
 
-        MinecraftServer.getServer().addChatMessage(component);
+        return directories;
+    }
+
+    /**
+     * Accepts the paths of the files in a dimension. The overworld is saved in the root of the world
+     * directory, so its files are the ones that aren't in the folder of another dimension.
+     */
+    private static Predicate<String> getDimensionPaths(int dimension, final String folder) {
+
+        if (!folder.isEmpty()) {
+            return new Predicate<String>() {
+                @Override
+                public boolean apply(String path) {
+                    return path.startsWith(folder);
+                }
+            };
+        }
+
+        final Set<String> otherFolders = new HashSet<>();
+        for (int id : DimensionManager.getStaticDimensionIDs()) {
+            if (id != dimension && DimensionManager.isDimensionRegistered(id))
+                otherFolders.add(getDimensionFolder(id));
+        }
+
+        return new Predicate<String>() {
+            @Override
+            public boolean apply(String path) {
+
+                int slash = path.indexOf('/');
+                if (slash < 0)
+                    return true;
+
+                String first = path.substring(0, slash + 1);
+                return !otherFolders.contains(first) && !OTHER_DIMENSION.matcher(first).matches();
+            }
+        };
+    }
+
+    private static String getStagingName(File backup) {
+
+        String name = backup.getName();
+        ArchiveFormat format = ArchiveFormat.forFile(name);
+        String extension = format != null ? format.getExtension() : BackupManifest.FILE_EXTENSION;
+        return name.endsWith(extension) ? name.substring(0, name.length() - extension.length()) : name;
+    }
+
+    /**
+     * Get the backup filename with wildcards replaced for the current date and time
+     *
+     * @return the name of the backup
+     */
+    public static String getBackupName() {
+
+        return getBackupName(BackupConfig.archiveFormat.getExtension());
+    }
+
+    /**
+     * Get the backup filename with wildcards replaced for the current date and time
+     *
+     * @param extension the file extension to append
+     * @return the name of the backup
+     */
+    public static String getBackupName(String extension) {
+
+        return getBackupName(System.currentTimeMillis(), extension);
+    }
+
+    /**
+     * Get the backup filename with wildcards replaced for a date and time
+     *
+     * @param time      the time the backup was started, which can be read back from the name
+     * @param extension the file extension to append
+     * @return the name of the backup
+     */
+    static String getBackupName(long time, String extension) {
+
+        return backupName.format(time, extension);
+    }
+
+    
+    public static String getBackupStartMessage() {
+    	return BackupConfig.backupStartMessage;
+    }
+    public static String getBackupFinishMessage() {
+    	return BackupConfig.backupFinishMessage;
+    }
+    public static String getBackupwarningMessage() {
+    	return BackupConfig.backupWarningMessage;
+    }
+    /**
+     * Send a backup related message to all users that should get backup messages.
+     * Safe to call from any thread, the message is delivered on the server thread.
+     *
+     * @param component a {@link net.minecraft.util.ChatComponentText} to send
+     */
+    public static void sendBackupMessage(IChatComponent component) {
+
+        BackupHandler handler = instance;
+        if (handler != null)
+            handler.notifier.send(component);
     }
 
     private static class BackupFileNameFilter implements FilenameFilter {
 
         @Override
         public boolean accept(File dir, String name) {
-            return name.endsWith(FILE_EXTENSION);
+            return ArchiveFormat.forFile(name) != null || name.endsWith(BackupManifest.FILE_EXTENSION);
         }
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single backup run, from the moment it's requested until it finishes
+ */
+class BackupJob {
+
+    enum Trigger {
+        MANUAL, INTERVAL, CRON
+    }
+
+    enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final int id = nextId.getAndIncrement();
+    private final String set;
+    private final Trigger trigger;
+    private final long requested = System.currentTimeMillis();
+
+    private volatile State state = State.QUEUED;
+    private volatile String phase = "Queued";
+    private volatile long started;
+    private volatile long finished;
+    private volatile boolean cancelRequested;
+    private final AtomicInteger mergedRequests = new AtomicInteger();
+
+    /**
+     * @param set     the name of the backup set the job backs up
+     * @param trigger what asked for the backup
+     */
+    BackupJob(String set, Trigger trigger) {
+
+        this.set = set;
+        this.trigger = trigger;
+    }
+
+    int getId() {
+
+        return id;
+    }
+
+    String getSet() {
+
+        return set;
+    }
+
+    Trigger getTrigger() {
+
+        return trigger;
+    }
+
+    long getRequested() {
+
+        return requested;
+    }
+
+    State getState() {
+
+        return state;
+    }
+
+    /**
+     * @return a short description of what the job is currently doing
+     */
+    String getPhase() {
+
+        return phase;
+    }
+
+    void setPhase(String phase) {
+
+        this.phase = phase;
+    }
+
+    long getStarted() {
+
+        return started;
+    }
+
+    long getFinished() {
+
+        return finished;
+    }
+
+    boolean isCancelRequested() {
+
+        return cancelRequested;
+    }
+
+    /**
+     * @return the number of later requests that were folded into this job
+     */
+    int getMergedRequests() {
+
+        return mergedRequests.get();
+    }
+
+    void merge() {
+
+        mergedRequests.incrementAndGet();
+    }
+
+    void requestCancel() {
+
+        cancelRequested = true;
+    }
+
+    void markRunning() {
+
+        started = System.currentTimeMillis();
+        state = State.RUNNING;
+        phase = "Starting";
+    }
+
+    void markFinished(State state) {
+
+        finished = System.currentTimeMillis();
+        this.state = state;
+        phase = state.name().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s backup #%s (%s)", set, id, trigger.name().toLowerCase());
+    }
+
+    /**
+     * Format a duration for display, such as "1h 5m" or "42s"
+     */
+    static String formatDuration(long millis) {
+
+        long seconds = Math.max(0, millis / 1000);
+
+        if (seconds < 60)
+            return seconds + "s";
+        if (seconds < 3600)
+            return String.format("%sm %ss", seconds / 60, seconds % 60);
+        return String.format("%sh %sm", seconds / 3600, seconds % 3600 / 60);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The description of a single incremental backup: every directory and file in the world
+ * at the time of the backup, with the hash of each file's content in the {@link ContentStore}.
+ *
+ * A manifest is stored as gzipped text, one entry per line:
+ * <pre>
+ * T &lt;creation time&gt;
+ * D &lt;mtime&gt; &lt;path&gt;
+ * F &lt;hash&gt; &lt;size&gt; &lt;mtime&gt; &lt;path&gt;
+ * R &lt;size&gt; &lt;mtime&gt; &lt;path&gt;
+ * C &lt;index&gt; &lt;timestamp&gt; &lt;length&gt; &lt;hash&gt;
+ * </pre>
+ * The path is always last so that it may contain spaces. Region files ({@code R}) are stored
+ * chunk by chunk, each followed by one {@code C} line per chunk it contains.
+ */
+class BackupManifest {
+
+    public static final String FILE_EXTENSION = ".manifest";
+
+    private static final String HEADER = "ServerTools-Backup-Manifest 1";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long created;
+
+    /**
+     * @return the time the backup was started, or 0 if unknown
+     */
+    public long getCreated() {
+
+        return created;
+    }
+
+    public void setCreated(long created) {
+
+        this.created = created;
+    }
+
+    public void add(Entry entry) {
+
+        entries.put(entry.path, entry);
+    }
+
+    public Entry get(String path) {
+
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Add the hash of every object referenced by this manifest to a set
+     */
+    public void collectHashes(Set<String> hashes) {
+
+        for (Entry entry : entries.values()) {
+            if (entry.hash != null)
+                hashes.add(entry.hash);
+            if (entry.chunks != null) {
+                for (ChunkEntry chunk : entry.chunks)
+                    hashes.add(chunk.hash);
+            }
+        }
+    }
+
+    /**
+     * Write this manifest to a file. The manifest is written to a temporary file first
+     * so that a manifest is never left half written.
+     */
+    public void write(File file) throws IOException {
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), Charsets.UTF_8))) {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(String.format("T %d%n", created));
+
+            for (Entry entry : entries.values()) {
+                if (entry.directory) {
+                    writer.write(String.format("D %d %s%n", entry.mtime, entry.path));
+                } else if (entry.chunks != null) {
+                    writer.write(String.format("R %d %d %s%n", entry.size, entry.mtime, entry.path));
+                    for (ChunkEntry chunk : entry.chunks)
+                        writer.write(String.format("C %d %d %d %s%n", chunk.index, chunk.timestamp, chunk.length, chunk.hash));
+                } else {
+                    writer.write(String.format("F %s %d %d %s%n", entry.hash, entry.size, entry.mtime, entry.path));
+                }
+            }
+        }
+
+        FileIO.moveIntoPlace(temp, file);
+    }
+
+    public static BackupManifest read(File file) throws IOException {
+
+        BackupManifest manifest = new BackupManifest();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), Charsets.UTF_8))) {
+
+            if (!HEADER.equals(reader.readLine()))
+                throw new IOException("Not a backup manifest: " + file);
+
+            String line;
+            Entry region = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+
+                try {
+                    char type = line.charAt(0);
+                    if (type == 'T') {
+                        manifest.created = Long.parseLong(line.substring(2));
+                    } else if (type == 'C') {
+                        if (region == null)
+                            throw new IllegalArgumentException("Chunk entry outside of a region");
+                        String[] parts = line.split(" ", 5);
+                        region.chunks.add(new ChunkEntry(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4]));
+                    } else {
+                        Entry entry = parseEntry(line);
+                        region = entry.chunks != null ? entry : null;
+                        manifest.add(entry);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException(String.format("Malformed manifest line in %s: %s", file.getName(), line), e);
+                }
+            }
+        }
+
+        return manifest;
+    }
+
+    private static Entry parseEntry(String line) {
+
+        char type = line.charAt(0);
+
+        if (type == 'D') {
+            String[] parts = line.split(" ", 3);
+            return Entry.directory(parts[2], Long.parseLong(parts[1]));
+        } else if (type == 'F') {
+            String[] parts = line.split(" ", 5);
+            return Entry.file(parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[1]);
+        } else if (type == 'R') {
+            String[] parts = line.split(" ", 4);
+            return Entry.region(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]), new ArrayList<ChunkEntry>());
+        }
+
+        throw new IllegalArgumentException("Unknown entry type " + type);
+    }
+
+    /**
+     * Rebuild the files described by this manifest
+     *
+     * @param store     the store holding the file content
+     * @param targetDir the directory to restore into
+     */
+    public void restore(ContentStore store, File targetDir) throws IOException {
+
+        restore(store, targetDir, Predicates.<String>alwaysTrue());
+    }
+
+    /**
+     * Rebuild some of the files described by this manifest
+     *
+     * @param store     the store holding the file content
+     * @param targetDir the directory to restore into
+     * @param paths     accepts the paths of the files and directories to restore
+     * @return the paths of the files restored, not counting directories
+     */
+    public List<String> restore(final ContentStore store, File targetDir, Predicate<String> paths) throws IOException {
+
+        return restore(store, targetDir, paths, BackupThrottle.UNLIMITED);
+    }
+
+    /**
+     * Rebuild some of the files described by this manifest, reading no faster than a throttle allows
+     *
+     * @param throttle limits how fast the store is read
+     * @return the paths of the files restored, not counting directories
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    public List<String> restore(final ContentStore store, File targetDir, Predicate<String> paths, BackupThrottle throttle) throws IOException {
+
+        List<String> restored = new ArrayList<>();
+
+        for (Entry entry : entries.values()) {
+            if (!paths.apply(entry.path))
+                continue;
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("Restore was interrupted");
+            if (!entry.directory)
+                throttle.acquire(entry.size);
+
+            File target = new File(targetDir, entry.path);
+
+            if (entry.directory) {
+                target.mkdirs();
+            } else if (entry.chunks != null) {
+                target.getParentFile().mkdirs();
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+                    AnvilRegion.write(out, entry.chunks, new AnvilRegion.RecordSource() {
+                        @Override
+                        public InputStream open(ChunkEntry chunk) throws IOException {
+                            return store.open(chunk.hash);
+                        }
+                    });
+                }
+            } else {
+                target.getParentFile().mkdirs();
+                try (InputStream in = store.open(entry.hash);
+                     OutputStream out = new FileOutputStream(target)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int count;
+                    while ((count = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, count);
+                }
+            }
+
+            target.setLastModified(entry.mtime);
+            if (!entry.directory)
+                restored.add(entry.path);
+        }
+
+        return restored;
+    }
+
+    static class Entry {
+
+        final String path;
+        final boolean directory;
+        final long size;
+        final long mtime;
+        final String hash;
+        final List<ChunkEntry> chunks;
+
+        private Entry(String path, boolean directory, long size, long mtime, String hash, List<ChunkEntry> chunks) {
+
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+            this.chunks = chunks;
+        }
+
+        static Entry directory(String path, long mtime) {
+
+            return new Entry(path, true, 0, mtime, null, null);
+        }
+
+        static Entry file(String path, long size, long mtime, String hash) {
+
+            return new Entry(path, false, size, mtime, hash, null);
+        }
+
+        static Entry region(String path, long size, long mtime, List<ChunkEntry> chunks) {
+
+            return new Entry(path, false, size, mtime, null, chunks);
+        }
+
+        /**
+         * @return the chunk with the given index, or null if this isn't a region or the chunk isn't present
+         */
+        ChunkEntry getChunk(int index) {
+
+            if (chunks == null)
+                return null;
+
+            for (ChunkEntry chunk : chunks) {
+                if (chunk.index == index)
+                    return chunk;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * A single chunk of a region file. The stored object is the chunk record:
+     * the compression type byte followed by the compressed chunk data.
+     */
+    static class ChunkEntry {
+
+        final int index;
+        final int timestamp;
+        final int length;
+        final String hash;
+
+        ChunkEntry(int index, int timestamp, int length, String hash) {
+
+            this.index = index;
+            this.timestamp = timestamp;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+}
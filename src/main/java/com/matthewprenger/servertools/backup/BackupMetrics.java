@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measurements of a single backup: how long each phase took, how much was read and written,
+ * how long world saving was paused, and how the server's tick times held up while it ran.
+ *
+ * Filled in by the backup thread as it goes, and by the retention thread once old backups are cleaned up.
+ */
+class BackupMetrics {
+
+    static final String FLUSH = "flush";
+    static final String SNAPSHOT = "snapshot";
+    static final String WALK = "walk";
+    static final String COMPRESS = "compress";
+    static final String WRITE = "write";
+    static final String RETENTION = "retention";
+    static final String UPLOAD = "upload";
+
+    enum Outcome {
+        SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private final int id;
+    private final String set;
+    private final String trigger;
+    private final String name;
+    private final String type;
+    private final long started = System.currentTimeMillis();
+
+    private long finished;
+    private Outcome outcome;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private long bytesRead;
+    private long bytesWritten;
+    private long snapshotBytes;
+    private int files;
+    private long pausedMillis;
+
+    private double tickMillisBefore;
+    private double tickMillisSum;
+    private double tickMillisMax;
+    private int tickSamples;
+
+    /**
+     * @param id      the id of the backup job
+     * @param set     the name of the backup set
+     * @param trigger what asked for the backup
+     * @param name    the file name of the backup
+     * @param type    the kind of backup, such as the archive format
+     */
+    BackupMetrics(int id, String set, String trigger, String name, String type) {
+
+        this.id = id;
+        this.set = set;
+        this.trigger = trigger;
+        this.name = name;
+        this.type = type;
+    }
+
+    int getId() {
+
+        return id;
+    }
+
+    String getSet() {
+
+        return set;
+    }
+
+    String getName() {
+
+        return name;
+    }
+
+    long getStarted() {
+
+        return started;
+    }
+
+    synchronized Outcome getOutcome() {
+
+        return outcome;
+    }
+
+    synchronized void finish(Outcome outcome) {
+
+        this.outcome = outcome;
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * @return how long the backup ran for, not counting retention
+     */
+    synchronized long getDurationMillis() {
+
+        return (finished > 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Add time to a phase. Phases are reported in the order they were first added.
+     */
+    synchronized void addPhase(String phase, long nanos) {
+
+        Long previous = phaseNanos.get(phase);
+        phaseNanos.put(phase, (previous == null ? 0 : previous) + nanos);
+    }
+
+    /**
+     * @return the time spent in a phase in milliseconds, or 0 if it didn't run
+     */
+    synchronized long getPhaseMillis(String phase) {
+
+        Long nanos = phaseNanos.get(phase);
+        return nanos == null ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    synchronized void addBytesRead(long bytes) {
+
+        bytesRead += bytes;
+    }
+
+    synchronized long getBytesRead() {
+
+        return bytesRead;
+    }
+
+    synchronized void addBytesWritten(long bytes) {
+
+        bytesWritten += bytes;
+    }
+
+    synchronized long getBytesWritten() {
+
+        return bytesWritten;
+    }
+
+    synchronized void setSnapshotBytes(long bytes) {
+
+        snapshotBytes = bytes;
+    }
+
+    synchronized void addFiles(int count) {
+
+        files += count;
+    }
+
+    synchronized int getFiles() {
+
+        return files;
+    }
+
+    synchronized void setPausedMillis(long millis) {
+
+        pausedMillis = millis;
+    }
+
+    /**
+     * @return how long world saving was turned off for
+     */
+    synchronized long getPausedMillis() {
+
+        return pausedMillis;
+    }
+
+    /**
+     * @return how many times bigger the data read was than what was written, or 0 if nothing was written
+     */
+    synchronized double getCompressionRatio() {
+
+        return bytesWritten > 0 ? bytesRead / (double) bytesWritten : 0;
+    }
+
+    synchronized double getFilesPerSecond() {
+
+        long duration = getDurationMillis();
+        return duration > 0 ? files * 1000.0 / duration : 0;
+    }
+
+    /**
+     * @param millis the server's mean tick time just before the backup started
+     */
+    synchronized void setTickMillisBefore(double millis) {
+
+        tickMillisBefore = millis;
+    }
+
+    /**
+     * Record the server's mean tick time while the backup is running
+     */
+    synchronized void sampleTick(double millis) {
+
+        tickMillisSum += millis;
+        tickMillisMax = Math.max(tickMillisMax, millis);
+        tickSamples++;
+    }
+
+    synchronized double getTickMillisBefore() {
+
+        return tickMillisBefore;
+    }
+
+    /**
+     * @return the mean tick time while the backup ran, or the tick time before it if it was too quick to sample
+     */
+    synchronized double getTickMillisDuring() {
+
+        return tickSamples > 0 ? tickMillisSum / tickSamples : tickMillisBefore;
+    }
+
+    /**
+     * @return the worst sampled tick time while the backup ran
+     */
+    synchronized double getTickMillisMax() {
+
+        return tickSamples > 0 ? tickMillisMax : tickMillisBefore;
+    }
+
+    /**
+     * Convert a mean tick time to ticks per second, which can't go over 20
+     */
+    static double toTps(double tickMillis) {
+
+        return tickMillis > 0 ? Math.min(20, 1000 / tickMillis) : 20;
+    }
+
+    /**
+     * @return the metrics as a single line JSON object
+     */
+    synchronized String toJson() {
+
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("set", set);
+        json.addProperty("name", name);
+        json.addProperty("trigger", trigger);
+        json.addProperty("type", type);
+        json.addProperty("outcome", outcome == null ? null : outcome.name().toLowerCase());
+        json.addProperty("started", started);
+        json.addProperty("durationMillis", getDurationMillis());
+
+        JsonObject phases = new JsonObject();
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet())
+            phases.addProperty(phase.getKey(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+        json.add("phaseMillis", phases);
+
+        json.addProperty("files", files);
+        json.addProperty("bytesRead", bytesRead);
+        json.addProperty("bytesWritten", bytesWritten);
+        json.addProperty("snapshotBytes", snapshotBytes);
+        json.addProperty("compressionRatio", round(getCompressionRatio()));
+        json.addProperty("filesPerSecond", round(getFilesPerSecond()));
+        json.addProperty("savingPausedMillis", pausedMillis);
+        json.addProperty("tickMillisBefore", round(tickMillisBefore));
+        json.addProperty("tickMillisDuring", round(getTickMillisDuring()));
+        json.addProperty("tickMillisMax", round(getTickMillisMax()));
+        json.addProperty("tpsBefore", round(toTps(tickMillisBefore)));
+        json.addProperty("tpsDuring", round(toTps(getTickMillisDuring())));
+
+        return json.toString();
+    }
+
+    private static double round(double value) {
+
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The backup file name template, split up once into its literal text and date fields so that names can be
+ * made and read back without compiling regular expressions or building a {@link java.util.Calendar} each time.
+ *
+ * Reading a name back gives the time the backup was started, so the age of a backup doesn't depend on its
+ * modification time, which changes when backups are copied around. Names only give a time when the template
+ * has a year, month and day, and no two fields directly next to each other.
+ */
+final class BackupName {
+
+    private static final String[] WILDCARDS = {"%YEAR", "%MONTH", "%DAY", "%HOUR", "%MINUTE", "%SECOND"};
+    private static final int YEAR = 0;
+    private static final int MONTH = 1;
+    private static final int DAY = 2;
+    private static final int HOUR = 3;
+    private static final int MINUTE = 4;
+    private static final int SECOND = 5;
+
+    private static final int[] MIN = {0, 1, 1, 0, 0, 0};
+    private static final int[] MAX = {Integer.MAX_VALUE, 12, 31, 23, 59, 59};
+
+    private static final long SECOND_MILLIS = 1000;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * SECOND_MILLIS;
+
+    /**
+     * literals[i] comes before fields[i], the last literal comes after the last field
+     */
+    private final String[] literals;
+    private final int[] fields;
+    private final TimeZone timeZone;
+    private final boolean parseable;
+
+    BackupName(String template, TimeZone timeZone) {
+
+        this.timeZone = timeZone;
+
+        List<String> literals = new ArrayList<>();
+        List<Integer> fields = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < template.length()) {
+            int field = template.charAt(i) == '%' ? wildcardAt(template, i) : -1;
+            if (field >= 0) {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                fields.add(field);
+                i += WILDCARDS[field].length();
+            } else {
+                literal.append(template.charAt(i++));
+            }
+        }
+        literals.add(literal.toString());
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.fields = new int[fields.size()];
+        for (int j = 0; j < this.fields.length; j++)
+            this.fields[j] = fields.get(j);
+
+        this.parseable = fields.contains(YEAR) && fields.contains(MONTH) && fields.contains(DAY) && !hasAdjacentFields();
+    }
+
+    private static int wildcardAt(String template, int index) {
+
+        for (int i = 0; i < WILDCARDS.length; i++) {
+            if (template.startsWith(WILDCARDS[i], index))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Fields aren't padded, so two next to each other can't be told apart again
+     */
+    private boolean hasAdjacentFields() {
+
+        for (int i = 1; i < fields.length; i++) {
+            if (literals[i].isEmpty() || Character.isDigit(literals[i].charAt(0)))
+                return true;
+        }
+
+        return fields.length > 0 && !literals[fields.length].isEmpty() && Character.isDigit(literals[fields.length].charAt(0));
+    }
+
+    /**
+     * Make the name of a backup
+     *
+     * @param time      the time the backup was started
+     * @param extension the file extension to append
+     */
+    String format(long time, String extension) {
+
+        long local = time + timeZone.getOffset(time);
+        long days = floorDiv(local, DAY_MILLIS);
+        int secondOfDay = (int) ((local - days * DAY_MILLIS) / SECOND_MILLIS);
+
+        // Days since 1970 to the civil date, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+
+        int[] values = new int[WILDCARDS.length];
+        values[YEAR] = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+        values[MONTH] = month;
+        values[DAY] = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        values[HOUR] = secondOfDay / 3600;
+        values[MINUTE] = secondOfDay / 60 % 60;
+        values[SECOND] = secondOfDay % 60;
+
+        StringBuilder name = new StringBuilder(64);
+        for (int i = 0; i < fields.length; i++)
+            name.append(literals[i]).append(values[fields[i]]);
+        return name.append(literals[fields.length]).append(extension).toString();
+    }
+
+    /**
+     * Read the time a backup was started back out of its file name
+     *
+     * @return the time, or -1 if the name wasn't made from this template or the template has no date in it
+     */
+    long parse(String fileName) {
+
+        if (!parseable)
+            return -1;
+
+        int[] values = {1970, 1, 1, 0, 0, 0};
+        int index = 0;
+
+        for (int i = 0; i < fields.length; i++) {
+            if (!fileName.startsWith(literals[i], index))
+                return -1;
+            index += literals[i].length();
+
+            int start = index;
+            long value = 0;
+            while (index < fileName.length() && index - start < 9 && isDigit(fileName.charAt(index)))
+                value = value * 10 + fileName.charAt(index++) - '0';
+
+            int field = fields[i];
+            if (index == start || value < MIN[field] || value > MAX[field])
+                return -1;
+            values[field] = (int) value;
+        }
+
+        String last = literals[fields.length];
+        if (!fileName.startsWith(last, index))
+            return -1;
+        index += last.length();
+        if (index < fileName.length() && fileName.charAt(index) != '.')
+            return -1;
+
+        long local = daysFromCivil(values[YEAR], values[MONTH], values[DAY]) * DAY_MILLIS
+                + (values[HOUR] * 3600 + values[MINUTE] * 60 + values[SECOND]) * SECOND_MILLIS;
+
+        int offset = timeZone.getOffset(local - timeZone.getRawOffset());
+        return local - offset;
+    }
+
+    private static long daysFromCivil(int year, int month, int day) {
+
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static long floorDiv(long x, long y) {
+
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    private static boolean isDigit(char c) {
+
+        return c >= '0' && c <= '9';
+    }
+}
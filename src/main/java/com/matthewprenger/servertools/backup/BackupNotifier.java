@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.PlayerEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.management.ServerConfigurationManager;
+import net.minecraft.util.IChatComponent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Delivers backup messages to the players that should get them.
+ *
+ * Messages can be sent from any thread. They are queued and handed to players at the end of
+ * the next server tick, on the server thread, a few per tick so a burst of messages is spread out.
+ * The players that get messages are worked out when someone joins or leaves, and every so often
+ * to pick up changes to the ops list, rather than checking every player for every message.
+ */
+class BackupNotifier {
+
+    private static final int MAX_MESSAGES_PER_TICK = 4;
+    private static final int RECIPIENT_REFRESH_TICKS = 30 * 20;
+
+    private final Queue<IChatComponent> messages = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The players that get messages, touched only on the server thread
+     */
+    private final List<EntityPlayerMP> recipients = new ArrayList<>();
+    private boolean recipientsStale = true;
+    private int ticksSinceRefresh;
+
+    /**
+     * Queue a message for everyone that gets backup messages, and the server console
+     */
+    void send(IChatComponent message) {
+
+        messages.add(message);
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+
+        if (event.phase != TickEvent.Phase.END)
+            return;
+
+        ticksSinceRefresh++;
+
+        if (messages.isEmpty())
+            return;
+
+        if (recipientsStale || ticksSinceRefresh >= RECIPIENT_REFRESH_TICKS)
+            refreshRecipients();
+
+        MinecraftServer server = MinecraftServer.getServer();
+        IChatComponent message;
+        for (int i = 0; i < MAX_MESSAGES_PER_TICK && (message = messages.poll()) != null; i++) {
+            for (EntityPlayerMP player : recipients)
+                player.addChatComponentMessage(message);
+            server.addChatMessage(message);
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+
+        recipientsStale = true;
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+
+        recipientsStale = true;
+    }
+
+    private void refreshRecipients() {
+
+        recipients.clear();
+        recipientsStale = false;
+        ticksSinceRefresh = 0;
+
+        ServerConfigurationManager players = MinecraftServer.getServer().getConfigurationManager();
+        for (Object obj : players.playerEntityList) {
+            EntityPlayerMP playerMP = (EntityPlayerMP) obj;
+
+            if (playerMP == null)
+                continue;
+
+            if (BackupConfig.sendBackupMessageToOps && players.func_152596_g(playerMP.getGameProfile()))
+                recipients.add(playerMP);
+            else if (BackupConfig.sendBackupMessageToUsers)
+                recipients.add(playerMP);
+            else if (BackupConfig.backupMessageWhitelist.contains(playerMP.getCommandSenderName()))
+                recipients.add(playerMP);
+        }
+    }
+}
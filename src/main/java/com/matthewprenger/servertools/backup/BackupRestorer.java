@@ -0,0 +1,387 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Predicate;
+import com.google.common.io.ByteStreams;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Restores some of the files of a backup, or single chunks of its region files.
+ *
+ * Archives are read through their {@link ArchiveIndex}, which says where each file's data lies in
+ * the archive. Every deflate block the archivers write starts afresh, so a file can be inflated
+ * starting at its own data whatever the format, and restoring one region of a large backup only
+ * reads that region. Zip archives without an index fall back to the zip's central directory.
+ * Incremental backups are restored from the content store, and single chunks come straight from
+ * their stored records.
+ */
+class BackupRestorer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File storeDir;
+
+    /**
+     * @param storeDir the incremental backup store
+     */
+    BackupRestorer(File storeDir) {
+
+        this.storeDir = storeDir;
+    }
+
+    /**
+     * Restore the files of a backup whose paths are accepted
+     *
+     * @param backup    an archive or manifest
+     * @param paths     accepts paths relative to the world directory, with / as the separator
+     * @param targetDir the directory to restore into, laid out like the world directory
+     * @return the paths of the files restored
+     * @throws IOException if the backup can't be read, or a file doesn't match its checksum
+     */
+    public List<String> restore(File backup, Predicate<String> paths, File targetDir) throws IOException {
+
+        if (backup.getName().endsWith(BackupManifest.FILE_EXTENSION))
+            return BackupManifest.read(backup).restore(new ContentStore(storeDir), targetDir, paths);
+
+        List<String> restored = new ArrayList<>();
+
+        try (Archive archive = openArchive(backup)) {
+            for (String path : archive.list()) {
+                if (!paths.apply(path))
+                    continue;
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Restore was interrupted");
+
+                File target = new File(targetDir, path);
+                target.getParentFile().mkdirs();
+                archive.extract(path, target);
+                restored.add(path);
+            }
+        }
+
+        return restored;
+    }
+
+    /**
+     * Restore a single chunk, as a region file that only holds that chunk
+     *
+     * @param backup     an archive or manifest
+     * @param regionPath the path of the region file in the backup
+     * @param index      the chunk index (x + z * 32)
+     * @param target     the region file to write
+     * @return false if the backup doesn't have the chunk
+     */
+    public boolean restoreChunk(File backup, String regionPath, int index, File target) throws IOException {
+
+        BackupManifest.ChunkEntry chunk;
+        final byte[] record;
+
+        if (backup.getName().endsWith(BackupManifest.FILE_EXTENSION)) {
+            BackupManifest.Entry entry = BackupManifest.read(backup).get(regionPath);
+            chunk = entry == null ? null : entry.getChunk(index);
+            if (chunk == null)
+                return false;
+
+            record = new byte[chunk.length];
+            try (InputStream in = new ContentStore(storeDir).open(chunk.hash)) {
+                ByteStreams.readFully(in, record);
+            }
+        } else {
+            try (Archive archive = openArchive(backup)) {
+                long size = archive.getSize(regionPath);
+                if (size < AnvilRegion.HEADER_SIZE)
+                    return false;
+
+                try (InputStream in = archive.open(regionPath)) {
+                    byte[] header = new byte[AnvilRegion.HEADER_SIZE];
+                    ByteStreams.readFully(in, header);
+                    AnvilRegion region = AnvilRegion.readHeader(ByteBuffer.wrap(header), size);
+                    record = region.readChunk(in, index);
+                    if (record == null)
+                        return false;
+                    chunk = new BackupManifest.ChunkEntry(index, region.getTimestamp(index), record.length, null);
+                }
+            }
+        }
+
+        target.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            AnvilRegion.write(out, Collections.singletonList(chunk), new AnvilRegion.RecordSource() {
+                @Override
+                public InputStream open(BackupManifest.ChunkEntry chunk) {
+                    return new ByteArrayInputStream(record);
+                }
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a region file holding every chunk of a target region file, with the chunks of
+     * another region file copied over them
+     *
+     * @param source the region file holding the chunks to copy
+     * @param target the region file to copy them into, which doesn't have to exist. It isn't changed.
+     * @param merged the region file to write
+     */
+    static void mergeRegion(File source, File target, File merged) throws IOException {
+
+        final Map<Integer, ByteBuffer> records = new HashMap<>();
+        Map<Integer, BackupManifest.ChunkEntry> chunks = new TreeMap<>();
+
+        for (File file : new File[]{target, source}) {
+            if (!file.isFile())
+                continue;
+
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            AnvilRegion region = AnvilRegion.readHeader(data);
+            for (int i = 0; i < AnvilRegion.CHUNKS; i++) {
+                if (region.hasChunk(i)) {
+                    ByteBuffer record = region.readChunk(data, i);
+                    records.put(i, record);
+                    chunks.put(i, new BackupManifest.ChunkEntry(i, region.getTimestamp(i), record.remaining(), null));
+                }
+            }
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE)) {
+            AnvilRegion.write(out, new ArrayList<>(chunks.values()), new AnvilRegion.RecordSource() {
+                @Override
+                public InputStream open(BackupManifest.ChunkEntry chunk) {
+                    ByteBuffer record = records.get(chunk.index);
+                    return new ByteArrayInputStream(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                }
+            });
+        }
+    }
+
+    private static Archive openArchive(File backup) throws IOException {
+
+        ArchiveFormat format = ArchiveFormat.forFile(backup.getName());
+        if (format == null)
+            throw new IOException(String.format("%s is not a backup", backup.getName()));
+
+        File sidecar = ArchiveIndex.sidecarFor(backup);
+        if (sidecar.isFile())
+            return new IndexedArchive(backup, ArchiveIndex.read(sidecar));
+        if (format == ArchiveFormat.ZIP)
+            return new ZipArchive(backup);
+
+        throw new IOException(String.format("%s has no index, so files can't be picked out of it", backup.getName()));
+    }
+
+    private static boolean isSafePath(String path) {
+
+        if (path.startsWith("/") || path.startsWith("\\") || path.contains(":"))
+            return false;
+
+        for (String part : path.split("[/\\\\]")) {
+            if (part.equals(".."))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Random access to the files of an archive
+     */
+    private abstract static class Archive implements Closeable {
+
+        /**
+         * @return the paths of the files in the archive, leaving out directories and paths outside the world
+         */
+        abstract Collection<String> list();
+
+        /**
+         * @return the size of a file, or -1 if it isn't in the archive
+         */
+        abstract long getSize(String path);
+
+        /**
+         * @return the CRC-32 of a file, or -1 if it isn't known
+         */
+        abstract long getCrc(String path);
+
+        /**
+         * @return the content of a file
+         * @throws FileNotFoundException if the file isn't in the archive
+         */
+        abstract InputStream open(String path) throws IOException;
+
+        /**
+         * Copy a file out of the archive, checking it against its CRC-32
+         */
+        void extract(String path, File target) throws IOException {
+
+            long size = getSize(path);
+            long expectedCrc = getCrc(path);
+            CRC32 crc = new CRC32();
+            long written = 0;
+
+            try (InputStream in = open(path);
+                 OutputStream out = new FileOutputStream(target)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    written += count;
+                }
+            }
+
+            if (written != size)
+                throw new IOException(String.format("%s is %s bytes in the backup, expected %s", path, written, size));
+            if (expectedCrc >= 0 && crc.getValue() != expectedCrc)
+                throw new IOException(String.format("%s doesn't match its checksum", path));
+        }
+    }
+
+    /**
+     * An archive read through its index. Stored data is read in place, and deflated data is
+     * inflated from its own offset, stopping as soon as the whole file has been produced.
+     */
+    private static class IndexedArchive extends Archive {
+
+        private final ArchiveIndex index;
+        private final FileChannel channel;
+
+        IndexedArchive(File archive, ArchiveIndex index) throws IOException {
+
+            this.index = index;
+            this.channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        Collection<String> list() {
+
+            List<String> paths = new ArrayList<>();
+            for (ArchiveIndex.Entry entry : index.getEntries().values()) {
+                if (isSafePath(entry.name))
+                    paths.add(entry.name);
+            }
+            return paths;
+        }
+
+        @Override
+        long getSize(String path) {
+
+            ArchiveIndex.Entry entry = index.get(path);
+            return entry == null ? -1 : entry.size;
+        }
+
+        @Override
+        long getCrc(String path) {
+
+            ArchiveIndex.Entry entry = index.get(path);
+            return entry == null ? -1 : entry.crc;
+        }
+
+        @Override
+        InputStream open(String path) throws IOException {
+
+            ArchiveIndex.Entry entry = index.get(path);
+            if (entry == null)
+                throw new FileNotFoundException(String.format("%s is not in the backup", path));
+            if (entry.offset < 0 || entry.length < 0)
+                throw new IOException(String.format("The index doesn't say where %s is in the backup", path));
+
+            InputStream data = FileIO.newInputStream(channel, entry.offset, entry.length);
+            if (entry.method == ContentStore.METHOD_STORED)
+                return ByteStreams.limit(data, entry.size);
+
+            final Inflater inflater = new Inflater(true);
+            return ByteStreams.limit(new InflaterInputStream(data, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            }, entry.size);
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            channel.close();
+        }
+    }
+
+    /**
+     * A zip archive without an index, read through its central directory
+     */
+    private static class ZipArchive extends Archive {
+
+        private final ZipFile zip;
+
+        ZipArchive(File archive) throws IOException {
+
+            this.zip = new ZipFile(archive);
+        }
+
+        @Override
+        Collection<String> list() {
+
+            List<String> paths = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && isSafePath(entry.getName()))
+                    paths.add(entry.getName());
+            }
+            return paths;
+        }
+
+        @Override
+        long getSize(String path) {
+
+            ZipEntry entry = zip.getEntry(path);
+            return entry == null ? -1 : entry.getSize();
+        }
+
+        @Override
+        long getCrc(String path) {
+
+            ZipEntry entry = zip.getEntry(path);
+            return entry == null ? -1 : entry.getCrc();
+        }
+
+        @Override
+        InputStream open(String path) throws IOException {
+
+            ZipEntry entry = zip.getEntry(path);
+            if (entry == null)
+                throw new FileNotFoundException(String.format("%s is not in the backup", path));
+            return zip.getInputStream(entry);
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            zip.close();
+        }
+    }
+}
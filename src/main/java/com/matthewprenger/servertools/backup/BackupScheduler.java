@@ -0,0 +1,446 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides when the backups of a {@link BackupSet} run and makes sure only one of them runs at a time.
+ * Each set has its own scheduler, so backups of different sets run in parallel.
+ *
+ * Requests made while a backup is running are folded into a single queued job, which
+ * starts as soon as the running one finishes, so backups never pile up. Scheduled triggers
+ * only ever make a request and return, so a long backup can't cause a burst of catch up runs.
+ * Retention runs on its own thread after each backup, away from the backup queue, and compaction
+ * after retention on a low priority thread of its own.
+ */
+class BackupScheduler {
+
+    private final String name;
+    private final BackupTask backupTask;
+    private final Runnable retentionTask;
+    private final Runnable compactionTask;
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService backupExecutor;
+    private final ExecutorService retentionExecutor;
+    private final ExecutorService compactionExecutor;
+    private final AtomicBoolean retentionQueued = new AtomicBoolean();
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+    private final List<ScheduledFuture<?>> triggers = new ArrayList<>();
+    private final List<ScheduledFuture<?>> warnings = new ArrayList<>();
+    private final List<CronSchedule> cronSchedules = new ArrayList<>();
+    private long interval;
+    private long[] warningTimes = new long[0];
+    private WarningTask warningTask;
+
+    private BackupJob running;
+    private Future<?> runningFuture;
+    private BackupJob queued;
+    private BackupJob last;
+
+    /**
+     * @param name           the name of the backup set, used to name jobs and threads
+     * @param backupTask     does the work of a backup
+     * @param retentionTask  cleans up old backups, run after every backup
+     * @param compactionTask compacts old backups, run after every retention run
+     */
+    public BackupScheduler(String name, BackupTask backupTask, Runnable retentionTask, Runnable compactionTask) {
+
+        this.name = name;
+        this.backupTask = backupTask;
+        this.retentionTask = retentionTask;
+        this.compactionTask = compactionTask;
+
+        timer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("ServerTools-Backup-" + name + "-Scheduler"));
+        backupExecutor = Executors.newSingleThreadExecutor(newThreadFactory("ServerTools-Backup-" + name));
+        retentionExecutor = Executors.newSingleThreadExecutor(newThreadFactory("ServerTools-Backup-" + name + "-Retention"));
+        compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("ServerTools-Backup-" + name + "-Compaction")
+                .setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+    }
+
+    /**
+     * Warn ahead of every scheduled backup. Must be called before the backups are scheduled.
+     *
+     * @param millisBefore how long before each scheduled backup to warn, in milliseconds
+     * @param task         gives the warning
+     */
+    public synchronized void setWarnings(long[] millisBefore, WarningTask task) {
+
+        warningTimes = millisBefore.clone();
+        warningTask = task;
+    }
+
+    /**
+     * Request a backup every interval, starting one interval from now
+     *
+     * @param intervalMillis the interval in milliseconds
+     */
+    public synchronized void scheduleInterval(long intervalMillis) {
+
+        interval = intervalMillis;
+        triggers.add(timer.scheduleAtFixedRate(new Trigger(BackupJob.Trigger.INTERVAL), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS));
+
+        for (long warningTime : warningTimes) {
+            if (warningTime < intervalMillis)
+                warnings.add(timer.scheduleAtFixedRate(new Warning(warningTime), intervalMillis - warningTime, intervalMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Request a backup each time a cron schedule fires
+     */
+    public synchronized void scheduleCron(CronSchedule schedule) {
+
+        cronSchedules.add(schedule);
+        scheduleNextCron(schedule, 0);
+    }
+
+    /**
+     * @param firedFor the time the schedule last fired for, or 0 if it hasn't yet. The timer can run a
+     *                 task slightly early, so the next time is found after this rather than after now,
+     *                 or the same minute would fire twice.
+     */
+    private synchronized void scheduleNextCron(final CronSchedule schedule, long firedFor) {
+
+        if (timer.isShutdown())
+            return;
+
+        removeDone(triggers);
+        removeDone(warnings);
+
+        long now = System.currentTimeMillis();
+        final long next = schedule.next(Math.max(now, firedFor));
+        if (next < 0) {
+            ServerToolsBackup.log.warn(String.format("Backup schedule '%s' never fires", schedule));
+            return;
+        }
+
+        triggers.add(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                new Trigger(BackupJob.Trigger.CRON).run();
+                scheduleNextCron(schedule, next);
+            }
+        }, next - now, TimeUnit.MILLISECONDS));
+
+        for (long warningTime : warningTimes) {
+            if (next - now > warningTime)
+                warnings.add(timer.schedule(new Warning(warningTime), next - now - warningTime, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static void removeDone(List<ScheduledFuture<?>> futures) {
+
+        Iterator<ScheduledFuture<?>> iterator = futures.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone())
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Run a task on the scheduler's timer every period until the returned future is cancelled
+     */
+    public ScheduledFuture<?> scheduleRepeating(Runnable task, long periodMillis) {
+
+        return timer.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Request a backup. If a backup is already waiting to run, the request is folded into it.
+     *
+     * @param trigger what asked for the backup
+     * @return the job that will satisfy the request
+     */
+    public synchronized BackupJob requestBackup(BackupJob.Trigger trigger) {
+
+        if (queued != null) {
+            queued.merge();
+            return queued;
+        }
+
+        BackupJob job = new BackupJob(name, trigger);
+
+        if (running == null)
+            start(job);
+        else
+            queued = job;
+
+        return job;
+    }
+
+    /**
+     * Cancel the queued backup, if any, and stop the running one
+     *
+     * @return the jobs that were cancelled
+     */
+    public synchronized List<BackupJob> cancel() {
+
+        List<BackupJob> cancelled = new ArrayList<>(2);
+
+        if (queued != null) {
+            queued.requestCancel();
+            queued.markFinished(BackupJob.State.CANCELLED);
+            cancelled.add(queued);
+            queued = null;
+        }
+
+        if (running != null && !running.isCancelRequested()) {
+            running.requestCancel();
+            runningFuture.cancel(true);
+            cancelled.add(running);
+        }
+
+        return cancelled;
+    }
+
+    public synchronized BackupJob getRunning() {
+
+        return running;
+    }
+
+    public synchronized BackupJob getQueued() {
+
+        return queued;
+    }
+
+    public synchronized BackupJob getLast() {
+
+        return last;
+    }
+
+    /**
+     * @return the time of the next scheduled backup in milliseconds, or -1 if none are scheduled
+     */
+    public synchronized long getNextScheduled() {
+
+        long now = System.currentTimeMillis();
+        long next = -1;
+
+        for (ScheduledFuture<?> trigger : triggers) {
+            if (!trigger.isDone()) {
+                long time = now + trigger.getDelay(TimeUnit.MILLISECONDS);
+                if (next < 0 || time < next)
+                    next = time;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * @return the interval between scheduled backups in milliseconds, or 0 if there is none
+     */
+    public synchronized long getInterval() {
+
+        return interval;
+    }
+
+    /**
+     * Stop scheduling backups and cancel any that are queued or running
+     */
+    public void shutdown() {
+
+        synchronized (this) {
+            for (ScheduledFuture<?> trigger : triggers)
+                trigger.cancel(false);
+            triggers.clear();
+            for (ScheduledFuture<?> warning : warnings)
+                warning.cancel(false);
+            warnings.clear();
+            timer.shutdownNow();
+        }
+
+        cancel();
+        backupExecutor.shutdownNow();
+        retentionExecutor.shutdownNow();
+        compactionExecutor.shutdownNow();
+    }
+
+    private void start(final BackupJob job) {
+
+        running = job;
+        runningFuture = backupExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                execute(job);
+            }
+        });
+    }
+
+    private void execute(BackupJob job) {
+
+        job.markRunning();
+
+        try {
+            backupTask.run(job);
+            job.markFinished(BackupJob.State.SUCCEEDED);
+        } catch (Throwable t) {
+            job.markFinished(job.isCancelRequested() ? BackupJob.State.CANCELLED : BackupJob.State.FAILED);
+        } finally {
+            // Clear a cancellation interrupt so it can't leak into the next job on this thread
+            Thread.interrupted();
+
+            requestRetention();
+
+            synchronized (this) {
+                last = job;
+                running = null;
+                runningFuture = null;
+
+                if (queued != null) {
+                    BackupJob next = queued;
+                    queued = null;
+                    start(next);
+                }
+            }
+        }
+    }
+
+    private void requestRetention() {
+
+        if (!retentionQueued.compareAndSet(false, true))
+            return;
+
+        try {
+            retentionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    retentionQueued.set(false);
+                    try {
+                        retentionTask.run();
+                    } catch (Throwable t) {
+                        ServerToolsBackup.log.error("Failed to clean up old backups", t);
+                    }
+                    requestCompaction();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            retentionQueued.set(false);
+        }
+    }
+
+    /**
+     * Compact old backups unless a compaction is already waiting to start. One that is running
+     * carries on, and the next one picks up whatever it didn't get to.
+     */
+    private void requestCompaction() {
+
+        if (!compactionQueued.compareAndSet(false, true))
+            return;
+
+        try {
+            compactionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    compactionQueued.set(false);
+                    try {
+                        compactionTask.run();
+                    } catch (Throwable t) {
+                        ServerToolsBackup.log.error("Failed to compact old backups", t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compactionQueued.set(false);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+
+        return new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build();
+    }
+
+    /**
+     * The work done by a single backup
+     */
+    interface BackupTask {
+
+        /**
+         * Make a backup. Should give up promptly if interrupted once {@link BackupJob#isCancelRequested} is set.
+         *
+         * @throws Exception if the backup failed or was cancelled
+         */
+        void run(BackupJob job) throws Exception;
+    }
+
+    /**
+     * Warns that a scheduled backup is coming up
+     */
+    interface WarningTask {
+
+        /**
+         * @param millisLeft the time until the backup is requested, in milliseconds
+         */
+        void warn(long millisLeft);
+    }
+
+    private class Trigger implements Runnable {
+
+        private final BackupJob.Trigger trigger;
+
+        Trigger(BackupJob.Trigger trigger) {
+
+            this.trigger = trigger;
+        }
+
+        @Override
+        public void run() {
+
+            // An exception escaping here would cancel the schedule for good
+            try {
+                requestBackup(trigger);
+            } catch (Throwable t) {
+                ServerToolsBackup.log.error("Failed to request a scheduled backup", t);
+            }
+        }
+    }
+
+    private class Warning implements Runnable {
+
+        private final long millisLeft;
+
+        Warning(long millisLeft) {
+
+            this.millisLeft = millisLeft;
+        }
+
+        @Override
+        public void run() {
+
+            WarningTask task;
+            synchronized (BackupScheduler.this) {
+                task = warningTask;
+            }
+
+            try {
+                task.warn(millisLeft);
+            } catch (Throwable t) {
+                ServerToolsBackup.log.error("Failed to warn about a scheduled backup", t);
+            }
+        }
+    }
+}
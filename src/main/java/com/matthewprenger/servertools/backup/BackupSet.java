@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A part of the world that is backed up on its own: either the world itself, leaving out the dimensions
+ * that are backed up separately, or one of those dimensions.
+ *
+ * Every set has its own backup directory, catalog, incremental store, retention rules and scheduler,
+ * so backups of different sets run in parallel and never touch each other's files, while the backups
+ * of a single set still run one at a time.
+ */
+class BackupSet {
+
+    static final String WORLD = "world";
+
+    final String name;
+    final BackupConfig.SetConfig config;
+
+    /**
+     * The directory being backed up
+     */
+    final File sourceDir;
+    final File backupDir;
+    final File storeDir;
+
+    /**
+     * The dimension backed up, or null for the world
+     */
+    final Integer dimension;
+
+    /**
+     * The dimensions left out of the set because they're backed up on their own
+     */
+    final Set<Integer> excludedDimensions;
+
+    /**
+     * Decides which files are backed up, from the blacklists, the exclude patterns and the excluded dimensions
+     */
+    final PathFilter filter;
+
+    final BackupCatalog catalog;
+    final RetentionRules retentionRules;
+
+    /**
+     * The region files saved to since the last incremental backup
+     */
+    final DirtyRegions dirtyRegions;
+
+    /**
+     * Held for reading while a backup adds to the incremental store, and for writing while retention cleans it up
+     */
+    final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether the incremental store may hold objects no manifest refers to, left by a backup that failed part way.
+     * Starts out true, since the server may have stopped in the middle of a backup.
+     */
+    private volatile boolean storeOrphaned = true;
+
+    BackupScheduler scheduler;
+
+    /**
+     * Copies the set's backups to the remote targets, or null if there are none
+     */
+    BackupShipper shipper;
+
+    /**
+     * @param name               the name of the set, also the name of its backup directory for a dimension
+     * @param config             the schedule, retention and filters of the set
+     * @param sourceDir          the directory to back up
+     * @param backupDir          the directory to keep the backups in
+     * @param excludedDimensions dimensions that are left out of the set
+     * @param excludedFolders    the names of the folders of those dimensions
+     * @param filter             accepts the names of backup files
+     * @param backupName         reads the times backups were made from their names
+     */
+    BackupSet(String name, BackupConfig.SetConfig config, File sourceDir, File backupDir, Set<Integer> excludedDimensions,
+              Set<String> excludedFolders, FilenameFilter filter, BackupName backupName) {
+
+        this.name = name;
+        this.config = config;
+        this.sourceDir = sourceDir;
+        this.backupDir = backupDir;
+        this.storeDir = new File(backupDir, BackupHandler.STORE_DIR);
+        this.dimension = config.dimension;
+        this.excludedDimensions = Collections.unmodifiableSet(excludedDimensions);
+
+        Set<String> directories = new HashSet<>(config.directoryBlacklist);
+        directories.addAll(excludedFolders);
+
+        PathFilter pathFilter;
+        try {
+            pathFilter = new PathFilter(config.fileBlacklist, directories, config.excludePatterns);
+        } catch (IllegalArgumentException e) {
+            ServerToolsBackup.log.error(String.format("Invalid exclude patterns for %s, only the blacklists are used: %s", name, e.getMessage()));
+            pathFilter = new PathFilter(config.fileBlacklist, directories, new String[0]);
+        }
+        this.filter = pathFilter;
+
+        backupDir.mkdirs();
+        catalog = new BackupCatalog(backupDir, storeDir, filter, backupName);
+        try {
+            catalog.load();
+        } catch (IOException e) {
+            ServerToolsBackup.log.error(String.format("Failed to list the backups of %s, old backups won't be cleaned up until restart", name), e);
+        }
+        reportCatalogFailure();
+
+        // Always loaded, so a record left from before tracking was turned off is never used later
+        dirtyRegions = new DirtyRegions(new File(backupDir, DirtyRegions.FILE_NAME));
+        try {
+            dirtyRegions.load();
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn(String.format("Failed to load the changed regions of %s, the next backup will look at every file", name), e);
+        }
+
+        RetentionPolicy retentionPolicy = null;
+        if (config.retentionTiers.length > 0) {
+            try {
+                retentionPolicy = RetentionPolicy.parse(config.retentionTiers);
+            } catch (IllegalArgumentException e) {
+                ServerToolsBackup.log.error(String.format("Invalid retention tiers for %s, tiered retention is disabled: %s", name, e.getMessage()));
+            }
+        }
+
+        retentionRules = new RetentionRules(config.backupLifespanDays, config.backupMaxNumber,
+                config.backupDirMaxSize == -1 ? -1 : config.backupDirMaxSize * org.apache.commons.io.FileUtils.ONE_MB, retentionPolicy);
+    }
+
+    /**
+     * @return true if the set is the backup of a single dimension
+     */
+    boolean isDimension() {
+
+        return dimension != null;
+    }
+
+    /**
+     * Apply every retention policy to the set's backups. The incremental store is only cleaned up if a manifest
+     * was deleted or a failed backup may have left objects behind, since it means reading every manifest.
+     */
+    void runRetention() {
+
+        storeLock.writeLock().lock();
+        try {
+            if (!applyRetention() && storeOrphaned)
+                collectStoreGarbage();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        reportCatalogFailure();
+    }
+
+    /**
+     * Log a failure to write the catalog, which runs on without it but loses what it knows about backups on restart
+     */
+    private void reportCatalogFailure() {
+
+        IOException failure = catalog.takeWriteFailure();
+        if (failure != null)
+            ServerToolsBackup.log.warn(String.format("Failed to write the backup catalog of %s, it will be tried again", name), failure);
+    }
+
+    /**
+     * Delete the backups that fall outside the age, count and size limits set in the config,
+     * or that aren't kept by the tiered {@link RetentionPolicy}.
+     *
+     * The backups are taken oldest first from the catalog. Deleting a manifest only frees space once the
+     * store is cleaned up, so the size limit deletes one manifest at a time, cleaning up the store and
+     * measuring again after each. A backup that can't be deleted is skipped rather than retried.
+     *
+     * @return true if the incremental store was cleaned up along the way
+     */
+    boolean applyRetention() {
+
+        if (!retentionRules.isEnabled())
+            return false;
+
+        ServerToolsBackup.log.trace(String.format("Checking retention of %s backups of %s, %s MB in total",
+                catalog.size(), name, catalog.getTotalSize() / org.apache.commons.io.FileUtils.ONE_MB));
+
+        boolean collected = false;
+
+        while (true) {
+            final boolean[] deletedManifest = {false};
+
+            retentionRules.apply(catalog.getBackups(), catalog.getTotalSize(), System.currentTimeMillis(), new RetentionRules.Deleter() {
+                @Override
+                public boolean delete(BackupCatalog.Entry backup, String reason) {
+
+                    ServerToolsBackup.log.info(String.format("Deleting backup %s of %s: %s", backup.file.getName(), name, reason));
+
+                    if (!catalog.delete(backup)) {
+                        ServerToolsBackup.log.warn(String.format("Failed to delete backup %s", backup.file.getName()));
+                        return false;
+                    }
+
+                    if (shipper != null)
+                        shipper.delete(backup.file.getName());
+
+                    deletedManifest[0] |= backup.isManifest();
+                    return true;
+                }
+            });
+
+            if (!deletedManifest[0])
+                return collected;
+
+            collectStoreGarbage();
+            collected = true;
+
+            if (retentionRules.getMaxSize() == -1 || catalog.getTotalSize() <= retentionRules.getMaxSize())
+                return true;
+        }
+    }
+
+    /**
+     * Record that an incremental backup failed after it may have added to the store, so the next
+     * retention run cleans up even if it deletes no backups
+     */
+    void markStoreOrphaned() {
+
+        storeOrphaned = true;
+    }
+
+    /**
+     * Clean up the store before a backup can reuse what is in it, if a failed backup or a crash may have left
+     * objects behind. New objects are only synced to the disk just before the manifest naming them is written,
+     * so after a crash the objects no manifest names may be cut short.
+     */
+    void collectOrphanedObjects() {
+
+        if (!storeOrphaned)
+            return;
+
+        storeLock.writeLock().lock();
+        try {
+            if (storeOrphaned)
+                collectStoreGarbage();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete objects in the incremental backup store that are no longer referenced by any manifest,
+     * along with their copies on the remote targets.
+     *
+     * Nothing is deleted if any manifest can't be read, since its objects can't be told apart
+     */
+    void collectStoreGarbage() {
+
+        if (!storeDir.isDirectory())
+            return;
+
+        Set<String> live = new HashSet<>();
+
+        for (BackupCatalog.Entry backup : catalog.getBackups()) {
+            if (backup.isManifest()) {
+                try {
+                    BackupManifest.read(backup.file).collectHashes(live);
+                } catch (IOException e) {
+                    ServerToolsBackup.log.warn(String.format("Failed to read manifest %s, skipping store cleanup", backup.file.getName()), e);
+                    return;
+                }
+            }
+        }
+
+        storeOrphaned = false;
+
+        List<String> deleted = new ArrayList<>();
+        long freed = new ContentStore(storeDir).collectGarbage(live, deleted);
+        catalog.addStoreSize(-freed);
+
+        if (shipper != null) {
+            try {
+                shipper.deleteObjects(deleted);
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        ServerToolsBackup.log.trace(String.format("Freed %s MB from the backup store of %s", freed / org.apache.commons.io.FileUtils.ONE_MB, name));
+    }
+
+    @Override
+    public String toString() {
+
+        return name;
+    }
+}
@@ -0,0 +1,865 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies the backups of a {@link BackupSet} to its {@link BackupTarget}s, and deletes the copies
+ * again when retention deletes the backups.
+ *
+ * An archive is sent while it is still being written: the file is followed as it grows, and each
+ * part is sent as soon as it is complete, so the upload finishes shortly after the archive does.
+ * Parts go to the targets in parallel on a small pool of threads, within the shared bandwidth
+ * throttle, and only a few parts are held in memory at once. An incremental backup sends the store
+ * objects it adds before its manifest, so a manifest is never copied before everything it needs.
+ *
+ * Failed requests are retried with a growing delay. If a copy still fails it is kept, along with the
+ * parts that did make it, and is picked up again after the next backup, so only the missing parts
+ * are sent. Targets are independent: one being down doesn't hold up copies to the others.
+ */
+class BackupShipper {
+
+    static final String STORE_PREFIX = "store/";
+
+    private static final long POLL_MILLIS = 100;
+    private static final long FIRST_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60 * 1000;
+
+    private final String name;
+    private final List<BackupTarget> targets;
+    private final int partSize;
+    private final int maxRetries;
+    private final BackupThrottle throttle;
+    private final ExecutorService executor;
+    private final Semaphore buffers;
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The store objects known to be on each target, so they aren't checked for again
+     */
+    private final Map<BackupTarget, Set<String>> shippedObjects = new HashMap<>();
+
+    /**
+     * Copies that failed, to be tried again. Guarded by itself, as is pendingDeletes.
+     */
+    private final List<Transfer> pending = new ArrayList<>();
+    private final Map<BackupTarget, Set<String>> pendingDeletes = new HashMap<>();
+
+    /**
+     * @param name          the name of the backup set, which the keys of its backups start with
+     * @param targets       the targets to copy backups to
+     * @param partSize      the size of the parts large files are sent in
+     * @param parallelParts the number of parts sent at once
+     * @param maxRetries    the number of times a failed request is tried again before the copy is put off
+     * @param throttle      limits the upload rate, may be shared with other shippers
+     */
+    BackupShipper(String name, List<BackupTarget> targets, int partSize, int parallelParts, int maxRetries, BackupThrottle throttle) {
+
+        this.name = name;
+        this.targets = new ArrayList<>(targets);
+        this.partSize = partSize;
+        this.maxRetries = maxRetries;
+        this.throttle = throttle;
+        this.buffers = new Semaphore(parallelParts * 2);
+
+        for (BackupTarget target : targets) {
+            shippedObjects.put(target, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            pendingDeletes.put(target, new LinkedHashSet<String>());
+        }
+
+        executor = Executors.newFixedThreadPool(parallelParts, new ThreadFactoryBuilder()
+                .setNameFormat("ServerTools-Backup-" + name + "-Upload-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Start copying a file that is about to be written. The file is followed as it grows until
+     * {@link Shipment#finish} says it is complete.
+     *
+     * @param file the file being written
+     * @param name the name the file is copied under, which it will have once it's complete
+     */
+    Shipment startShipment(File file, String name) {
+
+        return new Shipment(file, name);
+    }
+
+    /**
+     * Copy a complete file to every target
+     *
+     * @return true if the file reached every target, otherwise the copies that failed are tried again later
+     */
+    boolean ship(File file) throws InterruptedIOException {
+
+        return ship(file, null, null);
+    }
+
+    /**
+     * Copy an incremental backup to every target, first sending the store objects the target doesn't have yet
+     *
+     * @param manifest the manifest of the backup
+     * @param store    the store the objects are in
+     * @param hashes   the hashes of every object the manifest refers to
+     * @return true if the backup reached every target, otherwise the copies that failed are tried again later
+     */
+    boolean shipManifest(File manifest, ContentStore store, Collection<String> hashes) throws InterruptedIOException {
+
+        return ship(manifest, store, hashes);
+    }
+
+    private boolean ship(File file, ContentStore store, Collection<String> hashes) throws InterruptedIOException {
+
+        boolean shipped = true;
+
+        for (BackupTarget target : targets) {
+            Transfer transfer = new Transfer(target, file, getKey(file.getName()), store, hashes);
+            try {
+                send(transfer);
+            } catch (InterruptedIOException e) {
+                transfer.abort();
+                throw e;
+            } catch (IOException e) {
+                putOff(transfer, e);
+                shipped = false;
+            }
+        }
+
+        return shipped;
+    }
+
+    /**
+     * Delete the copies of a backup and its index from every target, and give up on copying it if
+     * that hadn't finished. Deletes that fail are tried again later.
+     *
+     * @param fileName the file name of the backup
+     */
+    void delete(String fileName) {
+
+        synchronized (pending) {
+            for (Iterator<Transfer> it = pending.iterator(); it.hasNext(); ) {
+                Transfer transfer = it.next();
+                String name = transfer.file.getName();
+                if (name.equals(fileName) || name.equals(fileName + ArchiveIndex.FILE_EXTENSION)) {
+                    transfer.abort();
+                    it.remove();
+                }
+            }
+        }
+
+        String key = getKey(fileName);
+        for (BackupTarget target : targets) {
+            deleteFrom(target, key);
+            deleteFrom(target, key + ArchiveIndex.FILE_EXTENSION);
+        }
+    }
+
+    /**
+     * Delete store objects from every target, after they've been cleaned up from the local store.
+     * Deletes that fail are tried again later.
+     */
+    void deleteObjects(Collection<String> hashes) throws InterruptedIOException {
+
+        if (hashes.isEmpty())
+            return;
+
+        List<Future<?>> deletes = new ArrayList<>();
+        for (final BackupTarget target : targets) {
+            final Set<String> shipped = shippedObjects.get(target);
+            // Once a delete has failed, the rest are put off rather than each waiting through its retries
+            final AtomicBoolean unavailable = new AtomicBoolean();
+
+            for (final String hash : hashes) {
+                shipped.remove(hash);
+                deletes.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        String key = getObjectKey(hash);
+                        if (unavailable.get())
+                            putOffDelete(target, key);
+                        else if (!deleteFrom(target, key))
+                            unavailable.set(true);
+                    }
+                }));
+            }
+        }
+
+        try {
+            waitFor(deletes);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn(String.format("Failed to delete store objects of %s from the backup targets", name), e);
+        }
+    }
+
+    /**
+     * Try the copies and deletes that failed before again
+     */
+    void retryPending() throws InterruptedIOException {
+
+        List<Transfer> transfers;
+        Map<BackupTarget, List<String>> deletes = new HashMap<>();
+        synchronized (pending) {
+            transfers = new ArrayList<>(pending);
+            pending.clear();
+
+            for (Map.Entry<BackupTarget, Set<String>> entry : pendingDeletes.entrySet()) {
+                deletes.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                entry.getValue().clear();
+            }
+        }
+
+        for (Map.Entry<BackupTarget, List<String>> entry : deletes.entrySet()) {
+            boolean available = true;
+            for (String key : entry.getValue()) {
+                if (available)
+                    available = deleteFrom(entry.getKey(), key);
+                else
+                    putOffDelete(entry.getKey(), key);
+            }
+        }
+
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            if (!transfer.file.isFile()) {
+                transfer.abort();
+                continue;
+            }
+
+            try {
+                send(transfer);
+                ServerToolsBackup.log.info(String.format("Copied %s to %s after an earlier failure", transfer.file.getName(), transfer.target));
+            } catch (InterruptedIOException e) {
+                synchronized (pending) {
+                    pending.addAll(transfers.subList(i, transfers.size()));
+                }
+                throw e;
+            } catch (IOException e) {
+                putOff(transfer, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of copies waiting to be tried again
+     */
+    int getPendingCount() {
+
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Stop sending. Copies that were under way are left unfinished.
+     */
+    void shutdown() {
+
+        executor.shutdownNow();
+    }
+
+    private String getKey(String fileName) {
+
+        return name + "/" + fileName;
+    }
+
+    private String getObjectKey(String hash) {
+
+        return name + "/" + STORE_PREFIX + hash.substring(0, 2) + "/" + hash;
+    }
+
+    private void putOff(Transfer transfer, IOException e) {
+
+        ServerToolsBackup.log.warn(String.format("Failed to copy %s to %s, it will be tried again after the next backup: %s",
+                transfer.file.getName(), transfer.target, e.getMessage()));
+
+        if (!BackupTarget.isRetryable(e)) {
+            // The upload may be gone, start over next time
+            transfer.abort();
+        }
+
+        synchronized (pending) {
+            pending.add(transfer);
+        }
+    }
+
+    /**
+     * Delete an object from a target, putting the delete off if it fails
+     *
+     * @return true if the object was deleted
+     */
+    private boolean deleteFrom(final BackupTarget target, final String key) {
+
+        try {
+            withRetries(new Request<Void>() {
+                @Override
+                public Void run() throws IOException {
+                    target.delete(key);
+                    return null;
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            ServerToolsBackup.log.warn(String.format("Failed to delete %s from %s, it will be tried again later: %s", key, target, e.getMessage()));
+            putOffDelete(target, key);
+            return false;
+        }
+    }
+
+    private void putOffDelete(BackupTarget target, String key) {
+
+        synchronized (pending) {
+            pendingDeletes.get(target).add(key);
+        }
+    }
+
+    /**
+     * Send a complete file, and the store objects it needs first. Parts already sent by an earlier attempt are skipped.
+     */
+    private void send(final Transfer transfer) throws IOException {
+
+        if (transfer.hashes != null)
+            sendObjects(transfer.target, transfer.store, transfer.hashes);
+
+        long length = transfer.file.length();
+        if (transfer.upload == null && length <= partSize) {
+            sendWhole(transfer.target, transfer.key, transfer.file);
+            return;
+        }
+
+        if (transfer.upload == null) {
+            transfer.upload = startUpload(transfer.target, transfer.key);
+            transfer.sentParts.clear();
+        }
+
+        final int parts = (int) Math.max(1, (length + partSize - 1) / partSize);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try (final FileChannel channel = FileChannel.open(transfer.file.toPath(), StandardOpenOption.READ)) {
+            for (int number = 1; number <= parts; number++) {
+                if (transfer.sentParts.contains(number))
+                    continue;
+
+                final int part = number;
+                final byte[] buffer = takeBuffer();
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            int size = readPart(channel, buffer, (long) (part - 1) * partSize);
+                            sendPart(transfer, part, buffer, size);
+                        } finally {
+                            returnBuffer(buffer);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            waitFor(futures);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        complete(transfer, parts);
+    }
+
+    /**
+     * Send the store objects a target doesn't have yet, in parallel
+     */
+    private void sendObjects(final BackupTarget target, final ContentStore store, Collection<String> hashes) throws IOException {
+
+        final Set<String> shipped = shippedObjects.get(target);
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (final String hash : hashes) {
+                if (shipped.contains(hash))
+                    continue;
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final String key = getObjectKey(hash);
+                        boolean exists = withRetries(new Request<Boolean>() {
+                            @Override
+                            public Boolean run() throws IOException {
+                                return target.exists(key);
+                            }
+                        });
+                        if (!exists)
+                            sendWhole(target, key, store.getObjectFile(hash));
+                        shipped.add(hash);
+                        return null;
+                    }
+                }));
+            }
+
+            waitFor(futures);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Send a complete file on the calling thread, in a single request if it fits in a part
+     */
+    private void sendWhole(final BackupTarget target, final String key, File file) throws IOException {
+
+        final byte[] buffer = takeBuffer();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+
+            if (length <= partSize) {
+                final int size = readPart(channel, buffer, 0);
+                throttle.acquire(size);
+                withRetries(new Request<Void>() {
+                    @Override
+                    public Void run() throws IOException {
+                        target.put(key, buffer, 0, size);
+                        return null;
+                    }
+                });
+                return;
+            }
+
+            Transfer transfer = new Transfer(target, file, key, null, null);
+            transfer.upload = startUpload(target, key);
+            try {
+                int parts = (int) ((length + partSize - 1) / partSize);
+                for (int number = 1; number <= parts; number++)
+                    sendPart(transfer, number, buffer, readPart(channel, buffer, (long) (number - 1) * partSize));
+                complete(transfer, parts);
+            } catch (IOException e) {
+                transfer.abort();
+                throw e;
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private BackupTarget.Upload startUpload(final BackupTarget target, final String key) throws IOException {
+
+        return withRetries(new Request<BackupTarget.Upload>() {
+            @Override
+            public BackupTarget.Upload run() throws IOException {
+                return target.startUpload(key, partSize);
+            }
+        });
+    }
+
+    private void sendPart(final Transfer transfer, final int number, final byte[] data, final int length) throws IOException {
+
+        throttle.acquire(length);
+        withRetries(new Request<Void>() {
+            @Override
+            public Void run() throws IOException {
+                transfer.upload.putPart(number, data, 0, length);
+                return null;
+            }
+        });
+        transfer.sentParts.add(number);
+    }
+
+    private void complete(final Transfer transfer, final int parts) throws IOException {
+
+        withRetries(new Request<Void>() {
+            @Override
+            public Void run() throws IOException {
+                transfer.upload.complete(parts);
+                return null;
+            }
+        });
+        transfer.upload = null;
+        transfer.sentParts.clear();
+    }
+
+    /**
+     * Read a part of a file into a buffer
+     *
+     * @return the size of the part, which is less than the buffer if the file ends first
+     */
+    private int readPart(FileChannel channel, byte[] buffer, long position) throws IOException {
+
+        int size = (int) Math.max(0, Math.min(partSize, channel.size() - position));
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, size);
+        if (FileIO.read(channel, target, position) < size)
+            throw new EOFException("The file shrank while it was being copied");
+        return size;
+    }
+
+    /**
+     * Take a part buffer, waiting if too many are in use
+     */
+    private byte[] takeBuffer() throws InterruptedIOException {
+
+        try {
+            buffers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+        }
+
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    private void returnBuffer(byte[] buffer) {
+
+        freeBuffers.add(buffer);
+        buffers.release();
+    }
+
+    /**
+     * Make a request, trying it again with a growing delay while it fails in a way that may pass
+     */
+    private <T> T withRetries(Request<T> request) throws IOException {
+
+        long delay = FIRST_RETRY_MILLIS;
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return request.run();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxRetries || !BackupTarget.isRetryable(e))
+                    throw e;
+
+                ServerToolsBackup.log.trace(String.format("Request to a backup target failed, trying again in %s ms: %s", delay, e.getMessage()));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to try a request again");
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Wait for every task, then throw the first failure if there was one.
+     * The tasks still to run are cancelled as soon as one fails.
+     */
+    private static void waitFor(List<Future<?>> futures) throws IOException {
+
+        IOException failure = null;
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for uploads");
+            } catch (CancellationException e) {
+                if (failure == null)
+                    failure = new InterruptedIOException("Upload was cancelled");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException("Upload failed", cause);
+                    for (Future<?> other : futures)
+                        other.cancel(true);
+                }
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private interface Request<T> {
+
+        T run() throws IOException;
+    }
+
+    /**
+     * A file being copied to one target, and how far the copy got
+     */
+    private class Transfer {
+
+        final BackupTarget target;
+        final String key;
+        final ContentStore store;
+        final Collection<String> hashes;
+        final Set<Integer> sentParts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        volatile File file;
+        volatile BackupTarget.Upload upload;
+        volatile IOException failure;
+
+        /**
+         * @param store  the store holding the objects to send before the file, or null if there are none
+         * @param hashes the hashes of those objects
+         */
+        Transfer(BackupTarget target, File file, String key, ContentStore store, Collection<String> hashes) {
+
+            this.target = target;
+            this.file = file;
+            this.key = key;
+            this.store = store;
+            this.hashes = hashes;
+        }
+
+        void abort() {
+
+            BackupTarget.Upload current = upload;
+            upload = null;
+            sentParts.clear();
+            if (current != null)
+                current.abort();
+        }
+    }
+
+    /**
+     * A file being copied to every target while it is written
+     */
+    class Shipment {
+
+        private volatile File file;
+        private final List<Transfer> transfers = new ArrayList<>();
+        private final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
+        private final Thread thread;
+
+        /**
+         * The final length of the file once it's complete, or -1 while it's still being written
+         */
+        private volatile long length = -1;
+
+        private Shipment(File file, String name) {
+
+            this.file = file;
+            for (BackupTarget target : targets)
+                transfers.add(new Transfer(target, file, getKey(name), null, null));
+
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    follow();
+                }
+            }, "ServerTools-Backup-" + name + "-Shipment");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Finish the copies once the file is complete, waiting for them
+         *
+         * @param complete the file under its final name, which may differ from the name it was written under
+         * @return true if the file reached every target, otherwise the copies that failed are tried again later
+         */
+        boolean finish(File complete) throws InterruptedIOException {
+
+            // An open channel follows the file through the rename, one opened from now on needs the new name
+            file = complete;
+            for (Transfer transfer : transfers)
+                transfer.file = complete;
+            length = complete.length();
+
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for uploads");
+            }
+
+            boolean shipped = true;
+            for (Transfer transfer : transfers) {
+                if (transfer.failure != null) {
+                    putOff(transfer, transfer.failure);
+                    shipped = false;
+                }
+            }
+
+            return shipped;
+        }
+
+        /**
+         * Give up on the copies, such as when writing the file failed
+         */
+        void cancel() {
+
+            thread.interrupt();
+            synchronized (futures) {
+                for (Future<?> future : futures)
+                    future.cancel(true);
+            }
+
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            for (Transfer transfer : transfers)
+                transfer.abort();
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void follow() {
+
+            try (FileChannel channel = openWhenCreated()) {
+                for (Transfer transfer : transfers) {
+                    try {
+                        transfer.upload = startUpload(transfer.target, transfer.key);
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        transfer.failure = e;
+                    }
+                }
+
+                long offset = 0;
+                int number = 1;
+
+                while (true) {
+                    long end = length;
+                    long available = end >= 0 ? end : channel.size();
+
+                    if (available - offset >= partSize || (end >= 0 && (offset < end || number == 1))) {
+                        int size = (int) Math.min(partSize, available - offset);
+                        if (!sendPart(channel, number++, offset, size))
+                            return; // Every target failed
+                        offset += size;
+                    } else if (end >= 0) {
+                        break;
+                    } else {
+                        Thread.sleep(POLL_MILLIS);
+                    }
+                }
+
+                waitFor(new ArrayList<>(futures));
+
+                for (Transfer transfer : transfers) {
+                    if (transfer.failure == null) {
+                        try {
+                            complete(transfer, number - 1);
+                        } catch (InterruptedIOException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            transfer.failure = e;
+                        }
+                    }
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                fail(new InterruptedIOException("Upload was interrupted"));
+            } catch (IOException e) {
+                // The part that failed has already been put on its transfer, anything else is a failure to read the file
+                fail(e);
+            }
+        }
+
+        /**
+         * Send a part to every target still going
+         *
+         * @return false if there are no targets left to send to
+         */
+        private boolean sendPart(FileChannel channel, final int number, long position, int size) throws IOException {
+
+            final byte[] buffer = takeBuffer();
+            final int length;
+            try {
+                length = readPart(channel, buffer, position);
+            } catch (IOException e) {
+                returnBuffer(buffer);
+                throw e;
+            }
+            if (length != size) {
+                returnBuffer(buffer);
+                throw new EOFException("The file shrank while it was being copied");
+            }
+
+            List<Transfer> going = new ArrayList<>();
+            for (Transfer transfer : transfers) {
+                if (transfer.failure == null)
+                    going.add(transfer);
+            }
+
+            if (going.isEmpty()) {
+                returnBuffer(buffer);
+                return false;
+            }
+
+            final AtomicInteger users = new AtomicInteger(going.size());
+            for (final Transfer transfer : going) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (transfer.failure == null)
+                                BackupShipper.this.sendPart(transfer, number, buffer, length);
+                        } catch (IOException e) {
+                            transfer.failure = e;
+                        } finally {
+                            if (users.decrementAndGet() == 0)
+                                returnBuffer(buffer);
+                        }
+                    }
+                }));
+            }
+
+            return true;
+        }
+
+        private FileChannel openWhenCreated() throws IOException, InterruptedException {
+
+            while (true) {
+                try {
+                    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    if (length >= 0)
+                        throw e;
+                    Thread.sleep(POLL_MILLIS);
+                }
+            }
+        }
+
+        private void fail(IOException e) {
+
+            for (Transfer transfer : transfers) {
+                if (transfer.failure == null)
+                    transfer.failure = e;
+            }
+        }
+    }
+}
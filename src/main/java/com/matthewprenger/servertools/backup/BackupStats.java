@@ -0,0 +1,346 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the {@link BackupMetrics} of each backup. Keeps running totals and the last backup's
+ * numbers for JMX and the stats command, and appends one JSON line per backup to a metrics file.
+ *
+ * A backup's line is written once the retention run after it has finished, so it can include how
+ * long retention took. The metrics file is rolled over once it grows past its size limit.
+ */
+public class BackupStats implements BackupStatsMBean {
+
+    static final String OBJECT_NAME = "com.matthewprenger.servertools:type=Backup,name=Stats";
+    private static final int ROLLED_FILES = 3;
+
+    private final List<BackupCatalog> catalogs;
+    private final File metricsFile;
+    private final long maxFileSize;
+
+    private final List<BackupMetrics> pending = new ArrayList<>();
+    private BackupMetrics last;
+    private int backupCount;
+    private int failedCount;
+    private long totalBytesRead;
+    private long totalBytesWritten;
+
+    private ObjectName registeredName;
+
+    /**
+     * @param catalogs    the catalogs of the backups being measured, one for each backup set
+     * @param metricsFile the file to append metrics to, or null to not write them
+     * @param maxFileSize the size at which the metrics file is rolled over
+     */
+    BackupStats(List<BackupCatalog> catalogs, File metricsFile, long maxFileSize) {
+
+        this.catalogs = catalogs;
+        this.metricsFile = metricsFile;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Publish the stats over JMX. A failure is logged and otherwise ignored.
+     */
+    synchronized void register() {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            ServerToolsBackup.log.warn("Failed to register the backup stats MBean", e);
+        }
+    }
+
+    synchronized void unregister() {
+
+        if (registeredName == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            ServerToolsBackup.log.warn("Failed to unregister the backup stats MBean", e);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Record a finished backup. It's written to the metrics file after the next retention run.
+     */
+    synchronized void backupFinished(BackupMetrics metrics) {
+
+        last = metrics;
+        backupCount++;
+        if (metrics.getOutcome() == BackupMetrics.Outcome.FAILED)
+            failedCount++;
+        totalBytesRead += metrics.getBytesRead();
+        totalBytesWritten += metrics.getBytesWritten();
+        pending.add(metrics);
+
+        ServerToolsBackup.log.info(String.format("Backup of %s took %s ms, read %s MB and wrote %s MB (%.2fx), %.1f files/s, saving paused for %s ms, TPS %.1f before and %.1f during",
+                metrics.getSet(), metrics.getDurationMillis(), metrics.getBytesRead() / org.apache.commons.io.FileUtils.ONE_MB,
+                metrics.getBytesWritten() / org.apache.commons.io.FileUtils.ONE_MB, metrics.getCompressionRatio(), metrics.getFilesPerSecond(),
+                metrics.getPausedMillis(), BackupMetrics.toTps(metrics.getTickMillisBefore()), BackupMetrics.toTps(metrics.getTickMillisDuring())));
+    }
+
+    /**
+     * Record a retention run against the backups of its set that finished before it, and write out their metrics
+     *
+     * @param set   the name of the backup set retention ran for
+     * @param nanos how long retention took
+     */
+    synchronized void retentionFinished(String set, long nanos) {
+
+        for (BackupMetrics metrics : pending) {
+            if (metrics.getSet().equals(set))
+                metrics.addPhase(BackupMetrics.RETENTION, nanos);
+        }
+
+        writePending(set);
+    }
+
+    /**
+     * Write out the metrics of backups still waiting for retention, for when the server stops
+     */
+    synchronized void flush() {
+
+        writePending(null);
+    }
+
+    synchronized BackupMetrics getLast() {
+
+        return last;
+    }
+
+    /**
+     * @param set the backup set whose metrics to write, or null for every set
+     */
+    private void writePending(String set) {
+
+        List<BackupMetrics> written = new ArrayList<>();
+        for (BackupMetrics metrics : pending) {
+            if (set == null || metrics.getSet().equals(set))
+                written.add(metrics);
+        }
+
+        if (metricsFile != null && !written.isEmpty()) {
+            StringBuilder lines = new StringBuilder();
+            for (BackupMetrics metrics : written)
+                lines.append(metrics.toJson()).append('\n');
+
+            try {
+                rollOver();
+                Files.write(metricsFile.toPath(), lines.toString().getBytes(Charsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                ServerToolsBackup.log.warn(String.format("Failed to write backup metrics to %s", metricsFile), e);
+            }
+        }
+
+        pending.removeAll(written);
+    }
+
+    /**
+     * Move the metrics file aside once it's too big, keeping the last few
+     */
+    private void rollOver() throws IOException {
+
+        if (maxFileSize <= 0 || metricsFile.length() < maxFileSize)
+            return;
+
+        for (int i = ROLLED_FILES - 1; i > 0; i--) {
+            File from = new File(metricsFile.getPath() + "." + i);
+            if (from.exists())
+                Files.move(from.toPath(), new File(metricsFile.getPath() + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.move(metricsFile.toPath(), new File(metricsFile.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public synchronized int getBackupCount() {
+
+        return backupCount;
+    }
+
+    @Override
+    public synchronized int getFailedBackupCount() {
+
+        return failedCount;
+    }
+
+    @Override
+    public synchronized long getTotalBytesRead() {
+
+        return totalBytesRead;
+    }
+
+    @Override
+    public synchronized long getTotalBytesWritten() {
+
+        return totalBytesWritten;
+    }
+
+    @Override
+    public int getBackupsKept() {
+
+        int size = 0;
+        for (BackupCatalog catalog : catalogs)
+            size += catalog.size();
+        return size;
+    }
+
+    @Override
+    public long getBackupDirectorySize() {
+
+        long size = 0;
+        for (BackupCatalog catalog : catalogs)
+            size += catalog.getTotalSize();
+        return size;
+    }
+
+    @Override
+    public synchronized String getLastBackupName() {
+
+        return last == null ? "" : last.getName();
+    }
+
+    @Override
+    public synchronized String getLastOutcome() {
+
+        return last == null || last.getOutcome() == null ? "" : last.getOutcome().name().toLowerCase();
+    }
+
+    @Override
+    public synchronized long getLastStarted() {
+
+        return last == null ? 0 : last.getStarted();
+    }
+
+    @Override
+    public synchronized long getLastDurationMillis() {
+
+        return last == null ? 0 : last.getDurationMillis();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.FLUSH);
+    }
+
+    @Override
+    public long getLastSnapshotMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.SNAPSHOT);
+    }
+
+    @Override
+    public long getLastWalkMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.WALK);
+    }
+
+    @Override
+    public long getLastCompressMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.COMPRESS);
+    }
+
+    @Override
+    public long getLastWriteMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.WRITE);
+    }
+
+    @Override
+    public long getLastRetentionMillis() {
+
+        return getLastPhaseMillis(BackupMetrics.RETENTION);
+    }
+
+    private synchronized long getLastPhaseMillis(String phase) {
+
+        return last == null ? 0 : last.getPhaseMillis(phase);
+    }
+
+    @Override
+    public synchronized long getLastBytesRead() {
+
+        return last == null ? 0 : last.getBytesRead();
+    }
+
+    @Override
+    public synchronized long getLastBytesWritten() {
+
+        return last == null ? 0 : last.getBytesWritten();
+    }
+
+    @Override
+    public synchronized int getLastFiles() {
+
+        return last == null ? 0 : last.getFiles();
+    }
+
+    @Override
+    public synchronized double getLastCompressionRatio() {
+
+        return last == null ? 0 : last.getCompressionRatio();
+    }
+
+    @Override
+    public synchronized double getLastFilesPerSecond() {
+
+        return last == null ? 0 : last.getFilesPerSecond();
+    }
+
+    @Override
+    public synchronized long getLastSavingPausedMillis() {
+
+        return last == null ? 0 : last.getPausedMillis();
+    }
+
+    @Override
+    public synchronized double getLastTpsBefore() {
+
+        return last == null ? 0 : BackupMetrics.toTps(last.getTickMillisBefore());
+    }
+
+    @Override
+    public synchronized double getLastTpsDuring() {
+
+        return last == null ? 0 : BackupMetrics.toTps(last.getTickMillisDuring());
+    }
+}
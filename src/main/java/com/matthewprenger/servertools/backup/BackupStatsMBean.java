@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+/**
+ * The backup statistics published over JMX. The "last" attributes describe the most recently
+ * finished backup and are zero or empty until one has finished.
+ */
+public interface BackupStatsMBean {
+
+    int getBackupCount();
+
+    int getFailedBackupCount();
+
+    long getTotalBytesRead();
+
+    long getTotalBytesWritten();
+
+    int getBackupsKept();
+
+    long getBackupDirectorySize();
+
+    String getLastBackupName();
+
+    String getLastOutcome();
+
+    long getLastStarted();
+
+    long getLastDurationMillis();
+
+    long getLastFlushMillis();
+
+    long getLastSnapshotMillis();
+
+    long getLastWalkMillis();
+
+    long getLastCompressMillis();
+
+    long getLastWriteMillis();
+
+    long getLastRetentionMillis();
+
+    long getLastBytesRead();
+
+    long getLastBytesWritten();
+
+    int getLastFiles();
+
+    double getLastCompressionRatio();
+
+    double getLastFilesPerSecond();
+
+    long getLastSavingPausedMillis();
+
+    double getLastTpsBefore();
+
+    double getLastTpsDuring();
+}
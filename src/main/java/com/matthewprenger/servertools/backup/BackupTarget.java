@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+/**
+ * Somewhere off the server that backups are copied to, so they survive losing the disk the world is on.
+ *
+ * Objects are addressed by keys with / as the separator. Large files are sent as a multipart
+ * {@link Upload}, whose parts can be sent in any order and in parallel, and retried one at a time.
+ * Implementations must be safe to use from several threads at once.
+ */
+abstract class BackupTarget {
+
+    /**
+     * Create a target from its URI: s3://bucket/prefix for an S3 bucket, or a file: URI or a plain path for a directory,
+     * such as a mounted network share
+     *
+     * @param s3 the endpoint and credentials to use for S3 targets
+     * @throws IllegalArgumentException if the URI isn't a supported target
+     */
+    static BackupTarget create(String uri, S3Target.Settings s3) {
+
+        URI parsed;
+        try {
+            parsed = new URI(uri);
+        } catch (URISyntaxException e) {
+            parsed = null;
+        }
+
+        if (parsed == null || parsed.getScheme() == null || parsed.getScheme().length() == 1) // A drive letter isn't a scheme
+            return new DirectoryTarget(new File(uri));
+
+        switch (parsed.getScheme().toLowerCase(Locale.ENGLISH)) {
+            case "file":
+                return new DirectoryTarget(new File(parsed));
+            case "s3":
+                if (parsed.getHost() == null)
+                    throw new IllegalArgumentException(String.format("%s doesn't name a bucket", uri));
+                return new S3Target(parsed.getHost(), parsed.getPath(), s3);
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported backup target %s", uri));
+        }
+    }
+
+    /**
+     * Store a whole object in a single request, replacing any object with the same key
+     */
+    abstract void put(String key, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Start sending an object in parts. Nothing is visible under the key until the upload is completed.
+     *
+     * @param partSize the size of every part but the last
+     */
+    abstract Upload startUpload(String key, int partSize) throws IOException;
+
+    /**
+     * @return true if an object exists under the key
+     */
+    abstract boolean exists(String key) throws IOException;
+
+    /**
+     * Delete an object. Deleting an object that doesn't exist isn't an error.
+     */
+    abstract void delete(String key) throws IOException;
+
+    /**
+     * @return true if a failed request is worth trying again
+     */
+    static boolean isRetryable(IOException e) {
+
+        return !(e instanceof RequestException) || ((RequestException) e).retryable;
+    }
+
+    /**
+     * An object being sent in parts
+     */
+    interface Upload {
+
+        /**
+         * Send a part, replacing it if it was sent before
+         *
+         * @param number the part number, starting at 1
+         */
+        void putPart(int number, byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Put the parts together into the object
+         *
+         * @param parts the number of parts, all of which must have been sent
+         */
+        void complete(int parts) throws IOException;
+
+        /**
+         * Give up on the upload and throw away its parts. Failures are ignored.
+         */
+        void abort();
+    }
+
+    /**
+     * A request the target turned down
+     */
+    static class RequestException extends IOException {
+
+        /**
+         * True if the same request may succeed later, such as when the target is overloaded
+         */
+        final boolean retryable;
+
+        RequestException(String message, boolean retryable) {
+
+            super(message);
+            this.retryable = retryable;
+        }
+    }
+}
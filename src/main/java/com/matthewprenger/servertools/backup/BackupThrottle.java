@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits how hard a backup works so that it doesn't drag the server's tick rate down.
+ *
+ * Reads are metered through a token bucket, and workers have to take a slot before they start
+ * on a piece of work. Once a second the mean tick time is checked against the tick budget:
+ * when the server is over budget the byte rate and the number of worker slots are halved,
+ * and when there is headroom again they grow back towards the configured maximum.
+ */
+class BackupThrottle {
+
+    /**
+     * A throttle that never waits
+     */
+    static final BackupThrottle UNLIMITED = new BackupThrottle(0, 0, null, Integer.MAX_VALUE);
+
+    private static final long ADJUST_INTERVAL_NANOS = 1000000000L;
+    private static final long MIN_BYTES_PER_SECOND = 1024 * 1024;
+    private static final double HEADROOM = 0.8;
+
+    private final long maxBytesPerSecond;
+    private final double tickBudgetMillis;
+    private final TickTimeSource ticks;
+    private final int maxWorkers;
+    private final SlowdownListener listener;
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+    private long lastAdjust;
+    private long bytesSinceAdjust;
+    private int allowedWorkers;
+    private int activeWorkers;
+    private boolean slowed;
+
+    public BackupThrottle(long maxBytesPerSecond, double minTps, TickTimeSource ticks, int maxWorkers) {
+
+        this(maxBytesPerSecond, minTps, ticks, maxWorkers, null);
+    }
+
+    /**
+     * @param maxBytesPerSecond the most bytes that may be read per second, or 0 for no fixed limit
+     * @param minTps            the tick rate to protect, or 0 to never slow down for the server
+     * @param ticks             where to read the server's tick times from, may be null if minTps is 0
+     * @param maxWorkers        the number of workers that may run at once when the server has headroom
+     * @param listener          told each time the throttle starts holding the backup back for the server, may be null
+     */
+    public BackupThrottle(long maxBytesPerSecond, double minTps, TickTimeSource ticks, int maxWorkers, SlowdownListener listener) {
+
+        this.listener = listener;
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        this.tickBudgetMillis = minTps > 0 && ticks != null ? 1000 / minTps : 0;
+        this.ticks = ticks;
+        this.maxWorkers = Math.max(1, maxWorkers);
+
+        this.bytesPerSecond = this.maxBytesPerSecond;
+        this.tokens = this.bytesPerSecond;
+        this.allowedWorkers = this.maxWorkers;
+        this.lastRefill = this.lastAdjust = System.nanoTime();
+    }
+
+    /**
+     * Account for bytes about to be read, waiting if they go over the current rate
+     *
+     * @param bytes the number of bytes
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+
+        if (this == UNLIMITED || bytes <= 0)
+            return;
+
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            adjust(now);
+            bytesSinceAdjust += bytes;
+
+            if (bytesPerSecond <= 0)
+                return;
+
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) / 1e9 * bytesPerSecond);
+            lastRefill = now;
+            tokens -= bytes;
+
+            if (tokens >= 0)
+                return;
+
+            waitNanos = (long) (-tokens / bytesPerSecond * 1e9);
+        }
+
+        try {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * Take a worker slot, waiting until one is free. Must be paired with {@link #releaseWorker}.
+     */
+    public void acquireWorker() throws InterruptedIOException {
+
+        if (this == UNLIMITED)
+            return;
+
+        synchronized (this) {
+            adjust(System.nanoTime());
+
+            while (activeWorkers >= allowedWorkers) {
+                try {
+                    wait(ADJUST_INTERVAL_NANOS / 1000000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a worker slot");
+                }
+                adjust(System.nanoTime());
+            }
+
+            activeWorkers++;
+        }
+    }
+
+    public void releaseWorker() {
+
+        if (this == UNLIMITED)
+            return;
+
+        synchronized (this) {
+            activeWorkers--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the current byte rate limit, or 0 if there is none
+     */
+    public synchronized long getBytesPerSecond() {
+
+        return bytesPerSecond;
+    }
+
+    public synchronized int getAllowedWorkers() {
+
+        return allowedWorkers;
+    }
+
+    private void adjust(long now) {
+
+        long elapsed = now - lastAdjust;
+        if (tickBudgetMillis <= 0 || elapsed < ADJUST_INTERVAL_NANOS)
+            return;
+
+        double measured = bytesSinceAdjust * 1e9 / elapsed;
+        double tickMillis = ticks.getMeanTickMillis();
+
+        lastAdjust = now;
+        bytesSinceAdjust = 0;
+
+        if (tickMillis > tickBudgetMillis) {
+            long base = bytesPerSecond > 0 ? bytesPerSecond : (long) measured;
+            bytesPerSecond = Math.max(MIN_BYTES_PER_SECOND, base / 2);
+            if (maxBytesPerSecond > 0)
+                bytesPerSecond = Math.min(bytesPerSecond, maxBytesPerSecond);
+            tokens = Math.min(tokens, bytesPerSecond);
+            allowedWorkers = Math.max(1, allowedWorkers / 2);
+
+            if (!slowed && listener != null)
+                listener.slowedDown(tickMillis, bytesPerSecond, allowedWorkers);
+            slowed = true;
+
+        } else if (tickMillis < tickBudgetMillis * HEADROOM) {
+            if (allowedWorkers < maxWorkers) {
+                allowedWorkers++;
+                notifyAll();
+            }
+
+            if (bytesPerSecond > 0 && bytesPerSecond != maxBytesPerSecond) {
+                if (maxBytesPerSecond > 0)
+                    bytesPerSecond = Math.min(maxBytesPerSecond, bytesPerSecond + bytesPerSecond / 2);
+                else if (measured < bytesPerSecond / 2)
+                    bytesPerSecond = 0; // The limit isn't what's holding the backup back anymore
+                else
+                    bytesPerSecond += bytesPerSecond / 2;
+            }
+
+            if (allowedWorkers == maxWorkers && bytesPerSecond == maxBytesPerSecond)
+                slowed = false;
+        }
+    }
+
+    /**
+     * Hears when a backup is held back because the server is ticking too slowly
+     */
+    interface SlowdownListener {
+
+        /**
+         * Called from whichever thread noticed, once each time the throttle goes from full speed to holding back
+         *
+         * @param tickMillis     the mean tick time that was over the budget
+         * @param bytesPerSecond the byte rate now allowed
+         * @param workers        the number of workers now allowed
+         */
+        void slowedDown(double tickMillis, long bytesPerSecond, int workers);
+    }
+
+    /**
+     * Reports how long the server is taking to tick
+     */
+    interface TickTimeSource {
+
+        /**
+         * @return the mean time of recent ticks in milliseconds
+         */
+        double getMeanTickMillis();
+    }
+}
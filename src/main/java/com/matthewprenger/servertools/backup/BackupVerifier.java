@@ -0,0 +1,487 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a backup back and checks that it holds what was written.
+ *
+ * Every file in an archive is decompressed and its CRC and size are compared to the {@link ArchiveIndex}
+ * written alongside it. Zip archives without an index are checked against the CRCs in the zip itself.
+ * For incremental backups every object the manifest refers to is read from the store and hashed again.
+ *
+ * Reads go through a {@link BackupThrottle} so verifying doesn't compete with the server for the disk.
+ */
+class BackupVerifier {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TAR_BLOCK = 512;
+    private static final int MAX_PROBLEMS = 20;
+
+    private final File storeDir;
+    private final BackupThrottle throttle;
+
+    /**
+     * @param storeDir the incremental backup store
+     * @param throttle limits how fast backups are read
+     */
+    BackupVerifier(File storeDir, BackupThrottle throttle) {
+
+        this.storeDir = storeDir;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Verify a backup. Damage is reported in the result rather than thrown.
+     *
+     * @param backup an archive or manifest
+     * @throws InterruptedIOException if verifying was interrupted
+     */
+    public Result verify(File backup) throws InterruptedIOException {
+
+        Result result = new Result(backup.getName());
+
+        try {
+            if (backup.getName().endsWith(BackupManifest.FILE_EXTENSION)) {
+                verifyManifest(backup, result);
+            } else {
+                ArchiveFormat format = ArchiveFormat.forFile(backup.getName());
+                if (format == null)
+                    result.addProblem("Not a backup");
+                else if (format == ArchiveFormat.ZIP)
+                    verifyZip(backup, readIndex(backup, result), result);
+                else
+                    verifyTar(backup, format == ArchiveFormat.TAR_GZ, readIndex(backup, result), result);
+            }
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            result.addProblem(String.format("Can't be read: %s", e.getMessage()));
+        }
+
+        return result;
+    }
+
+    private static ArchiveIndex readIndex(File archive, Result result) {
+
+        File sidecar = ArchiveIndex.sidecarFor(archive);
+        if (!sidecar.isFile())
+            return null;
+
+        try {
+            ArchiveIndex index = ArchiveIndex.read(sidecar);
+            result.checksummed = true;
+            return index;
+        } catch (IOException e) {
+            result.addProblem(String.format("The index can't be read: %s", e.getMessage()));
+            return null;
+        }
+    }
+
+    private void verifyManifest(File manifestFile, Result result) throws IOException {
+
+        Set<String> hashes = new LinkedHashSet<>();
+        BackupManifest.read(manifestFile).collectHashes(hashes);
+        result.checksummed = true;
+
+        ContentStore store = new ContentStore(storeDir);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        for (String hash : hashes) {
+            if (!store.contains(hash)) {
+                result.addProblem(String.format("Object %s is missing from the store", hash));
+                continue;
+            }
+
+            MessageDigest digest = ContentStore.newDigest();
+            try (InputStream in = store.open(hash)) {
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    throttle.acquire(count);
+                    digest.update(buffer, 0, count);
+                    result.bytes += count;
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                result.addProblem(String.format("Object %s can't be read: %s", hash, e.getMessage()));
+                continue;
+            }
+
+            result.entries++;
+            if (!hash.equals(ContentStore.toHex(digest.digest())))
+                result.addProblem(String.format("Object %s is corrupt", hash));
+        }
+    }
+
+    private void verifyZip(File archive, ArchiveIndex index, Result result) throws IOException {
+
+        Set<String> seen = new HashSet<>();
+        result.checksummed = true; // Zip entries carry their own CRCs
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+
+                seen.add(entry.getName());
+                ArchiveIndex.Entry expected = index != null ? index.get(entry.getName())
+                        : new ArchiveIndex.Entry(entry.getName(), entry.getCrc(), entry.getSize(), entry.getMethod(), -1, entry.getCompressedSize());
+
+                try (InputStream in = zip.getInputStream(entry)) {
+                    checkEntry(entry.getName(), in, -1, expected, index != null, result);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    result.addProblem(String.format("%s can't be read: %s", entry.getName(), e.getMessage()));
+                }
+            }
+        }
+
+        checkMissing(index, seen, result);
+    }
+
+    private void verifyTar(File archive, boolean gzip, ArchiveIndex index, Result result) throws IOException {
+
+        Set<String> seen = new HashSet<>();
+        byte[] header = new byte[TAR_BLOCK];
+        String paxPath = null;
+        long paxSize = -1;
+
+        try (InputStream in = openTar(archive, gzip)) {
+            while (true) {
+                if (!readBlock(in, header)) {
+                    result.addProblem("The archive is truncated");
+                    return;
+                }
+
+                if (isZero(header))
+                    break;
+
+                if (!checkHeaderSum(header)) {
+                    result.addProblem("The archive has a damaged header");
+                    return;
+                }
+
+                String name = getString(header, 0, 100);
+                String prefix = getString(header, 345, 155);
+                if (!prefix.isEmpty())
+                    name = prefix + "/" + name;
+                long size = getOctal(header, 124, 12);
+                byte type = header[156];
+
+                if (type == 'x') {
+                    byte[] data = new byte[(int) size];
+                    readFully(in, data);
+                    skip(in, padding(size));
+                    String[] values = parsePax(data);
+                    paxPath = values[0];
+                    paxSize = values[1] != null ? Long.parseLong(values[1]) : -1;
+                    continue;
+                }
+
+                if (paxPath != null)
+                    name = paxPath;
+                if (paxSize >= 0)
+                    size = paxSize;
+                paxPath = null;
+                paxSize = -1;
+
+                if (type == '0' || type == 0) {
+                    seen.add(name);
+                    ArchiveIndex.Entry expected = index != null ? index.get(name) : null;
+                    checkEntry(name, in, size, expected, index != null, result);
+                } else {
+                    skip(in, size);
+                }
+                skip(in, padding(size));
+            }
+
+            // Read to the end so that a gzip trailer is checked too
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) >= 0) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Verifying was interrupted");
+            }
+        } catch (EOFException e) {
+            result.addProblem("The archive is truncated");
+            return;
+        }
+
+        checkMissing(index, seen, result);
+    }
+
+    private static InputStream openTar(File archive, boolean gzip) throws IOException {
+
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE);
+
+        try {
+            return gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read an entry to the end and compare it to its checksum
+     *
+     * @param length   the length of the entry, or -1 to read the stream to its end
+     * @param expected the checksum to compare to, may be null
+     * @param required whether a missing checksum is a problem
+     */
+    private void checkEntry(String name, InputStream in, long length, ArchiveIndex.Entry expected, boolean required, Result result) throws IOException {
+
+        byte[] buffer = FileIO.threadBuffer(BUFFER_SIZE);
+        CRC32 crc = new CRC32();
+        long size = 0;
+
+        while (length < 0 || size < length) {
+            int count = in.read(buffer, 0, length < 0 ? BUFFER_SIZE : (int) Math.min(BUFFER_SIZE, length - size));
+            if (count < 0) {
+                if (length >= 0)
+                    throw new EOFException();
+                break;
+            }
+            throttle.acquire(count);
+            crc.update(buffer, 0, count);
+            size += count;
+        }
+
+        result.entries++;
+        result.bytes += size;
+
+        if (expected == null) {
+            if (required)
+                result.addProblem(String.format("%s isn't in the index", name));
+        } else if (expected.size >= 0 && expected.size != size) {
+            result.addProblem(String.format("%s is %s bytes, expected %s", name, size, expected.size));
+        } else if (expected.crc >= 0 && expected.crc != crc.getValue()) {
+            result.addProblem(String.format("%s has the wrong checksum", name));
+        }
+    }
+
+    private static void checkMissing(ArchiveIndex index, Set<String> seen, Result result) {
+
+        if (index == null)
+            return;
+
+        for (String name : index.getEntries().keySet()) {
+            if (!seen.contains(name))
+                result.addProblem(String.format("%s is missing from the archive", name));
+        }
+    }
+
+    /**
+     * @return false if the stream ended before the block started
+     */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+
+        int first = in.read(block);
+        if (first < 0)
+            return false;
+
+        readFully(in, block, first);
+        return true;
+    }
+
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+
+        readFully(in, data, 0);
+    }
+
+    private static void readFully(InputStream in, byte[] data, int position) throws IOException {
+
+        while (position < data.length) {
+            int count = in.read(data, position, data.length - position);
+            if (count < 0)
+                throw new EOFException();
+            position += count;
+        }
+    }
+
+    private static void skip(InputStream in, long bytes) throws IOException {
+
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    private static long padding(long size) {
+
+        return (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+    }
+
+    private static boolean isZero(byte[] block) {
+
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean checkHeaderSum(byte[] header) {
+
+        long sum = 0;
+        for (int i = 0; i < header.length; i++)
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+
+        return sum == getOctal(header, 148, 8);
+    }
+
+    private static String getString(byte[] header, int offset, int length) {
+
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+            end++;
+
+        return new String(header, offset, end - offset, Charsets.UTF_8);
+    }
+
+    private static long getOctal(byte[] header, int offset, int length) {
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7')
+                value = value * 8 + (b - '0');
+            else if (b != ' ' || value != 0)
+                break;
+        }
+        return value;
+    }
+
+    /**
+     * Pull the path and size out of a pax extended header
+     *
+     * @return the path and size, either of which may be null
+     */
+    private static String[] parsePax(byte[] data) {
+
+        String[] values = new String[2];
+        int position = 0;
+
+        while (position < data.length) {
+            int space = position;
+            while (space < data.length && data[space] != ' ')
+                space++;
+            if (space == data.length)
+                break;
+
+            int length = Integer.parseInt(new String(data, position, space - position, Charsets.US_ASCII));
+            if (length <= 0 || position + length > data.length)
+                break;
+
+            String record = new String(data, space + 1, position + length - space - 2, Charsets.UTF_8);
+            int equals = record.indexOf('=');
+            if (equals > 0) {
+                String key = record.substring(0, equals);
+                if ("path".equals(key))
+                    values[0] = record.substring(equals + 1);
+                else if ("size".equals(key))
+                    values[1] = record.substring(equals + 1);
+            }
+
+            position += length;
+        }
+
+        return values;
+    }
+
+    /**
+     * The outcome of verifying one backup
+     */
+    static class Result {
+
+        final String name;
+        private final List<String> problems = new ArrayList<>();
+        private int problemCount;
+        private int entries;
+        private long bytes;
+        private boolean checksummed;
+
+        Result(String name) {
+
+            this.name = name;
+        }
+
+        void addProblem(String problem) {
+
+            if (problems.size() < MAX_PROBLEMS)
+                problems.add(problem);
+            problemCount++;
+        }
+
+        boolean isOk() {
+
+            return problemCount == 0;
+        }
+
+        /**
+         * @return the first few problems found
+         */
+        List<String> getProblems() {
+
+            return Collections.unmodifiableList(problems);
+        }
+
+        int getProblemCount() {
+
+            return problemCount;
+        }
+
+        /**
+         * @return the number of files or objects that were read
+         */
+        int getEntries() {
+
+            return entries;
+        }
+
+        long getBytes() {
+
+            return bytes;
+        }
+
+        /**
+         * @return false if there was nothing to compare the backup's contents to
+         */
+        boolean isChecksummed() {
+
+            return checksummed;
+        }
+    }
+}
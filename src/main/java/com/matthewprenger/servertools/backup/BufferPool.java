@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of equally sized buffers shared by every backup, which caps the memory backups use for file data
+ * however large the world is or however many backups run at once. Buffers are made as they're first needed and
+ * then kept and reused, so a backup doesn't leave a trail of large short lived arrays for the garbage collector
+ * of the server it shares the JVM with.
+ *
+ * Buffers are handed out through a {@link Lease}, one per archive run. Closing the lease gives back everything
+ * it still holds, so buffers held by work that failed or was cancelled aren't lost to the pool. Heap arrays are
+ * used because {@link java.util.zip.Deflater} and {@link java.util.zip.CRC32} can only read from arrays.
+ */
+final class BufferPool {
+
+    /**
+     * The fewest buffers a pool has, so an archiver can always get the two it needs for a block
+     */
+    static final int MIN_BUFFERS = 2;
+
+    private final int bufferSize;
+    private final int capacity;
+    private final Semaphore permits;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param memory     the most memory the buffers may take up together
+     * @param bufferSize the size of each buffer
+     */
+    BufferPool(long memory, int bufferSize) {
+
+        this.bufferSize = bufferSize;
+        this.capacity = (int) Math.max(MIN_BUFFERS, Math.min(Integer.MAX_VALUE, memory / bufferSize));
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    int getBufferSize() {
+
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers in the pool
+     */
+    int getCapacity() {
+
+        return capacity;
+    }
+
+    /**
+     * @return the number of buffers not handed out right now
+     */
+    int getAvailable() {
+
+        return permits.availablePermits();
+    }
+
+    Lease lease() {
+
+        return new Lease();
+    }
+
+    private byte[][] take(int count) {
+
+        byte[][] buffers = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            byte[] buffer = free.poll();
+            buffers[i] = buffer != null ? buffer : new byte[bufferSize];
+        }
+        return buffers;
+    }
+
+    /**
+     * The buffers held by one user of the pool
+     */
+    final class Lease implements Closeable {
+
+        private int held;
+        private boolean closed;
+
+        private Lease() {}
+
+        /**
+         * Take buffers, waiting until enough are free. They're taken all at once so that two users
+         * waiting on the pool can't each end up holding part of what they need.
+         *
+         * @param count the number of buffers, at most {@link #MIN_BUFFERS}
+         */
+        byte[][] acquire(int count) throws InterruptedIOException {
+
+            try {
+                permits.acquire(count);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for backup memory");
+            }
+            return taken(count);
+        }
+
+        /**
+         * Take buffers if enough are free right now
+         *
+         * @return the buffers, or null if there aren't enough free
+         */
+        byte[][] tryAcquire(int count) {
+
+            return permits.tryAcquire(count) ? taken(count) : null;
+        }
+
+        /**
+         * Give a buffer back. A buffer given back after the lease is closed is dropped, since its place
+         * in the pool was already given back.
+         */
+        void release(byte[] buffer) {
+
+            synchronized (this) {
+                if (closed)
+                    return;
+                held--;
+            }
+            free.offer(buffer);
+            permits.release();
+        }
+
+        /**
+         * Give back every buffer still held
+         */
+        @Override
+        public void close() {
+
+            int count;
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                count = held;
+                held = 0;
+            }
+            permits.release(count);
+        }
+
+        private byte[][] taken(int count) {
+
+            synchronized (this) {
+                if (closed) {
+                    permits.release(count);
+                    throw new IllegalStateException("The lease is closed");
+                }
+                held += count;
+            }
+            return take(count);
+        }
+    }
+}
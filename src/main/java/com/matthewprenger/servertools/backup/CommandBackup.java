@@ -16,16 +16,30 @@
 
 package com.matthewprenger.servertools.backup;
 
+import com.google.common.base.Joiner;
+import com.google.common.primitives.Ints;
 import com.matthewprenger.servertools.core.command.CommandLevel;
 import com.matthewprenger.servertools.core.command.ServerToolsCommand;
 import com.matthewprenger.servertools.core.util.Util;
 import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
 import net.minecraft.util.EnumChatFormatting;
+import net.minecraftforge.common.DimensionManager;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CommandBackup extends ServerToolsCommand {
 
+    private static final Pattern REGION_PATTERN = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)(\\.mca)?");
+    private static final Pattern CHUNK_PATTERN = Pattern.compile("(-?\\d+),(-?\\d+)");
+    private static final Pattern PAGE_PATTERN = Pattern.compile("\\d+");
+    private static final int PAGE_SIZE = 8;
+
     public CommandBackup(String defaultName) {
         super(defaultName);
     }
@@ -37,19 +51,288 @@ public class CommandBackup extends ServerToolsCommand {
 
     @Override
     public String getCommandUsage(ICommandSender icommandsender) {
-        return "/" + name;
+        return "/" + name + " [set|status|stats|list [filter] [page]|verify [name]|restore <name|latest> <dimension> [r.x.z|chunkX,chunkZ] [live]|cancel]";
+    }
+
+    @Override
+    public List addTabCompletionOptions(ICommandSender sender, String[] args) {
+
+        if (args.length == 1) {
+            List<String> options = new ArrayList<>(Arrays.asList("status", "stats", "list", "verify", "restore", "cancel"));
+            for (BackupSet set : BackupHandler.instance.getSets())
+                options.add(set.name);
+            return getListOfStringsMatchingLastWord(args, options.toArray(new String[options.size()]));
+        }
+
+        if (args.length == 2 && "list".equalsIgnoreCase(args[0])) {
+            List<String> filters = new ArrayList<>(Arrays.asList("full", "incremental"));
+            for (BackupCatalog.Status status : BackupCatalog.Status.values())
+                filters.add(status.name().toLowerCase(Locale.ENGLISH));
+            for (BackupSet set : BackupHandler.instance.getSets())
+                filters.add(set.name);
+            return getListOfStringsMatchingLastWord(args, filters.toArray(new String[filters.size()]));
+        }
+
+        if (args.length == 2 && ("verify".equalsIgnoreCase(args[0]) || "restore".equalsIgnoreCase(args[0]))) {
+            List<String> names = new ArrayList<>();
+            for (BackupSet set : BackupHandler.instance.getSets()) {
+                for (BackupCatalog.Entry backup : set.catalog.getBackups())
+                    names.add(backup.file.getName());
+            }
+            names.add("latest");
+            return getListOfStringsMatchingLastWord(args, names.toArray(new String[names.size()]));
+        }
+
+        if ("restore".equalsIgnoreCase(args[0])) {
+            if (args.length == 3) {
+                Integer[] ids = DimensionManager.getStaticDimensionIDs();
+                String[] names = new String[ids.length];
+                for (int i = 0; i < ids.length; i++)
+                    names[i] = String.valueOf(ids[i]);
+                return getListOfStringsMatchingLastWord(args, names);
+            }
+            if (args.length == 4 || args.length == 5)
+                return getListOfStringsMatchingLastWord(args, "live");
+        }
+
+        return null;
     }
 
     @Override
     public void processCommand(ICommandSender sender, String[] args) {
 
+        if (args.length == 0) {
+            for (BackupSet set : BackupHandler.instance.getSets())
+                startBackup(sender, set);
+        } else if (args.length == 1 && BackupHandler.instance.getSet(args[0]) != null) {
+            startBackup(sender, BackupHandler.instance.getSet(args[0]));
+        } else if ("status".equalsIgnoreCase(args[0])) {
+            showStatus(sender);
+        } else if ("stats".equalsIgnoreCase(args[0])) {
+            showStats(sender);
+        } else if ("list".equalsIgnoreCase(args[0])) {
+            listBackups(sender, args);
+        } else if ("verify".equalsIgnoreCase(args[0])) {
+            verifyBackup(sender, args);
+        } else if ("restore".equalsIgnoreCase(args[0])) {
+            restoreBackup(sender, args);
+        } else if ("cancel".equalsIgnoreCase(args[0])) {
+            cancelBackup(sender);
+        } else {
+            throw new WrongUsageException(getCommandUsage(sender));
+        }
+    }
+
+    private static void startBackup(ICommandSender sender, BackupSet set) {
+
+        BackupJob job = BackupHandler.instance.doBackup(set);
+
+        if (job.getMergedRequests() > 0)
+            sender.addChatMessage(Util.getChatComponent(String.format("A backup is already queued (%s)", job), EnumChatFormatting.YELLOW));
+        else if (job.getState() == BackupJob.State.QUEUED && set.scheduler.getRunning() != job)
+            sender.addChatMessage(Util.getChatComponent(String.format("Queued Backup, it will start when the current one finishes (%s)", job), EnumChatFormatting.GREEN));
+        else
+            sender.addChatMessage(Util.getChatComponent(String.format("Started Backup of %s", set.name), EnumChatFormatting.GREEN));
+    }
+
+    private static void showStatus(ICommandSender sender) {
+
+        for (BackupSet set : BackupHandler.instance.getSets())
+            showStatus(sender, set);
+    }
+
+    private static void showStatus(ICommandSender sender, BackupSet set) {
+
+        BackupScheduler scheduler = set.scheduler;
+        long now = System.currentTimeMillis();
+
+        BackupJob running = scheduler.getRunning();
+        if (running != null)
+            sender.addChatMessage(Util.getChatComponent(String.format("Running: %s, started %s ago, %s",
+                    running, BackupJob.formatDuration(now - running.getStarted()), running.getPhase()), EnumChatFormatting.GREEN));
+        else
+            sender.addChatMessage(Util.getChatComponent(String.format("No backup of %s is running", set.name), EnumChatFormatting.GRAY));
+
+        BackupJob queued = scheduler.getQueued();
+        if (queued != null)
+            sender.addChatMessage(Util.getChatComponent(String.format("Queued: %s, requested %s ago, %s requests merged",
+                    queued, BackupJob.formatDuration(now - queued.getRequested()), queued.getMergedRequests()), EnumChatFormatting.YELLOW));
+
+        BackupJob last = scheduler.getLast();
+        if (last != null)
+            sender.addChatMessage(Util.getChatComponent(String.format("Last: %s %s %s ago, took %s",
+                    last, last.getState().name().toLowerCase(), BackupJob.formatDuration(now - last.getFinished()),
+                    BackupJob.formatDuration(last.getFinished() - last.getStarted())), EnumChatFormatting.GRAY));
+
+        long next = scheduler.getNextScheduled();
+        if (next >= 0)
+            sender.addChatMessage(Util.getChatComponent(String.format("Next scheduled backup of %s in %s", set.name, BackupJob.formatDuration(next - now)), EnumChatFormatting.GRAY));
+
+        int pending = set.shipper != null ? set.shipper.getPendingCount() : 0;
+        if (pending > 0)
+            sender.addChatMessage(Util.getChatComponent(String.format("%s copies to remote targets are waiting to be tried again", pending), EnumChatFormatting.YELLOW));
+    }
+
+    private static void showStats(ICommandSender sender) {
+
+        BackupStats stats = BackupHandler.instance.stats;
+        BackupMetrics last = stats.getLast();
+
+        sender.addChatMessage(Util.getChatComponent(String.format("%s backups made, %s failed, %s kept using %s MB",
+                stats.getBackupCount(), stats.getFailedBackupCount(), stats.getBackupsKept(),
+                stats.getBackupDirectorySize() / org.apache.commons.io.FileUtils.ONE_MB), EnumChatFormatting.GREEN));
+
+        if (last == null) {
+            sender.addChatMessage(Util.getChatComponent("No backup has finished since the server started", EnumChatFormatting.GRAY));
+            return;
+        }
+
+        sender.addChatMessage(Util.getChatComponent(String.format("Last: %s %s, took %s",
+                last.getName(), stats.getLastOutcome(), BackupJob.formatDuration(last.getDurationMillis())), EnumChatFormatting.GRAY));
+        sender.addChatMessage(Util.getChatComponent(String.format("Phases: flush %s ms, snapshot %s ms, walk %s ms, compress %s ms, write %s ms, retention %s ms",
+                stats.getLastFlushMillis(), stats.getLastSnapshotMillis(), stats.getLastWalkMillis(), stats.getLastCompressMillis(),
+                stats.getLastWriteMillis(), stats.getLastRetentionMillis()), EnumChatFormatting.GRAY));
+        sender.addChatMessage(Util.getChatComponent(String.format("Read %s MB, wrote %s MB (%.2fx), %s files at %.1f files/s",
+                last.getBytesRead() / org.apache.commons.io.FileUtils.ONE_MB, last.getBytesWritten() / org.apache.commons.io.FileUtils.ONE_MB,
+                last.getCompressionRatio(), last.getFiles(), last.getFilesPerSecond()), EnumChatFormatting.GRAY));
+        sender.addChatMessage(Util.getChatComponent(String.format("Saving paused for %s ms, TPS %.1f before, %.1f during, %.1f at worst",
+                last.getPausedMillis(), BackupMetrics.toTps(last.getTickMillisBefore()), BackupMetrics.toTps(last.getTickMillisDuring()),
+                BackupMetrics.toTps(last.getTickMillisMax())), EnumChatFormatting.GRAY));
+    }
+
+    private static void listBackups(ICommandSender sender, String[] args) {
+
+        int last = args.length;
+        int page = 1;
+        if (last > 1 && PAGE_PATTERN.matcher(args[last - 1]).matches())
+            page = parseIntWithMin(sender, args[--last], 1);
+
+        String filter = last > 1 ? Joiner.on(' ').join(Arrays.copyOfRange(args, 1, last)) : null;
+        List<BackupCatalog.Entry> backups = BackupHandler.instance.listBackups(filter);
+
+        if (backups.isEmpty()) {
+            sender.addChatMessage(Util.getChatComponent(filter != null ? String.format("No backups match %s", filter) : "There are no backups",
+                    EnumChatFormatting.YELLOW));
+            return;
+        }
+
+        int pages = (backups.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+        page = Math.min(page, pages);
+        int from = (page - 1) * PAGE_SIZE;
+        int to = Math.min(from + PAGE_SIZE, backups.size());
+
+        sender.addChatMessage(Util.getChatComponent(String.format("Backups %s-%s of %s, newest first (page %s of %s)",
+                from + 1, to, backups.size(), page, pages), EnumChatFormatting.GREEN));
+
+        for (BackupCatalog.Entry backup : backups.subList(from, to)) {
+            StringBuilder line = new StringBuilder(backup.file.getName()).append(": ").append(backup.getType());
+            if (backup.parent != null)
+                line.append(" on ").append(backup.parent);
+            line.append(", ").append((backup.bytesWritten >= 0 ? backup.bytesWritten : backup.size) / org.apache.commons.io.FileUtils.ONE_MB).append(" MB");
+            if (backup.durationMillis >= 0)
+                line.append(", took ").append(BackupJob.formatDuration(backup.durationMillis));
+            if (backup.dimensions.length > 0)
+                line.append(", dimensions ").append(Ints.join(" ", backup.dimensions));
+            line.append(", ").append(backup.getStatus().name().toLowerCase(Locale.ENGLISH));
+
+            sender.addChatMessage(Util.getChatComponent(line.toString(),
+                    backup.getStatus() == BackupCatalog.Status.DAMAGED ? EnumChatFormatting.RED : EnumChatFormatting.GRAY));
+        }
+    }
+
+    private static void verifyBackup(ICommandSender sender, String[] args) {
+
+        BackupCatalog.Entry backup;
+
+        if (args.length > 1) {
+            String name = Joiner.on(' ').join(Arrays.copyOfRange(args, 1, args.length));
+            backup = BackupHandler.instance.findBackup(name);
+            if (backup == null) {
+                sender.addChatMessage(Util.getChatComponent(String.format("No backup named %s", name), EnumChatFormatting.RED));
+                return;
+            }
+        } else {
+            backup = BackupHandler.instance.getLatestBackup();
+            if (backup == null) {
+                sender.addChatMessage(Util.getChatComponent("There are no backups to verify", EnumChatFormatting.YELLOW));
+                return;
+            }
+        }
+
+        if (BackupHandler.instance.verifyBackup(backup.file, sender))
+            sender.addChatMessage(Util.getChatComponent(String.format("Verifying %s in the background", backup.file.getName()), EnumChatFormatting.GREEN));
+        else
+            sender.addChatMessage(Util.getChatComponent("Backups can't be verified while the server is stopping", EnumChatFormatting.RED));
+    }
+
+    private void restoreBackup(ICommandSender sender, String[] args) {
+
+        if (args.length < 3 || args.length > 5)
+            throw new WrongUsageException(getCommandUsage(sender));
+
+        int dimension = parseInt(sender, args[2]);
+        BackupCatalog.Entry backup = "latest".equalsIgnoreCase(args[1]) ? BackupHandler.instance.getSetFor(dimension).catalog.getLatest()
+                : BackupHandler.instance.findBackup(args[1]);
+        if (backup == null) {
+            sender.addChatMessage(Util.getChatComponent(String.format("No backup named %s", args[1]), EnumChatFormatting.RED));
+            return;
+        }
+
+        boolean live = "live".equalsIgnoreCase(args[args.length - 1]);
+        int last = live ? args.length - 1 : args.length;
+        if (last > 4)
+            throw new WrongUsageException(getCommandUsage(sender));
+
+        String region = null;
+        int chunk = -1;
+
+        if (last == 4) {
+            Matcher matcher;
+            if ((matcher = REGION_PATTERN.matcher(args[3])).matches()) {
+                region = String.format("r.%s.%s.mca", parseInt(sender, matcher.group(1)), parseInt(sender, matcher.group(2)));
+            } else if ((matcher = CHUNK_PATTERN.matcher(args[3])).matches()) {
+                int chunkX = parseInt(sender, matcher.group(1));
+                int chunkZ = parseInt(sender, matcher.group(2));
+                region = String.format("r.%s.%s.mca", chunkX >> 5, chunkZ >> 5);
+                chunk = (chunkX & 31) + (chunkZ & 31) * 32;
+            } else {
+                throw new WrongUsageException(getCommandUsage(sender));
+            }
+        }
+
+        if (live && DimensionManager.getWorld(dimension) != null) {
+            sender.addChatMessage(Util.getChatComponent(String.format("Dimension %s is loaded, it can only be restored into the world while it's unloaded",
+                    dimension), EnumChatFormatting.RED));
+            return;
+        }
+
+        boolean started;
         try {
-            BackupHandler.instance.doBackup();
-        } catch (IOException e) {
-            ServerToolsBackup.log.warn("Backup failed", e);
-            sender.addChatMessage(Util.getChatComponent("Backup Failed: " + e.getMessage(), EnumChatFormatting.RED));
+            started = BackupHandler.instance.restoreBackup(backup.file, dimension, region, chunk, live, sender);
+        } catch (IllegalArgumentException e) {
+            sender.addChatMessage(Util.getChatComponent(e.getMessage(), EnumChatFormatting.RED));
+            return;
+        }
+
+        if (started)
+            sender.addChatMessage(Util.getChatComponent(String.format("Restoring %s of dimension %s from %s in the background",
+                    chunk >= 0 ? "chunk " + args[3] : region != null ? region : "all files", dimension, backup.file.getName()), EnumChatFormatting.GREEN));
+        else
+            sender.addChatMessage(Util.getChatComponent("Backups can't be restored while the server is stopping", EnumChatFormatting.RED));
+    }
+
+    private static void cancelBackup(ICommandSender sender) {
+
+        List<BackupJob> cancelled = new ArrayList<>();
+        for (BackupSet set : BackupHandler.instance.getSets())
+            cancelled.addAll(set.scheduler.cancel());
+
+        if (cancelled.isEmpty()) {
+            sender.addChatMessage(Util.getChatComponent("No backup to cancel", EnumChatFormatting.YELLOW));
+            return;
         }
 
-        sender.addChatMessage(Util.getChatComponent("Started Backup", EnumChatFormatting.GREEN));
+        for (BackupJob job : cancelled)
+            sender.addChatMessage(Util.getChatComponent(String.format("Cancelled %s", job), EnumChatFormatting.GREEN));
     }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A content addressed object store used by incremental backups.
+ *
+ * Every object is named by the SHA-1 of its uncompressed content and lives at
+ * {@code <root>/<first two hex digits>/<hash>}, so identical content is only ever stored once.
+ * Each object starts with a single byte naming the storage method ({@link #METHOD_STORED} or
+ * {@link #METHOD_DEFLATED}) followed by the data.
+ *
+ * New objects aren't synced to the disk one by one. They are synced together by {@link #sync()}, which has
+ * to be called before a manifest naming them is written, so an object cut short by a crash is never named
+ * by a manifest and is deleted by the next {@link #collectGarbage(Set, Collection) cleanup}.
+ */
+class ContentStore {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    /**
+     * The number of new objects held back before they are synced anyway, bounding what is remembered
+     */
+    private static final int SYNC_BATCH = 16384;
+
+    private final File root;
+    private final AtomicLong bytesAdded = new AtomicLong();
+    private final Queue<String> unsynced = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger unsyncedCount = new AtomicInteger();
+
+    public ContentStore(File root) {
+
+        this.root = root;
+    }
+
+    public File getRoot() {
+
+        return root;
+    }
+
+    /**
+     * @return the number of bytes of new objects this instance has added to the store
+     */
+    public long getBytesAdded() {
+
+        return bytesAdded.get();
+    }
+
+    public boolean contains(String hash) {
+
+        return getObjectFile(hash).isFile();
+    }
+
+    /**
+     * Add the contents of a file to the store. The file is only read once; it is hashed
+     * while being copied into a temporary object, which is discarded if the content is already stored.
+     *
+     * @param file   the file to store
+     * @param method the storage method for a new object
+     * @return the hash of the file content
+     */
+    public String put(File file, int method) throws IOException {
+
+        return put(file, method, new byte[BUFFER_SIZE]);
+    }
+
+    /**
+     * Add the contents of a file to the store, copying it through the caller's buffer
+     *
+     * @param buffer the buffer to copy through, of any size
+     * @see #put(File, int)
+     */
+    public String put(File file, int method, byte[] buffer) throws IOException {
+
+        try (InputStream in = new FileInputStream(file)) {
+            return put(in, method, buffer);
+        }
+    }
+
+    /**
+     * Add the content of a stream to the store
+     *
+     * @param in     the content, read to the end but not closed
+     * @param method the storage method for a new object
+     * @return the hash of the content
+     */
+    public String put(InputStream in, int method) throws IOException {
+
+        return put(in, method, new byte[BUFFER_SIZE]);
+    }
+
+    private String put(InputStream in, int method, byte[] buffer) throws IOException {
+
+        root.mkdirs();
+        File temp = File.createTempFile("object", TEMP_SUFFIX, root);
+
+        try {
+            MessageDigest digest = newDigest();
+            DigestInputStream digestIn = new DigestInputStream(in, digest);
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE)) {
+                out.write(method);
+                if (method == METHOD_DEFLATED) {
+                    Deflater deflater = new Deflater();
+                    try {
+                        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                        copy(digestIn, deflaterOut, buffer);
+                        deflaterOut.finish();
+                    } finally {
+                        deflater.end();
+                    }
+                } else {
+                    copy(digestIn, out, buffer);
+                }
+            }
+
+            String hash = HEX.encode(digest.digest());
+            moveIntoStore(temp, hash);
+            return hash;
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    /**
+     * Add the content of a buffer to the store. Stored content is hashed first and
+     * only written out if the store doesn't have it yet.
+     *
+     * @param data   the content, from its position to its limit. The buffer itself isn't changed.
+     * @param method the storage method for a new object
+     * @return the hash of the content
+     */
+    public String put(ByteBuffer data, int method) throws IOException {
+
+        if (method != METHOD_STORED) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return put(new ByteArrayInputStream(bytes), method);
+        }
+
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        String hash = HEX.encode(digest.digest());
+
+        if (contains(hash))
+            return hash;
+
+        root.mkdirs();
+        File temp = File.createTempFile("object", TEMP_SUFFIX, root);
+
+        try {
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {ByteBuffer.wrap(new byte[]{METHOD_STORED}), data.duplicate()};
+                while (buffers[1].hasRemaining())
+                    out.write(buffers);
+            }
+
+            moveIntoStore(temp, hash);
+            return hash;
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    /**
+     * Move a new object into place, leaving it to be synced with the others by {@link #sync()}
+     */
+    private void moveIntoStore(File temp, String hash) throws IOException {
+
+        File object = getObjectFile(hash);
+
+        if (!object.isFile()) {
+            object.getParentFile().mkdirs();
+            long length = temp.length();
+            try {
+                FileIO.rename(temp, object);
+                bytesAdded.addAndGet(length);
+            } catch (IOException e) {
+                // Another thread stored the same content first
+                if (!object.isFile())
+                    throw new IOException("Failed to move object into the store: " + object, e);
+                return;
+            }
+
+            unsynced.add(hash);
+            if (unsyncedCount.incrementAndGet() >= SYNC_BATCH)
+                sync();
+        }
+    }
+
+    /**
+     * Sync every object this instance added since the last call to the disk, then the directories
+     * they were added to, each once. Must be called before a manifest naming the objects is written.
+     */
+    public synchronized void sync() throws IOException {
+
+        Set<File> directories = new HashSet<>();
+
+        String hash;
+        while ((hash = unsynced.poll()) != null) {
+            unsyncedCount.decrementAndGet();
+            File object = getObjectFile(hash);
+            FileIO.syncFile(object);
+            directories.add(object.getParentFile());
+        }
+
+        for (File directory : directories)
+            FileIO.syncDirectory(directory);
+        if (!directories.isEmpty())
+            FileIO.syncDirectory(root);
+    }
+
+    /**
+     * Open a stored object for reading
+     *
+     * @param hash the object hash
+     * @return a stream of the uncompressed content
+     * @throws FileNotFoundException if the object isn't in the store
+     */
+    public InputStream open(String hash) throws IOException {
+
+        InputStream in = new BufferedInputStream(new FileInputStream(getObjectFile(hash)), BUFFER_SIZE);
+
+        try {
+            int method = in.read();
+            if (method == METHOD_DEFLATED)
+                return new InflaterInputStream(in);
+            if (method == METHOD_STORED)
+                return in;
+            throw new IOException(String.format("Object %s has an unknown storage method %s", hash, method));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Delete every object that isn't referenced, and the temporary files of puts that never finished.
+     * Must not run while objects are being added.
+     *
+     * @param live    the hashes of all objects still referenced by a manifest
+     * @param deleted collects the hashes of the objects deleted, may be null
+     * @return the number of bytes freed
+     */
+    public long collectGarbage(Set<String> live, Collection<String> deleted) {
+
+        long freed = 0;
+
+        File[] buckets = root.listFiles();
+        if (buckets == null)
+            return 0;
+
+        for (File bucket : buckets) {
+            if (bucket.isFile() && bucket.getName().endsWith(TEMP_SUFFIX)) {
+                bucket.delete();
+                continue;
+            }
+
+            File[] objects = bucket.listFiles();
+            if (objects == null)
+                continue;
+
+            for (File object : objects) {
+                if (object.getName().endsWith(TEMP_SUFFIX) || live.contains(object.getName()))
+                    continue;
+
+                long length = object.length();
+                if (object.delete()) {
+                    freed += length;
+                    if (deleted != null)
+                        deleted.add(object.getName());
+                }
+            }
+
+            String[] remaining = bucket.list();
+            if (remaining != null && remaining.length == 0)
+                bucket.delete();
+        }
+
+        return freed;
+    }
+
+    File getObjectFile(String hash) {
+
+        return new File(new File(root, hash.substring(0, 2)), hash);
+    }
+
+    static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+
+        return HEX.encode(bytes);
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+
+        int count;
+        while ((count = in.read(buffer)) >= 0)
+            out.write(buffer, 0, count);
+    }
+}
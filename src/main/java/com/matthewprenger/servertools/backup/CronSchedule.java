@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A cron style schedule with the usual five fields: minute, hour, day of month, month and day of week.
+ *
+ * Each field may be {@code *}, a number, a range ({@code 1-5}), a step ({@code *}{@code /15} or {@code 0-30/10})
+ * or a comma separated list of those. Day of week runs from 0 (Sunday) to 7 (also Sunday).
+ * As in cron, if both day of month and day of week are restricted, a day matching either one will do.
+ */
+class CronSchedule {
+
+    private static final int MAX_MINUTES_AHEAD = 366 * 24 * 60 * 5;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+    private final TimeZone timeZone;
+
+    private CronSchedule(String expression, String[] fields, TimeZone timeZone) {
+
+        this.expression = expression;
+        this.minutes = parseField(fields[0], 0, 59);
+        this.hours = parseField(fields[1], 0, 23);
+        this.daysOfMonth = parseField(fields[2], 1, 31);
+        this.months = parseField(fields[3], 1, 12);
+        this.daysOfWeek = parseField(fields[4], 0, 7);
+        this.anyDayOfMonth = fields[2].equals("*");
+        this.anyDayOfWeek = fields[4].equals("*");
+        this.timeZone = timeZone;
+
+        if (daysOfWeek.get(7))
+            daysOfWeek.set(0);
+    }
+
+    /**
+     * Parse a cron expression in the server's time zone
+     *
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    static CronSchedule parse(String expression) {
+
+        return parse(expression, TimeZone.getDefault());
+    }
+
+    static CronSchedule parse(String expression, TimeZone timeZone) {
+
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5)
+            throw new IllegalArgumentException(String.format("Cron expression '%s' must have 5 fields", expression));
+
+        return new CronSchedule(expression.trim(), fields, timeZone);
+    }
+
+    /**
+     * Find the next time this schedule fires
+     *
+     * @param after a time in milliseconds
+     * @return the first matching minute strictly after the given time, or -1 if there is none within five years
+     */
+    long next(long after) {
+
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(after);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MINUTE, 1);
+
+        for (int i = 0; i < MAX_MINUTES_AHEAD; i++) {
+            if (!months.get(calendar.get(Calendar.MONTH) + 1)) {
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.MONTH, 1);
+            } else if (!matchesDay(calendar)) {
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+            } else if (!hours.get(calendar.get(Calendar.HOUR_OF_DAY))) {
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.add(Calendar.HOUR_OF_DAY, 1);
+            } else if (!minutes.get(calendar.get(Calendar.MINUTE))) {
+                calendar.add(Calendar.MINUTE, 1);
+            } else {
+                return calendar.getTimeInMillis();
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean matchesDay(Calendar calendar) {
+
+        boolean dayOfMonth = daysOfMonth.get(calendar.get(Calendar.DAY_OF_MONTH));
+        boolean dayOfWeek = daysOfWeek.get(calendar.get(Calendar.DAY_OF_WEEK) - 1);
+
+        if (anyDayOfMonth || anyDayOfWeek)
+            return dayOfMonth && dayOfWeek;
+
+        return dayOfMonth || dayOfWeek;
+    }
+
+    private static BitSet parseField(String field, int min, int max) {
+
+        BitSet bits = new BitSet(max + 1);
+
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = Integer.parseInt(part.substring(slash + 1));
+                part = part.substring(0, slash);
+                if (step <= 0)
+                    throw new IllegalArgumentException("Step must be positive: " + field);
+            }
+
+            int start;
+            int end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    start = Integer.parseInt(part.substring(0, dash));
+                    end = Integer.parseInt(part.substring(dash + 1));
+                } else {
+                    start = Integer.parseInt(part);
+                    end = slash >= 0 ? max : start;
+                }
+            }
+
+            if (start < min || end > max || start > end)
+                throw new IllegalArgumentException(String.format("Value out of range %s-%s: %s", min, max, field));
+
+            for (int i = start; i <= end; i += step)
+                bits.set(i);
+        }
+
+        return bits;
+    }
+
+    @Override
+    public String toString() {
+
+        return expression;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A backup target on a directory, such as a second disk or a mounted network share.
+ *
+ * Objects are written under a temporary name, synced and then renamed into place, so a copy
+ * that is cut off part way never shows up under its real name. Parts of an upload are written
+ * straight to their place in the temporary file, so they can arrive in any order.
+ */
+class DirectoryTarget extends BackupTarget {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String UPLOAD_SUFFIX = ".upload";
+
+    private final File root;
+
+    DirectoryTarget(File root) {
+
+        this.root = root;
+    }
+
+    @Override
+    void put(String key, byte[] data, int offset, int length) throws IOException {
+
+        File target = getFile(key);
+        File temp = new File(target.getPath() + PART_SUFFIX);
+        makeParent(target);
+
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+
+        moveIntoPlace(temp, target);
+    }
+
+    @Override
+    Upload startUpload(String key, final int partSize) throws IOException {
+
+        final File target = getFile(key);
+        final File temp = new File(target.getPath() + UPLOAD_SUFFIX);
+        makeParent(target);
+
+        final FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        return new Upload() {
+
+            private long length;
+
+            @Override
+            public void putPart(int number, byte[] data, int offset, int count) throws IOException {
+
+                long position = (long) (number - 1) * partSize;
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+                while (buffer.hasRemaining())
+                    channel.write(buffer, position + buffer.position() - offset);
+
+                synchronized (this) {
+                    length = Math.max(length, position + count);
+                }
+            }
+
+            @Override
+            public synchronized void complete(int parts) throws IOException {
+
+                channel.truncate(length);
+                channel.force(true);
+                channel.close();
+                moveIntoPlace(temp, target);
+            }
+
+            @Override
+            public void abort() {
+
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                temp.delete();
+            }
+        };
+    }
+
+    @Override
+    boolean exists(String key) {
+
+        return getFile(key).isFile();
+    }
+
+    @Override
+    void delete(String key) throws IOException {
+
+        Files.deleteIfExists(getFile(key).toPath());
+    }
+
+    private File getFile(String key) {
+
+        return new File(root, key.replace('/', File.separatorChar));
+    }
+
+    private void makeParent(File file) throws IOException {
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            if (!root.isDirectory())
+                throw new FileNotFoundException(String.format("The backup target %s isn't available", root));
+            throw new IOException(String.format("Failed to create %s", parent));
+        }
+    }
+
+    private static void moveIntoPlace(File temp, File target) throws IOException {
+
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return root.getPath();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The region files of a backup set that have been saved to since its last incremental backup, recorded as
+ * chunks are saved so an incremental backup knows which region files changed without listing or reading the others.
+ *
+ * Regions are kept per region directory, as the path of the directory from the set's source directory, in a set
+ * of packed region coordinates. The record is only complete if the server has been tracking since the backup it
+ * starts from: it's saved when the server stops and deleted when it's loaded again, so after a crash there's
+ * nothing to load and the next backup reads the world as before.
+ */
+class DirtyRegions {
+
+    static final String FILE_NAME = "dirty-regions.dat";
+
+    private static final String HEADER = "ServerTools-Backup-DirtyRegions 1";
+
+    private final File file;
+    private final Map<String, LongSet> regions = new HashMap<>();
+
+    /**
+     * The file name of the backup the regions were saved to since, or null if saves weren't tracked since a backup
+     */
+    private String since;
+
+    /**
+     * @param file the file the regions are kept in while the server is stopped
+     */
+    DirtyRegions(File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Load the regions saved before the server last stopped, then delete them, since saves from now on
+     * are only on record if the server stops cleanly again
+     */
+    synchronized void load() throws IOException {
+
+        if (!file.isFile())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!HEADER.equals(in.readUTF()))
+                throw new IOException("Not a dirty regions file");
+
+            String backup = in.readUTF();
+            for (int i = in.readInt(); i > 0; i--) {
+                LongSet set = getSet(in.readUTF());
+                for (int j = in.readInt(); j > 0; j--)
+                    set.add(in.readLong());
+            }
+            since = backup;
+        } finally {
+            if (!file.delete() && file.exists())
+                throw new IOException(String.format("Failed to delete %s", file));
+            FileIO.syncDirectory(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * Save the regions, to be loaded when the server starts again. Nothing is saved if saves weren't
+     * tracked since a backup.
+     */
+    synchronized void save() throws IOException {
+
+        if (since == null)
+            return;
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeUTF(HEADER);
+            out.writeUTF(since);
+            out.writeInt(regions.size());
+            for (Map.Entry<String, LongSet> entry : regions.entrySet()) {
+                long[] keys = entry.getValue().toArray();
+                out.writeUTF(entry.getKey());
+                out.writeInt(keys.length);
+                for (long key : keys)
+                    out.writeLong(key);
+            }
+        }
+
+        FileIO.moveIntoPlace(temp, file);
+    }
+
+    /**
+     * Record that a chunk was saved
+     *
+     * @param directory the region directory of the chunk's dimension, from the set's source directory
+     * @param chunkX    the chunk's x coordinate
+     * @param chunkZ    the chunk's z coordinate
+     */
+    synchronized void markChunk(String directory, int chunkX, int chunkZ) {
+
+        getSet(directory).add(key(chunkX >> 5, chunkZ >> 5));
+    }
+
+    /**
+     * Take the regions saved to since the last backup, starting a new record for a backup
+     *
+     * @param backup      the file name of the backup about to be made
+     * @param directories the region directories that every save is recorded for, from the set's source directory
+     * @return the regions, which can only be used once they're narrowed down with {@link Changes#since}
+     */
+    synchronized Changes take(String backup, Set<String> directories) {
+
+        Map<String, LongSet> taken = new HashMap<>(regions);
+        regions.clear();
+
+        Changes changes = new Changes(since, directories, taken);
+        since = backup;
+        return changes;
+    }
+
+    /**
+     * Stop trusting the record until the next backup, such as when region files were changed some other way
+     */
+    synchronized void forget() {
+
+        since = null;
+    }
+
+    /**
+     * Put back regions taken for a backup that failed, so the next backup picks them up
+     */
+    synchronized void putBack(Changes changes) {
+
+        for (Map.Entry<String, LongSet> entry : changes.regions.entrySet())
+            getSet(entry.getKey()).addAll(entry.getValue());
+        since = changes.since;
+    }
+
+    private LongSet getSet(String directory) {
+
+        LongSet set = regions.get(directory);
+        if (set == null) {
+            set = new LongSet();
+            regions.put(directory, set);
+        }
+        return set;
+    }
+
+    private static long key(int regionX, int regionZ) {
+
+        return (long) regionX << 32 | regionZ & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the packed coordinates of a region file, or {@link LongSet#EMPTY} if the name isn't that of a region file
+     */
+    static long parseRegionName(String name) {
+
+        // r.<x>.<z>.mca
+        if (!name.startsWith("r.") || !AnvilRegion.isRegionFile(name))
+            return LongSet.EMPTY;
+
+        int dot = name.indexOf('.', 2);
+        int end = name.length() - 4;
+        if (dot < 0 || dot >= end)
+            return LongSet.EMPTY;
+
+        try {
+            return key(Integer.parseInt(name.substring(2, dot)), Integer.parseInt(name.substring(dot + 1, end)));
+        } catch (NumberFormatException e) {
+            return LongSet.EMPTY;
+        }
+    }
+
+    /**
+     * The regions saved to between two backups
+     */
+    static class Changes {
+
+        private final String since;
+        private final Set<String> directories;
+        private final Map<String, LongSet> regions;
+
+        private Changes(String since, Set<String> directories, Map<String, LongSet> regions) {
+
+            this.since = since;
+            this.directories = Collections.unmodifiableSet(directories);
+            this.regions = regions;
+        }
+
+        /**
+         * Narrow the changes down to what a backup built on a previous backup can use
+         *
+         * @param previousFile the manifest of the previous backup, or null if there is none
+         * @param previous     that manifest
+         * @return the changes to the region directories the manifest has, or null if the saves since that backup aren't all recorded
+         */
+        Changes since(File previousFile, BackupManifest previous) {
+
+            if (since == null || previousFile == null || previous == null || !since.equals(previousFile.getName()))
+                return null;
+
+            Set<String> known = new HashSet<>();
+            for (String directory : directories) {
+                BackupManifest.Entry entry = previous.get(directory);
+                if (entry != null && entry.directory)
+                    known.add(directory);
+            }
+
+            return new Changes(since, known, regions);
+        }
+
+        /**
+         * @return the region directories whose saves are all recorded, from the set's source directory
+         */
+        Set<String> getDirectories() {
+
+            return directories;
+        }
+
+        /**
+         * @param directory a region directory from {@link #getDirectories}
+         * @param name      the path of a file from that directory
+         * @return false if the file is a region file that wasn't saved to, true for anything that may have changed
+         */
+        boolean isChanged(String directory, String name) {
+
+            long key = parseRegionName(name);
+            if (key == LongSet.EMPTY)
+                return true;
+
+            LongSet set = regions.get(directory);
+            return set != null && set.contains(key);
+        }
+
+        /**
+         * @return the names of the region files saved to in a region directory
+         */
+        List<String> getChangedFiles(String directory) {
+
+            LongSet set = regions.get(directory);
+            if (set == null)
+                return Collections.emptyList();
+
+            long[] keys = set.toArray();
+            List<String> names = new ArrayList<>(keys.length);
+            for (long key : keys)
+                names.add(String.format("r.%d.%d.mca", (int) (key >> 32), (int) key));
+            return names;
+        }
+
+        /**
+         * @return the number of region files saved to
+         */
+        int getChangedCount() {
+
+            int count = 0;
+            for (LongSet set : regions.values())
+                count += set.size();
+            return count;
+        }
+    }
+
+    /**
+     * A set of longs in a single open addressed array. {@link #EMPTY} marks a free slot and can't be added,
+     * which is fine for region coordinates since no region has an x of {@link Integer#MIN_VALUE}.
+     */
+    static final class LongSet {
+
+        static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys = newTable(16);
+        private int size;
+
+        void add(long key) {
+
+            if (key == EMPTY)
+                throw new IllegalArgumentException("The empty key can't be added");
+
+            if ((size + 1) * 4 > keys.length * 3)
+                resize(keys.length * 2);
+
+            int slot = find(keys, key);
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                size++;
+            }
+        }
+
+        void addAll(LongSet other) {
+
+            for (long key : other.keys) {
+                if (key != EMPTY)
+                    add(key);
+            }
+        }
+
+        boolean contains(long key) {
+
+            return key != EMPTY && keys[find(keys, key)] == key;
+        }
+
+        int size() {
+
+            return size;
+        }
+
+        long[] toArray() {
+
+            long[] array = new long[size];
+            int i = 0;
+            for (long key : keys) {
+                if (key != EMPTY)
+                    array[i++] = key;
+            }
+            return array;
+        }
+
+        private void resize(int capacity) {
+
+            long[] table = newTable(capacity);
+            for (long key : keys) {
+                if (key != EMPTY)
+                    table[find(table, key)] = key;
+            }
+            keys = table;
+        }
+
+        /**
+         * @return the slot holding the key, or the free slot it would go in
+         */
+        private static int find(long[] table, long key) {
+
+            int mask = table.length - 1;
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash ^ hash >>> 32) & mask;
+            while (table[slot] != EMPTY && table[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private static long[] newTable(int capacity) {
+
+            long[] table = new long[capacity];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+    }
+}
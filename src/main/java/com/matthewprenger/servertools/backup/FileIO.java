@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Channel based file helpers shared by the archivers
+ */
+final class FileIO {
+
+    /**
+     * Files at least this large are memory mapped rather than read when their layout is parsed
+     */
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * The number of transfers or writes in a row that may make no progress before giving up on them
+     */
+    private static final int MAX_STALLS = 8;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> threadBuffer = new ThreadLocal<>();
+
+    private FileIO() {}
+
+    /**
+     * Get a buffer owned by the calling thread, reused across calls. Heap arrays are used because
+     * {@link java.util.zip.Deflater} and {@link java.util.zip.CRC32} can only read from arrays.
+     *
+     * @param size the minimum size of the buffer
+     */
+    static byte[] threadBuffer(int size) {
+
+        byte[] buffer = threadBuffer.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            threadBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Read from a position in a channel until the buffer is full or the end of the file
+     *
+     * @return the number of bytes read
+     */
+    static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position + total);
+            if (count < 0)
+                break;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Copy part of a file into a channel. Uses {@link FileChannel#transferTo}, so the data
+     * goes straight from the page cache to the target where the operating system allows.
+     * If the transfer keeps making no progress, the rest is copied through a buffer instead.
+     *
+     * @throws EOFException if the file ends before count bytes were transferred
+     * @throws IOException  if the target stops taking data, such as a non-blocking channel that stays full
+     */
+    static void transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+
+        long transferred = 0;
+        int stalls = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, target);
+            if (n > 0) {
+                transferred += n;
+                stalls = 0;
+                continue;
+            }
+
+            if (position + transferred >= source.size())
+                throw new EOFException("File shrank while it was being copied");
+            if (++stalls == MAX_STALLS) {
+                copyThroughBuffer(source, position + transferred, count - transferred, target);
+                return;
+            }
+        }
+    }
+
+    private static void copyThroughBuffer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear();
+            if (count - copied < buffer.remaining())
+                buffer.limit((int) (count - copied));
+            if (read(source, buffer, position + copied) < buffer.limit())
+                throw new EOFException("File shrank while it was being copied");
+            buffer.flip();
+
+            int stalls = 0;
+            while (buffer.hasRemaining()) {
+                if (target.write(buffer) > 0)
+                    stalls = 0;
+                else if (++stalls == MAX_STALLS)
+                    throw new IOException("The target isn't taking any more data");
+            }
+            copied += buffer.limit();
+        }
+    }
+
+    /**
+     * Read part of a file as a stream. The stream uses positional reads, so several can be open
+     * on the same channel at once, and skipping is free. Closing the stream leaves the channel open.
+     *
+     * @param position where the part starts
+     * @param length   the length of the part
+     */
+    static InputStream newInputStream(final FileChannel channel, final long position, final long length) {
+
+        return new InputStream() {
+
+            private long offset;
+
+            @Override
+            public int read() throws IOException {
+
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+
+                if (offset >= length)
+                    return -1;
+
+                int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, length - offset)), position + offset);
+                if (count < 0)
+                    throw new EOFException("File ends before the part being read");
+                offset += count;
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+
+                long skipped = Math.max(0, Math.min(n, length - offset));
+                offset += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+
+                return (int) Math.min(Integer.MAX_VALUE, length - offset);
+            }
+        };
+    }
+
+    /**
+     * Copy a file, keeping its modification time
+     *
+     * @return the number of bytes copied
+     */
+    static long copy(File source, File target) throws IOException {
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            transfer(in, 0, size, out);
+            target.setLastModified(source.lastModified());
+            return size;
+        }
+    }
+
+    /**
+     * Put a completely written file in place under its real name. The data is synced to the disk before
+     * the rename, and the rename is synced after, so after a crash the target is either whole or missing.
+     */
+    static void moveIntoPlace(File temp, File target) throws IOException {
+
+        syncFile(temp);
+        rename(temp, target);
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Rename a file over its target in one step where the file system allows it, without syncing anything
+     */
+    static void rename(File temp, File target) throws IOException {
+
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Sync a file's data to the disk
+     */
+    static void syncFile(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Sync a directory's entries to the disk, so files created or renamed in it survive a crash
+     */
+    static void syncDirectory(File directory) {
+
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // Not every platform can open a directory, those that can't don't need it synced
+        }
+    }
+
+    /**
+     * Add up the size of every file under a directory. Files that can't be read are left out.
+     */
+    static long sizeOf(File directory) {
+
+        final long[] size = {0};
+
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ignored) {
+            // Keep what was counted
+        }
+
+        return size[0];
+    }
+
+    /**
+     * Map a whole file read only
+     */
+    static MappedByteBuffer map(FileChannel channel) throws IOException {
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Release a mapped buffer right away instead of waiting for it to be garbage collected.
+     * The buffer must not be used afterwards. Does nothing if the JVM doesn't allow it.
+     */
+    static void unmap(ByteBuffer buffer) {
+
+        if (buffer == null || !buffer.isDirect())
+            return;
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception ignored) {
+            // Left for the garbage collector
+        }
+    }
+
+    /**
+     * @param name            a file name
+     * @param storedExtensions extensions (without the dot, lower case) of files whose content is already compressed
+     * @return true if the file should be stored without compressing it again
+     */
+    static boolean isStored(String name, Set<String> storedExtensions) {
+
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+}
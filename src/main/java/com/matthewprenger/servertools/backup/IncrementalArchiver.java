@@ -0,0 +1,541 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes incremental backups. Files whose size and modification time match the previous
+ * manifest are not read at all; everything else is hashed into the {@link ContentStore},
+ * which only keeps content it hasn't seen before. The resulting manifest still lists
+ * every file, so any single manifest can rebuild the whole world.
+ *
+ * Region files can also be stored chunk by chunk, so that a region with a single changed
+ * chunk only adds that chunk to the store. A chunk is only read if its timestamp differs
+ * from the previous backup, or is recent enough that it may have been saved again since.
+ * Large region files are memory mapped, and chunk records go into the store straight from the mapping.
+ * Everything else is read through buffers from a shared {@link BufferPool}, one per file being stored;
+ * when they're all in use the walk waits for a file to finish, so files aren't listed far ahead of the hashing.
+ *
+ * When the region files saved to since the previous backup are known from {@link DirtyRegions}, the other
+ * region files aren't even listed, so the work done grows with what changed rather than with the world.
+ *
+ * Objects the previous manifest refers to are reused without looking for them in the store. The caller holds
+ * the store's read lock and makes sure the manifest is still a backup, so none of them can have been collected.
+ */
+class IncrementalArchiver {
+
+    private final ContentStore store;
+    private final int threads;
+    private final PathFilter filter;
+    private final boolean regionChunks;
+    private final Set<String> storedExtensions;
+    private final BackupThrottle throttle;
+    private final BufferPool buffers;
+
+    private int filesStored;
+    private int filesReused;
+    private final AtomicInteger chunksStored = new AtomicInteger();
+    private final AtomicInteger chunksReused = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong storeNanos = new AtomicLong();
+    private long walkNanos;
+    private final Queue<String> regionProblems = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param store              the store to put file content in
+     * @param threads            the number of hashing threads, or 0 to use one per available processor
+     * @param filter           decides which files and directories are backed up
+     * @param regionChunks     store region files chunk by chunk
+     * @param storedExtensions extensions of files that are stored without compression
+     * @param throttle         limits reads and the number of files stored at once
+     * @param buffers          the buffers files are read through, of at least {@link FileIO#MAP_THRESHOLD}
+     */
+    public IncrementalArchiver(ContentStore store, int threads, PathFilter filter, boolean regionChunks,
+                               Set<String> storedExtensions, BackupThrottle throttle, BufferPool buffers) {
+
+        this.store = store;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.filter = filter;
+        this.regionChunks = regionChunks;
+        this.storedExtensions = storedExtensions;
+        this.throttle = throttle;
+        this.buffers = buffers;
+
+        if (buffers.getBufferSize() < FileIO.MAP_THRESHOLD)
+            throw new IllegalArgumentException("The buffers are too small for a region file");
+    }
+
+    /**
+     * Back up a directory
+     *
+     * @param directory the directory to back up
+     * @param previous  the manifest of the previous backup, or null to read every file
+     * @return the manifest of the new backup
+     */
+    public BackupManifest archive(File directory, BackupManifest previous) throws IOException {
+
+        return archive(directory, previous, null);
+    }
+
+    /**
+     * Back up a directory, knowing which region files changed since the previous backup.
+     * The region directories the changes cover aren't listed: their region files that weren't saved to
+     * are taken from the previous manifest as they are, and only the ones that were are looked at.
+     *
+     * @param directory the directory to back up
+     * @param previous  the manifest of the previous backup, or null to read every file
+     * @param changes   the region files saved to since the previous backup, or null to look at every file
+     * @return the manifest of the new backup
+     */
+    public BackupManifest archive(File directory, BackupManifest previous, DirtyRegions.Changes changes) throws IOException {
+
+        if (previous == null)
+            previous = new BackupManifest();
+
+        filesStored = 0;
+        filesReused = 0;
+        chunksStored.set(0);
+        chunksReused.set(0);
+        bytesRead.set(0);
+        storeNanos.set(0);
+        regionProblems.clear();
+
+        Map<String, List<BackupManifest.Entry>> tracked = changes != null
+                ? groupByDirectory(previous, changes.getDirectories()) : Collections.<String, List<BackupManifest.Entry>>emptyMap();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("ServerTools-Backup-Hasher-%d")
+                .setDaemon(true)
+                .build());
+
+        // Closed only once the workers have stopped, since they hold buffers from it until then
+        BufferPool.Lease lease = buffers.lease();
+
+        try (WorldWalker walker = new WorldWalker(directory, filter, tracked.keySet())) {
+            List<Future<BackupManifest.Entry>> results = new ArrayList<>();
+            WorldWalker.Entry entry;
+
+            while ((entry = walker.next()) != null) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Archiving was interrupted");
+
+                if (entry.directory) {
+                    results.add(Futures.immediateFuture(BackupManifest.Entry.directory(entry.path, entry.lastModified)));
+                    List<BackupManifest.Entry> contents = tracked.get(entry.path);
+                    if (contents != null)
+                        addTracked(directory, entry.path, contents, changes, previous, results, executor, lease);
+                } else {
+                    addFile(entry, previous, results, executor, lease);
+                }
+            }
+
+            walkNanos = walker.getWalkNanos();
+
+            BackupManifest manifest = new BackupManifest();
+            for (Future<BackupManifest.Entry> result : results)
+                manifest.add(getResult(result));
+
+            return manifest;
+
+        } finally {
+            ParallelArchiver.stopWorkers(executor);
+            lease.close();
+        }
+    }
+
+    /**
+     * @return the number of files read into the store by the last {@link #archive} call
+     */
+    public int getFilesStored() {
+
+        return filesStored;
+    }
+
+    /**
+     * @return the number of files taken unchanged from the previous manifest by the last {@link #archive} call
+     */
+    public int getFilesReused() {
+
+        return filesReused;
+    }
+
+    /**
+     * @return the number of region chunks read into the store by the last {@link #archive} call
+     */
+    public int getChunksStored() {
+
+        return chunksStored.get();
+    }
+
+    /**
+     * @return the number of region chunks taken unchanged from the previous manifest by the last {@link #archive} call
+     */
+    public int getChunksReused() {
+
+        return chunksReused.get();
+    }
+
+    /**
+     * @return the number of bytes read from changed files by the last {@link #archive} call
+     */
+    public long getBytesRead() {
+
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the time the last {@link #archive} call spent walking the directory, which overlaps with hashing
+     */
+    public long getWalkNanos() {
+
+        return walkNanos;
+    }
+
+    /**
+     * @return the time the last {@link #archive} call spent hashing and storing files, summed across the worker threads
+     */
+    public long getStoreNanos() {
+
+        return storeNanos.get();
+    }
+
+    /**
+     * @return a description of each damaged region file found by the last {@link #archive} call.
+     *         Damaged regions are stored whole, as they are.
+     */
+    public List<String> getRegionProblems() {
+
+        return new ArrayList<>(regionProblems);
+    }
+
+    private void addFile(WorldWalker.Entry entry, BackupManifest previous, List<Future<BackupManifest.Entry>> results,
+                         ExecutorService executor, BufferPool.Lease lease) throws IOException {
+
+        BackupManifest.Entry unchanged = getUnchanged(previous.get(entry.path), entry);
+        if (unchanged != null) {
+            filesReused++;
+            results.add(Futures.immediateFuture(unchanged));
+            return;
+        }
+
+        // Waits here while every buffer is held by a file still being stored
+        byte[] buffer = lease.acquire(1)[0];
+        Callable<BackupManifest.Entry> task;
+        if (regionChunks && AnvilRegion.isRegionFile(entry.name))
+            task = new RegionTask(entry, previous.get(entry.path), previous.getCreated(), buffer, lease);
+        else
+            task = new StoreTask(entry, buffer, lease);
+
+        try {
+            results.add(executor.submit(task));
+        } catch (RejectedExecutionException e) {
+            lease.release(buffer);
+            throw e;
+        }
+        filesStored++;
+    }
+
+    /**
+     * Add the contents of a region directory whose changes are known. Region files that weren't saved to are
+     * taken from the previous manifest without touching the disk, the rest are looked at as if they'd been walked.
+     *
+     * @param contents the previous manifest's entries in the directory
+     */
+    private void addTracked(File root, String path, List<BackupManifest.Entry> contents, DirtyRegions.Changes changes,
+                            BackupManifest previous, List<Future<BackupManifest.Entry>> results, ExecutorService executor,
+                            BufferPool.Lease lease) throws IOException {
+
+        String prefix = path + '/';
+        Set<String> changed = new LinkedHashSet<>();
+
+        for (BackupManifest.Entry entry : contents) {
+            String name = entry.path.substring(prefix.length());
+            if (!filter.accepts(entry.path, name.substring(name.lastIndexOf('/') + 1), entry.directory))
+                continue;
+
+            if (entry.directory) {
+                results.add(Futures.immediateFuture(entry));
+            } else if (changes.isChanged(path, name)) {
+                changed.add(name);
+            } else {
+                filesReused++;
+                results.add(Futures.immediateFuture(entry));
+            }
+        }
+
+        // Regions saved to for the first time aren't in the previous manifest
+        changed.addAll(changes.getChangedFiles(path));
+
+        for (String name : changed) {
+            File file = new File(root, prefix + name);
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            String fileName = file.getName();
+            if (attrs.isRegularFile() && filter.accepts(prefix + name, fileName, false))
+                addFile(new WorldWalker.Entry(prefix + name, fileName, file, false, attrs.size(), attrs.lastModifiedTime().toMillis()), previous, results, executor, lease);
+        }
+    }
+
+    /**
+     * Pick out the entries of a manifest that are in the given directories. Directories the manifest
+     * doesn't have are left out, since what was in them before can't be taken from it.
+     *
+     * @return the entries of each directory, by directory
+     */
+    private static Map<String, List<BackupManifest.Entry>> groupByDirectory(BackupManifest manifest, Set<String> directories) {
+
+        Map<String, List<BackupManifest.Entry>> groups = new HashMap<>();
+        for (String directory : directories) {
+            BackupManifest.Entry entry = manifest.get(directory);
+            if (entry != null && entry.directory)
+                groups.put(directory, new ArrayList<BackupManifest.Entry>());
+        }
+
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            for (Map.Entry<String, List<BackupManifest.Entry>> group : groups.entrySet()) {
+                if (entry.path.startsWith(group.getKey()) && entry.path.length() > group.getKey().length()
+                        && entry.path.charAt(group.getKey().length()) == '/') {
+                    group.getValue().add(entry);
+                    break;
+                }
+            }
+        }
+
+        return groups;
+    }
+
+    private BackupManifest.Entry getUnchanged(BackupManifest.Entry previous, WorldWalker.Entry file) {
+
+        if (previous == null || previous.directory)
+            return null;
+
+        if (previous.size != file.size || previous.mtime != file.lastModified)
+            return null;
+
+        return previous;
+    }
+
+    private int getMethod(File file) {
+
+        return FileIO.isStored(file.getName(), storedExtensions) ? ContentStore.METHOD_STORED : ContentStore.METHOD_DEFLATED;
+    }
+
+    private static BackupManifest.Entry getResult(Future<BackupManifest.Entry> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while storing files");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Failed to store file", cause);
+        }
+    }
+
+    private class StoreTask implements Callable<BackupManifest.Entry> {
+
+        private final File file;
+        private final String path;
+        private final long mtime;
+        private final byte[] buffer;
+        private final BufferPool.Lease lease;
+
+        /**
+         * @param buffer a pooled buffer to copy the file through, given back once it's stored
+         */
+        StoreTask(WorldWalker.Entry entry, byte[] buffer, BufferPool.Lease lease) {
+
+            this.file = entry.file;
+            this.path = entry.path;
+            this.mtime = entry.lastModified;
+            this.buffer = buffer;
+            this.lease = lease;
+        }
+
+        @Override
+        public BackupManifest.Entry call() throws IOException {
+
+            try {
+                throttle.acquireWorker();
+                long start = System.nanoTime();
+                try {
+                    long size = file.length();
+                    throttle.acquire(size);
+                    String hash = store.put(file, getMethod(file), buffer);
+                    bytesRead.addAndGet(size);
+
+                    return BackupManifest.Entry.file(path, size, mtime, hash);
+                } finally {
+                    storeNanos.addAndGet(System.nanoTime() - start);
+                    throttle.releaseWorker();
+                }
+            } finally {
+                lease.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Stores a region file chunk by chunk. Falls back to storing the whole file
+     * if its header can't be made sense of.
+     */
+    private class RegionTask implements Callable<BackupManifest.Entry> {
+
+        private final File file;
+        private final String path;
+        private final long mtime;
+        private final BackupManifest.Entry previous;
+        private final long previousCreated;
+        private final byte[] buffer;
+        private final BufferPool.Lease lease;
+
+        /**
+         * @param buffer a pooled buffer to read small region files into, given back once the region is stored
+         */
+        RegionTask(WorldWalker.Entry entry, BackupManifest.Entry previous, long previousCreated, byte[] buffer, BufferPool.Lease lease) {
+
+            this.file = entry.file;
+            this.path = entry.path;
+            this.mtime = entry.lastModified;
+            this.previous = previous;
+            this.previousCreated = previousCreated;
+            this.buffer = buffer;
+            this.lease = lease;
+        }
+
+        @Override
+        public BackupManifest.Entry call() throws IOException {
+
+            try {
+                throttle.acquireWorker();
+                long start = System.nanoTime();
+                try {
+                    return storeRegion();
+                } finally {
+                    storeNanos.addAndGet(System.nanoTime() - start);
+                    throttle.releaseWorker();
+                }
+            } finally {
+                lease.release(buffer);
+            }
+        }
+
+        private BackupManifest.Entry storeRegion() throws IOException {
+
+            long size;
+
+            BackupManifest.ChunkEntry[] previousChunks = new BackupManifest.ChunkEntry[AnvilRegion.CHUNKS];
+            if (previous != null && previous.chunks != null) {
+                for (BackupManifest.ChunkEntry chunk : previous.chunks)
+                    previousChunks[chunk.index] = chunk;
+            }
+
+            // Region timestamps only have a resolution of one second, so a chunk saved in the same
+            // second as the previous backup started may have been saved again with the same timestamp
+            long reuseBefore = previousCreated / 1000 - 1;
+            List<BackupManifest.ChunkEntry> chunks = new ArrayList<>();
+
+            ByteBuffer data = null;
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                size = channel.size();
+                if (size >= FileIO.MAP_THRESHOLD) {
+                    data = FileIO.map(channel);
+                } else {
+                    data = ByteBuffer.wrap(buffer, 0, (int) size);
+                    FileIO.read(channel, data, 0);
+                    data.flip();
+                }
+
+                AnvilRegion region;
+                try {
+                    region = AnvilRegion.readHeader(data);
+                } catch (IOException e) {
+                    regionProblems.add(path + ": " + e.getMessage());
+                    return storeWhole(size, mtime);
+                }
+
+                throttle.acquire(AnvilRegion.HEADER_SIZE);
+                bytesRead.addAndGet(AnvilRegion.HEADER_SIZE);
+
+                for (int i = 0; i < AnvilRegion.CHUNKS; i++) {
+                    if (!region.hasChunk(i))
+                        continue;
+
+                    int timestamp = region.getTimestamp(i);
+                    BackupManifest.ChunkEntry old = previousChunks[i];
+
+                    if (old != null && old.timestamp == timestamp && timestamp < reuseBefore) {
+                        chunksReused.incrementAndGet();
+                        chunks.add(old);
+                        continue;
+                    }
+
+                    ByteBuffer record;
+                    try {
+                        record = region.readChunk(data, i);
+                    } catch (IOException e) {
+                        regionProblems.add(path + ": " + e.getMessage());
+                        return storeWhole(size, mtime);
+                    }
+
+                    throttle.acquire(record.remaining());
+                    bytesRead.addAndGet(record.remaining());
+
+                    // Chunk data is already compressed, so records are stored as they are
+                    String hash = store.put(record, ContentStore.METHOD_STORED);
+                    chunksStored.incrementAndGet();
+                    chunks.add(new BackupManifest.ChunkEntry(i, timestamp, record.remaining(), hash));
+                }
+            } finally {
+                FileIO.unmap(data);
+            }
+
+            return BackupManifest.Entry.region(path, size, mtime, chunks);
+        }
+
+        private BackupManifest.Entry storeWhole(long size, long mtime) throws IOException {
+
+            throttle.acquire(size);
+            BackupManifest.Entry entry = BackupManifest.Entry.file(path, size, mtime, store.put(file, getMethod(file), buffer));
+            bytesRead.addAndGet(size);
+            return entry;
+        }
+    }
+}
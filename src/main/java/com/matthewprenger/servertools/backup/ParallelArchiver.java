@@ -0,0 +1,768 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Builds an archive of a directory, deflating file data on a pool of worker threads.
+ *
+ * Each file is cut into fixed size blocks which are compressed independently, the non-final
+ * blocks ending on a sync flush so the pieces concatenate into a single valid deflate stream.
+ * A single writer (the calling thread) takes the finished blocks in walk order and lays them
+ * out with the {@link ArchiveWriter} of the chosen {@link ArchiveFormat}. Files are handed to the
+ * compressors as the {@link WorldWalker} lists them, so compression starts with the first file.
+ *
+ * Files that are already compressed, such as region files, are only read to work out their
+ * CRC and are then stored as they are, copied into the archive with {@link FileChannel#transferTo}.
+ *
+ * The CRC and position of every file are collected into an {@link ArchiveIndex} as the archive is written,
+ * so the archive can be verified and single files restored later. The header of each region file is checked as it's read.
+ *
+ * With a journal, the archive is synced to the disk and a checkpoint recorded in an {@link ArchiveJournal} every
+ * {@link #CHECKPOINT_BYTES}. An archive that was cut off can then be resumed: it's cut back to its last checkpoint
+ * and the files after it are added, while the files before it are kept as they were when they were archived.
+ *
+ * The stages are bounded: the walker lists a limited number of files ahead, and each block holds a read and
+ * a compressed buffer from a shared {@link BufferPool} from when it's handed to the compressors until it's written.
+ * When the pool runs dry the writer writes out finished blocks before handing out more, so the memory of every
+ * backup together stays within the pool however large the world is.
+ *
+ * Each run keeps timings for its walk, compress and write stages. They overlap, so they don't add up
+ * to the run's wall time, and the compress time is summed across the worker threads.
+ */
+class ParallelArchiver {
+
+    static final int BLOCK_SIZE = 512 * 1024;
+
+    /**
+     * The size of the pooled buffers: a block, or what a block deflates to at worst
+     */
+    static final int BUFFER_SIZE = BLOCK_SIZE + (BLOCK_SIZE >> 8) + 64;
+
+    /**
+     * How much is written to a journaled archive between checkpoints
+     */
+    static final long CHECKPOINT_BYTES = 64 * 1024 * 1024;
+
+    private final int threads;
+    private final PathFilter filter;
+    private final Set<String> storedExtensions;
+    private final ArchiveFormat format;
+    private final int level;
+    private final BackupThrottle throttle;
+    private final BufferPool buffers;
+
+    private int filesArchived;
+    private long bytesRead;
+    private long bytesWritten;
+    private long walkNanos;
+    private long writeNanos;
+    private final AtomicLong compressNanos = new AtomicLong();
+    private ArchiveIndex index;
+    private List<String> regionProblems;
+
+    /**
+     * @param threads            the number of compression threads, or 0 to use one per available processor
+     * @param filter           decides which files and directories are archived
+     * @param storedExtensions extensions of files that are stored without compression
+     * @param format           the archive format to write
+     * @param level            the deflate compression level, 0-9
+     * @param throttle         limits reads and the number of blocks compressed at once
+     * @param buffers          the buffers blocks are read and compressed into, of {@link #BUFFER_SIZE}
+     */
+    public ParallelArchiver(int threads, PathFilter filter, Set<String> storedExtensions,
+                            ArchiveFormat format, int level, BackupThrottle throttle, BufferPool buffers) {
+
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.filter = filter;
+        this.storedExtensions = storedExtensions;
+        this.format = format;
+        this.level = level;
+        this.throttle = throttle;
+        this.buffers = buffers;
+
+        if (buffers.getBufferSize() < BUFFER_SIZE)
+            throw new IllegalArgumentException("The buffers are too small for a block");
+    }
+
+    /**
+     * Archive the contents of a directory. If archiving fails the partial archive is deleted.
+     *
+     * @param directory   the directory to archive
+     * @param archiveFile the archive file to create
+     * @throws IOException if reading a file or writing the archive failed
+     */
+    public void archive(File directory, File archiveFile) throws IOException {
+
+        archive(directory, archiveFile, null, null);
+    }
+
+    /**
+     * Archive the contents of a directory, recording checkpoints in a journal. If archiving is interrupted the
+     * partial archive and its journal are kept so it can be resumed, if it fails otherwise both are deleted.
+     *
+     * @param directory   the directory to archive
+     * @param archiveFile the archive file to create, or to carry on writing when resuming
+     * @param journalFile the journal of the archive, or null to not keep one
+     * @param recovery    what the journal of a cut off archive recorded, to resume it, or null to start a new archive
+     * @throws IOException if reading a file or writing the archive failed
+     */
+    public void archive(File directory, File archiveFile, File journalFile, ArchiveJournal.Recovery recovery) throws IOException {
+
+        filesArchived = 0;
+        bytesRead = 0;
+        bytesWritten = 0;
+        walkNanos = 0;
+        writeNanos = 0;
+        compressNanos.set(0);
+        index = new ArchiveIndex();
+        regionProblems = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("ServerTools-Backup-Compressor-%d")
+                .setDaemon(true)
+                .build());
+        final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        ThreadLocal<Deflater> threadDeflater = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                Deflater deflater = new Deflater(level, true);
+                deflaters.add(deflater);
+                return deflater;
+            }
+        };
+
+        FileChannel out = recovery != null
+                ? FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE)
+                : FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        ArchiveJournal journal = null;
+        BufferPool.Lease lease = buffers.lease();
+        boolean success = false;
+        boolean keep = false;
+
+        try {
+            ArchiveWriter writer = format.newWriter(out);
+            Set<String> completed = Collections.emptySet();
+
+            if (recovery != null) {
+                out.position(recovery.offset);
+                for (byte[] state : recovery.states)
+                    writer.restoreState(new DataInputStream(new ByteArrayInputStream(state)));
+                for (ArchiveIndex.Entry file : recovery.files)
+                    index.add(file);
+                filesArchived = recovery.files.size();
+                bytesRead = recovery.bytesRead;
+                completed = recovery.completed;
+            }
+
+            if (journalFile != null)
+                journal = recovery != null ? ArchiveJournal.append(journalFile, recovery) : ArchiveJournal.create(journalFile, format, directory);
+
+            new Job(directory, writer, executor, threadDeflater, lease, out, journal, completed).run();
+            long closeStart = System.nanoTime();
+            writer.close();
+            writeNanos += System.nanoTime() - closeStart;
+            bytesWritten = writer.getBytesWritten();
+            success = true;
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            keep = journal != null;
+            throw e;
+        } finally {
+            stopWorkers(executor);
+            for (Deflater deflater : deflaters)
+                deflater.end();
+            lease.close();
+
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            if (!success) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                if (!keep) {
+                    archiveFile.delete();
+                    if (journalFile != null)
+                        journalFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of files put in the archive by the last {@link #archive} call
+     */
+    public int getFilesArchived() {
+
+        return filesArchived;
+    }
+
+    /**
+     * @return the number of bytes of file content archived by the last {@link #archive} call
+     */
+    public long getBytesRead() {
+
+        return bytesRead;
+    }
+
+    /**
+     * @return the size of the archive written by the last {@link #archive} call
+     */
+    public long getBytesWritten() {
+
+        return bytesWritten;
+    }
+
+    /**
+     * @return the time the last {@link #archive} call spent walking the directory, which overlaps with compression
+     */
+    public long getWalkNanos() {
+
+        return walkNanos;
+    }
+
+    /**
+     * @return the time the last {@link #archive} call spent reading and compressing, summed across the worker threads
+     */
+    public long getCompressNanos() {
+
+        return compressNanos.get();
+    }
+
+    /**
+     * @return the time the last {@link #archive} call spent laying out the archive, not counting waits for compression
+     */
+    public long getWriteNanos() {
+
+        return writeNanos;
+    }
+
+    /**
+     * @return the index of the archive written by the last {@link #archive} call
+     */
+    public ArchiveIndex getIndex() {
+
+        return index;
+    }
+
+    /**
+     * @return a description of each damaged region file found by the last {@link #archive} call
+     */
+    public List<String> getRegionProblems() {
+
+        return regionProblems;
+    }
+
+    /**
+     * Stop the workers of an archive run and wait for them to finish, even if the thread is interrupted,
+     * so none of them still holds pooled buffers or writes files once the run is over
+     */
+    static void stopWorkers(ExecutorService executor) {
+
+        executor.shutdownNow();
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * State for a single archive run
+     */
+    private class Job {
+
+        private final File baseDir;
+        private final ArchiveWriter writer;
+        private final ExecutorService executor;
+        private final ThreadLocal<Deflater> deflater;
+        private final BufferPool.Lease lease;
+        private final FileChannel out;
+        private final ArchiveJournal journal;
+        private final Set<String> completed;
+        private final Deque<Pending> pending = new ArrayDeque<>();
+        private final int window = threads * 2;
+
+        /**
+         * What was completed since the last checkpoint
+         */
+        private final List<String> checkpointDirectories = new ArrayList<>();
+        private final List<ArchiveIndex.Entry> checkpointFiles = new ArrayList<>();
+        private long lastCheckpoint;
+
+        /**
+         * @param out       the channel the writer writes to, to sync it before a checkpoint
+         * @param journal   the journal to record checkpoints in, or null
+         * @param completed the names of the files and directories already in a resumed archive
+         */
+        Job(File baseDir, ArchiveWriter writer, ExecutorService executor, ThreadLocal<Deflater> deflater, BufferPool.Lease lease,
+            FileChannel out, ArchiveJournal journal, Set<String> completed) {
+
+            this.baseDir = baseDir;
+            this.writer = writer;
+            this.executor = executor;
+            this.deflater = deflater;
+            this.lease = lease;
+            this.out = out;
+            this.journal = journal;
+            this.completed = completed;
+            this.lastCheckpoint = writer.getBytesWritten();
+        }
+
+        private long fileCrc;
+        private long fileSize;
+
+        void run() throws IOException {
+
+            try (WorldWalker walker = new WorldWalker(baseDir, filter)) {
+                WorldWalker.Entry entry;
+                while ((entry = walker.next()) != null) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("Archiving was interrupted");
+
+                    if (entry.directory) {
+                        if (!completed.contains(entry.path + "/"))
+                            enqueue(new Pending(entry.path + "/", null, entry.lastModified, 0, null, true, true));
+                    } else if (!completed.contains(entry.path)) {
+                        enqueueFile(entry);
+                    }
+                }
+
+                walkNanos = walker.getWalkNanos();
+
+                while (!pending.isEmpty())
+                    writeHead();
+
+            } finally {
+                for (Pending p : pending) {
+                    if (p.block != null)
+                        p.block.cancel(true);
+                }
+            }
+        }
+
+        private void enqueueFile(WorldWalker.Entry entry) throws IOException {
+
+            File file = entry.file;
+            String name = entry.path;
+            long time = entry.lastModified;
+            long size = entry.size;
+            long position = 0;
+
+            if (!format.isCompressed() || FileIO.isStored(name, storedExtensions)) {
+                byte[] input = reserve(1)[0];
+                enqueue(new Pending(name, file, time, size, submit(new ChecksumTask(file, input, lease, throttle, compressNanos), input, null), true, true));
+                return;
+            }
+
+            do {
+                int length = (int) Math.min(BLOCK_SIZE, size - position);
+                boolean first = position == 0;
+                boolean last = position + length >= size;
+                boolean finish = last && format.finishesEntries();
+                byte[][] blockBuffers = reserve(2);
+                Future<Block> block = submit(new DeflateTask(file, position, length, finish, blockBuffers[0], blockBuffers[1], lease,
+                        deflater, throttle, compressNanos), blockBuffers[0], blockBuffers[1]);
+                enqueue(new Pending(name, null, time, size, block, first, last));
+                position += length;
+            } while (position < size);
+        }
+
+        /**
+         * Take buffers for a block. While the pool is dry the blocks already handed out are written,
+         * which frees their buffers; the wait is only for other backups once none are left.
+         */
+        private byte[][] reserve(int count) throws IOException {
+
+            byte[][] reserved;
+            while ((reserved = lease.tryAcquire(count)) == null) {
+                if (pending.isEmpty())
+                    return lease.acquire(count);
+                writeHead();
+            }
+            return reserved;
+        }
+
+        private Future<Block> submit(Callable<Block> task, byte[] input, byte[] output) {
+
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException e) {
+                lease.release(input);
+                if (output != null)
+                    lease.release(output);
+                throw e;
+            }
+        }
+
+        private void enqueue(Pending p) throws IOException {
+
+            pending.addLast(p);
+            while (pending.size() > window)
+                writeHead();
+        }
+
+        private void writeHead() throws IOException {
+
+            long start = System.nanoTime();
+            Pending p = pending.removeFirst();
+
+            if (p.block == null) {
+                writer.putDirectory(p.name, p.time);
+                if (journal != null)
+                    checkpointDirectories.add(p.name);
+                writeNanos += System.nanoTime() - start;
+                checkpoint();
+                return;
+            }
+
+            Block block = getBlock(p.block);
+            long written = System.nanoTime();
+
+            if (p.first && block.problem != null)
+                regionProblems.add(p.name + ": " + block.problem);
+
+            if (p.storedFile != null) {
+                try (FileChannel source = FileChannel.open(p.storedFile.toPath(), StandardOpenOption.READ)) {
+                    writer.putFile(p.name, p.time, block.crc, block.size, source);
+                }
+            } else {
+                if (p.first)
+                    writer.beginFile(p.name, p.time, p.size);
+
+                writer.writeBlock(block.data, 0, block.length, block.crc, block.size, p.last);
+                if (block.pooled)
+                    lease.release(block.data);
+            }
+
+            fileCrc = p.first ? block.crc : Checksums.combineCrc32(fileCrc, block.crc, block.size);
+            fileSize = p.first ? block.size : fileSize + block.size;
+
+            bytesRead += block.size;
+
+            if (p.last) {
+                ArchiveIndex.Entry file = new ArchiveIndex.Entry(p.name, fileCrc, fileSize,
+                        writer.isDataDeflated() ? ContentStore.METHOD_DEFLATED : ContentStore.METHOD_STORED, writer.getDataOffset(), writer.getDataLength());
+                index.add(file);
+                if (journal != null)
+                    checkpointFiles.add(file);
+                filesArchived++;
+            }
+
+            writeNanos += System.nanoTime() - written;
+
+            if (p.last)
+                checkpoint();
+        }
+
+        /**
+         * Record a checkpoint if enough has been written since the last one. Only called between files.
+         */
+        private void checkpoint() throws IOException {
+
+            if (journal == null || writer.getBytesWritten() - lastCheckpoint < CHECKPOINT_BYTES)
+                return;
+
+            long start = System.nanoTime();
+
+            writer.flush();
+            out.force(false);
+
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            writer.saveState(new DataOutputStream(state));
+            lastCheckpoint = writer.getBytesWritten();
+            journal.checkpoint(lastCheckpoint, bytesRead, checkpointDirectories, checkpointFiles, state.toByteArray());
+            checkpointDirectories.clear();
+            checkpointFiles.clear();
+
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+
+    private static Block getBlock(Future<Block> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Failed to compress file", cause);
+        }
+    }
+
+    private static class Pending {
+
+        final String name;
+        final File storedFile;
+        final long time;
+        final long size;
+        final Future<Block> block;
+        final boolean first;
+        final boolean last;
+
+        Pending(String name, File storedFile, long time, long size, Future<Block> block, boolean first, boolean last) {
+
+            this.name = name;
+            this.storedFile = storedFile;
+            this.time = time;
+            this.size = size;
+            this.block = block;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private static class Block {
+
+        byte[] data;
+
+        /**
+         * True if the data is a buffer from the pool, to be given back once it's written
+         */
+        boolean pooled;
+        int length;
+        long crc;
+        long size;
+        String problem;
+    }
+
+    /**
+     * Check the header of a region file from the start of its data
+     *
+     * @return what is wrong with the region file, or null if its header is sound
+     */
+    private static String checkRegion(byte[] data, int length, long fileLength) {
+
+        try {
+            AnvilRegion.readHeader(ByteBuffer.wrap(data, 0, length), fileLength);
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Reads a whole file to work out its CRC, for files that are stored rather than deflated
+     */
+    private static class ChecksumTask implements Callable<Block> {
+
+        private final File file;
+        private final byte[] input;
+        private final BufferPool.Lease lease;
+        private final BackupThrottle throttle;
+        private final AtomicLong nanos;
+
+        /**
+         * @param input a pooled buffer to read into, given back once the file is read
+         */
+        ChecksumTask(File file, byte[] input, BufferPool.Lease lease, BackupThrottle throttle, AtomicLong nanos) {
+
+            this.file = file;
+            this.input = input;
+            this.lease = lease;
+            this.throttle = throttle;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public Block call() throws IOException {
+
+            try {
+                return checksum();
+            } finally {
+                lease.release(input);
+            }
+        }
+
+        private Block checksum() throws IOException {
+
+            throttle.acquireWorker();
+            long start = System.nanoTime();
+            try {
+                CRC32 crc = new CRC32();
+                long size = 0;
+                String problem = null;
+
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    while (true) {
+                        throttle.acquire(BLOCK_SIZE);
+                        int read = FileIO.read(channel, ByteBuffer.wrap(input, 0, BLOCK_SIZE), size);
+                        if (size == 0 && AnvilRegion.isRegionFile(file.getName()))
+                            problem = checkRegion(input, read, channel.size());
+                        crc.update(input, 0, read);
+                        size += read;
+                        if (read < BLOCK_SIZE)
+                            break;
+                    }
+                }
+
+                Block block = new Block();
+                block.crc = crc.getValue();
+                block.size = size;
+                block.problem = problem;
+                return block;
+            } finally {
+                nanos.addAndGet(System.nanoTime() - start);
+                throttle.releaseWorker();
+            }
+        }
+    }
+
+    /**
+     * Reads one block of a file and deflates it. Blocks that don't finish the stream end with
+     * a sync flush so that they can be followed directly by the next block's output.
+     */
+    private static class DeflateTask implements Callable<Block> {
+
+        private final File file;
+        private final long position;
+        private final int length;
+        private final boolean finish;
+        private final byte[] input;
+        private final byte[] output;
+        private final BufferPool.Lease lease;
+        private final ThreadLocal<Deflater> threadDeflater;
+        private final BackupThrottle throttle;
+        private final AtomicLong nanos;
+
+        /**
+         * @param input  a pooled buffer to read the block into, given back once it's deflated
+         * @param output a pooled buffer to deflate the block into, which goes with the block to the writer
+         */
+        DeflateTask(File file, long position, int length, boolean finish, byte[] input, byte[] output, BufferPool.Lease lease,
+                    ThreadLocal<Deflater> threadDeflater, BackupThrottle throttle, AtomicLong nanos) {
+
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.finish = finish;
+            this.input = input;
+            this.output = output;
+            this.lease = lease;
+            this.threadDeflater = threadDeflater;
+            this.throttle = throttle;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public Block call() throws IOException {
+
+            Block block = null;
+            try {
+                throttle.acquireWorker();
+                try {
+                    throttle.acquire(length);
+                    long start = System.nanoTime();
+                    try {
+                        block = deflate();
+                        return block;
+                    } finally {
+                        nanos.addAndGet(System.nanoTime() - start);
+                    }
+                } finally {
+                    throttle.releaseWorker();
+                }
+            } finally {
+                lease.release(input);
+                if (block == null || !block.pooled)
+                    lease.release(output);
+            }
+        }
+
+        private Block deflate() throws IOException {
+
+            int read;
+            String problem = null;
+
+            // A file that shrank since it was listed gives a short read, archive what is there
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                read = FileIO.read(channel, ByteBuffer.wrap(input, 0, length), position);
+                if (position == 0 && AnvilRegion.isRegionFile(file.getName()))
+                    problem = checkRegion(input, read, channel.size());
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(input, 0, read);
+
+            Deflater deflater = threadDeflater.get();
+            deflater.reset();
+            deflater.setInput(input, 0, read);
+
+            // The output buffer fits the worst case, it's only outgrown if the deflater does worse than documented
+            byte[] output = this.output;
+            int outLength = 0;
+
+            if (finish) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (outLength == output.length)
+                        output = Arrays.copyOf(output, output.length * 2);
+                    outLength += deflater.deflate(output, outLength, output.length - outLength);
+                }
+            } else {
+                while (true) {
+                    if (outLength == output.length)
+                        output = Arrays.copyOf(output, output.length * 2);
+                    int count = deflater.deflate(output, outLength, output.length - outLength, Deflater.SYNC_FLUSH);
+                    outLength += count;
+                    if (outLength < output.length)
+                        break;
+                }
+            }
+
+            Block block = new Block();
+            block.data = output;
+            block.pooled = output == this.output;
+            block.length = outLength;
+            block.crc = crc.getValue();
+            block.size = read;
+            block.problem = problem;
+            return block;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which files and directories of a world are backed up, from the blacklisted names
+ * and a list of exclude patterns compiled once when the filter is built.
+ *
+ * The patterns follow the rules of a .gitignore file:
+ * <ul>
+ * <li>{@code *} and {@code ?} match within a single path element, {@code **} matches across them,
+ * and {@code [abc]} and {@code {a,b}} work as in a shell</li>
+ * <li>A pattern without a / matches the name of a file or directory at any depth,
+ * a pattern with one matches the path from the world directory</li>
+ * <li>A pattern ending in / only matches directories</li>
+ * <li>A pattern starting with ! includes what earlier patterns excluded</li>
+ * <li>A pattern starting with regex: is a regular expression matched against the whole path</li>
+ * </ul>
+ * The last pattern that matches a path decides it. An excluded directory is skipped with
+ * everything under it, so nothing inside it can be included again.
+ */
+final class PathFilter {
+
+    static final PathFilter ACCEPT_ALL = new PathFilter(Collections.<String>emptySet(), Collections.<String>emptySet(), new String[0]);
+
+    private static final String REGEX_PREFIX = "regex:";
+
+    private final Set<String> fileNames;
+    private final Set<String> directoryNames;
+    private final Rule[] rules;
+
+    /**
+     * @param fileNames      names of files that are never backed up
+     * @param directoryNames names of directories that are never backed up
+     * @param patterns       exclude patterns, applied after the names
+     * @throws IllegalArgumentException if a pattern can't be compiled
+     */
+    PathFilter(Set<String> fileNames, Set<String> directoryNames, String[] patterns) {
+
+        this.fileNames = new HashSet<>(fileNames);
+        this.directoryNames = new HashSet<>(directoryNames);
+
+        List<Rule> compiled = new ArrayList<>();
+        for (String pattern : patterns) {
+            pattern = pattern.trim();
+            if (!pattern.isEmpty() && !pattern.startsWith("#"))
+                compiled.add(compile(pattern));
+        }
+        this.rules = compiled.toArray(new Rule[compiled.size()]);
+    }
+
+    /**
+     * @param path      the path from the world directory, with / as the separator and no trailing /
+     * @param name      the last element of the path
+     * @param directory true if the path is a directory
+     * @return true if the path is backed up
+     */
+    boolean accepts(String path, String name, boolean directory) {
+
+        boolean excluded = directory ? directoryNames.contains(name) : fileNames.contains(name);
+
+        for (Rule rule : rules) {
+            if (excluded != rule.include)
+                continue; // Can't change the outcome
+
+            if (rule.matches(path, name, directory))
+                excluded = !rule.include;
+        }
+
+        return !excluded;
+    }
+
+    /**
+     * @return true if the filter has patterns besides the blacklisted names
+     */
+    boolean hasPatterns() {
+
+        return rules.length > 0;
+    }
+
+    private static Rule compile(String pattern) {
+
+        boolean include = pattern.startsWith("!");
+        if (include)
+            pattern = pattern.substring(1);
+
+        if (pattern.startsWith(REGEX_PREFIX)) {
+            try {
+                return new Rule(include, false, true, null, Pattern.compile(pattern.substring(REGEX_PREFIX.length())));
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException(String.format("Invalid pattern %s: %s", pattern, e.getDescription()));
+            }
+        }
+
+        boolean directoryOnly = pattern.endsWith("/");
+        if (directoryOnly)
+            pattern = pattern.substring(0, pattern.length() - 1);
+
+        boolean anchored = pattern.contains("/");
+        if (pattern.startsWith("/"))
+            pattern = pattern.substring(1);
+
+        if (pattern.isEmpty())
+            throw new IllegalArgumentException("Empty pattern");
+
+        if (!isGlob(pattern))
+            return new Rule(include, directoryOnly, anchored, pattern, null);
+
+        return new Rule(include, directoryOnly, anchored, null, Pattern.compile(globToRegex(pattern)));
+    }
+
+    private static boolean isGlob(String pattern) {
+
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{\\".indexOf(pattern.charAt(i)) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Translate a glob to a regular expression matching paths with / as the separator
+     *
+     * @throws IllegalArgumentException if a bracket or brace isn't closed
+     */
+    static String globToRegex(String glob) {
+
+        StringBuilder regex = new StringBuilder(glob.length() + 16);
+        int braces = 0;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            regex.append("(?:.*/)?"); // **/ also matches no directories at all
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0)
+                        throw new IllegalArgumentException(String.format("Unclosed [ in %s", glob));
+                    String set = glob.substring(i + 1, end);
+                    regex.append('[');
+                    if (set.charAt(0) == '!') {
+                        regex.append('^');
+                        set = set.substring(1);
+                    }
+                    regex.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    braces++;
+                    break;
+                case '}':
+                    if (braces == 0) {
+                        regex.append("\\}");
+                    } else {
+                        regex.append(')');
+                        braces--;
+                    }
+                    break;
+                case ',':
+                    regex.append(braces > 0 ? "|" : ",");
+                    break;
+                case '\\':
+                    appendLiteral(regex, i + 1 < glob.length() ? glob.charAt(++i) : c);
+                    break;
+                default:
+                    appendLiteral(regex, c);
+            }
+        }
+
+        if (braces > 0)
+            throw new IllegalArgumentException(String.format("Unclosed { in %s", glob));
+
+        return regex.toString();
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+
+        if ("\\.^$|+*?()[]{}".indexOf(c) >= 0)
+            regex.append('\\');
+        regex.append(c);
+    }
+
+    private static class Rule {
+
+        final boolean include;
+        final boolean directoryOnly;
+        final boolean anchored;
+        final String literal;
+        final Pattern pattern;
+
+        Rule(boolean include, boolean directoryOnly, boolean anchored, String literal, Pattern pattern) {
+
+            this.include = include;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+
+        boolean matches(String path, String name, boolean directory) {
+
+            if (directoryOnly && !directory)
+                return false;
+
+            String subject = anchored ? path : name;
+            return literal != null ? literal.equals(subject) : pattern.matcher(subject).matches();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Strings;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.event.world.ChunkDataEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the region file of every chunk that is saved in the {@link DirtyRegions} of the backup set it belongs to
+ */
+class RegionTracker {
+
+    private final BackupSet world;
+    private final Map<Integer, BackupSet> dimensionSets = new HashMap<>();
+
+    /**
+     * The region directory of each dimension seen so far, from its set's source directory
+     */
+    private final Map<Integer, String> directories = new ConcurrentHashMap<>();
+
+    /**
+     * @param world the world's backup set
+     * @param sets  every backup set, including the world's
+     */
+    RegionTracker(BackupSet world, Iterable<BackupSet> sets) {
+
+        this.world = world;
+        for (BackupSet set : sets) {
+            if (set.isDimension())
+                dimensionSets.put(set.dimension, set);
+        }
+    }
+
+    @SubscribeEvent
+    public void onChunkSave(ChunkDataEvent.Save event) {
+
+        World world = event.world;
+        if (world.isRemote)
+            return;
+
+        int dimension = world.provider.dimensionId;
+        BackupSet set = dimensionSets.get(dimension);
+        if (set == null)
+            set = this.world;
+
+        String directory = directories.get(dimension);
+        if (directory == null) {
+            directory = getRegionDirectory(world, set.isDimension());
+            directories.put(dimension, directory);
+        }
+
+        Chunk chunk = event.getChunk();
+        set.dirtyRegions.markChunk(directory, chunk.xPosition, chunk.zPosition);
+    }
+
+    /**
+     * @param ownSet true if the dimension is backed up on its own, from its own folder
+     * @return the region directory of a dimension, from the source directory of its backup set
+     */
+    private static String getRegionDirectory(World world, boolean ownSet) {
+
+        String folder = world.provider.getSaveFolder();
+        return ownSet || Strings.isNullOrEmpty(folder) ? "region" : folder + "/region";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.*;
+
+/**
+ * A grandfather-father-son retention policy: a list of tiers, each keeping one backup per
+ * interval for backups up to a certain age. For example
+ * <pre>
+ * 6h=all
+ * 2d=1h
+ * 30d=1d
+ * forever=1w
+ * </pre>
+ * keeps every backup for 6 hours, then one an hour for 2 days, one a day for a month and one
+ * a week after that. Backups older than the last tier are deleted, unless its age is {@code forever}.
+ *
+ * Intervals are aligned to the epoch, and the oldest backup in each interval is the one kept,
+ * so a backup that has been kept once stays kept until it ages out of its tier.
+ * The newest backup is always kept.
+ */
+class RetentionPolicy {
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private final List<Tier> tiers;
+
+    private RetentionPolicy(List<Tier> tiers) {
+
+        this.tiers = tiers;
+    }
+
+    /**
+     * Parse a policy, one tier per line in the form {@code <age>=<interval>}. Durations are a number
+     * followed by m, h, d, w or y; the interval may also be {@code all} and the age {@code forever}.
+     *
+     * @throws IllegalArgumentException if a tier is malformed, or there are no tiers
+     */
+    static RetentionPolicy parse(String[] tiers) {
+
+        List<Tier> parsed = new ArrayList<>();
+
+        for (String tier : tiers) {
+            tier = tier.trim();
+            if (tier.isEmpty())
+                continue;
+
+            String[] parts = tier.split("=");
+            if (parts.length != 2)
+                throw new IllegalArgumentException(String.format("Tier '%s' isn't in the form age=interval", tier));
+
+            String age = parts[0].trim();
+            String interval = parts[1].trim();
+
+            parsed.add(new Tier(age.equalsIgnoreCase("forever") ? FOREVER : parseDuration(age),
+                    interval.equalsIgnoreCase("all") ? 0 : parseDuration(interval), tier));
+        }
+
+        if (parsed.isEmpty())
+            throw new IllegalArgumentException("No retention tiers are given");
+
+        Collections.sort(parsed, new Comparator<Tier>() {
+            @Override
+            public int compare(Tier o1, Tier o2) {
+                return Long.compare(o1.maxAge, o2.maxAge);
+            }
+        });
+
+        return new RetentionPolicy(parsed);
+    }
+
+    private static long parseDuration(String duration) {
+
+        if (duration.length() < 2)
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+
+        long unit;
+        switch (Character.toLowerCase(duration.charAt(duration.length() - 1))) {
+            case 'm': unit = MINUTE; break;
+            case 'h': unit = HOUR; break;
+            case 'd': unit = DAY; break;
+            case 'w': unit = 7 * DAY; break;
+            case 'y': unit = 365 * DAY; break;
+            default: throw new IllegalArgumentException("Invalid duration unit: " + duration);
+        }
+
+        long count;
+        try {
+            count = Long.parseLong(duration.substring(0, duration.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+        }
+
+        if (count <= 0)
+            throw new IllegalArgumentException("Duration must be positive: " + duration);
+
+        return count * unit;
+    }
+
+    /**
+     * Work out which backups the policy doesn't keep
+     *
+     * @param backups the backups, oldest first
+     * @param now     the current time in milliseconds
+     * @return the backups to delete, mapped to the tier that rejected them
+     */
+    Map<BackupCatalog.Entry, String> select(List<BackupCatalog.Entry> backups, long now) {
+
+        Map<BackupCatalog.Entry, String> rejected = new IdentityHashMap<>();
+        List<Set<Long>> usedSlots = new ArrayList<>(tiers.size());
+        for (int i = 0; i < tiers.size(); i++)
+            usedSlots.add(new HashSet<Long>());
+
+        // The last backup is the newest, and is always kept
+        for (int i = 0; i < backups.size() - 1; i++) {
+            BackupCatalog.Entry backup = backups.get(i);
+            long age = now - backup.time;
+
+            Tier tier = null;
+            int tierIndex;
+            for (tierIndex = 0; tierIndex < tiers.size(); tierIndex++) {
+                if (age <= tiers.get(tierIndex).maxAge) {
+                    tier = tiers.get(tierIndex);
+                    break;
+                }
+            }
+
+            if (tier == null) {
+                rejected.put(backup, "older than every retention tier");
+            } else if (tier.interval > 0) {
+                // Oldest first, so the first backup to claim a slot is the oldest in it
+                if (!usedSlots.get(tierIndex).add(backup.time / tier.interval))
+                    rejected.put(backup, "retention tier " + tier.description);
+            }
+        }
+
+        return rejected;
+    }
+
+    private static class Tier {
+
+        final long maxAge;
+        final long interval;
+        final String description;
+
+        Tier(long maxAge, long interval, String description) {
+
+            this.maxAge = maxAge;
+            this.interval = interval;
+            this.description = description;
+        }
+    }
+}
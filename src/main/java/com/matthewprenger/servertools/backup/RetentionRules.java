@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The limits on which backups are kept: their age, their number, their total size,
+ * and optionally a tiered {@link RetentionPolicy}. All of them are applied together
+ * in a single pass over the backups, oldest first.
+ */
+class RetentionRules {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final int maxAgeDays;
+    private final int maxNumber;
+    private final long maxSize;
+    private final RetentionPolicy policy;
+
+    /**
+     * @param maxAgeDays the number of days to keep backups for, or -1 for no limit
+     * @param maxNumber  the most backups to keep, or -1 for no limit
+     * @param maxSize    the most bytes backups may take up, or -1 for no limit
+     * @param policy     the tiered policy to apply, or null for none
+     */
+    RetentionRules(int maxAgeDays, int maxNumber, long maxSize, RetentionPolicy policy) {
+
+        this.maxAgeDays = maxAgeDays;
+        this.maxNumber = maxNumber;
+        this.maxSize = maxSize;
+        this.policy = policy;
+    }
+
+    /**
+     * @return true if any limit is set
+     */
+    boolean isEnabled() {
+
+        return maxAgeDays != -1 || maxNumber != -1 || maxSize != -1 || policy != null;
+    }
+
+    /**
+     * @return the size limit in bytes, or -1 if there isn't one
+     */
+    long getMaxSize() {
+
+        return maxSize;
+    }
+
+    /**
+     * Pass over the backups once, deleting those outside the limits. The size limit only counts
+     * the backups the deleter actually managed to delete, so a backup that can't be deleted is
+     * made up for by deleting the next oldest. The newest backup is never deleted to meet the size limit.
+     *
+     * Deleting an incremental backup frees only its manifest until the store is cleaned up, and how much
+     * the store shrinks then isn't known here. So once a manifest is deleted the size limit isn't applied
+     * for the rest of the pass, the caller cleans up the store, measures again and makes another pass.
+     *
+     * @param backups   the backups, oldest first
+     * @param totalSize the size of all backups, including anything else counted towards the size limit
+     * @param now       the current time in milliseconds
+     * @param deleter   deletes a backup
+     * @return the number of backups deleted
+     */
+    int apply(List<BackupCatalog.Entry> backups, long totalSize, long now, Deleter deleter) {
+
+        int excess = maxNumber == -1 ? 0 : backups.size() - maxNumber;
+        Map<BackupCatalog.Entry, String> thinned = policy != null ? policy.select(backups, now)
+                : Collections.<BackupCatalog.Entry, String>emptyMap();
+        int deleted = 0;
+        boolean sizeKnown = true;
+
+        for (int i = 0; i < backups.size(); i++) {
+            BackupCatalog.Entry backup = backups.get(i);
+            String reason;
+
+            if (i < excess)
+                reason = "more than " + maxNumber + " backups";
+            else if (maxAgeDays != -1 && (now - backup.time) / DAY > maxAgeDays)
+                reason = "older than " + maxAgeDays + " days";
+            else if (thinned.containsKey(backup))
+                reason = thinned.get(backup);
+            else if (maxSize != -1 && sizeKnown && totalSize > maxSize && i < backups.size() - 1)
+                reason = "backups are larger than " + maxSize / (1024 * 1024) + " MB";
+            else
+                continue;
+
+            if (deleter.delete(backup, reason)) {
+                totalSize -= backup.size;
+                sizeKnown &= !backup.isManifest();
+                deleted++;
+            }
+        }
+
+        return deleted;
+    }
+
+    interface Deleter {
+
+        /**
+         * @param backup the backup to delete
+         * @param reason why the backup is being deleted
+         * @return true if the backup was deleted
+         */
+        boolean delete(BackupCatalog.Entry backup, String reason);
+    }
+}
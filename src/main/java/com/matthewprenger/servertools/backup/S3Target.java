@@ -0,0 +1,420 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A backup target in an S3 bucket, or in anything that speaks the S3 protocol such as MinIO.
+ *
+ * Requests are made with {@link HttpURLConnection} and signed with AWS Signature Version 4,
+ * so no SDK is needed. Only the handful of calls backups need are used: put, head and delete
+ * of single objects, and the multipart upload calls.
+ */
+class S3Target extends BackupTarget {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 5 * 60 * 1000;
+    private static final int MAX_ERROR_LENGTH = 512;
+    private static final String EMPTY_HASH = ContentStore.toHex(sha256(new byte[0], 0, 0));
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+    private static final Pattern ERROR_CODE = Pattern.compile("<Code>([^<]+)</Code>");
+
+    private final String bucket;
+    private final String prefix;
+    private final Settings settings;
+    private final String scheme;
+    private final String host;
+
+    /**
+     * @param bucket   the name of the bucket
+     * @param prefix   the path within the bucket that objects are kept under, may be empty
+     * @param settings the endpoint and credentials
+     */
+    S3Target(String bucket, String prefix, Settings settings) {
+
+        this.bucket = bucket;
+        this.settings = settings;
+
+        while (prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        if (!prefix.isEmpty() && !prefix.endsWith("/"))
+            prefix += "/";
+        this.prefix = prefix;
+
+        URI base = URI.create(settings.endpoint.isEmpty() ? String.format("https://s3.%s.amazonaws.com", settings.region) : settings.endpoint);
+        if (base.getHost() == null)
+            throw new IllegalArgumentException(String.format("Invalid S3 endpoint %s", settings.endpoint));
+
+        // Written the way HttpURLConnection sends it in the Host header, which has to match the signed one
+        boolean defaultPort = base.getPort() == -1 || base.getPort() == (base.getScheme().equals("https") ? 443 : 80);
+        this.scheme = base.getScheme();
+        this.host = (settings.pathStyle ? "" : bucket + ".") + base.getHost() + (defaultPort ? "" : ":" + base.getPort());
+    }
+
+    @Override
+    void put(String key, byte[] data, int offset, int length) throws IOException {
+
+        request("PUT", key, Collections.<String, String>emptyMap(), data, offset, length).close();
+    }
+
+    @Override
+    Upload startUpload(final String key, int partSize) throws IOException {
+
+        final String uploadId;
+        try (Response response = request("POST", key, Collections.singletonMap("uploads", ""), null, 0, 0)) {
+            Matcher matcher = UPLOAD_ID.matcher(response.readBody());
+            if (!matcher.find())
+                throw new IOException(String.format("No upload id was returned for %s", key));
+            uploadId = matcher.group(1);
+        }
+
+        return new Upload() {
+
+            private final Map<Integer, String> etags = new ConcurrentHashMap<>();
+
+            @Override
+            public void putPart(int number, byte[] data, int offset, int length) throws IOException {
+
+                Map<String, String> query = new HashMap<>();
+                query.put("partNumber", Integer.toString(number));
+                query.put("uploadId", uploadId);
+
+                try (Response response = request("PUT", key, query, data, offset, length)) {
+                    String etag = response.connection.getHeaderField("ETag");
+                    if (etag == null)
+                        throw new IOException(String.format("No ETag was returned for part %s of %s", number, key));
+                    etags.put(number, etag);
+                }
+            }
+
+            @Override
+            public void complete(int parts) throws IOException {
+
+                StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+                for (int i = 1; i <= parts; i++) {
+                    String etag = etags.get(i);
+                    if (etag == null)
+                        throw new IOException(String.format("Part %s of %s was never sent", i, key));
+                    body.append("<Part><PartNumber>").append(i).append("</PartNumber><ETag>")
+                            .append(etag.replace("&", "&amp;").replace("\"", "&quot;")).append("</ETag></Part>");
+                }
+                body.append("</CompleteMultipartUpload>");
+
+                byte[] data = body.toString().getBytes(Charsets.UTF_8);
+                try (Response response = request("POST", key, Collections.singletonMap("uploadId", uploadId), data, 0, data.length)) {
+                    // A failed completion can still be sent with a 200 status, the error is in the body
+                    String result = response.readBody();
+                    if (result.contains("<Error>"))
+                        throw newError(key, 500, result);
+                }
+            }
+
+            @Override
+            public void abort() {
+
+                try {
+                    request("DELETE", key, Collections.singletonMap("uploadId", uploadId), null, 0, 0).close();
+                } catch (IOException e) {
+                    ServerToolsBackup.log.warn(String.format("Failed to abort the upload of %s, its parts may be left in the bucket: %s", key, e.getMessage()));
+                }
+            }
+        };
+    }
+
+    @Override
+    boolean exists(String key) throws IOException {
+
+        try {
+            request("HEAD", key, Collections.<String, String>emptyMap(), null, 0, 0).close();
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    void delete(String key) throws IOException {
+
+        try {
+            request("DELETE", key, Collections.<String, String>emptyMap(), null, 0, 0).close();
+        } catch (NotFoundException ignored) {
+            // Already gone
+        }
+    }
+
+    /**
+     * Make a signed request
+     *
+     * @param query the query parameters, unencoded
+     * @param data  the body, or null for none
+     * @return the response, which must be closed
+     * @throws NotFoundException if the object or upload doesn't exist
+     * @throws RequestException  if the request was turned down
+     */
+    private Response request(String method, String key, Map<String, String> query, byte[] data, int offset, int length) throws IOException {
+
+        String path = encode((settings.pathStyle ? "/" + bucket + "/" : "/") + prefix + key, false);
+
+        StringBuilder queryString = new StringBuilder();
+        for (Map.Entry<String, String> parameter : new TreeMap<>(query).entrySet()) {
+            if (queryString.length() > 0)
+                queryString.append('&');
+            queryString.append(encode(parameter.getKey(), true)).append('=').append(encode(parameter.getValue(), true));
+        }
+
+        String payloadHash = data == null ? EMPTY_HASH : ContentStore.toHex(sha256(data, offset, length));
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String amzDate = format.format(new Date());
+
+        SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+
+        String authorization = sign(method, path, queryString.toString(), headers, payloadHash, amzDate,
+                settings.region, SERVICE, settings.accessKey, settings.secretKey);
+
+        URL url = new URL(scheme + "://" + host + path + (queryString.length() > 0 ? "?" + queryString : ""));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+        connection.setRequestProperty("x-amz-date", amzDate);
+
+        try {
+            if (data != null || method.equals("POST") || method.equals("PUT")) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(data == null ? 0 : length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    if (data != null)
+                        out.write(data, offset, length);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                String body = "";
+                InputStream error = connection.getErrorStream();
+                if (error != null) {
+                    try (InputStream in = error) {
+                        body = new String(ByteStreams.toByteArray(ByteStreams.limit(in, MAX_ERROR_LENGTH)), Charsets.UTF_8);
+                    }
+                }
+                throw newError(key, status, body);
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        return new Response(connection);
+    }
+
+    private RequestException newError(String key, int status, String body) {
+
+        Matcher matcher = ERROR_CODE.matcher(body);
+        String code = matcher.find() ? matcher.group(1) : "HTTP " + status;
+        String message = String.format("%s was turned down by %s: %s", key, this, code);
+
+        if (status == 404)
+            return new NotFoundException(message);
+
+        // Throttling, server errors and requests signed with a clock that has since been corrected may work later
+        boolean retryable = status >= 500 || status == 408 || status == 429 || code.equals("RequestTimeTooSkewed") || code.equals("SlowDown");
+        return new RequestException(message, retryable);
+    }
+
+    /**
+     * Work out the Authorization header of a request with AWS Signature Version 4
+     *
+     * @param path        the URI encoded path
+     * @param query       the canonical query string: encoded, sorted by name and joined with &amp;
+     * @param headers     the headers to sign, with lower case names
+     * @param payloadHash the hex SHA-256 of the body
+     * @param amzDate     the time of the request, as in the x-amz-date header
+     */
+    static String sign(String method, String path, String query, SortedMap<String, String> headers, String payloadHash, String amzDate,
+                       String region, String service, String accessKey, String secretKey) {
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+            if (signedHeaders.length() > 0)
+                signedHeaders.append(';');
+            signedHeaders.append(header.getKey());
+        }
+
+        String canonicalRequest = method + '\n' + path + '\n' + query + '\n' + canonicalHeaders + '\n' + signedHeaders + '\n' + payloadHash;
+        byte[] canonicalBytes = canonicalRequest.getBytes(Charsets.UTF_8);
+
+        String date = amzDate.substring(0, 8);
+        String scope = date + '/' + region + '/' + service + "/aws4_request";
+        String stringToSign = ALGORITHM + '\n' + amzDate + '\n' + scope + '\n' + ContentStore.toHex(sha256(canonicalBytes, 0, canonicalBytes.length));
+
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(Charsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, service);
+        key = hmac(key, "aws4_request");
+        String signature = ContentStore.toHex(hmac(key, stringToSign));
+
+        return String.format("%s Credential=%s/%s, SignedHeaders=%s, Signature=%s", ALGORITHM, accessKey, scope, signedHeaders, signature);
+    }
+
+    /**
+     * URI encode a string the way Signature Version 4 expects: everything but unreserved characters
+     *
+     * @param slash true to encode / as well, as in query parameters
+     */
+    static String encode(String value, boolean slash) {
+
+        StringBuilder encoded = new StringBuilder(value.length() + 16);
+        for (byte b : value.getBytes(Charsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !slash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] sha256(byte[] data, int offset, int length) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(Charsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return "s3://" + bucket + "/" + prefix;
+    }
+
+    /**
+     * The endpoint and credentials shared by every S3 target
+     */
+    static class Settings {
+
+        final String endpoint;
+        final String region;
+        final String accessKey;
+        final String secretKey;
+        final boolean pathStyle;
+
+        /**
+         * @param endpoint  the URL of the S3 service, or empty for Amazon S3 in the region
+         * @param region    the region the bucket is in
+         * @param accessKey the access key id, or empty to use the AWS_ACCESS_KEY_ID environment variable
+         * @param secretKey the secret access key, or empty to use the AWS_SECRET_ACCESS_KEY environment variable
+         * @param pathStyle put the bucket name in the path rather than the host name, as MinIO and most other S3 services need
+         */
+        Settings(String endpoint, String region, String accessKey, String secretKey, boolean pathStyle) {
+
+            this.endpoint = endpoint;
+            this.region = region;
+            this.accessKey = Strings.isNullOrEmpty(accessKey) ? Strings.nullToEmpty(System.getenv("AWS_ACCESS_KEY_ID")) : accessKey;
+            this.secretKey = Strings.isNullOrEmpty(secretKey) ? Strings.nullToEmpty(System.getenv("AWS_SECRET_ACCESS_KEY")) : secretKey;
+            this.pathStyle = pathStyle;
+        }
+    }
+
+    /**
+     * Thrown when an object or upload doesn't exist
+     */
+    static class NotFoundException extends RequestException {
+
+        NotFoundException(String message) {
+
+            super(message, false);
+        }
+    }
+
+    private static class Response implements AutoCloseable {
+
+        final HttpURLConnection connection;
+
+        Response(HttpURLConnection connection) {
+
+            this.connection = connection;
+        }
+
+        String readBody() throws IOException {
+
+            try (InputStream in = connection.getInputStream()) {
+                return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+            }
+        }
+
+        @Override
+        public void close() {
+
+            // Drain what's left so the connection can be reused
+            try (InputStream in = connection.getInputStream()) {
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            } catch (IOException ignored) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks on the server thread at the start of the next server tick.
+ *
+ * Backups run on their own thread, but anything that touches worlds has to happen
+ * on the server thread. Tasks are handed over through {@link #submit} and the backup
+ * thread waits on the returned future. Work too long for one tick is handed over as a
+ * {@link TickTask} through {@link #run}, which does a part of it every tick.
+ */
+public class ServerThreadExecutor {
+
+    private final Queue<FutureTask<?>> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<TickFuture> tickTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Queue a task to run on the server thread
+     *
+     * @param task the task
+     * @return a future completed once the task has run
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+
+        FutureTask<T> future = new FutureTask<>(task);
+        tasks.add(future);
+        return future;
+    }
+
+    /**
+     * Queue a task to run on the server thread and wait for it to finish. If waiting fails, by timing out or
+     * being interrupted, the task is cancelled, so it only runs later if the server had already started it.
+     *
+     * @param task    the task
+     * @param timeout the maximum time to wait in seconds
+     * @return the result of the task
+     * @throws ExecutionException if the task threw an exception
+     * @throws TimeoutException   if the server didn't run the task in time
+     */
+    public <T> T call(Callable<T> task, long timeout) throws ExecutionException, InterruptedException, TimeoutException {
+
+        Future<T> future = submit(task);
+
+        try {
+            return future.get(timeout, TimeUnit.SECONDS);
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Run a task on the server thread a part every tick and wait for it to finish. The task is
+     * cancelled if waiting fails, so the server doesn't carry on with work nobody waits for.
+     *
+     * @param task    the task
+     * @param timeout the maximum time to wait for the server to run a part of the task in seconds
+     * @throws ExecutionException if the task threw an exception
+     * @throws TimeoutException   if the server didn't run a part of the task in time
+     */
+    public void run(TickTask task, long timeout) throws ExecutionException, InterruptedException, TimeoutException {
+
+        TickFuture future = new TickFuture(task);
+        tickTasks.add(future);
+
+        try {
+            while (true) {
+                long ticks = future.ticks;
+                try {
+                    future.get(timeout, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (future.ticks == ticks)
+                        throw e;
+                }
+            }
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+
+        if (event.phase != TickEvent.Phase.START)
+            return;
+
+        FutureTask<?> task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+
+        for (Iterator<TickFuture> iterator = tickTasks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().tick())
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Work spread over server ticks
+     */
+    public interface TickTask {
+
+        /**
+         * Do the next part of the work, taking no more than a small part of the tick
+         *
+         * @return true once all of the work is done
+         */
+        boolean tick() throws Exception;
+    }
+
+    private static final class TickFuture extends AbstractFuture<Void> {
+
+        private final TickTask task;
+
+        /**
+         * The number of ticks the task has run for, only changed on the server thread
+         */
+        private volatile long ticks;
+
+        private TickFuture(TickTask task) {
+
+            this.task = task;
+        }
+
+        /**
+         * @return true once the task is done with, whether it finished, failed or was cancelled
+         */
+        private boolean tick() {
+
+            if (isDone())
+                return true;
+
+            ticks++;
+            try {
+                if (task.tick()) {
+                    set(null);
+                    return true;
+                }
+            } catch (Throwable t) {
+                setException(t);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -24,6 +24,8 @@ import cpw.mods.fml.common.event.FMLFingerprintViolationEvent;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
 import cpw.mods.fml.common.event.FMLServerAboutToStartEvent;
 import cpw.mods.fml.common.event.FMLServerStartedEvent;
+import cpw.mods.fml.common.event.FMLServerStoppedEvent;
+import cpw.mods.fml.common.event.FMLServerStoppingEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -69,4 +71,20 @@ public class ServerToolsBackup {
 
         if (backupHandler == null) backupHandler = new BackupHandler();
     }
+
+    @Mod.EventHandler
+    public void serverStopping(FMLServerStoppingEvent event) {
+
+        if (backupHandler != null)
+            backupHandler.shutdown();
+    }
+
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent event) {
+
+        if (backupHandler != null) {
+            backupHandler.stopTracking();
+            backupHandler = null;
+        }
+    }
 }
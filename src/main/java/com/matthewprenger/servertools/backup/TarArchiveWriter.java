@@ -0,0 +1,420 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a POSIX (ustar) tar archive, optionally gzipped.
+ *
+ * A gzipped archive is written as a single deflate stream without running a compressor
+ * on this thread: file data arrives as sync flushed deflate blocks from the compression
+ * threads, and the tar headers and padding in between are emitted as stored deflate blocks.
+ * The gzip trailer's CRC is combined from the CRCs of the pieces.
+ *
+ * Names longer than the ustar fields allow, and files larger than 8 GB, get a pax extended header.
+ *
+ * Each file's data starts a new deflate block and its blocks never refer back to earlier data,
+ * so a file can be inflated on its own starting from its {@link #getDataOffset}.
+ */
+class TarArchiveWriter implements ArchiveWriter {
+
+    private static final int RECORD_SIZE = 512;
+    private static final int ARCHIVE_BLOCKING = RECORD_SIZE * 20;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final int MAX_STORED_BLOCK = 0xFFFF;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] FINAL_STORED_BLOCK = {1, 0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final WritableByteChannel channel;
+    private final boolean gzip;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private long flushed;
+    private long tarLength;
+    private long tarCrc;
+    private boolean closed;
+
+    private String fileName;
+    private long fileSize;
+    private long fileWritten;
+    private long dataOffset;
+    private long dataLength;
+
+    /**
+     * @param channel the channel to write the archive to, closed along with the writer
+     * @param gzip    compress the archive with gzip
+     */
+    public TarArchiveWriter(WritableByteChannel channel, boolean gzip) {
+
+        this.channel = channel;
+        this.gzip = gzip;
+
+        if (gzip)
+            buffer.put(GZIP_HEADER);
+    }
+
+    @Override
+    public void putDirectory(String name, long time) throws IOException {
+
+        ensureIdle();
+        writeHeader(name.endsWith("/") ? name : name + "/", time, 0, '5', 0755);
+    }
+
+    @Override
+    public void putFile(String name, long time, long crc, long size, FileChannel source) throws IOException {
+
+        ensureIdle();
+        writeHeader(name, time, size, '0', 0644);
+        dataOffset = getBytesWritten();
+
+        flush();
+        if (gzip) {
+            for (long position = 0; position < size; position += MAX_STORED_BLOCK) {
+                int length = (int) Math.min(MAX_STORED_BLOCK, size - position);
+                writeStoredBlockHeader(length);
+                flush();
+                FileIO.transfer(source, position, length, channel);
+                flushed += length;
+            }
+            tarCrc = Checksums.combineCrc32(tarCrc, crc, size);
+        } else {
+            FileIO.transfer(source, 0, size, channel);
+            flushed += size;
+        }
+        tarLength += size;
+        dataLength = getBytesWritten() - dataOffset;
+
+        writePadding(size);
+    }
+
+    @Override
+    public void beginFile(String name, long time, long size) throws IOException {
+
+        if (!gzip)
+            throw new UnsupportedOperationException("Compressed blocks can only be written to a gzipped archive");
+
+        ensureIdle();
+        writeHeader(name, time, size, '0', 0644);
+        dataOffset = getBytesWritten();
+
+        fileName = name;
+        fileSize = size;
+        fileWritten = 0;
+    }
+
+    @Override
+    public void writeBlock(byte[] data, int off, int len, long crc, long size, boolean last) throws IOException {
+
+        if (fileName == null)
+            throw new IllegalStateException("No file is open");
+
+        if (fileWritten + size > fileSize)
+            throw new IOException("File grew while it was being archived: " + fileName);
+
+        write(data, off, len);
+        tarCrc = Checksums.combineCrc32(tarCrc, crc, size);
+        tarLength += size;
+        fileWritten += size;
+
+        if (last) {
+            dataLength = getBytesWritten() - dataOffset;
+
+            // A file that shrank since its header was written is padded out to the size in the header
+            if (fileWritten < fileSize) {
+                byte[] zeros = new byte[(int) Math.min(RECORD_SIZE * 16, fileSize - fileWritten)];
+                while (fileWritten < fileSize) {
+                    int count = (int) Math.min(zeros.length, fileSize - fileWritten);
+                    writeTar(zeros, 0, count);
+                    fileWritten += count;
+                }
+            }
+
+            fileName = null;
+            writePadding(fileSize);
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+
+        return flushed + buffer.position();
+    }
+
+    @Override
+    public long getDataOffset() {
+
+        return dataOffset;
+    }
+
+    @Override
+    public long getDataLength() {
+
+        return dataLength;
+    }
+
+    @Override
+    public boolean isDataDeflated() {
+
+        return gzip;
+    }
+
+    /**
+     * The state is the length and CRC of the tar stream so far, which the gzip trailer needs
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+
+        ensureIdle();
+        out.writeLong(getBytesWritten());
+        out.writeLong(tarLength);
+        out.writeLong(tarCrc);
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+
+        if (flushed == 0)
+            buffer.clear(); // The gzip header is already in the archive
+        else if (buffer.position() > 0)
+            throw new IllegalStateException("The archive has already been written to");
+
+        flushed = in.readLong();
+        tarLength = in.readLong();
+        tarCrc = in.readLong();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed)
+            return;
+
+        try {
+            if (fileName != null)
+                throw new IOException("Archive closed with an unfinished entry: " + fileName);
+
+            // Two empty records end the archive, which is then padded out to a whole block
+            Arrays.fill(record, (byte) 0);
+            writeTar(record, 0, RECORD_SIZE);
+            writeTar(record, 0, RECORD_SIZE);
+            while (tarLength % ARCHIVE_BLOCKING != 0)
+                writeTar(record, 0, RECORD_SIZE);
+
+            if (gzip) {
+                write(FINAL_STORED_BLOCK, 0, FINAL_STORED_BLOCK.length);
+                ensureSpace(8);
+                buffer.putInt((int) tarCrc);
+                buffer.putInt((int) tarLength);
+            }
+
+            flush();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void writeHeader(String name, long time, long size, char type, int mode) throws IOException {
+
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        int split = findPrefixSplit(nameBytes);
+        boolean pax = split < 0 || size > MAX_USTAR_SIZE;
+
+        if (pax) {
+            StringBuilder records = new StringBuilder();
+            if (split < 0)
+                records.append(paxRecord("path", name));
+            if (size > MAX_USTAR_SIZE)
+                records.append(paxRecord("size", Long.toString(size)));
+
+            byte[] data = records.toString().getBytes(Charsets.UTF_8);
+            byte[] shortName = ("PaxHeaders/" + (nameBytes.length > 80 ? "entry" : name)).getBytes(Charsets.UTF_8);
+            writeRecord(shortName, 0, time, data.length, 'x', 0644);
+            writeTar(data, 0, data.length);
+            writePadding(data.length);
+        }
+
+        if (split < 0)
+            nameBytes = Arrays.copyOf(nameBytes, Math.min(nameBytes.length, 100));
+
+        writeRecord(nameBytes, Math.max(split, 0), time, Math.min(size, MAX_USTAR_SIZE), type, mode);
+    }
+
+    /**
+     * Write a ustar header record
+     *
+     * @param name  the full name, which is split at {@code split} into the prefix and name fields
+     * @param split 0 to put the whole name in the name field, otherwise the index of the '/' separating the prefix
+     */
+    private void writeRecord(byte[] name, int split, long time, long size, char type, int mode) throws IOException {
+
+        Arrays.fill(record, (byte) 0);
+
+        if (split > 0) {
+            System.arraycopy(name, split + 1, record, 0, name.length - split - 1);
+            System.arraycopy(name, 0, record, 345, split);
+        } else {
+            System.arraycopy(name, 0, record, 0, Math.min(name.length, 100));
+        }
+
+        putOctal(100, 8, mode);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, size);
+        putOctal(136, 12, Math.max(time / 1000, 0));
+        record[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(Charsets.US_ASCII), 0, record, 257, 8);
+
+        Arrays.fill(record, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : record)
+            checksum += b & 0xFF;
+        putOctal(148, 7, checksum);
+
+        writeTar(record, 0, RECORD_SIZE);
+    }
+
+    /**
+     * @return 0 if the name fits the name field, the index of the '/' to split it at
+     * between the prefix and name fields, or -1 if it doesn't fit either way
+     */
+    private static int findPrefixSplit(byte[] name) {
+
+        if (name.length <= 100)
+            return 0;
+
+        for (int i = Math.min(name.length - 2, 155); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100)
+                return i;
+        }
+
+        return -1;
+    }
+
+    private static String paxRecord(String key, String value) {
+
+        // The length prefix counts itself, so grow it until it's stable
+        int length = key.getBytes(Charsets.UTF_8).length + value.getBytes(Charsets.UTF_8).length + 3;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length())
+            total++;
+
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    private void putOctal(int offset, int length, long value) {
+
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int index = octal.length() - digits + i;
+            record[offset + i] = (byte) (index >= 0 ? octal.charAt(index) : '0');
+        }
+        record[offset + digits] = 0;
+    }
+
+    private void writePadding(long size) throws IOException {
+
+        int padding = (int) ((RECORD_SIZE - size % RECORD_SIZE) % RECORD_SIZE);
+        if (padding > 0) {
+            Arrays.fill(record, (byte) 0);
+            writeTar(record, 0, padding);
+        }
+    }
+
+    /**
+     * Write bytes of the tar stream itself, wrapping them in stored deflate blocks when gzipping
+     */
+    private void writeTar(byte[] data, int off, int len) throws IOException {
+
+        tarLength += len;
+
+        if (gzip) {
+            crc.reset();
+            crc.update(data, off, len);
+            tarCrc = Checksums.combineCrc32(tarCrc, crc.getValue(), len);
+            while (len > 0) {
+                int count = Math.min(len, MAX_STORED_BLOCK);
+                writeStoredBlockHeader(count);
+                write(data, off, count);
+                off += count;
+                len -= count;
+            }
+        } else {
+            write(data, off, len);
+        }
+    }
+
+    private void writeStoredBlockHeader(int length) throws IOException {
+
+        ensureSpace(5);
+        buffer.put((byte) 0);
+        buffer.putShort((short) length);
+        buffer.putShort((short) ~length);
+    }
+
+    private void ensureIdle() throws IOException {
+
+        if (closed)
+            throw new IOException("Archive is closed");
+        if (fileName != null)
+            throw new IllegalStateException("An entry is still open");
+    }
+
+    private void write(byte[] data, int off, int len) throws IOException {
+
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                flush();
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(data, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+
+        if (buffer.remaining() < bytes)
+            flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            flushed += channel.write(buffer);
+        buffer.clear();
+    }
+}
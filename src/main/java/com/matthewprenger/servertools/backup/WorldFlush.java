@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.MinecraftException;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.DimensionManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves the loaded chunks of worlds before a backup a few at a time, taking no more than a set time each
+ * server tick, so saving tens of thousands of chunks doesn't stall the server for seconds when a backup starts.
+ *
+ * Chunks are saved the way the chunk provider saves them, through its chunk loader, which hands them to the
+ * chunk IO thread. Chunks that change after they're saved are left for {@link #saveModified}, which the backup
+ * calls as it pauses saving, by then there are only a few. Entities are saved with the chunk they're in at the
+ * time, so one that crosses into another chunk while the worlds are being saved can be saved in neither or both,
+ * as with chunks that are unloaded.
+ */
+class WorldFlush implements ServerThreadExecutor.TickTask {
+
+    private final BackupSet set;
+    private final long budgetNanos;
+
+    private List<WorldServer> worlds;
+    private int nextWorld;
+    private WorldServer world;
+    private List<Chunk> chunks;
+    private int next;
+
+    private int chunksSaved;
+    private int ticks;
+
+    /**
+     * @param set          the backup set whose worlds to save
+     * @param budgetMillis the most time to spend saving each tick in milliseconds
+     */
+    WorldFlush(BackupSet set, int budgetMillis) {
+
+        this.set = set;
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    /**
+     * Save chunks until the time for this tick is used up, always at least one so the saving carries on however small the budget
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tick() throws MinecraftException, IOException {
+
+        long deadline = System.nanoTime() + budgetNanos;
+        ticks++;
+
+        if (worlds == null) {
+            worlds = new ArrayList<>();
+            for (WorldServer worldServer : MinecraftServer.getServer().worldServers) {
+                if (Backup.isInSet(worldServer, set))
+                    worlds.add(worldServer);
+            }
+        }
+
+        do {
+            if (chunks == null || next == chunks.size()) {
+                if (nextWorld == worlds.size())
+                    return true;
+
+                // A world that was unloaded since saved its chunks as it unloaded
+                world = worlds.get(nextWorld++);
+                chunks = DimensionManager.getWorld(world.provider.dimensionId) == world
+                        ? new ArrayList<Chunk>(world.theChunkProviderServer.loadedChunks) : new ArrayList<Chunk>();
+                next = 0;
+                continue;
+            }
+
+            Chunk chunk = chunks.get(next++);
+            if (chunk.isChunkLoaded && chunk.needsSaving(true)) {
+                saveChunk(world, chunk);
+                chunksSaved++;
+            }
+        } while (System.nanoTime() < deadline);
+
+        return false;
+    }
+
+    int getChunksSaved() {
+
+        return chunksSaved;
+    }
+
+    int getTicks() {
+
+        return ticks;
+    }
+
+    /**
+     * Save the chunks of a world that changed since they were last saved. Must be called on the server thread.
+     *
+     * @return the number of chunks saved
+     */
+    @SuppressWarnings("unchecked")
+    static int saveModified(WorldServer world) throws MinecraftException, IOException {
+
+        int saved = 0;
+        for (Chunk chunk : (List<Chunk>) world.theChunkProviderServer.loadedChunks) {
+            if (chunk.isModified) {
+                saveChunk(world, chunk);
+                saved++;
+            }
+        }
+        return saved;
+    }
+
+    private static void saveChunk(WorldServer world, Chunk chunk) throws MinecraftException, IOException {
+
+        chunk.lastSaveTime = world.getTotalWorldTime();
+        world.theChunkProviderServer.currentChunkLoader.saveChunk(world, chunk);
+        chunk.isModified = false;
+    }
+}
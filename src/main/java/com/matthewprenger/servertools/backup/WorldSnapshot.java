@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A point in time copy of the world directory that can be archived at leisure
+ * while the server carries on saving into the real world directory.
+ *
+ * Files are copied rather than hard linked: Minecraft rewrites region files in place,
+ * so a link would keep changing underneath the archiver. Copies go through
+ * {@link java.nio.channels.FileChannel#transferTo}, which lets the kernel move the data.
+ *
+ * The snapshot is kept between backups and brought up to date rather than made again: a file whose copy
+ * has the same size and modification time is left as it is, and files no longer in the world are removed.
+ * Bringing it up to date once while the server runs and again once saving is paused leaves only what was
+ * saved in between to copy during the pause.
+ */
+class WorldSnapshot {
+
+    /**
+     * Files modified this recently may be modified again without their time changing, on file systems that
+     * only keep whole seconds, so their copies are always made again
+     */
+    private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+    private final File directory;
+
+    private long bytesCopied;
+    private int filesCopied;
+    private int filesReused;
+
+    private WorldSnapshot(File directory) {
+
+        this.directory = directory;
+    }
+
+    /**
+     * Bring a snapshot of a directory up to date, creating it if there is none
+     *
+     * @param source the directory to copy
+     * @param target the directory of the snapshot
+     * @param filter decides which files and directories are copied
+     */
+    static WorldSnapshot create(File source, File target, PathFilter filter) throws IOException {
+
+        return create(source, target, filter, null);
+    }
+
+    /**
+     * Bring a snapshot up to date for an incremental backup, leaving out the region files that weren't
+     * saved to since the previous backup, since the backup takes those from its manifest. Copies of them
+     * left from earlier are kept for later snapshots.
+     *
+     * @param changes the region files saved to since the previous backup, or null to bring every file up to date
+     */
+    static WorldSnapshot create(File source, File target, final PathFilter filter, final DirtyRegions.Changes changes) throws IOException {
+
+        final WorldSnapshot snapshot = new WorldSnapshot(target);
+        final Path sourcePath = source.toPath();
+        final Path targetPath = target.toPath();
+        final Set<Path> kept = new HashSet<>();
+        final long started = System.currentTimeMillis();
+
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            private String getPath(Path path) {
+                return sourcePath.relativize(path).toString().replace(File.separatorChar, '/');
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(sourcePath) && !filter.accepts(getPath(dir), dir.getFileName().toString(), true))
+                    return FileVisitResult.SKIP_SUBTREE;
+
+                Path copy = targetPath.resolve(sourcePath.relativize(dir));
+                if (!Files.isDirectory(copy, LinkOption.NOFOLLOW_LINKS)) {
+                    if (Files.exists(copy, LinkOption.NOFOLLOW_LINKS))
+                        deleteRecursively(copy.toFile());
+                    Files.createDirectories(copy);
+                }
+                kept.add(copy);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedIOException("Snapshot was interrupted");
+
+                String name = file.getFileName().toString();
+                if (!attrs.isRegularFile() || !filter.accepts(getPath(file), name, false))
+                    return FileVisitResult.CONTINUE;
+
+                Path copy = targetPath.resolve(sourcePath.relativize(file));
+                kept.add(copy);
+
+                if (changes != null) {
+                    String directory = getPath(file.getParent());
+                    if (changes.getDirectories().contains(directory) && !changes.isChanged(directory, name))
+                        return FileVisitResult.CONTINUE;
+                }
+
+                // The time is taken before copying, so a change made while the file is copied shows next time
+                long mtime = attrs.lastModifiedTime().toMillis();
+                if (isUpToDate(copy, attrs.size(), mtime)) {
+                    snapshot.filesReused++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                long copied;
+                try {
+                    copied = FileIO.copy(file.toFile(), copy.toFile());
+                } catch (NoSuchFileException e) {
+                    kept.remove(copy);
+                    return FileVisitResult.CONTINUE; // Temporary files can vanish mid walk
+                }
+                Files.setLastModifiedTime(copy, FileTime.fromMillis(mtime > started - MTIME_RESOLUTION_MILLIS ? mtime - 1 : mtime));
+                snapshot.filesCopied++;
+                snapshot.bytesCopied += copied;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof NoSuchFileException)
+                    return FileVisitResult.CONTINUE;
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null)
+                    throw exc;
+
+                Files.setLastModifiedTime(targetPath.resolve(sourcePath.relativize(dir)), Files.getLastModifiedTime(dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        removeUnkept(targetPath, kept);
+        return snapshot;
+    }
+
+    private static boolean isUpToDate(Path copy, long size, long mtime) throws IOException {
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(copy, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attrs.isRegularFile() && attrs.size() == size && attrs.lastModifiedTime().toMillis() == mtime;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete everything in the snapshot that is no longer in the world
+     */
+    private static void removeUnkept(final Path targetPath, final Set<Path> kept) throws IOException {
+
+        Files.walkFileTree(targetPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(targetPath) || kept.contains(dir))
+                    return FileVisitResult.CONTINUE;
+
+                deleteRecursively(dir.toFile());
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!kept.contains(file))
+                    Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    File getDirectory() {
+
+        return directory;
+    }
+
+    long getBytesCopied() {
+
+        return bytesCopied;
+    }
+
+    int getFilesCopied() {
+
+        return filesCopied;
+    }
+
+    /**
+     * @return the number of files whose copy was already up to date
+     */
+    int getFilesReused() {
+
+        return filesReused;
+    }
+
+    /**
+     * Delete the snapshot
+     */
+    void delete() throws IOException {
+
+        deleteRecursively(directory);
+    }
+
+    static void deleteRecursively(File directory) throws IOException {
+
+        if (!directory.exists())
+            return;
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null)
+                    throw exc;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
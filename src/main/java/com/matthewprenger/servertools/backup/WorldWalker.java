@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks a directory on its own thread and hands out the files that pass a {@link PathFilter}
+ * while the walk is still going, so the archivers can start reading and compressing the first
+ * files instead of waiting for the whole tree to be listed.
+ *
+ * The walk uses {@link Files#walkFileTree}, which reads the size and modification time of
+ * every entry along with the listing, so nothing else has to touch the file system before the
+ * file is opened. Paths are built up from the directory being visited rather than relativized
+ * per file. At most a fixed number of entries wait to be taken, which holds the walk back
+ * rather than listing far ahead of a slow archive.
+ */
+final class WorldWalker implements Closeable {
+
+    private static final int CAPACITY = 4096;
+    private static final Entry END = new Entry(null, null, null, false, 0, 0);
+
+    private final File root;
+    private final PathFilter filter;
+    private final Set<String> unlisted;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread thread;
+
+    private volatile IOException failure;
+    private volatile long walkNanos;
+    private boolean finished;
+
+    /**
+     * Start walking a directory
+     *
+     * @param root   the directory to walk, which isn't itself returned
+     * @param filter decides which files and directories are returned. Directories that aren't are skipped whole.
+     */
+    WorldWalker(File root, PathFilter filter) {
+
+        this(root, filter, Collections.<String>emptySet());
+    }
+
+    /**
+     * Start walking a directory, leaving out the contents of some of its directories
+     *
+     * @param root     the directory to walk, which isn't itself returned
+     * @param filter   decides which files and directories are returned. Directories that aren't are skipped whole.
+     * @param unlisted the paths of directories that are returned, but whose contents aren't listed
+     */
+    WorldWalker(File root, PathFilter filter, Set<String> unlisted) {
+
+        this.root = root;
+        this.filter = filter;
+        this.unlisted = unlisted;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                walk();
+            }
+        }, "ServerTools-Backup-Walker");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Take the next entry of the walk, waiting for it to be listed.
+     * A directory is always returned before anything in it.
+     *
+     * @return the entry, or null once the walk is done
+     * @throws IOException if the walk failed
+     */
+    Entry next() throws IOException {
+
+        if (finished)
+            return null;
+
+        Entry entry;
+        try {
+            entry = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while walking the world");
+        }
+
+        if (entry == END) {
+            finished = true;
+            if (failure != null)
+                throw failure;
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the time the walk took, once it is done
+     */
+    long getWalkNanos() {
+
+        return walkNanos;
+    }
+
+    /**
+     * Stop the walk if it hasn't finished
+     */
+    @Override
+    public void close() {
+
+        thread.interrupt();
+        queue.clear();
+    }
+
+    private void walk() {
+
+        long start = System.nanoTime();
+        boolean complete = false;
+
+        try {
+            final Path rootPath = root.toPath();
+            final Deque<String> prefixes = new ArrayDeque<>();
+
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+
+                    if (dir.equals(rootPath)) {
+                        prefixes.push("");
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    String name = dir.getFileName().toString();
+                    String path = prefixes.peek() + name;
+                    if (!filter.accepts(path, name, true))
+                        return FileVisitResult.SKIP_SUBTREE;
+
+                    put(new Entry(path, name, dir.toFile(), true, 0, attrs.lastModifiedTime().toMillis()));
+                    if (unlisted.contains(path))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    prefixes.push(path + '/');
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+                    if (!attrs.isRegularFile())
+                        return FileVisitResult.CONTINUE;
+
+                    String name = file.getFileName().toString();
+                    String path = prefixes.peek() + name;
+                    if (filter.accepts(path, name, false))
+                        put(new Entry(path, name, file.toFile(), false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+
+                    if (exc instanceof NoSuchFileException)
+                        return FileVisitResult.CONTINUE; // Temporary files can vanish mid walk
+                    throw exc;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+
+                    if (exc != null && !(exc instanceof NoSuchFileException))
+                        throw exc;
+                    prefixes.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            complete = true;
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Failed to walk the world", e);
+        } finally {
+            walkNanos = System.nanoTime() - start;
+            if (complete) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException ignored) {
+                    // Stopped, nobody is waiting for the end
+                }
+            } else {
+                queue.clear(); // Nothing after a failure is used, make room for the end
+                queue.offer(END);
+            }
+        }
+    }
+
+    private void put(Entry entry) throws IOException {
+
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("World walk was stopped");
+        }
+    }
+
+    /**
+     * A file or directory found by the walk
+     */
+    static final class Entry {
+
+        /**
+         * The path from the walked directory, with / as the separator and no trailing /
+         */
+        final String path;
+        final String name;
+        final File file;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        Entry(String path, String name, File file, boolean directory, long size, long lastModified) {
+
+            this.path = path;
+            this.name = name;
+            this.file = file;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * A minimal zip writer that accepts data that has already been compressed.
+ *
+ * {@link java.util.zip.ZipOutputStream} insists on compressing entries itself, which
+ * ties compression to the thread doing the writing. This writer only lays out headers,
+ * so entries can be deflated elsewhere and handed over in order. Zip64 records are
+ * written whenever sizes, offsets or the entry count overflow the classic format.
+ *
+ * Headers and data are gathered in a direct buffer and written to a channel, and stored
+ * entries can be copied straight from their source file with {@link FileChannel#transferTo}.
+ */
+class ZipArchiveWriter implements ArchiveWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Entry> entries = new ArrayList<>();
+    private final Calendar calendar = Calendar.getInstance();
+
+    private long flushed;
+    private Entry current;
+    private boolean closed;
+    private int savedEntries;
+
+    private long dataOffset;
+    private long dataLength;
+    private boolean dataDeflated;
+
+    private String blockName;
+    private long blockTime;
+    private int blockCount;
+    private long blockCrc;
+    private long blockSize;
+
+    /**
+     * @param channel the channel to write the archive to, closed along with the writer
+     */
+    public ZipArchiveWriter(WritableByteChannel channel) {
+
+        this.channel = channel;
+    }
+
+    @Override
+    public void putDirectory(String name, long time) throws IOException {
+
+        putEntry(name, time, ZipEntry.STORED, 0, 0, new byte[0], 0, 0);
+    }
+
+    /**
+     * Add an entry whose data is complete and already in its final (stored or deflated) form
+     *
+     * @param name   the entry name
+     * @param time   the modification time in milliseconds
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param crc    the CRC-32 of the uncompressed data
+     * @param size   the uncompressed size
+     * @param data   the entry data, as it should appear in the archive
+     * @param off    the offset into data
+     * @param len    the number of bytes of data
+     */
+    public void putEntry(String name, long time, int method, long crc, long size, byte[] data, int off, int len) throws IOException {
+
+        ensureOpen();
+        if (current != null)
+            throw new IllegalStateException("An entry is still open");
+
+        Entry entry = new Entry(name, time, method, 0);
+        entry.crc = crc;
+        entry.size = size;
+        entry.csize = len;
+        writeLocalHeader(entry);
+        setData(getBytesWritten(), entry);
+        write(data, off, len);
+        entries.add(entry);
+    }
+
+    /**
+     * Add a stored entry, copying its data directly from a file
+     */
+    @Override
+    public void putFile(String name, long time, long crc, long size, FileChannel source) throws IOException {
+
+        ensureOpen();
+        if (current != null)
+            throw new IllegalStateException("An entry is still open");
+
+        Entry entry = new Entry(name, time, ZipEntry.STORED, 0);
+        entry.crc = crc;
+        entry.size = size;
+        entry.csize = size;
+        writeLocalHeader(entry);
+        setData(getBytesWritten(), entry);
+        flush();
+        FileIO.transfer(source, 0, size, channel);
+        flushed += size;
+        entries.add(entry);
+    }
+
+    /**
+     * Begin a deflated entry. A file that arrives as a single block is written with its sizes
+     * in the local header, longer files are written with {@link #beginEntry}.
+     */
+    @Override
+    public void beginFile(String name, long time, long size) throws IOException {
+
+        ensureOpen();
+        if (current != null || blockName != null)
+            throw new IllegalStateException("An entry is still open");
+
+        blockName = name;
+        blockTime = time;
+        blockCount = 0;
+    }
+
+    @Override
+    public void writeBlock(byte[] data, int off, int len, long crc, long size, boolean last) throws IOException {
+
+        if (blockName == null)
+            throw new IllegalStateException("No file is open");
+
+        if (blockCount++ == 0) {
+            if (last) {
+                String name = blockName;
+                blockName = null;
+                putEntry(name, blockTime, ZipEntry.DEFLATED, crc, size, data, off, len);
+                return;
+            }
+            beginEntry(blockName, blockTime, ZipEntry.DEFLATED);
+            blockCrc = crc;
+            blockSize = size;
+        } else {
+            blockCrc = Checksums.combineCrc32(blockCrc, crc, size);
+            blockSize += size;
+        }
+
+        writeEntryData(data, off, len);
+
+        if (last) {
+            blockName = null;
+            closeEntry(blockCrc, blockSize);
+        }
+    }
+
+    /**
+     * Begin an entry whose size isn't known yet. The data is passed through {@link #writeEntryData}
+     * and the entry is finished with {@link #closeEntry}, which writes a trailing data descriptor.
+     */
+    public void beginEntry(String name, long time, int method) throws IOException {
+
+        ensureOpen();
+        if (current != null)
+            throw new IllegalStateException("An entry is still open");
+
+        current = new Entry(name, time, method, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(current);
+        current.dataStart = getBytesWritten();
+    }
+
+    public void writeEntryData(byte[] data, int off, int len) throws IOException {
+
+        if (current == null)
+            throw new IllegalStateException("No entry is open");
+
+        write(data, off, len);
+    }
+
+    /**
+     * Finish the entry opened with {@link #beginEntry}
+     *
+     * @param crc  the CRC-32 of all uncompressed data in the entry
+     * @param size the total uncompressed size of the entry
+     */
+    public void closeEntry(long crc, long size) throws IOException {
+
+        if (current == null)
+            throw new IllegalStateException("No entry is open");
+
+        Entry entry = current;
+        current = null;
+
+        entry.crc = crc;
+        entry.size = size;
+        entry.csize = getBytesWritten() - entry.dataStart;
+        setData(entry.dataStart, entry);
+
+        writeInt(DATA_DESCRIPTOR_SIG);
+        writeInt(entry.crc);
+        if (entry.size >= ZIP64_MAGIC || entry.csize >= ZIP64_MAGIC) {
+            writeLong(entry.csize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.csize);
+            writeInt(entry.size);
+        }
+
+        entries.add(entry);
+    }
+
+    @Override
+    public long getBytesWritten() {
+
+        return flushed + buffer.position();
+    }
+
+    @Override
+    public long getDataOffset() {
+
+        return dataOffset;
+    }
+
+    @Override
+    public long getDataLength() {
+
+        return dataLength;
+    }
+
+    @Override
+    public boolean isDataDeflated() {
+
+        return dataDeflated;
+    }
+
+    private void setData(long offset, Entry entry) {
+
+        dataOffset = offset;
+        dataLength = entry.csize;
+        dataDeflated = entry.method == ZipEntry.DEFLATED;
+    }
+
+    /**
+     * The state is the entries completed since the last save, which the central directory is made from
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+
+        if (current != null || blockName != null)
+            throw new IllegalStateException("An entry is still open");
+
+        out.writeLong(getBytesWritten());
+        out.writeInt(entries.size() - savedEntries);
+        for (int i = savedEntries; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            out.writeInt(entry.name.length);
+            out.write(entry.name);
+            out.writeLong(entry.dosTime);
+            out.writeShort(entry.method);
+            out.writeShort(entry.flags);
+            out.writeLong(entry.crc);
+            out.writeLong(entry.size);
+            out.writeLong(entry.csize);
+            out.writeLong(entry.offset);
+        }
+        savedEntries = entries.size();
+    }
+
+    @Override
+    public void restoreState(DataInput in) throws IOException {
+
+        if (buffer.position() > 0)
+            throw new IllegalStateException("The archive has already been written to");
+
+        flushed = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            Entry entry = new Entry(name, in.readLong(), in.readShort(), in.readShort());
+            entry.crc = in.readLong();
+            entry.size = in.readLong();
+            entry.csize = in.readLong();
+            entry.offset = in.readLong();
+            entries.add(entry);
+        }
+        savedEntries = entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed)
+            return;
+
+        try {
+            if (current != null)
+                throw new IOException("Archive closed with an unfinished entry: " + new String(current.name, Charsets.UTF_8));
+            if (blockName != null)
+                throw new IOException("Archive closed with an unfinished entry: " + blockName);
+
+            writeCentralDirectory();
+            flush();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+
+        entry.offset = getBytesWritten();
+
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.csize >= ZIP64_MAGIC;
+
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        if (zip64) {
+            writeInt(entry.crc);
+            writeInt(ZIP64_MAGIC);
+            writeInt(ZIP64_MAGIC);
+        } else {
+            writeInt(entry.crc);
+            writeInt(entry.csize);
+            writeInt(entry.size);
+        }
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        write(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.csize);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+
+        long cdStart = getBytesWritten();
+
+        for (Entry entry : entries) {
+
+            boolean sizeOverflow = entry.size >= ZIP64_MAGIC;
+            boolean csizeOverflow = entry.csize >= ZIP64_MAGIC;
+            boolean offsetOverflow = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (sizeOverflow ? 8 : 0) + (csizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+
+            writeInt(CENTRAL_HEADER_SIG);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(csizeOverflow ? ZIP64_MAGIC : entry.csize);
+            writeInt(sizeOverflow ? ZIP64_MAGIC : entry.size);
+            writeShort(entry.name.length);
+            writeShort(zip64 ? extraLength + 4 : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0);   // external attributes
+            writeInt(offsetOverflow ? ZIP64_MAGIC : entry.offset);
+            write(entry.name, 0, entry.name.length);
+
+            if (zip64) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(extraLength);
+                if (sizeOverflow)
+                    writeLong(entry.size);
+                if (csizeOverflow)
+                    writeLong(entry.csize);
+                if (offsetOverflow)
+                    writeLong(entry.offset);
+            }
+        }
+
+        long cdEnd = getBytesWritten();
+        long cdSize = cdEnd - cdStart;
+        int count = entries.size();
+
+        if (count >= ZIP64_MAGIC_COUNT || cdSize >= ZIP64_MAGIC || cdStart >= ZIP64_MAGIC) {
+
+            writeInt(ZIP64_END_SIG);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(cdStart);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0);
+            writeLong(cdEnd);
+            writeInt(1);
+        }
+
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(cdSize, ZIP64_MAGIC));
+        writeInt(Math.min(cdStart, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    private long toDosTime(long time) {
+
+        calendar.setTimeInMillis(time);
+
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private void ensureOpen() throws IOException {
+
+        if (closed)
+            throw new IOException("Archive is closed");
+    }
+
+    private void write(byte[] data, int off, int len) throws IOException {
+
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                flush();
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(data, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            flushed += channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+
+        if (buffer.remaining() < bytes)
+            flush();
+    }
+
+    private void writeShort(int value) throws IOException {
+
+        ensureSpace(2);
+        buffer.putShort((short) value);
+    }
+
+    private void writeInt(long value) throws IOException {
+
+        ensureSpace(4);
+        buffer.putInt((int) value);
+    }
+
+    private void writeLong(long value) throws IOException {
+
+        ensureSpace(8);
+        buffer.putLong(value);
+    }
+
+    private class Entry {
+
+        final byte[] name;
+        final int method;
+        final int flags;
+        final long dosTime;
+        long crc;
+        long size;
+        long csize;
+        long offset;
+        long dataStart;
+
+        Entry(String name, long time, int method, int flags) {
+
+            this.name = name.getBytes(Charsets.UTF_8);
+            this.method = method;
+            this.flags = flags | FLAG_UTF8;
+            this.dosTime = toDosTime(time);
+        }
+
+        Entry(byte[] name, long dosTime, int method, int flags) {
+
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AnvilRegionTest {
+
+    /**
+     * A chunk record: the compression type followed by data filled with the chunk index
+     */
+    private static byte[] record(int index, int length) {
+
+        byte[] record = new byte[length];
+        Arrays.fill(record, (byte) index);
+        record[0] = 2;
+        return record;
+    }
+
+    /**
+     * Write a region file holding a record of the given length for each index
+     */
+    private static byte[] region(Map<Integer, Integer> lengths) throws IOException {
+
+        final Map<Integer, byte[]> records = new HashMap<>();
+        List<BackupManifest.ChunkEntry> chunks = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : lengths.entrySet()) {
+            int index = entry.getKey();
+            records.put(index, record(index, entry.getValue()));
+            chunks.add(new BackupManifest.ChunkEntry(index, 1000 + index, entry.getValue(), null));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AnvilRegion.write(out, chunks, new AnvilRegion.RecordSource() {
+            @Override
+            public InputStream open(BackupManifest.ChunkEntry chunk) {
+
+                return new ByteArrayInputStream(records.get(chunk.index));
+            }
+        });
+        return out.toByteArray();
+    }
+
+    private static byte[] region() throws IOException {
+
+        Map<Integer, Integer> lengths = new LinkedHashMap<>();
+        lengths.put(0, 100);
+        lengths.put(33, AnvilRegion.SECTOR_SIZE - 4); // Exactly one sector with its length
+        lengths.put(1023, 3 * AnvilRegion.SECTOR_SIZE);
+        return region(lengths);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void recognisesRegionFiles() {
+
+        assertTrue(AnvilRegion.isRegionFile("r.0.-1.mca"));
+        assertTrue(AnvilRegion.isRegionFile("r.0.0.mcr"));
+        assertFalse(AnvilRegion.isRegionFile("level.dat"));
+    }
+
+    @Test
+    public void writtenChunksArePackedAfterTheHeader() throws IOException {
+
+        byte[] file = region();
+
+        // One sector, one sector, four sectors
+        assertEquals(AnvilRegion.HEADER_SIZE + 6 * AnvilRegion.SECTOR_SIZE, file.length);
+
+        AnvilRegion region = AnvilRegion.readHeader(ByteBuffer.wrap(file));
+        assertEquals(file.length, region.getLength());
+        assertTrue(region.hasChunk(0));
+        assertTrue(region.hasChunk(33));
+        assertTrue(region.hasChunk(1023));
+        assertFalse(region.hasChunk(1));
+        assertEquals(1033, region.getTimestamp(33));
+        assertEquals(0, region.getTimestamp(1));
+    }
+
+    @Test
+    public void chunksReadBackFromBufferAndStream() throws IOException {
+
+        byte[] file = region();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        AnvilRegion region = AnvilRegion.readHeader(buffer);
+
+        int[] indexes = {0, 33, 1023};
+        int[] lengths = {100, AnvilRegion.SECTOR_SIZE - 4, 3 * AnvilRegion.SECTOR_SIZE};
+
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            byte[] expected = record(index, lengths[i]);
+            assertArrayEquals(expected, toArray(region.readChunk(buffer, index)));
+
+            InputStream in = new ByteArrayInputStream(file);
+            assertEquals(AnvilRegion.HEADER_SIZE, in.skip(AnvilRegion.HEADER_SIZE));
+            assertArrayEquals(expected, region.readChunk(in, index));
+        }
+
+        // The buffer itself is left alone
+        assertEquals(0, buffer.position());
+        assertEquals(file.length, buffer.limit());
+        assertNull(region.readChunk(new ByteArrayInputStream(file), 1));
+    }
+
+    @Test
+    public void headerFromTheStartOfTheFile() throws IOException {
+
+        byte[] file = region();
+        ByteBuffer header = ByteBuffer.wrap(Arrays.copyOf(file, AnvilRegion.HEADER_SIZE));
+
+        AnvilRegion region = AnvilRegion.readHeader(header, file.length);
+        assertEquals(file.length, region.getLength());
+        assertTrue(region.hasChunk(1023));
+    }
+
+    @Test
+    public void emptyFileHasNoChunks() throws IOException {
+
+        AnvilRegion region = AnvilRegion.readHeader(ByteBuffer.allocate(0));
+        for (int i = 0; i < AnvilRegion.CHUNKS; i++)
+            assertFalse(region.hasChunk(i));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedHeader() throws IOException {
+
+        AnvilRegion.readHeader(ByteBuffer.allocate(AnvilRegion.HEADER_SIZE - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkOutsideTheFile() throws IOException {
+
+        byte[] file = region();
+        AnvilRegion.readHeader(ByteBuffer.wrap(file, 0, file.length - 1).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkInTheHeader() throws IOException {
+
+        ByteBuffer file = ByteBuffer.allocate(AnvilRegion.HEADER_SIZE + AnvilRegion.SECTOR_SIZE);
+        file.putInt(0, 1 << 8 | 1);
+        AnvilRegion.readHeader(file);
+    }
+
+    @Test
+    public void rejectsRecordLongerThanItsSectors() throws IOException {
+
+        byte[] file = region();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        buffer.putInt(AnvilRegion.HEADER_SIZE, AnvilRegion.SECTOR_SIZE);
+        AnvilRegion region = AnvilRegion.readHeader(buffer);
+
+        try {
+            region.readChunk(buffer, 0);
+            fail("Read from the buffer");
+        } catch (IOException expected) {
+            // Expected
+        }
+
+        try {
+            InputStream in = new ByteArrayInputStream(file, AnvilRegion.HEADER_SIZE, file.length);
+            region.readChunk(in, 0);
+            fail("Read from the stream");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChunkTooLargeToWrite() throws IOException {
+
+        region(Collections.singletonMap(0, 255 * AnvilRegion.SECTOR_SIZE));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ArchiveJournalTest {
+
+    private static final int ARCHIVE_LENGTH = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File archive;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+
+        source = folder.newFolder("world");
+        archive = folder.newFile("backup.zip.partial");
+        journalFile = ArchiveJournal.journalFor(archive);
+
+        try (OutputStream out = new FileOutputStream(archive)) {
+            out.write(new byte[ARCHIVE_LENGTH]);
+        }
+    }
+
+    /**
+     * Write a journal with two checkpoints, at 1000 and 3000 bytes into the archive
+     *
+     * @return the length of the journal after each checkpoint
+     */
+    private long[] writeJournal(long secondOffset) throws IOException {
+
+        long[] lengths = new long[2];
+
+        try (ArchiveJournal journal = ArchiveJournal.create(journalFile, ArchiveFormat.ZIP, source)) {
+            journal.checkpoint(1000, 2000, Collections.singletonList("data/"),
+                    Collections.singletonList(new ArchiveIndex.Entry("level.dat", 1, 2000, 8, 30, 970)), new byte[]{1});
+            lengths[0] = journalFile.length();
+            journal.checkpoint(secondOffset, 5000, Collections.<String>emptyList(),
+                    Collections.singletonList(new ArchiveIndex.Entry("data/map.dat", 2, 3000, 8, 1030, 1970)), new byte[]{2, 2});
+            lengths[1] = journalFile.length();
+        }
+
+        return lengths;
+    }
+
+    @Test
+    public void recoversToTheLastCheckpoint() throws IOException {
+
+        writeJournal(3000);
+
+        ArchiveJournal.Recovery recovery = ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source);
+
+        assertNotNull(recovery);
+        assertEquals(3000, recovery.offset);
+        assertEquals(5000, recovery.bytesRead);
+        assertEquals(new HashSet<>(Arrays.asList("data/", "level.dat", "data/map.dat")), recovery.completed);
+        assertEquals(2, recovery.files.size());
+        assertEquals("data/map.dat", recovery.files.get(1).name);
+        assertEquals(1030, recovery.files.get(1).offset);
+        assertEquals(2, recovery.states.size());
+        assertArrayEquals(new byte[]{2, 2}, recovery.states.get(1));
+        assertEquals(3000, archive.length());
+    }
+
+    @Test
+    public void truncatedCheckpointIsDropped() throws IOException {
+
+        long[] lengths = writeJournal(3000);
+        truncate(journalFile, lengths[1] - 5);
+
+        ArchiveJournal.Recovery recovery = ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source);
+
+        assertNotNull(recovery);
+        assertEquals(1000, recovery.offset);
+        assertEquals(Collections.singletonList("level.dat"), names(recovery.files));
+        assertEquals(1000, archive.length());
+
+        // Carrying on drops the torn checkpoint before appending to the journal
+        try (ArchiveJournal journal = ArchiveJournal.append(journalFile, recovery)) {
+            assertEquals(lengths[0], journalFile.length());
+            journal.checkpoint(1000, 2500, Collections.<String>emptyList(), Collections.<ArchiveIndex.Entry>emptyList(), new byte[]{3});
+        }
+
+        recovery = ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source);
+        assertNotNull(recovery);
+        assertEquals(2500, recovery.bytesRead);
+        assertEquals(2, recovery.states.size());
+        assertArrayEquals(new byte[]{3}, recovery.states.get(1));
+    }
+
+    @Test
+    public void corruptCheckpointIsDropped() throws IOException {
+
+        long[] lengths = writeJournal(3000);
+
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.seek(lengths[0] + 10);
+            file.write(0xff);
+        }
+
+        ArchiveJournal.Recovery recovery = ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source);
+
+        assertNotNull(recovery);
+        assertEquals(1000, recovery.offset);
+    }
+
+    @Test
+    public void journalWithoutCheckpointsIsNotResumed() throws IOException {
+
+        ArchiveJournal.create(journalFile, ArchiveFormat.ZIP, source).close();
+
+        assertNull(ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source));
+        assertEquals(ARCHIVE_LENGTH, archive.length());
+    }
+
+    @Test
+    public void truncatedHeaderIsNotResumed() throws IOException {
+
+        writeJournal(3000);
+        truncate(journalFile, 10);
+
+        assertNull(ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source));
+        assertEquals(ARCHIVE_LENGTH, archive.length());
+    }
+
+    @Test
+    public void checkpointPastTheEndOfTheArchiveIsNotResumed() throws IOException {
+
+        writeJournal(ARCHIVE_LENGTH + 1);
+
+        assertNull(ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, source));
+        assertEquals("The archive is left alone", ARCHIVE_LENGTH, archive.length());
+    }
+
+    @Test
+    public void journalOfAnotherSourceIsNotResumed() throws IOException {
+
+        writeJournal(3000);
+
+        assertNull(ArchiveJournal.recover(journalFile, archive, ArchiveFormat.ZIP, folder.newFolder("DIM-1")));
+        assertEquals(ARCHIVE_LENGTH, archive.length());
+    }
+
+    @Test
+    public void journalOfAnotherFormatIsNotResumed() throws IOException {
+
+        writeJournal(3000);
+
+        assertNull(ArchiveJournal.recover(journalFile, archive, ArchiveFormat.TAR_GZ, source));
+        assertEquals(ARCHIVE_LENGTH, archive.length());
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+    private static List<String> names(List<ArchiveIndex.Entry> entries) {
+
+        List<String> names = new ArrayList<>();
+        for (ArchiveIndex.Entry entry : entries)
+            names.add(entry.name);
+        return names;
+    }
+}
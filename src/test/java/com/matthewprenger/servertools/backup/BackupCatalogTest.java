@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class BackupCatalogTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long NOW = 1400000000000L;
+
+    private static final FilenameFilter BACKUPS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+
+            return name.endsWith(".zip") || name.endsWith(BackupManifest.FILE_EXTENSION);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BackupName backupName = new BackupName("%MONTH-%DAY-%YEAR_%HOUR-%MINUTE-%SECOND", TimeZone.getTimeZone("UTC"));
+    private File backupDir;
+    private File storeDir;
+
+    @Before
+    public void setUp() throws IOException {
+
+        backupDir = folder.newFolder("backups");
+        storeDir = new File(backupDir, "store");
+        assertTrue(storeDir.mkdir());
+        write(new File(storeDir, "object"), 1000);
+
+        // Five backups an hour apart, the newest the smallest
+        for (int i = 0; i < 5; i++)
+            write(new File(backupDir, backupName.format(NOW - i * HOUR, ".zip")), 100 + i);
+    }
+
+    private static void write(File file, int size) throws IOException {
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    private BackupCatalog load() throws IOException {
+
+        BackupCatalog catalog = new BackupCatalog(backupDir, storeDir, BACKUPS, backupName);
+        catalog.load();
+        return catalog;
+    }
+
+    private File logFile() {
+
+        return new File(backupDir, BackupCatalog.LOG_FILE);
+    }
+
+    /**
+     * Add an incremental backup after the others and mark it verified
+     */
+    private File addManifest(BackupCatalog catalog) throws IOException {
+
+        File manifest = new File(backupDir, backupName.format(NOW + HOUR, BackupManifest.FILE_EXTENSION));
+        write(manifest, 50);
+        catalog.add(manifest, catalog.getLatest().file.getName(), new int[]{-1, 0, 1}, 5000, 700, 12345);
+        catalog.addStoreSize(700);
+        catalog.setStatus(manifest.getName(), BackupCatalog.Status.VERIFIED);
+        return manifest;
+    }
+
+    @Test
+    public void firstLoadListsTheDirectory() throws IOException {
+
+        BackupCatalog catalog = load();
+
+        assertEquals(5, catalog.size());
+        assertEquals(100 + 101 + 102 + 103 + 104 + 1000, catalog.getTotalSize());
+        assertEquals(backupName.format(NOW, ".zip"), catalog.getLatest().file.getName());
+        assertEquals(NOW - 4 * HOUR, catalog.getBackups().get(0).time);
+        assertNull(catalog.getLatestManifest());
+
+        assertTrue(new File(backupDir, BackupCatalog.INDEX_FILE).isFile());
+        assertFalse(logFile().exists());
+    }
+
+    @Test
+    public void changesAreReplayedFromTheLog() throws IOException {
+
+        BackupCatalog catalog = load();
+        File manifest = addManifest(catalog);
+        assertTrue(catalog.delete(catalog.getBackups().get(0)));
+        assertTrue(logFile().isFile());
+        long total = catalog.getTotalSize();
+
+        // The store grows behind the catalog's back, a clean load takes the recorded size
+        write(new File(storeDir, "other"), 99999);
+
+        BackupCatalog reloaded = load();
+        assertEquals(5, reloaded.size());
+        assertEquals(total, reloaded.getTotalSize());
+        assertEquals(manifest, reloaded.getLatestManifest());
+
+        BackupCatalog.Entry entry = reloaded.getLatest();
+        assertEquals(manifest, entry.file);
+        assertEquals(backupName.format(NOW, ".zip"), entry.parent);
+        assertArrayEquals(new int[]{-1, 0, 1}, entry.dimensions);
+        assertEquals(5000, entry.bytesRead);
+        assertEquals(700, entry.bytesWritten);
+        assertEquals(12345, entry.durationMillis);
+        assertEquals(BackupCatalog.Status.VERIFIED, entry.getStatus());
+        assertTrue(entry.isManifest());
+
+        // Folded into the index
+        assertFalse(logFile().exists());
+    }
+
+    @Test
+    public void tornLogRecordIsIgnored() throws IOException {
+
+        BackupCatalog catalog = load();
+        File manifest = addManifest(catalog);
+        long backupsSize = catalog.getTotalSize() - 1000 - 700;
+        catalog.setStatus(manifest.getName(), BackupCatalog.Status.DAMAGED);
+
+        // Cut off part way through the last record, as if the server died while writing it
+        try (RandomAccessFile log = new RandomAccessFile(logFile(), "rw")) {
+            log.setLength(log.length() - 3);
+        }
+        write(new File(storeDir, "other"), 99999);
+
+        BackupCatalog reloaded = load();
+        assertEquals(6, reloaded.size());
+        assertEquals(BackupCatalog.Status.VERIFIED, reloaded.find(manifest.getName()).getStatus());
+
+        // The catalog may have missed changes to the store, so it's measured again
+        assertEquals(backupsSize + 1000 + 99999, reloaded.getTotalSize());
+    }
+
+    @Test
+    public void filesChangedByHandAreReconciled() throws IOException {
+
+        BackupCatalog catalog = load();
+        File gone = catalog.getBackups().get(0).file;
+        assertTrue(gone.delete());
+        write(new File(backupDir, "manual.zip"), 7);
+
+        BackupCatalog reloaded = load();
+        assertEquals(5, reloaded.size());
+        assertNull(reloaded.find(gone.getName()));
+
+        BackupCatalog.Entry manual = reloaded.find("manual");
+        assertNotNull(manual);
+        assertEquals(7, manual.size);
+        assertEquals(manual.file.lastModified(), manual.time);
+    }
+
+    @Test
+    public void damagedIndexFallsBackToTheDirectory() throws IOException {
+
+        BackupCatalog catalog = load();
+        addManifest(catalog);
+        assertEquals(6, load().size());
+
+        try (RandomAccessFile index = new RandomAccessFile(new File(backupDir, BackupCatalog.INDEX_FILE), "rw")) {
+            index.seek(40);
+            index.write(index.read() ^ 0x55);
+        }
+
+        BackupCatalog reloaded = load();
+        assertEquals(6, reloaded.size());
+
+        // What only the catalog knew is lost
+        assertNull(reloaded.getLatest().parent);
+        assertEquals(BackupCatalog.Status.UNVERIFIED, reloaded.getLatest().getStatus());
+    }
+
+    @Test
+    public void logIsCompacted() throws IOException {
+
+        BackupCatalog catalog = load();
+        File manifest = addManifest(catalog);
+
+        long before = logFile().length();
+        catalog.setStatus(manifest.getName(), BackupCatalog.Status.READABLE);
+        long recordSize = logFile().length() - before;
+
+        for (int i = 0; i < 300; i++)
+            catalog.setStatus(manifest.getName(), i % 2 == 0 ? BackupCatalog.Status.READABLE : BackupCatalog.Status.VERIFIED);
+
+        // Folded into the index along the way, so the log holds only the records since
+        assertTrue(logFile().length() < 100 * recordSize);
+
+        BackupCatalog.Entry entry = load().getLatest();
+        assertEquals(BackupCatalog.Status.VERIFIED, entry.getStatus());
+        assertTrue(entry.matches("verified"));
+        assertTrue(entry.matches("incremental"));
+        assertFalse(entry.matches("full"));
+    }
+
+    @Test
+    public void findMatchesNamesWithoutTheExtension() throws IOException {
+
+        BackupCatalog catalog = load();
+        String name = backupName.format(NOW - HOUR, "");
+
+        assertEquals(name + ".zip", catalog.find(name).file.getName());
+        assertEquals(name + ".zip", catalog.find(name + ".zip").file.getName());
+        assertNull(catalog.find("missing"));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.*;
+
+public class BackupCompactorTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final FilenameFilter BACKUPS = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+
+            return name.endsWith(ArchiveFormat.ZIP.getExtension()) || name.endsWith(BackupManifest.FILE_EXTENSION);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BackupName backupName = new BackupName("%MONTH-%DAY-%YEAR_%HOUR-%MINUTE-%SECOND", TimeZone.getTimeZone("UTC"));
+    private final byte[] oldLevel = bytes(20000, 1);
+    private final byte[] newLevel = bytes(20000, 2);
+    private final byte[] map = bytes(5000, 3);
+
+    private File world;
+    private BackupSet set;
+    private ContentStore store;
+    private BackupManifest oldManifest;
+    private String oldName;
+    private String newName;
+
+    @Before
+    public void setUp() throws IOException {
+
+        world = folder.newFolder("world");
+        File backupDir = folder.newFolder("backups");
+        set = new BackupSet("world", new BackupConfig.SetConfig(null), world, backupDir, Collections.<Integer>emptySet(),
+                Collections.<String>emptySet(), BACKUPS, backupName);
+        store = new ContentStore(set.storeDir);
+
+        // Two incremental backups sharing data/map.dat, the older ten days old
+        long now = System.currentTimeMillis();
+        write("data/map.dat", map);
+        write("level.dat", oldLevel);
+        oldName = backupName.format(now - 10 * DAY, "");
+        oldManifest = backup(oldName, null);
+
+        write("level.dat", newLevel);
+        newName = backupName.format(now - DAY / 24, "");
+        backup(newName, oldName + BackupManifest.FILE_EXTENSION);
+    }
+
+    private void write(String path, byte[] data) throws IOException {
+
+        File file = new File(world, path);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private BackupManifest backup(String name, String parent) throws IOException {
+
+        IncrementalArchiver archiver = new IncrementalArchiver(store, 2, PathFilter.ACCEPT_ALL, false, Collections.<String>emptySet(),
+                BackupThrottle.UNLIMITED, new BufferPool(8 * FileIO.MAP_THRESHOLD, (int) FileIO.MAP_THRESHOLD));
+        BackupManifest manifest = archiver.archive(world, null);
+        store.sync();
+
+        File file = new File(set.backupDir, name + BackupManifest.FILE_EXTENSION);
+        manifest.write(file);
+        set.catalog.add(file, parent, new int[0], 0, 0, 0);
+        return manifest;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private String oldLevelHash() {
+
+        return oldManifest.get("level.dat").hash;
+    }
+
+    @Test
+    public void oldBackupIsRestoredIntoAnArchive() throws IOException {
+
+        assertTrue(store.contains(oldLevelHash()));
+
+        assertEquals(1, new BackupCompactor(set, 1).compact());
+
+        // The catalog swaps the manifest for the archive, under the same name and time
+        BackupCatalog.Entry oldBackup = set.catalog.find(oldName);
+        assertNotNull(oldBackup);
+        assertFalse(oldBackup.isManifest());
+        assertEquals(oldName + ArchiveFormat.ZIP.getExtension(), oldBackup.file.getName());
+        assertEquals(backupName.parse(oldName), oldBackup.time);
+        assertNull(set.catalog.find(oldName + BackupManifest.FILE_EXTENSION));
+        assertFalse(new File(set.backupDir, oldName + BackupManifest.FILE_EXTENSION).exists());
+        assertEquals(2, set.catalog.size());
+
+        // The newest backup stays incremental
+        BackupCatalog.Entry newBackup = set.catalog.find(newName);
+        assertTrue(newBackup.isManifest());
+
+        ArchiveIndex index = ArchiveIndex.read(ArchiveIndex.sidecarFor(oldBackup.file));
+        assertArrayEquals(oldLevel, ParallelArchiverTest.readIndexed(oldBackup.file, index.get("level.dat")));
+        assertArrayEquals(map, ParallelArchiverTest.readIndexed(oldBackup.file, index.get("data/map.dat")));
+
+        // Only the objects the newest backup uses are left in the store
+        BackupManifest newManifest = BackupManifest.read(newBackup.file);
+        assertFalse(store.contains(oldLevelHash()));
+        assertTrue(store.contains(newManifest.get("level.dat").hash));
+        assertTrue(store.contains(newManifest.get("data/map.dat").hash));
+
+        assertFalse(new File(set.backupDir, BackupCompactor.COMPACT_DIR).exists());
+    }
+
+    @Test
+    public void youngBackupsAreLeftAlone() throws IOException {
+
+        assertEquals(0, new BackupCompactor(set, 30).compact());
+
+        assertTrue(set.catalog.find(oldName).isManifest());
+        assertTrue(store.contains(oldLevelHash()));
+    }
+
+    @Test
+    public void existingArchiveIsNotOverwritten() throws IOException {
+
+        File archive = new File(set.backupDir, oldName + ArchiveFormat.ZIP.getExtension());
+        assertTrue(archive.createNewFile());
+
+        assertEquals(0, new BackupCompactor(set, 1).compact());
+
+        assertEquals(0, archive.length());
+        assertTrue(set.catalog.find(oldName + BackupManifest.FILE_EXTENSION).isManifest());
+    }
+
+    @Test
+    public void backupDeletedByRetentionFirstIsSkipped() throws Exception {
+
+        final BackupCompactor compactor = new BackupCompactor(set, 1);
+        final AtomicInteger compacted = new AtomicInteger(-1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Retention holds the store lock while it deletes the backup and cleans up the store
+        ReentrantReadWriteLock lock = (ReentrantReadWriteLock) set.storeLock;
+        lock.writeLock().lock();
+        Thread thread;
+        try {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        compacted.set(compactor.compact());
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            thread.start();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!lock.hasQueuedThreads() && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertTrue("The compactor waits for the store", lock.hasQueuedThreads());
+
+            assertTrue(set.catalog.delete(set.catalog.find(oldName)));
+            set.collectStoreGarbage();
+            assertFalse(store.contains(oldLevelHash()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertNull(failure.get());
+        assertEquals(0, compacted.get());
+
+        assertNull(set.catalog.find(oldName));
+        assertFalse(new File(set.backupDir, oldName + ArchiveFormat.ZIP.getExtension()).exists());
+        assertEquals(1, set.catalog.size());
+        assertFalse(new File(set.backupDir, BackupCompactor.COMPACT_DIR).exists());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class BackupNameTest {
+
+    private static final String TEMPLATE = "%MONTH-%DAY-%YEAR_%HOUR-%MINUTE-%SECOND";
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+     * 2014-03-09 00:00 UTC, the day New York moves its clocks forward
+     */
+    private static final long START = 1394323200000L;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Name a backup the way it was done before names were compiled
+     */
+    private static String legacyName(String template, long time, TimeZone timeZone, String extension) {
+
+        Calendar cal = Calendar.getInstance(timeZone);
+        cal.setTimeInMillis(time);
+
+        Integer year = cal.get(Calendar.YEAR);
+        Integer month = cal.get(Calendar.MONTH) + 1;
+        Integer day = cal.get(Calendar.DATE);
+        Integer hour = cal.get(Calendar.HOUR_OF_DAY);
+        Integer minute = cal.get(Calendar.MINUTE);
+        Integer second = cal.get(Calendar.SECOND);
+
+        return template.replaceAll("%YEAR", year.toString())
+                .replaceAll("%MONTH", month.toString())
+                .replaceAll("%DAY", day.toString())
+                .replaceAll("%HOUR", hour.toString())
+                .replaceAll("%MINUTE", minute.toString())
+                .replaceAll("%SECOND", second.toString()) + extension;
+    }
+
+    @Test
+    public void formatsLikeTheLegacyNames() {
+
+        BackupName name = new BackupName(TEMPLATE, NEW_YORK);
+
+        // A year of times, seven minutes and a few seconds apart, through both clock changes
+        for (long time = START; time < START + 366 * 24 * HOUR_MILLIS; time += 7 * 60 * 1000 + 13 * 1000 + 1)
+            assertEquals(legacyName(TEMPLATE, time, NEW_YORK, ".zip"), name.format(time, ".zip"));
+    }
+
+    @Test
+    public void parsesLegacyNames() {
+
+        BackupName name = new BackupName(TEMPLATE, UTC);
+
+        assertEquals(1400000000000L, name.parse(legacyName(TEMPLATE, 1400000000000L, UTC, ".zip")));
+        assertEquals(1400000000000L, name.parse("5-13-2014_16-53-20.zip"));
+        assertEquals(1400000000000L, name.parse("5-13-2014_16-53-20"));
+        assertEquals(1400000000000L, name.parse("05-13-2014_16-53-20.tar.gz"));
+        assertEquals(0, name.parse("1-1-1970_0-0-0.manifest"));
+        assertEquals(951782400000L, name.parse("2-29-2000_0-0-0.zip"));
+    }
+
+    @Test
+    public void roundTripsThroughClockChanges() {
+
+        BackupName name = new BackupName(TEMPLATE, NEW_YORK);
+
+        for (long time = START; time < START + 366 * 24 * HOUR_MILLIS; time += 7 * 60 * 1000 + 13 * 1000) {
+            String formatted = name.format(time, ".manifest");
+            long parsed = name.parse(formatted);
+
+            assertEquals(formatted, name.format(parsed, ".manifest"));
+
+            // The hour the clocks go back is named twice, either time is right
+            boolean ambiguous = formatted.equals(name.format(time - HOUR_MILLIS, ".manifest"))
+                    || formatted.equals(name.format(time + HOUR_MILLIS, ".manifest"));
+            if (!ambiguous)
+                assertEquals(formatted, time, parsed);
+        }
+    }
+
+    @Test
+    public void roundTripsOtherTemplates() {
+
+        String[] templates = {"backup_%YEAR.%MONTH.%DAY", "%YEAR-%MONTH-%DAY %HOUR.%MINUTE", "world %DAY_%MONTH_%YEAR at %HOUR h", "%DAY-%MONTH-%YEAR-%SECOND-%MINUTE-%HOUR"};
+        long[] times = {0, 951825599000L, 1400000000000L, 4102444800000L, -86400000L * 400};
+
+        for (String template : templates) {
+            BackupName name = new BackupName(template, UTC);
+            for (long time : times) {
+                String formatted = name.format(time, ".zip");
+                assertEquals(legacyName(template, time, UTC, ".zip"), formatted);
+                assertEquals(formatted, formatted, name.format(name.parse(formatted), ".zip"));
+            }
+        }
+
+        BackupName name = new BackupName("backup_%YEAR.%MONTH.%DAY", UTC);
+        assertEquals(1399939200000L, name.parse(name.format(1400000000000L, ".zip")));
+    }
+
+    @Test
+    public void unparseableNames() {
+
+        BackupName name = new BackupName(TEMPLATE, UTC);
+
+        assertEquals(-1, name.parse(""));
+        assertEquals(-1, name.parse("world.zip"));
+        assertEquals(-1, name.parse("5-13-2014_16-53.zip"));
+        assertEquals(-1, name.parse("5-13-2014_16-53-20x.zip"));
+        assertEquals(-1, name.parse("13-13-2014_16-53-20.zip"));
+        assertEquals(-1, name.parse("0-13-2014_16-53-20.zip"));
+        assertEquals(-1, name.parse("5-32-2014_16-53-20.zip"));
+        assertEquals(-1, name.parse("5-13-2014_24-53-20.zip"));
+        assertEquals(-1, name.parse("5-13-2014_16-60-20.zip"));
+        assertEquals(-1, name.parse("5-13-2014_16-53-60.zip"));
+        assertEquals(-1, name.parse("5-13-2014_16--53-20.zip"));
+        assertEquals(-1, name.parse("5-13-12345678901_16-53-20.zip"));
+        assertEquals(-1, name.parse("backup_2014.5.13.zip"));
+    }
+
+    @Test
+    public void templatesWithoutADateAreNotParsed() {
+
+        assertEquals(-1, new BackupName("backup", UTC).parse("backup.zip"));
+        assertEquals(-1, new BackupName("%HOUR-%MINUTE-%SECOND", UTC).parse("16-53-20.zip"));
+        assertEquals(-1, new BackupName("%YEAR-%MONTH", UTC).parse("2014-5.zip"));
+    }
+
+    @Test
+    public void templatesWithAdjacentFieldsAreNotParsed() {
+
+        BackupName adjacent = new BackupName("%YEAR%MONTH%DAY", UTC);
+        assertEquals("2014513.zip", adjacent.format(1400000000000L, ".zip"));
+        assertEquals(-1, adjacent.parse("2014513.zip"));
+
+        BackupName digitBetween = new BackupName("%YEAR-%MONTH0%DAY", UTC);
+        assertEquals(-1, digitBetween.parse(digitBetween.format(1400000000000L, ".zip")));
+
+        BackupName digitAfter = new BackupName("%YEAR-%MONTH-%DAY1", UTC);
+        assertEquals(-1, digitAfter.parse(digitAfter.format(1400000000000L, ".zip")));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class BackupThrottleTest {
+
+    private static class Ticks implements BackupThrottle.TickTimeSource {
+
+        volatile double tickMillis = 50;
+
+        @Override
+        public double getMeanTickMillis() {
+
+            return tickMillis;
+        }
+    }
+
+    private static class Slowdowns implements BackupThrottle.SlowdownListener {
+
+        int count;
+
+        @Override
+        public void slowedDown(double tickMillis, long bytesPerSecond, int workers) {
+
+            count++;
+        }
+    }
+
+    /**
+     * Wait out the interval between adjustments, then let the throttle look at the tick time
+     */
+    private static void nextAdjustment(BackupThrottle throttle) throws InterruptedException, InterruptedIOException {
+
+        Thread.sleep(1100);
+        throttle.acquireWorker();
+        throttle.releaseWorker();
+    }
+
+    @Test
+    public void listenerHearsOncePerSlowdown() throws Exception {
+
+        Ticks ticks = new Ticks();
+        Slowdowns slowdowns = new Slowdowns();
+        BackupThrottle throttle = new BackupThrottle(0, 19, ticks, 4, slowdowns);
+
+        ticks.tickMillis = 100;
+        nextAdjustment(throttle);
+        assertEquals(1, slowdowns.count);
+        assertEquals(2, throttle.getAllowedWorkers());
+
+        // Still slow, still held back, but nothing new to hear about
+        nextAdjustment(throttle);
+        assertEquals(1, slowdowns.count);
+        assertEquals(1, throttle.getAllowedWorkers());
+
+        ticks.tickMillis = 20;
+        for (int i = 0; i < 3; i++)
+            nextAdjustment(throttle);
+        assertEquals(4, throttle.getAllowedWorkers());
+        assertEquals(0, throttle.getBytesPerSecond());
+
+        ticks.tickMillis = 100;
+        nextAdjustment(throttle);
+        assertEquals(2, slowdowns.count);
+    }
+
+    @Test
+    public void disabledWithoutMinTps() throws Exception {
+
+        Ticks ticks = new Ticks();
+        Slowdowns slowdowns = new Slowdowns();
+        BackupThrottle throttle = new BackupThrottle(0, 0, ticks, 4, slowdowns);
+
+        ticks.tickMillis = 1000;
+        nextAdjustment(throttle);
+        assertEquals(0, slowdowns.count);
+        assertEquals(4, throttle.getAllowedWorkers());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    private static final int SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void capacityComesFromTheMemoryLimit() {
+
+        assertEquals(10, new BufferPool(10 * SIZE + SIZE / 2, SIZE).getCapacity());
+        assertEquals(BufferPool.MIN_BUFFERS, new BufferPool(SIZE, SIZE).getCapacity());
+        assertEquals(BufferPool.MIN_BUFFERS, new BufferPool(0, SIZE).getCapacity());
+        assertEquals(Integer.MAX_VALUE, new BufferPool(Long.MAX_VALUE, 1).getCapacity());
+
+        BufferPool pool = new BufferPool(0, SIZE);
+        try (BufferPool.Lease lease = pool.lease()) {
+            assertNotNull("The smallest pool still hands out a block's worth", lease.tryAcquire(BufferPool.MIN_BUFFERS));
+            assertEquals(0, pool.getAvailable());
+        }
+        assertEquals(BufferPool.MIN_BUFFERS, pool.getAvailable());
+    }
+
+    @Test
+    public void buffersAreReused() {
+
+        BufferPool pool = new BufferPool(4 * SIZE, SIZE);
+
+        try (BufferPool.Lease lease = pool.lease()) {
+            byte[][] buffers = lease.tryAcquire(2);
+            assertEquals(SIZE, buffers[0].length);
+            assertNotSame(buffers[0], buffers[1]);
+
+            lease.release(buffers[0]);
+            assertSame(buffers[0], lease.tryAcquire(1)[0]);
+        }
+    }
+
+    @Test
+    public void noMoreThanTheCapacityIsHandedOut() throws Exception {
+
+        final BufferPool pool = new BufferPool(4 * SIZE, SIZE);
+        final BufferPool.Lease lease = pool.lease();
+
+        byte[][] held = lease.tryAcquire(3);
+        assertNotNull(held);
+        assertNull(lease.tryAcquire(2));
+        assertEquals(1, pool.getAvailable());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<byte[][]> acquired = new AtomicReference<>();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try (BufferPool.Lease other = pool.lease()) {
+                    started.countDown();
+                    acquired.set(other.acquire(2));
+                } catch (InterruptedIOException ignored) {
+                }
+            }
+        });
+        waiter.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        waiter.join(200);
+        assertTrue("Waits while only one buffer is free", waiter.isAlive());
+        assertNull(acquired.get());
+
+        lease.release(held[0]);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertNotNull(acquired.get());
+
+        lease.close();
+        assertEquals(4, pool.getAvailable());
+    }
+
+    @Test
+    public void interruptedWaitIsReported() {
+
+        BufferPool pool = new BufferPool(2 * SIZE, SIZE);
+
+        try (BufferPool.Lease lease = pool.lease()) {
+            assertNotNull(lease.tryAcquire(2));
+
+            Thread.currentThread().interrupt();
+            try {
+                lease.acquire(1);
+                fail();
+            } catch (InterruptedIOException expected) {
+                assertTrue(Thread.interrupted());
+            }
+        }
+
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void closingTheLeaseGivesBackWhatItHolds() {
+
+        BufferPool pool = new BufferPool(4 * SIZE, SIZE);
+        BufferPool.Lease lease = pool.lease();
+
+        byte[][] buffers = lease.tryAcquire(2);
+        lease.tryAcquire(1);
+        lease.release(buffers[1]);
+        assertEquals(2, pool.getAvailable());
+
+        lease.close();
+        assertEquals(4, pool.getAvailable());
+
+        // Work that finishes after a failure closed the lease doesn't give back the same place twice
+        lease.release(buffers[0]);
+        lease.close();
+        assertEquals(4, pool.getAvailable());
+
+        try {
+            lease.tryAcquire(1);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(4, pool.getAvailable());
+    }
+
+    @Test
+    public void failedArchiveGivesBackItsBuffers() throws IOException {
+
+        File world = folder.newFolder("world");
+        byte[] data = new byte[ParallelArchiver.BLOCK_SIZE * 3];
+        new Random(42).nextBytes(data);
+        for (int i = 0; i < 4; i++) {
+            try (OutputStream out = new FileOutputStream(new File(world, "file" + i + ".dat"))) {
+                out.write(data);
+            }
+        }
+
+        BufferPool pool = new BufferPool(4 * ParallelArchiver.BUFFER_SIZE, ParallelArchiver.BUFFER_SIZE);
+        ParallelArchiver archiver = new ParallelArchiver(2, PathFilter.ACCEPT_ALL, Collections.<String>emptySet(), ArchiveFormat.ZIP, 6,
+                BackupThrottle.UNLIMITED, pool);
+
+        Thread.currentThread().interrupt();
+        try {
+            archiver.archive(world, new File(folder.getRoot(), "backup.zip"));
+            fail();
+        } catch (InterruptedIOException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(pool.getCapacity(), pool.getAvailable());
+
+        archiver.archive(world, new File(folder.getRoot(), "backup.zip"));
+        assertEquals(4, archiver.getFilesArchived());
+        assertEquals(pool.getCapacity(), pool.getAvailable());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ContentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+    private ContentStore store;
+
+    @Before
+    public void setUp() {
+
+        root = new File(folder.getRoot(), "store");
+        store = new ContentStore(root);
+    }
+
+    @Test
+    public void identicalContentIsStoredOnce() throws IOException {
+
+        byte[] data = bytes(5000);
+
+        String first = store.put(new ByteArrayInputStream(data), ContentStore.METHOD_DEFLATED);
+        long added = store.getBytesAdded();
+        String second = store.put(ByteBuffer.wrap(data), ContentStore.METHOD_STORED);
+
+        assertEquals(first, second);
+        assertTrue(added > 0);
+        assertEquals(added, store.getBytesAdded());
+        assertArrayEquals(data, read(first));
+    }
+
+    @Test
+    public void syncedObjectsCanBeRead() throws IOException {
+
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            hashes.add(store.put(ByteBuffer.wrap(bytes(100 + i)), ContentStore.METHOD_STORED));
+
+        store.sync();
+        store.sync();
+
+        for (int i = 0; i < hashes.size(); i++)
+            assertArrayEquals(bytes(100 + i), read(hashes.get(i)));
+    }
+
+    @Test
+    public void garbageCollectionKeepsLiveObjectsAndDeletesLeftovers() throws IOException {
+
+        String live = store.put(new ByteArrayInputStream(bytes(300)), ContentStore.METHOD_DEFLATED);
+        String dead = store.put(new ByteArrayInputStream(bytes(400)), ContentStore.METHOD_DEFLATED);
+        store.sync();
+
+        File leftover = new File(root, "object123.tmp");
+        assertTrue(leftover.createNewFile());
+
+        List<String> deleted = new ArrayList<>();
+        long freed = store.collectGarbage(Collections.singleton(live), deleted);
+
+        assertEquals(Collections.singletonList(dead), deleted);
+        assertTrue(freed > 0);
+        assertTrue(store.contains(live));
+        assertFalse(store.contains(dead));
+        assertFalse(leftover.exists());
+    }
+
+    private byte[] read(String hash) throws IOException {
+
+        try (InputStream in = store.open(hash)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static byte[] bytes(int length) {
+
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
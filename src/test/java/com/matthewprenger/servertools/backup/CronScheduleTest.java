@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class CronScheduleTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+     * @param month 1 to 12
+     */
+    private static long time(int year, int month, int day, int hour, int minute) {
+
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long next(String expression, long after) {
+
+        return CronSchedule.parse(expression, UTC).next(after);
+    }
+
+    @Test
+    public void everyMinuteFiresOnTheNextWholeMinute() {
+
+        assertEquals(time(2014, 6, 1, 12, 1), next("* * * * *", time(2014, 6, 1, 12, 0)));
+        assertEquals(time(2014, 6, 1, 12, 1), next("* * * * *", time(2014, 6, 1, 12, 0) + 59999));
+    }
+
+    @Test
+    public void nextIsStrictlyAfter() {
+
+        assertEquals(time(2014, 6, 2, 3, 30), next("30 3 * * *", time(2014, 6, 1, 3, 30)));
+    }
+
+    @Test
+    public void stepsAndRanges() {
+
+        assertEquals(time(2014, 6, 1, 12, 15), next("*/15 * * * *", time(2014, 6, 1, 12, 1)));
+        assertEquals(time(2014, 6, 1, 13, 0), next("*/15 * * * *", time(2014, 6, 1, 12, 45)));
+        assertEquals(time(2014, 6, 1, 12, 20), next("0-30/10 * * * *", time(2014, 6, 1, 12, 10)));
+        assertEquals(time(2014, 6, 1, 13, 0), next("0-30/10 * * * *", time(2014, 6, 1, 12, 30)));
+        assertEquals(time(2014, 6, 1, 18, 0), next("0 6,18 * * *", time(2014, 6, 1, 6, 0)));
+    }
+
+    @Test
+    public void rollsOverMonthsAndYears() {
+
+        assertEquals(time(2015, 1, 1, 0, 0), next("0 0 1 1 *", time(2014, 1, 1, 0, 0)));
+        assertEquals(time(2014, 7, 31, 0, 0), next("0 0 31 * *", time(2014, 6, 1, 0, 0)));
+    }
+
+    @Test
+    public void leapDay() {
+
+        assertEquals(time(2016, 2, 29, 0, 0), next("0 0 29 2 *", time(2014, 3, 1, 0, 0)));
+    }
+
+    @Test
+    public void dayOfWeekAcceptsSevenForSunday() {
+
+        // 1 June 2014 was a Sunday
+        assertEquals(time(2014, 6, 8, 0, 0), next("0 0 * * 7", time(2014, 6, 1, 0, 0)));
+        assertEquals(time(2014, 6, 8, 0, 0), next("0 0 * * 0", time(2014, 6, 1, 0, 0)));
+        assertEquals(time(2014, 6, 2, 0, 0), next("0 0 * * 1-5", time(2014, 6, 1, 0, 0)));
+    }
+
+    @Test
+    public void restrictedDayOfMonthAndWeekMatchEither() {
+
+        // The 15th, or any Monday
+        assertEquals(time(2014, 6, 2, 0, 0), next("0 0 15 * 1", time(2014, 6, 1, 0, 0)));
+        assertEquals(time(2014, 6, 15, 0, 0), next("0 0 15 * 1", time(2014, 6, 9, 0, 0)));
+    }
+
+    @Test
+    public void wildcardDayOfWeekNarrowsNothing() {
+
+        assertEquals(time(2014, 6, 15, 0, 0), next("0 0 15 * *", time(2014, 6, 1, 0, 0)));
+    }
+
+    @Test
+    public void neverFiringScheduleGivesUp() {
+
+        assertEquals(-1, next("0 0 31 2 *", time(2014, 1, 1, 0, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongFieldCount() {
+
+        CronSchedule.parse("0 0 * *", UTC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRange() {
+
+        CronSchedule.parse("60 * * * *", UTC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBackwardsRange() {
+
+        CronSchedule.parse("* 5-3 * * *", UTC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroStep() {
+
+        CronSchedule.parse("*/0 * * * *", UTC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGarbage() {
+
+        CronSchedule.parse("a * * * *", UTC);
+    }
+}
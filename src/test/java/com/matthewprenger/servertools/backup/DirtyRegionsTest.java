@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DirtyRegionsTest {
+
+    private static final String REGION = "region";
+    private static final String NETHER = "DIM-1/region";
+    private static final Set<String> DIRECTORIES = new HashSet<>(Arrays.asList(REGION, NETHER));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private DirtyRegions regions;
+
+    @Before
+    public void setUp() {
+
+        file = new File(folder.getRoot(), DirtyRegions.FILE_NAME);
+        regions = new DirtyRegions(file);
+    }
+
+    @Test
+    public void longSetGrowsAndKeepsEveryKey() {
+
+        DirtyRegions.LongSet set = new DirtyRegions.LongSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            long key = i % 3 == 0 ? i : random.nextLong();
+            if (key == DirtyRegions.LongSet.EMPTY)
+                continue;
+            set.add(key);
+            set.add(key);
+            expected.add(key);
+        }
+        set.add(-1);
+        set.add(0);
+        expected.add(-1L);
+        expected.add(0L);
+
+        assertEquals(expected.size(), set.size());
+        for (long key : expected)
+            assertTrue(set.contains(key));
+        assertFalse(set.contains(5001));
+        assertFalse(set.contains(DirtyRegions.LongSet.EMPTY));
+
+        try {
+            set.add(DirtyRegions.LongSet.EMPTY);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertEquals(expected.size(), set.size());
+
+        Set<Long> actual = new HashSet<>();
+        for (long key : set.toArray())
+            actual.add(key);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void longSetAddAll() {
+
+        DirtyRegions.LongSet a = new DirtyRegions.LongSet();
+        DirtyRegions.LongSet b = new DirtyRegions.LongSet();
+        for (int i = 0; i < 100; i++) {
+            a.add(i);
+            b.add(i + 50);
+        }
+
+        a.addAll(b);
+
+        assertEquals(150, a.size());
+        assertTrue(a.contains(149));
+        assertFalse(a.contains(150));
+    }
+
+    @Test
+    public void parsesRegionNames() {
+
+        long origin = DirtyRegions.parseRegionName("r.0.0.mca");
+        long negative = DirtyRegions.parseRegionName("r.-1.-2.mca");
+        long mixed = DirtyRegions.parseRegionName("r.-3.4.mca");
+
+        assertEquals(0, origin);
+        assertEquals(-1L << 32 | -2 & 0xFFFFFFFFL, negative);
+        assertEquals(-3L << 32 | 4, mixed);
+        assertEquals((long) Integer.MAX_VALUE << 32 | 0x80000000L, DirtyRegions.parseRegionName("r.2147483647.-2147483648.mca"));
+        assertEquals(DirtyRegions.parseRegionName("r.1.2.mca"), DirtyRegions.parseRegionName("r.1.2.mcr"));
+
+        for (String name : new String[]{"level.dat", "r.0.0.dat", "x.0.0.mca", "r.0.mca", "r..mca", "r.0..mca",
+                "r.a.0.mca", "r.0.b.mca", "r.1.2.3.mca", "r.99999999999.0.mca", "r.-2147483648.0.mca"})
+            assertEquals(name, DirtyRegions.LongSet.EMPTY, DirtyRegions.parseRegionName(name));
+    }
+
+    @Test
+    public void changesAreNarrowedToThePreviousBackup() {
+
+        regions.take("backup-1.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 0, 0);
+        regions.markChunk(REGION, 31, 31);
+        regions.markChunk(REGION, -1, -33);
+        regions.markChunk(NETHER, 100, 100);
+
+        DirtyRegions.Changes changes = regions.take("backup-2.manifest", DIRECTORIES);
+        assertEquals(3, changes.getChangedCount());
+
+        BackupManifest previous = manifestWith(REGION);
+        changes = changes.since(new File(folder.getRoot(), "backup-1.manifest"), previous);
+
+        assertNotNull(changes);
+        assertEquals(Collections.singleton(REGION), changes.getDirectories());
+        assertEquals(new HashSet<>(Arrays.asList("r.0.0.mca", "r.-1.-2.mca")), new HashSet<>(changes.getChangedFiles(REGION)));
+        assertTrue(changes.isChanged(REGION, "r.0.0.mca"));
+        assertTrue(changes.isChanged(REGION, "r.-1.-2.mca"));
+        assertFalse(changes.isChanged(REGION, "r.1.0.mca"));
+        assertFalse(changes.isChanged(REGION, "r.0.-1.mca"));
+        assertTrue("Anything but a region file may have changed", changes.isChanged(REGION, "level.dat"));
+        assertTrue(changes.getChangedFiles("DIM1/region").isEmpty());
+    }
+
+    @Test
+    public void changesSinceAnotherBackupAreNotUsed() {
+
+        regions.take("backup-1.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 0, 0);
+        DirtyRegions.Changes changes = regions.take("backup-2.manifest", DIRECTORIES);
+
+        BackupManifest previous = manifestWith(REGION);
+        assertNull(changes.since(new File(folder.getRoot(), "backup-0.manifest"), previous));
+        assertNull(changes.since(null, previous));
+        assertNull(changes.since(new File(folder.getRoot(), "backup-1.manifest"), null));
+    }
+
+    @Test
+    public void changesAreNotUsedUntilTheFirstBackup() {
+
+        regions.markChunk(REGION, 0, 0);
+        DirtyRegions.Changes changes = regions.take("backup-1.manifest", DIRECTORIES);
+
+        assertNull(changes.since(new File(folder.getRoot(), "backup-0.manifest"), manifestWith(REGION)));
+    }
+
+    @Test
+    public void forgottenChangesAreNotUsed() {
+
+        regions.take("backup-1.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 0, 0);
+        regions.forget();
+        DirtyRegions.Changes changes = regions.take("backup-2.manifest", DIRECTORIES);
+
+        assertNull(changes.since(new File(folder.getRoot(), "backup-1.manifest"), manifestWith(REGION)));
+    }
+
+    @Test
+    public void changesOfAFailedBackupArePutBack() {
+
+        regions.take("backup-1.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 0, 0);
+
+        DirtyRegions.Changes failed = regions.take("backup-2.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 64, 0);
+        regions.putBack(failed);
+
+        DirtyRegions.Changes changes = regions.take("backup-3.manifest", DIRECTORIES)
+                .since(new File(folder.getRoot(), "backup-1.manifest"), manifestWith(REGION));
+
+        assertNotNull(changes);
+        assertEquals(new HashSet<>(Arrays.asList("r.0.0.mca", "r.2.0.mca")), new HashSet<>(changes.getChangedFiles(REGION)));
+    }
+
+    @Test
+    public void savedRegionsAreLoadedOnce() throws IOException {
+
+        regions.take("backup-1.manifest", DIRECTORIES);
+        regions.markChunk(REGION, 0, 0);
+        regions.markChunk(NETHER, -100, 7);
+        regions.save();
+        assertTrue(file.isFile());
+
+        DirtyRegions loaded = new DirtyRegions(file);
+        loaded.load();
+        assertFalse("Loading deletes the file, so a crash leaves nothing to load", file.exists());
+
+        DirtyRegions.Changes changes = loaded.take("backup-2.manifest", DIRECTORIES)
+                .since(new File(folder.getRoot(), "backup-1.manifest"), manifestWith(REGION, NETHER));
+
+        assertNotNull(changes);
+        assertEquals(Collections.singletonList("r.0.0.mca"), changes.getChangedFiles(REGION));
+        assertEquals(Collections.singletonList("r.-4.0.mca"), changes.getChangedFiles(NETHER));
+
+        DirtyRegions again = new DirtyRegions(file);
+        again.load();
+        assertNull(again.take("backup-2.manifest", DIRECTORIES).since(new File(folder.getRoot(), "backup-1.manifest"), manifestWith(REGION)));
+    }
+
+    @Test
+    public void nothingIsSavedWithoutABackup() throws IOException {
+
+        regions.markChunk(REGION, 0, 0);
+        regions.save();
+
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void unreadableFileIsDeleted() throws IOException {
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeUTF("Something else");
+        }
+
+        try {
+            regions.load();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(file.exists());
+
+        DirtyRegions.Changes changes = regions.take("backup-2.manifest", DIRECTORIES);
+        assertNull(changes.since(new File(folder.getRoot(), "backup-1.manifest"), manifestWith(REGION)));
+    }
+
+    private static BackupManifest manifestWith(String... directories) {
+
+        BackupManifest manifest = new BackupManifest();
+        for (String directory : directories)
+            manifest.add(BackupManifest.Entry.directory(directory, 0));
+        return manifest;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileIOTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Takes nothing for a number of writes, as a full non-blocking channel would, then takes everything
+     */
+    private static class StalledChannel implements WritableByteChannel {
+
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int stalls;
+
+        StalledChannel(int stalls) {
+
+            this.stalls = stalls;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+
+            if (stalls > 0) {
+                stalls--;
+                return 0;
+            }
+
+            int count = src.remaining();
+            byte[] bytes = new byte[count];
+            src.get(bytes);
+            written.write(bytes, 0, count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private byte[] transfer(byte[] data, long position, long count, WritableByteChannel target) throws IOException {
+
+        File file = folder.newFile();
+        Files.write(data, file);
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            FileIO.transfer(source, position, count, target);
+        }
+
+        return data;
+    }
+
+    private static byte[] random(int size) {
+
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void transfersPartOfAFile() throws IOException {
+
+        StalledChannel target = new StalledChannel(0);
+        byte[] data = transfer(random(300000), 1000, 200000, target);
+
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 201000), target.written.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void carriesOnThroughABufferWhenTransfersStall() throws IOException {
+
+        StalledChannel target = new StalledChannel(10);
+        byte[] data = transfer(random(300000), 0, 300000, target);
+
+        assertArrayEquals(data, target.written.toByteArray());
+    }
+
+    @Test(timeout = 10000, expected = IOException.class)
+    public void givesUpOnATargetThatTakesNothing() throws IOException {
+
+        transfer(random(1000), 0, 1000, new StalledChannel(Integer.MAX_VALUE));
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsWhenTheFileIsTooShort() throws IOException {
+
+        transfer(random(1000), 500, 1000, new StalledChannel(0));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IncrementalArchiverTest {
+
+    private static final long MTIME = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> files = new TreeMap<>();
+    private File world;
+    private ContentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+
+        world = folder.newFolder("world");
+        store = new ContentStore(new File(folder.getRoot(), "store"));
+
+        byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + i % 7);
+        byte[] noise = new byte[(int) FileIO.MAP_THRESHOLD + 999];
+        new Random(42).nextBytes(noise);
+
+        put("level.dat", text);
+        put("level.dat_old", text);
+        put("empty.txt", new byte[0]);
+        put("data/noise.bin", noise);
+        put("name with spaces.txt", new byte[]{1, 2, 3});
+        put("region/r.0.0.mca", region(0, 1, 1023));
+        new File(world, "DIM1").mkdir();
+    }
+
+    private void put(String path, byte[] data) throws IOException {
+
+        files.put(path, data);
+
+        File file = new File(world, path);
+        file.getParentFile().mkdirs();
+        Files.write(data, file);
+        assertTrue(file.setLastModified(MTIME));
+    }
+
+    /**
+     * A region file holding a chunk record for each index
+     */
+    private static byte[] region(int... indexes) throws IOException {
+
+        List<BackupManifest.ChunkEntry> chunks = new ArrayList<>();
+        for (int index : indexes)
+            chunks.add(new BackupManifest.ChunkEntry(index, 1000 + index, 100 + index, null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AnvilRegion.write(out, chunks, new AnvilRegion.RecordSource() {
+            @Override
+            public InputStream open(BackupManifest.ChunkEntry chunk) {
+
+                return new ByteArrayInputStream(record(chunk.index, chunk.length));
+            }
+        });
+        return out.toByteArray();
+    }
+
+    private static byte[] record(int index, int length) {
+
+        byte[] record = new byte[length];
+        Arrays.fill(record, (byte) index);
+        record[0] = 2;
+        return record;
+    }
+
+    private IncrementalArchiver newArchiver() {
+
+        return new IncrementalArchiver(store, 2, PathFilter.ACCEPT_ALL, true, Collections.singleton("mca"),
+                BackupThrottle.UNLIMITED, new BufferPool(8 * FileIO.MAP_THRESHOLD, (int) FileIO.MAP_THRESHOLD));
+    }
+
+    @Test
+    public void restoresWhatWasArchived() throws IOException {
+
+        BackupManifest manifest = newArchiver().archive(world, null);
+        manifest.setCreated(MTIME);
+
+        File manifestFile = new File(folder.getRoot(), "backup" + BackupManifest.FILE_EXTENSION);
+        manifest.write(manifestFile);
+        BackupManifest read = BackupManifest.read(manifestFile);
+        assertEquals(MTIME, read.getCreated());
+        assertEquals(manifest.size(), read.size());
+
+        File restored = folder.newFolder("restored");
+        read.restore(store, restored);
+
+        assertTrue(new File(restored, "DIM1").isDirectory());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            File restoredFile = new File(restored, file.getKey());
+            assertArrayEquals(file.getKey(), file.getValue(), Files.toByteArray(restoredFile));
+            assertEquals(file.getKey(), MTIME, restoredFile.lastModified());
+        }
+    }
+
+    @Test
+    public void regionFilesAreStoredByChunk() throws IOException {
+
+        BackupManifest manifest = newArchiver().archive(world, null);
+
+        BackupManifest.Entry region = manifest.get("region/r.0.0.mca");
+        assertNull(region.hash);
+        assertEquals(3, region.chunks.size());
+
+        BackupManifest.ChunkEntry chunk = region.getChunk(1023);
+        assertEquals(2023, chunk.timestamp);
+        try (InputStream in = store.open(chunk.hash)) {
+            assertArrayEquals(record(1023, chunk.length), ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void unchangedContentIsNotStoredAgain() throws IOException {
+
+        IncrementalArchiver archiver = newArchiver();
+        BackupManifest first = archiver.archive(world, null);
+        long stored = store.getBytesAdded();
+
+        // Identical files share an object
+        assertEquals(first.get("level.dat").hash, first.get("level.dat_old").hash);
+
+        BackupManifest second = archiver.archive(world, first);
+        assertEquals(stored, store.getBytesAdded());
+        assertEquals(0, archiver.getFilesStored());
+        assertEquals(files.size(), archiver.getFilesReused());
+
+        // One chunk changes, the rest were saved before the previous backup started and are taken from it
+        second.setCreated(System.currentTimeMillis());
+        put("region/r.0.0.mca", region(0, 1, 1023, 5));
+        BackupManifest third = archiver.archive(world, second);
+        assertEquals(4, third.get("region/r.0.0.mca").chunks.size());
+        assertEquals(1, archiver.getChunksStored());
+        assertEquals(3, archiver.getChunksReused());
+    }
+
+    @Test
+    public void garbageCollectionKeepsLiveObjects() throws IOException {
+
+        BackupManifest manifest = newArchiver().archive(world, null);
+        String orphan = store.put(ByteBuffer.wrap(new byte[]{9, 9, 9}), ContentStore.METHOD_STORED);
+
+        Set<String> live = new HashSet<>();
+        manifest.collectHashes(live);
+        assertFalse(live.contains(orphan));
+
+        List<String> deleted = new ArrayList<>();
+        assertEquals(4, store.collectGarbage(live, deleted));
+        assertEquals(Collections.singletonList(orphan), deleted);
+        assertFalse(store.contains(orphan));
+
+        for (String hash : live)
+            assertTrue(store.contains(hash));
+    }
+
+    @Test
+    public void storeMethodsAgreeOnTheHash() throws IOException {
+
+        byte[] data = files.get("level.dat");
+
+        String stored = store.put(ByteBuffer.wrap(data), ContentStore.METHOD_STORED);
+        File other = new File(folder.getRoot(), "other");
+        ContentStore deflatedStore = new ContentStore(other);
+        String deflated = deflatedStore.put(new ByteArrayInputStream(data), ContentStore.METHOD_DEFLATED);
+
+        assertEquals(stored, deflated);
+        assertTrue(deflatedStore.getObjectFile(deflated).length() < data.length / 10);
+
+        try (InputStream in = store.open(stored)) {
+            assertArrayEquals(data, ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = deflatedStore.open(deflated)) {
+            assertArrayEquals(data, ByteStreams.toByteArray(in));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+public class ParallelArchiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> files = new TreeMap<>();
+    private File world;
+
+    @Before
+    public void setUp() throws IOException {
+
+        world = folder.newFolder("world");
+        Random random = new Random(42);
+
+        byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + i % 7);
+        byte[] noise = new byte[ParallelArchiver.BLOCK_SIZE * 2 + 12345];
+        random.nextBytes(noise);
+        byte[] image = new byte[5000];
+        random.nextBytes(image);
+
+        put("level.dat", text);
+        put("empty.txt", new byte[0]);
+        put("data/noise.bin", noise);
+        put("data/map.png", image);
+        put("DIM1/data/villages.dat", Arrays.copyOf(text, 777));
+        write("session.lock", new byte[8]);
+    }
+
+    private void put(String path, byte[] data) throws IOException {
+
+        files.put(path, data);
+        write(path, data);
+    }
+
+    private void write(String path, byte[] data) throws IOException {
+
+        File file = new File(world, path);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static ParallelArchiver newArchiver(ArchiveFormat format) {
+
+        PathFilter filter = new PathFilter(Collections.singleton("session.lock"), Collections.<String>emptySet(), new String[0]);
+        return new ParallelArchiver(2, filter, Collections.singleton("png"), format, 6, BackupThrottle.UNLIMITED,
+                new BufferPool(8 * ParallelArchiver.BUFFER_SIZE, ParallelArchiver.BUFFER_SIZE));
+    }
+
+    /**
+     * Read a file the way a restore does, straight from where the index says its data is
+     */
+    static byte[] readIndexed(File archive, ArchiveIndex.Entry entry) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            InputStream data = FileIO.newInputStream(channel, entry.offset, entry.length);
+            if (entry.method != ContentStore.METHOD_STORED)
+                data = new InflaterInputStream(data, new Inflater(true));
+            return ByteStreams.toByteArray(ByteStreams.limit(data, entry.size));
+        }
+    }
+
+    @Test
+    public void zipRoundTrip() throws IOException {
+
+        File archive = new File(folder.getRoot(), "backup.zip");
+        ParallelArchiver archiver = newArchiver(ArchiveFormat.ZIP);
+        archiver.archive(world, archive);
+
+        assertEquals(files.size(), archiver.getFilesArchived());
+        assertEquals(archive.length(), archiver.getBytesWritten());
+
+        Set<String> names = new TreeSet<>();
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+
+                names.add(entry.getName());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    assertArrayEquals(entry.getName(), files.get(entry.getName()), ByteStreams.toByteArray(in));
+                }
+            }
+
+            assertEquals(ZipEntry.STORED, zip.getEntry("data/map.png").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("level.dat").getMethod());
+            assertTrue(zip.getEntry("level.dat").getCompressedSize() < 10000);
+        }
+
+        assertEquals(files.keySet(), names);
+    }
+
+    @Test
+    public void indexPointsAtEachFile() throws IOException {
+
+        File archive = new File(folder.getRoot(), "backup.zip");
+        ParallelArchiver archiver = newArchiver(ArchiveFormat.ZIP);
+        archiver.archive(world, archive);
+
+        File sidecar = ArchiveIndex.sidecarFor(archive);
+        archiver.getIndex().write(sidecar);
+        ArchiveIndex index = ArchiveIndex.read(sidecar);
+
+        assertEquals(files.keySet(), index.getEntries().keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            ArchiveIndex.Entry entry = index.get(file.getKey());
+            assertEquals(file.getValue().length, entry.size);
+            assertArrayEquals(file.getKey(), file.getValue(), readIndexed(archive, entry));
+        }
+    }
+
+    @Test
+    public void zipWithMoreEntriesThanTheClassicFormatHolds() throws IOException {
+
+        int count = 0x10000 + 10;
+        File archive = new File(folder.getRoot(), "many.zip");
+
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(FileChannel.open(archive.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))) {
+            for (int i = 0; i < count; i++)
+                writer.putDirectory("d" + i + "/", 0);
+        }
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(count, zip.size());
+            assertNotNull(zip.getEntry("d" + (count - 1) + "/"));
+        }
+    }
+}
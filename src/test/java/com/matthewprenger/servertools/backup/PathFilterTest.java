@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class PathFilterTest {
+
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private static PathFilter filter(String... patterns) {
+
+        return new PathFilter(NONE, NONE, patterns);
+    }
+
+    private static boolean file(PathFilter filter, String path) {
+
+        return filter.accepts(path, path.substring(path.lastIndexOf('/') + 1), false);
+    }
+
+    private static boolean directory(PathFilter filter, String path) {
+
+        return filter.accepts(path, path.substring(path.lastIndexOf('/') + 1), true);
+    }
+
+    @Test
+    public void acceptAllAcceptsEverything() {
+
+        assertFalse(PathFilter.ACCEPT_ALL.hasPatterns());
+        assertTrue(file(PathFilter.ACCEPT_ALL, "region/r.0.0.mca"));
+        assertTrue(directory(PathFilter.ACCEPT_ALL, "DIM-1"));
+    }
+
+    @Test
+    public void blacklistedNames() {
+
+        PathFilter filter = new PathFilter(new HashSet<>(asList("session.lock")), new HashSet<>(asList("stats")), new String[0]);
+
+        assertFalse(file(filter, "session.lock"));
+        assertFalse(file(filter, "DIM1/session.lock"));
+        assertFalse(directory(filter, "stats"));
+        assertTrue(file(filter, "stats"));
+        assertTrue(directory(filter, "session.lock"));
+    }
+
+    @Test
+    public void patternWithoutSlashMatchesAnyDepth() {
+
+        PathFilter filter = filter("*.tmp");
+
+        assertFalse(file(filter, "a.tmp"));
+        assertFalse(file(filter, "DIM1/data/a.tmp"));
+        assertTrue(file(filter, "a.tmp.dat"));
+    }
+
+    @Test
+    public void patternWithSlashIsAnchored() {
+
+        PathFilter filter = filter("/data", "DIM1/*.dat");
+
+        assertFalse(directory(filter, "data"));
+        assertTrue(directory(filter, "DIM1/data"));
+        assertFalse(file(filter, "DIM1/level.dat"));
+        assertTrue(file(filter, "DIM1/data/level.dat"));
+    }
+
+    @Test
+    public void doubleStarCrossesDirectories() {
+
+        PathFilter filter = filter("**/cache/**");
+
+        assertFalse(file(filter, "cache/a"));
+        assertFalse(file(filter, "mod/cache/a/b"));
+        assertTrue(file(filter, "mod/cachex/a"));
+    }
+
+    @Test
+    public void trailingSlashOnlyMatchesDirectories() {
+
+        PathFilter filter = filter("logs/");
+
+        assertFalse(directory(filter, "logs"));
+        assertTrue(file(filter, "logs"));
+    }
+
+    @Test
+    public void lastMatchingPatternDecides() {
+
+        PathFilter filter = filter("*.dat", "!level.dat", "# a comment", "");
+
+        assertTrue(filter.hasPatterns());
+        assertFalse(file(filter, "data/villages.dat"));
+        assertTrue(file(filter, "level.dat"));
+        assertTrue(file(filter, "region/r.0.0.mca"));
+    }
+
+    @Test
+    public void blacklistedNamesCanBeIncludedAgain() {
+
+        PathFilter filter = new PathFilter(new HashSet<>(asList("session.lock")), NONE, new String[]{"!session.lock"});
+
+        assertTrue(file(filter, "session.lock"));
+    }
+
+    @Test
+    public void bracketsAndBraces() {
+
+        PathFilter filter = filter("r.[!0].*.mca", "*.{log,tmp}");
+
+        assertTrue(file(filter, "r.0.1.mca"));
+        assertFalse(file(filter, "r.5.1.mca"));
+        assertFalse(file(filter, "latest.log"));
+        assertFalse(file(filter, "a.tmp"));
+        assertTrue(file(filter, "a.log,tmp"));
+    }
+
+    @Test
+    public void regexMatchesTheWholePath() {
+
+        PathFilter filter = filter("regex:DIM-?\\d+/region/.*");
+
+        assertFalse(file(filter, "DIM-1/region/r.0.0.mca"));
+        assertTrue(file(filter, "region/r.0.0.mca"));
+    }
+
+    @Test
+    public void globToRegexEscapesLiterals() {
+
+        assertTrue(Pattern.matches(PathFilter.globToRegex("a.b(c)+$"), "a.b(c)+$"));
+        assertFalse(Pattern.matches(PathFilter.globToRegex("a.b"), "axb"));
+        assertTrue(Pattern.matches(PathFilter.globToRegex("a\\*"), "a*"));
+        assertFalse(Pattern.matches(PathFilter.globToRegex("a\\*"), "ab"));
+        assertTrue(Pattern.matches(PathFilter.globToRegex("a}"), "a}"));
+        assertTrue(Pattern.matches(PathFilter.globToRegex("a,b"), "a,b"));
+    }
+
+    @Test
+    public void rejectsBrokenPatterns() {
+
+        String[] broken = {"[abc", "{a,b", "regex:(", "!", "/"};
+
+        for (String pattern : broken) {
+            try {
+                filter(pattern);
+                fail("Accepted " + pattern);
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+}
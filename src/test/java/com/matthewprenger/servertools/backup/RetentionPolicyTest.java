@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RetentionPolicyTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long NOW = 1000 * DAY;
+
+    /**
+     * A backup every interval going back the given time, oldest first, named by their age in hours
+     */
+    private static List<BackupCatalog.Entry> every(long interval, long back) {
+
+        List<BackupCatalog.Entry> backups = new ArrayList<>();
+        for (long age = back; age >= 0; age -= interval)
+            backups.add(new BackupCatalog.Entry(new File(age / HOUR + "h.zip"), NOW - age, 1));
+        return backups;
+    }
+
+    private static Set<String> kept(RetentionPolicy policy, List<BackupCatalog.Entry> backups) {
+
+        Map<BackupCatalog.Entry, String> rejected = policy.select(backups, NOW);
+        Set<String> kept = new LinkedHashSet<>();
+        for (BackupCatalog.Entry backup : backups) {
+            if (!rejected.containsKey(backup))
+                kept.add(backup.file.getName());
+        }
+        return kept;
+    }
+
+    @Test
+    public void keepsOnePerIntervalInEachTier() {
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"6h=all", "2d=1d"});
+        Set<String> kept = kept(policy, every(HOUR, 2 * DAY));
+
+        // Every backup of the last six hours
+        for (int age = 0; age <= 6; age++)
+            assertTrue(kept.contains(age + "h.zip"));
+
+        // Then only the oldest of each day, which is the one at midnight
+        assertEquals(new LinkedHashSet<>(Arrays.asList("48h.zip", "24h.zip", "6h.zip", "5h.zip", "4h.zip", "3h.zip", "2h.zip", "1h.zip", "0h.zip")), kept);
+    }
+
+    @Test
+    public void deletesBackupsOlderThanTheLastTier() {
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"1d=all"});
+        Set<String> kept = kept(policy, every(12 * HOUR, 3 * DAY));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("24h.zip", "12h.zip", "0h.zip")), kept);
+        assertEquals("older than every retention tier",
+                policy.select(every(12 * HOUR, 3 * DAY), NOW).values().iterator().next());
+    }
+
+    @Test
+    public void foreverKeepsOldBackups() {
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"forever=1w", "1d=all"});
+        Set<String> kept = kept(policy, every(DAY, 30 * DAY));
+
+        // The last two days, then the oldest of each of the five weeks the rest fall in
+        assertEquals(new LinkedHashSet<>(Arrays.asList("720h.zip", "648h.zip", "480h.zip", "312h.zip", "144h.zip", "24h.zip", "0h.zip")), kept);
+    }
+
+    @Test
+    public void newestIsAlwaysKept() {
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"1h=all"});
+        List<BackupCatalog.Entry> backups = Collections.singletonList(new BackupCatalog.Entry(new File("old.zip"), NOW - 30 * DAY, 1));
+
+        assertTrue(policy.select(backups, NOW).isEmpty());
+    }
+
+    @Test
+    public void parsesEveryUnitAndSkipsBlankLines() {
+
+        RetentionPolicy.parse(new String[]{"30m=all", "", " 12h = 1h ", "2w=1d", "1y=1w", "FOREVER=4w"});
+    }
+
+    @Test
+    public void rejectsMalformedTiers() {
+
+        String[][] malformed = {
+                {},
+                {" "},
+                {"1d"},
+                {"1d=1h=1m"},
+                {"1x=all"},
+                {"d=all"},
+                {"0d=all"},
+                {"-1d=all"},
+                {"1d=forever"},
+        };
+
+        for (String[] tiers : malformed) {
+            try {
+                RetentionPolicy.parse(tiers);
+                fail("Accepted " + Arrays.toString(tiers));
+            } catch (IllegalArgumentException expected) {
+                // Expected
+            }
+        }
+    }
+}
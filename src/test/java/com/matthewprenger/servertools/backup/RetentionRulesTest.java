@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RetentionRulesTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long NOW = 1000 * DAY;
+
+    /**
+     * One backup a day, the newest made today, oldest first
+     */
+    private static List<BackupCatalog.Entry> daily(int count, long size) {
+
+        return daily(count, size, ".zip");
+    }
+
+    private static List<BackupCatalog.Entry> daily(int count, long size, String extension) {
+
+        List<BackupCatalog.Entry> backups = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i--)
+            backups.add(new BackupCatalog.Entry(new File("backup-" + i + extension), NOW - i * DAY, size));
+        return backups;
+    }
+
+    private static List<String> apply(RetentionRules rules, List<BackupCatalog.Entry> backups, long totalSize, Set<String> undeletable) {
+
+        final List<String> deleted = new ArrayList<>();
+        final Set<String> locked = undeletable;
+
+        int count = rules.apply(backups, totalSize, NOW, new RetentionRules.Deleter() {
+            @Override
+            public boolean delete(BackupCatalog.Entry backup, String reason) {
+
+                if (locked.contains(backup.file.getName()))
+                    return false;
+                deleted.add(backup.file.getName());
+                return true;
+            }
+        });
+
+        assertEquals(deleted.size(), count);
+        return deleted;
+    }
+
+    private static List<String> apply(RetentionRules rules, List<BackupCatalog.Entry> backups, long totalSize) {
+
+        return apply(rules, backups, totalSize, Collections.<String>emptySet());
+    }
+
+    @Test
+    public void disabledWithoutLimits() {
+
+        RetentionRules rules = new RetentionRules(-1, -1, -1, null);
+        assertFalse(rules.isEnabled());
+        assertTrue(apply(rules, daily(5, 10), 50).isEmpty());
+    }
+
+    @Test
+    public void countLimitDeletesOldest() {
+
+        RetentionRules rules = new RetentionRules(-1, 3, -1, null);
+        assertEquals(Arrays.asList("backup-4.zip", "backup-3.zip"), apply(rules, daily(5, 10), 50));
+    }
+
+    @Test
+    public void ageLimitCountsWholeDays() {
+
+        RetentionRules rules = new RetentionRules(2, -1, -1, null);
+        assertEquals(Arrays.asList("backup-4.zip", "backup-3.zip"), apply(rules, daily(5, 10), 50));
+    }
+
+    @Test
+    public void sizeLimitDeletesUntilUnder() {
+
+        RetentionRules rules = new RetentionRules(-1, -1, 25, null);
+        assertEquals(Arrays.asList("backup-4.zip", "backup-3.zip", "backup-2.zip"), apply(rules, daily(5, 10), 50));
+    }
+
+    @Test
+    public void sizeLimitCountsOtherData() {
+
+        // 30 bytes of backups and 20 of something else, such as the incremental store
+        RetentionRules rules = new RetentionRules(-1, -1, 35, null);
+        assertEquals(Arrays.asList("backup-2.zip", "backup-1.zip"), apply(rules, daily(3, 10), 50));
+    }
+
+    @Test
+    public void sizeLimitMakesUpForBackupsThatCantBeDeleted() {
+
+        RetentionRules rules = new RetentionRules(-1, -1, 30, null);
+        assertEquals(Arrays.asList("backup-3.zip", "backup-2.zip"),
+                apply(rules, daily(5, 10), 50, Collections.singleton("backup-4.zip")));
+    }
+
+    @Test
+    public void sizeLimitKeepsTheNewest() {
+
+        RetentionRules rules = new RetentionRules(-1, -1, 5, null);
+        assertEquals(Arrays.asList("backup-2.zip", "backup-1.zip"), apply(rules, daily(3, 10), 30));
+    }
+
+    @Test
+    public void sizeLimitMeasuresAgainAfterEachManifest() {
+
+        long gigabyte = 1024 * 1024 * 1024L;
+        RetentionRules rules = new RetentionRules(-1, -1, 8 * gigabyte + 1024 * 1024, null);
+        List<BackupCatalog.Entry> backups = daily(10, 100 * 1024, BackupManifest.FILE_EXTENSION);
+        List<String> deleted = new ArrayList<>();
+
+        // Each manifest holds on to a gigabyte of the store that no other uses, as the caller
+        // would find by cleaning up the store and measuring it after every pass
+        while (true) {
+            long totalSize = 0;
+            for (BackupCatalog.Entry backup : backups)
+                totalSize += backup.size + gigabyte;
+
+            List<String> pass = apply(rules, backups, totalSize);
+            if (pass.isEmpty())
+                break;
+
+            assertEquals(1, pass.size());
+            deleted.addAll(pass);
+            backups.remove(0);
+        }
+
+        assertEquals(Arrays.asList("backup-9.manifest", "backup-8.manifest"), deleted);
+    }
+
+    @Test
+    public void tieredPolicyIsAppliedWithTheLimits() {
+
+        RetentionPolicy policy = RetentionPolicy.parse(new String[]{"2d=all", "forever=1w"});
+        RetentionRules rules = new RetentionRules(-1, -1, -1, policy);
+        assertTrue(rules.isEnabled());
+
+        List<BackupCatalog.Entry> backups = daily(15, 10);
+        List<String> deleted = apply(rules, backups, 150);
+
+        // Every backup of the last two days is kept, then one a week
+        for (int i = 0; i <= 2; i++)
+            assertFalse(deleted.contains("backup-" + i + ".zip"));
+        assertEquals(15 - 3 - countWeeks(backups.subList(0, 12)), deleted.size());
+    }
+
+    private static int countWeeks(List<BackupCatalog.Entry> backups) {
+
+        Set<Long> weeks = new HashSet<>();
+        for (BackupCatalog.Entry backup : backups)
+            weeks.add(backup.time / (7 * DAY));
+        return weeks.size();
+    }
+}
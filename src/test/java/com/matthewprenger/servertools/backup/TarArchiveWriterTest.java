@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TarArchiveWriterTest {
+
+    private static final int RECORD_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> files = new TreeMap<>();
+    private File world;
+
+    @Before
+    public void setUp() throws IOException {
+
+        world = folder.newFolder("world");
+        Random random = new Random(42);
+
+        byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ('a' + i % 7);
+        byte[] noise = new byte[ParallelArchiver.BLOCK_SIZE + 999];
+        random.nextBytes(noise);
+
+        put("level.dat", text);
+        put("empty.txt", new byte[0]);
+        put("region/r.0.0.bin", noise);
+
+        // Too long for the name field alone, fits with the prefix field
+        put(Strings.repeat("p", 60) + "/" + Strings.repeat("n", 90), Arrays.copyOf(text, 10));
+
+        // Too long for either, needs a pax header
+        put(Strings.repeat("x", 200) + ".dat", Arrays.copyOf(text, 20));
+    }
+
+    private void put(String path, byte[] data) throws IOException {
+
+        files.put(path, data);
+
+        File file = new File(world, path);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private File archive(ArchiveFormat format) throws IOException {
+
+        File archive = new File(folder.getRoot(), "backup" + format.getExtension());
+        ParallelArchiver archiver = new ParallelArchiver(2, PathFilter.ACCEPT_ALL, Collections.<String>emptySet(), format, 6,
+                BackupThrottle.UNLIMITED, new BufferPool(8 * ParallelArchiver.BUFFER_SIZE, ParallelArchiver.BUFFER_SIZE));
+        archiver.archive(world, archive);
+
+        assertEquals(files.size(), archiver.getFilesArchived());
+        assertEquals(archive.length(), archiver.getBytesWritten());
+
+        // Read every file back through the index too
+        for (Map.Entry<String, byte[]> file : files.entrySet())
+            assertArrayEquals(file.getKey(), file.getValue(), ParallelArchiverTest.readIndexed(archive, archiver.getIndex().get(file.getKey())));
+
+        return archive;
+    }
+
+    /**
+     * Read the files out of a tar stream, checking every header along the way
+     */
+    private static Map<String, byte[]> readTar(InputStream in) throws IOException {
+
+        Map<String, byte[]> read = new TreeMap<>();
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[RECORD_SIZE];
+        String paxPath = null;
+
+        while (true) {
+            data.readFully(header);
+            if (isZero(header)) {
+                data.readFully(header);
+                assertTrue("Second end record", isZero(header));
+                int b;
+                while ((b = data.read()) >= 0)
+                    assertEquals("Padding after the end", 0, b);
+                return read;
+            }
+
+            assertEquals("ustar", getString(header, 257, 6));
+            assertEquals(getOctal(header, 148, 8), checksum(header));
+
+            String name = getString(header, 0, 100);
+            String prefix = getString(header, 345, 155);
+            if (!prefix.isEmpty())
+                name = prefix + "/" + name;
+
+            byte[] content = new byte[(int) getOctal(header, 124, 12)];
+            data.readFully(content);
+            ByteStreams.skipFully(data, (RECORD_SIZE - content.length % RECORD_SIZE) % RECORD_SIZE);
+
+            char type = (char) header[156];
+            if (type == 'x') {
+                String records = new String(content, Charsets.UTF_8);
+                int start = records.indexOf(" path=");
+                paxPath = start < 0 ? null : records.substring(start + 6, records.indexOf('\n', start));
+                continue;
+            }
+
+            if (paxPath != null) {
+                name = paxPath;
+                paxPath = null;
+            }
+
+            if (type == '5') {
+                assertTrue(name.endsWith("/"));
+                assertEquals(0, content.length);
+            } else {
+                assertEquals('0', type);
+                assertNull("Duplicate " + name, read.put(name, content));
+            }
+        }
+    }
+
+    private static boolean isZero(byte[] record) {
+
+        for (byte b : record) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static String getString(byte[] header, int offset, int length) {
+
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+            end++;
+        return new String(header, offset, end - offset, Charsets.UTF_8);
+    }
+
+    private static long getOctal(byte[] header, int offset, int length) {
+
+        return Long.parseLong(getString(header, offset, length).trim(), 8);
+    }
+
+    private static long checksum(byte[] header) {
+
+        long checksum = 0;
+        for (int i = 0; i < header.length; i++)
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        return checksum;
+    }
+
+    private static void assertSameFiles(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> file : expected.entrySet())
+            assertArrayEquals(file.getKey(), file.getValue(), actual.get(file.getKey()));
+    }
+
+    @Test
+    public void tarRoundTrip() throws IOException {
+
+        File archive = archive(ArchiveFormat.TAR);
+        assertEquals(0, archive.length() % RECORD_SIZE);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(archive))) {
+            assertSameFiles(files, readTar(in));
+        }
+    }
+
+    @Test
+    public void tarGzRoundTrip() throws IOException {
+
+        File archive = archive(ArchiveFormat.TAR_GZ);
+
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(archive)))) {
+            assertSameFiles(files, readTar(in));
+        }
+    }
+
+    @Test
+    public void formatsByNameAndExtension() {
+
+        assertEquals(ArchiveFormat.TAR_GZ, ArchiveFormat.fromName(" TGZ "));
+        assertEquals(ArchiveFormat.TAR_GZ, ArchiveFormat.fromName("tar.gz"));
+        assertEquals(ArchiveFormat.ZIP, ArchiveFormat.fromName("zip"));
+        assertNull(ArchiveFormat.fromName("rar"));
+
+        assertEquals(ArchiveFormat.TAR_GZ, ArchiveFormat.forFile("06-01-2014.tar.gz"));
+        assertEquals(ArchiveFormat.TAR, ArchiveFormat.forFile("06-01-2014.tar"));
+        assertNull(ArchiveFormat.forFile("06-01-2014" + BackupManifest.FILE_EXTENSION));
+    }
+}
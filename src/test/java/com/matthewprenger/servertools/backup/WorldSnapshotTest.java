@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 Matthew Prenger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewprenger.servertools.backup;
+
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class WorldSnapshotTest {
+
+    private static final long MTIME = 1400000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File world;
+    private File target;
+    private PathFilter filter;
+
+    @Before
+    public void setUp() throws IOException {
+
+        world = folder.newFolder("world");
+        target = new File(folder.getRoot(), "snapshot");
+        filter = new PathFilter(Collections.singleton("session.lock"), Collections.<String>emptySet(), new String[0]);
+
+        write("level.dat", "level", MTIME);
+        write("region/r.0.0.mca", "region", MTIME);
+        write("data/villages.dat", "villages", MTIME);
+        write("session.lock", "lock", MTIME);
+    }
+
+    private File write(String path, String content, long mtime) throws IOException {
+
+        File file = new File(world, path);
+        file.getParentFile().mkdirs();
+        Files.write(content.getBytes("UTF-8"), file);
+        assertTrue(file.setLastModified(mtime));
+        return file;
+    }
+
+    private String read(String path) throws IOException {
+
+        return new String(Files.toByteArray(new File(target, path)), "UTF-8");
+    }
+
+    @Test
+    public void copiesTheWorld() throws IOException {
+
+        WorldSnapshot snapshot = WorldSnapshot.create(world, target, filter);
+
+        assertEquals(target, snapshot.getDirectory());
+        assertEquals(3, snapshot.getFilesCopied());
+        assertEquals(0, snapshot.getFilesReused());
+        assertEquals("region", read("region/r.0.0.mca"));
+        assertEquals(MTIME, new File(target, "level.dat").lastModified());
+        assertFalse(new File(target, "session.lock").exists());
+    }
+
+    @Test
+    public void onlyChangedFilesAreCopiedAgain() throws IOException {
+
+        WorldSnapshot.create(world, target, filter);
+
+        // Same size, later time, as when a region file is saved to in place
+        write("region/r.0.0.mca", "REGION", MTIME + 1000);
+        write("data/new.dat", "new", MTIME);
+
+        WorldSnapshot snapshot = WorldSnapshot.create(world, target, filter);
+        assertEquals(2, snapshot.getFilesCopied());
+        assertEquals(2, snapshot.getFilesReused());
+        assertEquals("REGION", read("region/r.0.0.mca"));
+        assertEquals("new", read("data/new.dat"));
+    }
+
+    @Test
+    public void filesGoneFromTheWorldAreRemoved() throws IOException {
+
+        WorldSnapshot.create(world, target, filter);
+        assertTrue(new File(world, "data/villages.dat").delete());
+        assertTrue(new File(world, "data").delete());
+
+        WorldSnapshot.create(world, target, filter);
+        assertFalse(new File(target, "data").exists());
+        assertTrue(new File(target, "level.dat").isFile());
+    }
+
+    @Test
+    public void recentlyModifiedFilesAreAlwaysCopied() throws IOException {
+
+        write("level.dat", "level", System.currentTimeMillis());
+
+        WorldSnapshot.create(world, target, filter);
+        WorldSnapshot snapshot = WorldSnapshot.create(world, target, filter);
+
+        // It could have been saved again within the same second without its time changing
+        assertEquals(1, snapshot.getFilesCopied());
+        assertEquals(2, snapshot.getFilesReused());
+    }
+
+    @Test
+    public void deleteRemovesTheSnapshot() throws IOException {
+
+        WorldSnapshot.create(world, target, filter).delete();
+        assertFalse(target.exists());
+    }
+}